@@ -29,6 +29,20 @@ static void throwException (JNIEnv *env, const char* ex, const char* msg)
     }
 }
 
+/*
+ * Pixel and offset arrays are accessed with Get/ReleasePrimitiveArrayCritical,
+ * so that the VM hands out the Java array itself whenever it can, rather
+ * than a copy of it.  In between, no other JNI function may be called and
+ * the thread must not block, so all parameter checks and allocations come
+ * first.  Arrays that are only read are released with JNI_ABORT, so that
+ * even on VMs that do copy, they are never copied back.
+ *
+ * Map kernels take an offset and a row stride for each pixel array (see
+ * ImageKernels.java), so that they can work on views into larger images.
+ * Pointers are advanced by the offset right after the arrays are acquired,
+ * and rows are stride apart from then on.
+ */
+
 inline static int linearIndex (int width, int i, int j) {
     return i*width + j;
 }
@@ -59,7 +73,7 @@ inline static T max (T a, T b)
 
 static void rowSumIncDec (int* sum,
         int rowInc, int rowDec,
-        const unsigned char* data,
+        const unsigned char* data, int stride,
         int width, int height, int radius)
 {
     int deltaInc = 0, deltaDec = 0;
@@ -67,10 +81,10 @@ static void rowSumIncDec (int* sum,
     // Handle first element
     for (int sj = 0;  sj <= radius;  sj++) {
         if (rowInc < height) {
-            deltaInc += getPixel(data, width, rowInc, sj);
+            deltaInc += getPixel(data, stride, rowInc, sj);
         }
         if (rowDec >= 0) {
-            deltaDec += getPixel(data, width, rowDec, sj);
+            deltaDec += getPixel(data, stride, rowDec, sj);
         }
     }
     sum[0] += deltaInc - deltaDec;
@@ -80,51 +94,72 @@ static void rowSumIncDec (int* sum,
     for (int j = 1;  j < radius + 1;  j++) {
         // Left edge
         if (rowInc < height) {
-            deltaInc += getPixel(data, width, rowInc, j+radius);
+            deltaInc += getPixel(data, stride, rowInc, j+radius);
         }
         if (rowDec >= 0) {
-            deltaDec += getPixel(data, width, rowDec, j+radius);
+            deltaDec += getPixel(data, stride, rowDec, j+radius);
         }
         sum[j] += deltaInc - deltaDec;
     }
     for (int j = radius + 1;  j < width - radius;  j++) {
         // Internal
         if (rowInc < height) {
-            deltaInc -= getPixel(data, width, rowInc, j-radius-1);
-            deltaInc += getPixel(data, width, rowInc, j+radius);
+            deltaInc -= getPixel(data, stride, rowInc, j-radius-1);
+            deltaInc += getPixel(data, stride, rowInc, j+radius);
         }
         if (rowDec >= 0) {
-            deltaDec -= getPixel(data, width, rowDec, j-radius-1);
-            deltaDec += getPixel(data, width, rowDec, j+radius);
+            deltaDec -= getPixel(data, stride, rowDec, j-radius-1);
+            deltaDec += getPixel(data, stride, rowDec, j+radius);
         }
         sum[j] += deltaInc - deltaDec;
     }
     for (int j = width - radius;  j < width;  j++) {
         // Right edge
         if (rowInc < height) {
-            deltaInc -= getPixel(data, width, rowInc, j-radius-1);
+            deltaInc -= getPixel(data, stride, rowInc, j-radius-1);
         }
         if (rowDec >= 0) {
-            deltaDec -= getPixel(data, width, rowDec, j-radius-1);
+            deltaDec -= getPixel(data, stride, rowDec, j-radius-1);
         }
         sum[j] += deltaInc - deltaDec;
     }
 }
 
 static void avgRow (const int* sum, int row,
-        unsigned char* data, int width, int height, int radius)
+        unsigned char* data, int stride, int width, int height, int radius)
 {
     // Compute clipped height
     int h = min(height-1, row+radius) - max(0, row-radius) + 1;
     for (int j = 0;  j < width;  j++) {
         // Compute clipped width
         int w = min(width-1, j+radius) - max(0, j-radius) + 1;
-        setPixel(data, width, row, j, (unsigned char)(sum[j]/(w*h)));
+        setPixel(data, stride, row, j, (unsigned char)(sum[j]/(w*h)));
+    }
+}
+
+/**
+ * Check that a width x height image, starting at ofs with rows stride
+ * apart, fits in the array.  Width and height must already be checked.
+ */
+static bool validateArray
+  (JNIEnv *env, jbyteArray jdata, jint ofs, jint stride,
+          jint width, jint height, const char *tooShort)
+{
+    if (ofs < 0 || stride < width) {
+        throwException(env, "java/lang/IllegalArgumentException", "Invalid array offset or stride");
+        return false;
     }
+    if (width > 0 && height > 0 &&
+            (long long)(height - 1) * stride + width > (long long)env->GetArrayLength(jdata) - ofs) {
+        throwException(env, "java/lang/IllegalArgumentException", tooShort);
+        return false;
+    }
+    return true;
 }
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeMeanFilter
-  (JNIEnv *env, jclass cls, jbyteArray jin, jbyteArray jout,
+  (JNIEnv *env, jclass cls, jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
           jint width, jint height, jint radius)
 {
     // Check parameters
@@ -136,12 +171,8 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeMeanFilter
         throwException(env, "java/lang/IllegalArgumentException", "Radius is too large");
         return;
     }
-    if (env->GetArrayLength(jin) < width*height) {
-        throwException(env, "java/lang/IllegalArgumentException", "Input array too short");
-        return;
-    }
-    if (env->GetArrayLength(jout) < width*height) {
-        throwException(env, "java/lang/IllegalArgumentException", "Output array too short");
+    if (!validateArray(env, jin, inOfs, inStride, width, height, "Input array too short") ||
+            !validateArray(env, jout, outOfs, outStride, width, height, "Output array too short")) {
         return;
     }
     // Allocate temporary buffer
@@ -152,22 +183,24 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeMeanFilter
     }
     memset(sum, 0, width * sizeof(int));  // XXX is this the C++ way?
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    unsigned char *out = (unsigned char *) env->GetByteArrayElements(jout, 0);
+    unsigned char *inBase = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *outBase = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+    const unsigned char *in = inBase + inOfs;
+    unsigned char *out = outBase + outOfs;
 
     for (int si = 0;  si <= radius;  si++) {
-        rowSumIncDec(sum, si, -1, in, width, height, radius);
+        rowSumIncDec(sum, si, -1, in, inStride, width, height, radius);
     }
-    avgRow(sum, 0, out, width, height, radius);
+    avgRow(sum, 0, out, outStride, width, height, radius);
 
     for (int i = 1;  i < height; i++) {
-        rowSumIncDec(sum, i+radius, i-radius-1, in, width, height, radius);
-        avgRow(sum, i, out, width, height, radius);
+        rowSumIncDec(sum, i+radius, i-radius-1, in, inStride, width, height, radius);
+        avgRow(sum, i, out, outStride, width, height, radius);
     }
 
-    delete sum;
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseByteArrayElements(jout, (jbyte *)out, 0);
+    delete[] sum;
+    env->ReleasePrimitiveArrayCritical(jin, inBase, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, outBase, 0);
 }
 
 static bool validateReduceParameters
@@ -222,10 +255,10 @@ jint Java_net_bitquill_ocr_image_GrayImage_nativeMin
         return -1;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
     unsigned char mn = 255;
     submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, minReducer, mn);
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
 
     return mn;
 }
@@ -244,16 +277,16 @@ jint JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeMax
         return -1;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
     unsigned char mx = 0;
     submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, maxReducer, mx);
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
 
     return mx;
 }
 
 static struct SumReducer {
-    inline void operator () (int &sum, unsigned char val) {
+    inline void operator () (long long &sum, unsigned char val) {
         sum += val;
     }
 } sumReducer;
@@ -266,16 +299,16 @@ jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeMean
         return -1;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    int sum = 0;
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    long long sum = 0;
     submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, sumReducer, sum);
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
 
     return (jfloat)sum / (width * height);
 }
 
 struct SSQ {
-    int sum;
+    long long sum;
     long long sumSquares;
     SSQ () : sum(0), sumSquares(0) { }
 };
@@ -296,15 +329,46 @@ jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeVariance
         return -1;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
     SSQ ssq;
     submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, ssqReducer, ssq);
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
 
     jfloat mean = (jfloat)ssq.sum / (width * height);
     return (jfloat)ssq.sumSquares / (width * height) - mean*mean;
 }
 
+jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeLaplacianVariance
+  (JNIEnv *env, jclass cls, jbyteArray jin, jint imgWidth, jint imgHeight,
+          jint left, jint top, jint width, jint height)
+{
+    if (!validateReduceParameters(env, jin, imgWidth, imgHeight, left, top, width, height)) {
+        return -1;
+    }
+    if (width < 3 || height < 3) {
+        return 0.0f;
+    }
+
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    jlong sum = 0;
+    jlong sumSquares = 0;
+    for (int i = top + 1;  i < top + height - 1;  i++) {
+        const unsigned char *row = in + i*imgWidth;
+        const unsigned char *above = row - imgWidth;
+        const unsigned char *below = row + imgWidth;
+        for (int j = left + 1;  j < left + width - 1;  j++) {
+            int lap = 4*row[j] - row[j - 1] - row[j + 1] - above[j] - below[j];
+            sum += lap;
+            sumSquares += lap*lap;
+        }
+    }
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+
+    int n = (width - 2) * (height - 2);
+    jfloat mean = (jfloat)sum / n;
+    return (jfloat)sumSquares / n - mean*mean;
+}
+
 static struct HistogramReducer {
     inline void operator () (jint *hist, unsigned char val) {
         ++hist[val];
@@ -320,12 +384,74 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeHistogram
         return;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    jint *out = env->GetIntArrayElements(jout, 0);
-    memset(out, 0, sizeof(jint)); // XXX C++ way?
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    jint *out = (jint *) env->GetPrimitiveArrayCritical(jout, 0);
+    memset(out, 0, 256 * sizeof(jint)); // XXX C++ way?
     submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, histogramReducer, out);
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseIntArrayElements(jout, (jint *)out, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
+}
+
+struct Stats {
+    unsigned char mn, mx;
+    long long sum;
+    long long sumSquares;
+    Stats () : mn(255), mx(0), sum(0), sumSquares(0) { }
+};
+
+static struct StatsReducer {
+    inline void operator () (Stats &stats, unsigned char val) {
+        stats.mn = min(stats.mn, val);
+        stats.mx = max(stats.mx, val);
+        stats.sum += val;
+        stats.sumSquares += val*val;
+    }
+} statsReducer;
+
+void Java_net_bitquill_ocr_image_GrayImage_nativeStatistics
+  (JNIEnv *env, jclass cls, jbyteArray jin, jint imgWidth, jint imgHeight,
+          jlongArray jout, jintArray jhist,
+          jint left, jint top, jint width, jint height)
+{
+    if (!validateReduceParameters(env, jin, imgWidth, imgHeight, left, top, width, height)) {
+        return;
+    }
+    if (env->GetArrayLength(jout) < 4) {
+        throwException(env, "java/lang/IllegalArgumentException", "Output array too short");
+        return;
+    }
+    if (jhist != 0 && env->GetArrayLength(jhist) < 256) {
+        throwException(env, "java/lang/IllegalArgumentException", "Histogram array too short");
+        return;
+    }
+
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    jlong *out = (jlong *) env->GetPrimitiveArrayCritical(jout, 0);
+    Stats stats;
+    if (jhist != 0) {
+        // Per-pixel work is just the increment; everything else follows from histogram
+        jint *hist = (jint *) env->GetPrimitiveArrayCritical(jhist, 0);
+        memset(hist, 0, 256 * sizeof(jint));
+        submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, histogramReducer, hist);
+        for (int val = 0;  val < 256;  val++) {
+            jint count = hist[val];
+            if (count != 0) {
+                stats.mn = min(stats.mn, (unsigned char)val);
+                stats.mx = (unsigned char)val;
+                stats.sum += (long long)count * val;
+                stats.sumSquares += (long long)count * (val*val);
+            }
+        }
+        env->ReleasePrimitiveArrayCritical(jhist, hist, 0);
+    } else {
+        submatrixReduce(in, imgWidth, imgHeight, left, top, width, height, statsReducer, stats);
+    }
+    out[0] = stats.mn;
+    out[1] = stats.mx;
+    out[2] = stats.sum;
+    out[3] = stats.sumSquares;
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
 }
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeGrayToARGB
@@ -346,13 +472,13 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeGrayToARGB
         throwException(env, "java/lang/IllegalArgumentException", "Input array too short");
         return;
     }
-    if (left < 0 || left + width >= imgWidth || top < 0 || top + height >= imgHeight) {
+    if (left < 0 || left + width > imgWidth || top < 0 || top + height > imgHeight) {
         throwException(env, "java/lang/IllegalArgumentException", "ROI exceeds image");
         return;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    unsigned int *out = (unsigned int *) env->GetIntArrayElements(jout, 0);
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned int *out = (unsigned int *) env->GetPrimitiveArrayCritical(jout, 0);
 
     for (int i = 0;  i < height;  i++) {
         for (int j = 0;  j < width;  j++) {
@@ -362,40 +488,34 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeGrayToARGB
         }
     }
 
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseIntArrayElements(jout, (jint *)out, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
 }
 
 static bool validateMapParameters
-  (JNIEnv *env, jbyteArray jin, jbyteArray jout,
+  (JNIEnv *env, jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
           jint imgWidth, jint imgHeight)
 {
     if (imgWidth < 0 || imgHeight < 0) {
         throwException(env, "java/lang/IllegalArgumentException", "Image width and height must be non-negative");
         return false;
     }
-    if (env->GetArrayLength(jin) < imgWidth * imgHeight) {
-        throwException(env, "java/lang/IllegalArgumentException", "Input array too short");
-        return false;
-    }
-    if (env->GetArrayLength(jout) < imgWidth * imgHeight) {
-        throwException(env, "java/lang/IllegalArgumentException", "Output array too short");
-        return false;
-    }
-    return true;
+    return validateArray(env, jin, inOfs, inStride, imgWidth, imgHeight, "Input array too short") &&
+        validateArray(env, jout, outOfs, outStride, imgWidth, imgHeight, "Output array too short");
 }
 
 template <class Mapper>
 static inline void matrixMap
-  (unsigned char *in, unsigned char *out,
+  (const unsigned char *in, int inStride, unsigned char *out, int outStride,
           int imgWidth, int imgHeight,
           Mapper mapper)
 {
     // Parameters are assumed to be validated by validateMapParameters
     for (int i = 0;  i < imgHeight;  i++) {
         for (int j = 0;  j < imgWidth;  j++) {
-            unsigned char val = getPixel(in, imgWidth, i, j);
-            setPixel(out, imgWidth, i, j, mapper(i, j, val));
+            unsigned char val = getPixel(in, inStride, i, j);
+            setPixel(out, outStride, i, j, mapper(i, j, val));
         }
     }
 }
@@ -403,38 +523,39 @@ static inline void matrixMap
 struct ThresholdMapper {
     unsigned char hi, lo;
     int offset;
-    int imgWidth;
-    unsigned char *thresh;
+    int threshStride;
+    const unsigned char *thresh;
     ThresholdMapper (unsigned char hi, unsigned char lo, int offset,
-            int imgWidth, unsigned char *thresh)
-        : hi(hi), lo(lo), offset(offset), imgWidth(imgWidth), thresh(thresh) { }
+            int threshStride, const unsigned char *thresh)
+        : hi(hi), lo(lo), offset(offset), threshStride(threshStride), thresh(thresh) { }
     inline unsigned char operator () (int i, int j, unsigned char val) {
-        int thr = getPixel(thresh, imgWidth, i, j);
+        int thr = getPixel(thresh, threshStride, i, j);
         return (thr - ((int)val) < offset) ? hi : lo;
     }
 };
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeAdaptiveThreshold
   (JNIEnv *env, jclass cls,
-    jbyteArray jin, jbyteArray jthresh, jbyteArray jout,
+    jbyteArray jin, jint inOfs, jint inStride,
+    jbyteArray jthresh, jint threshOfs, jint threshStride,
+    jbyteArray jout, jint outOfs, jint outStride,
     jint width, jint height, jbyte hi, jbyte lo, jint offset)
 {
     // Check general parameters
-    if (!validateMapParameters(env, jin, jout, width, height)) {
+    if (!validateMapParameters(env, jin, inOfs, inStride, jout, outOfs, outStride, width, height)) {
         return;
     }
     // Check thresholding-specific parameters
-    if (env->GetArrayLength(jthresh) < width * height) {
-        throwException(env, "java/lang/IllegalArgumentException", "Threshold array too short");
+    if (!validateArray(env, jthresh, threshOfs, threshStride, width, height, "Threshold array too short")) {
         return;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    unsigned char *thresh = (unsigned char *) env->GetByteArrayElements(jthresh, 0);
-    unsigned char *out = (unsigned char *) env->GetByteArrayElements(jout, 0);
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *thresh = (unsigned char *) env->GetPrimitiveArrayCritical(jthresh, 0);
+    unsigned char *out = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
 
-    ThresholdMapper mapper(hi, lo, offset, width, thresh);
-    matrixMap(in, out, width, height, mapper);
+    ThresholdMapper mapper(hi, lo, offset, threshStride, thresh + threshOfs);
+    matrixMap(in + inOfs, inStride, out + outOfs, outStride, width, height, mapper);
 
 //    for (int i = 0;  i < height;  i++) {
 //        for (int j = 0;  j < width;  j++) {
@@ -445,50 +566,140 @@ void Java_net_bitquill_ocr_image_GrayImage_nativeAdaptiveThreshold
 //        }
 //    }
 
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseByteArrayElements(jthresh, (jbyte *)thresh, 0);
-    env->ReleaseByteArrayElements(jout, (jbyte *)out, 0);
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jthresh, thresh, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
 }
 
-struct ContrastMapper {
-    unsigned char mn, mx;
-    unsigned int range;
-    ContrastMapper (unsigned char mn, unsigned char mx)
-        : mn(mn), mx(mx), range(mx - mn) { }
-    inline unsigned char operator () (int i, int j, unsigned char val) {
+/**
+ * Map every pixel through a 256-entry table, a single load per pixel.
+ * in and out may alias.
+ */
+static inline void lutMap
+  (const unsigned char *in, unsigned char *out, int size, const unsigned char *lut)
+{
+    for (int k = 0;  k < size;  k++) {
+        out[k] = lut[in[k]];
+    }
+}
+
+static void lutMap
+  (const unsigned char *in, int inStride, unsigned char *out, int outStride,
+          int width, int height, const unsigned char *lut)
+{
+    if (inStride == width && outStride == width) {
+        lutMap(in, out, width * height, lut);
+        return;
+    }
+    for (int i = 0;  i < height;  i++) {
+        lutMap(in + i*inStride, out + i*outStride, width, lut);
+    }
+}
+
+/**
+ * Same mapping as LookupTables.stretch() on the Java side.
+ */
+static void makeStretchLut (unsigned char mn, unsigned char mx, unsigned char *lut)
+{
+    int range = mx - mn;
+    for (int val = 0;  val < 256;  val++) {
         if (val <= mn) {
-            return 0;
+            lut[val] = 0;
         } else if (val >= mx) {
-            return 255;
+            lut[val] = 255;
         } else {
-            return (unsigned char)(((int)(val - mn)) * 255 / range); // XXX paren galore!
+            lut[val] = (unsigned char)((val - mn) * 255 / range);
         }
     }
-};
+}
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeContrastStretch
   (JNIEnv *env, jclass cls,
-    jbyteArray jin, jbyteArray jout,
+    jbyteArray jin, jint inOfs, jint inStride,
+    jbyteArray jout, jint outOfs, jint outStride,
     jint width, jint height, jbyte mn, jbyte mx)
 {
     // Check general parameters
-    if (!validateMapParameters(env, jin, jout, width, height)) {
+    if (!validateMapParameters(env, jin, inOfs, inStride, jout, outOfs, outStride, width, height)) {
+        return;
+    }
+
+    // Division only once per intensity value, not per pixel
+    unsigned char lut[256];
+    makeStretchLut((unsigned char)mn, (unsigned char)mx, lut);
+
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *out = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+
+    lutMap(in + inOfs, inStride, out + outOfs, outStride, width, height, lut);
+
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
+}
+
+void Java_net_bitquill_ocr_image_GrayImage_nativeApplyLut
+  (JNIEnv *env, jclass cls,
+    jbyteArray jin, jint inOfs, jint inStride,
+    jbyteArray jout, jint outOfs, jint outStride,
+    jint width, jint height, jbyteArray jlut)
+{
+    // Check general parameters
+    if (!validateMapParameters(env, jin, inOfs, inStride, jout, outOfs, outStride, width, height)) {
+        return;
+    }
+    if (env->GetArrayLength(jlut) < 256) {
+        throwException(env, "java/lang/IllegalArgumentException", "Lookup table too short");
+        return;
+    }
+
+    unsigned char lut[256];
+    env->GetByteArrayRegion(jlut, 0, 256, (jbyte *)lut);
+
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *out = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+
+    lutMap(in + inOfs, inStride, out + outOfs, outStride, width, height, lut);
+
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
+}
+
+void Java_net_bitquill_ocr_image_GrayImage_nativeDownsample
+  (JNIEnv *env, jclass cls,
+    jbyteArray jin, jint inOfs, jint inStride,
+    jbyteArray jout, jint outOfs, jint outStride,
+    jint width, jint height)
+{
+    // Check parameters
+    if (width < 0 || height < 0) {
+        throwException(env, "java/lang/IllegalArgumentException", "Width and height must be non-negative");
+        return;
+    }
+    if (!validateArray(env, jin, inOfs, inStride, 2*width, 2*height, "Input array too short") ||
+            !validateArray(env, jout, outOfs, outStride, width, height, "Output array too short")) {
         return;
     }
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    unsigned char *out = (unsigned char *) env->GetByteArrayElements(jout, 0);
+    unsigned char *inBase = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *outBase = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
 
-    ContrastMapper mapper((unsigned char)mn, (unsigned char)mx);
-    matrixMap(in, out, width, height, mapper);
+    for (int i = 0;  i < height;  i++) {
+        const unsigned char *top = inBase + inOfs + 2*i*inStride;
+        const unsigned char *bottom = top + inStride;
+        unsigned char *out = outBase + outOfs + i*outStride;
+        for (int j = 0;  j < width;  j++) {
+            int sum = top[2*j] + top[2*j + 1] + bottom[2*j] + bottom[2*j + 1];
+            out[j] = (unsigned char)((sum + 2) >> 2);
+        }
+    }
 
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseByteArrayElements(jout, (jbyte *)out, 0);
+    env->ReleasePrimitiveArrayCritical(jin, inBase, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, outBase, 0);
 }
 
 template<class Op>
 static inline unsigned char borderStructuralTransform
-    (const unsigned char* in, int width, int height,
+    (const unsigned char* in, int inStride, int width, int height,
             int i0, int j0,
             int numNeighbors,
             const int *hOffsets, const int *vOffsets,
@@ -499,7 +710,7 @@ static inline unsigned char borderStructuralTransform
         int i = i0 + vOffsets[n];
         int j = j0 + hOffsets[n];
         if (i >= 0 && i < height && j >= 0 && j < width) {
-            val = op(val, getPixel(in, width, i, j));
+            val = op(val, getPixel(in, inStride, i, j));
         }
     }
     return val;
@@ -508,7 +719,9 @@ static inline unsigned char borderStructuralTransform
 template<class Op>
 static void structuralTransform
   (JNIEnv *env, jclass cls,
-          jbyteArray jin, jbyteArray jout, jint width, jint height,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
           jint numNeighbors,
           jintArray jhOffsets, jintArray jvOffsets,
           jintArray jlinearOffsets,
@@ -516,58 +729,57 @@ static void structuralTransform
           Op op, unsigned char val0)
 {
     // Check parameters
-    if (env->GetArrayLength(jin) < width * height) {
-        throwException(env, "java/lang/IllegalArgumentException", "Input array too short");
-        return;
-    }
-    if (env->GetArrayLength(jout) < width * height) {
-        throwException(env, "java/lang/IllegalArgumentException", "Output array too short");
-        return;
-    }
     if (width < 0 || height < 0) {
          throwException(env, "java/lang/IllegalArgumentException", "Width and height must be non-negative");
          return;
     }
+    if (!validateArray(env, jin, inOfs, inStride, width, height, "Input array too short") ||
+            !validateArray(env, jout, outOfs, outStride, width, height, "Output array too short")) {
+        return;
+    }
     // TODO - more:
     // minX,minY <= 0  maxX, maxY >= 0
     // numNeighbors >= 1
     // offset array lengths == numNeighbors
 
-    unsigned char *in = (unsigned char *) env->GetByteArrayElements(jin, 0);
-    unsigned char *out = (unsigned char *) env->GetByteArrayElements(jout, 0);
-    int *hOffsets = (int *) env->GetIntArrayElements(jhOffsets, 0);
-    int *vOffsets = (int *) env->GetIntArrayElements(jvOffsets, 0);
-    int *linearOffsets = (int *) env->GetIntArrayElements(jlinearOffsets, 0);
+    unsigned char *inBase = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *outBase = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+    int *hOffsets = (int *) env->GetPrimitiveArrayCritical(jhOffsets, 0);
+    int *vOffsets = (int *) env->GetPrimitiveArrayCritical(jvOffsets, 0);
+    int *linearOffsets = (int *) env->GetPrimitiveArrayCritical(jlinearOffsets, 0);
+    // Linear offsets are relative to the input stride
+    const unsigned char *in = inBase + inOfs;
+    unsigned char *out = outBase + outOfs;
 
     // Top edge
     for (int i0 = 0;  i0 < -minY;  i0++) {
         for (int j0 = 0;  j0 < width;  j0++) {
-            setPixel(out, width, i0, j0,
-                    borderStructuralTransform(in, width, height,
+            setPixel(out, outStride, i0, j0,
+                    borderStructuralTransform(in, inStride, width, height,
                             i0, j0, numNeighbors, hOffsets, vOffsets, op, val0));
         }
     }
     // Bottom edge
     for (int i0 = height - maxY;  i0 < height;  i0++) {
         for (int j0 = 0;  j0 < width;  j0++) {
-            setPixel(out, width, i0, j0,
-                    borderStructuralTransform(in, width, height,
+            setPixel(out, outStride, i0, j0,
+                    borderStructuralTransform(in, inStride, width, height,
                             i0, j0, numNeighbors, hOffsets, vOffsets, op, val0));
         }
     }
     // Left edge
     for (int i0 = -minY;  i0 < height - maxY;  i0++) {
         for (int j0 = 0;  j0 < -minX;  j0++) {
-            setPixel(out, width, i0, j0,
-                    borderStructuralTransform(in, width, height,
+            setPixel(out, outStride, i0, j0,
+                    borderStructuralTransform(in, inStride, width, height,
                             i0, j0, numNeighbors, hOffsets, vOffsets, op, val0));
         }
     }
     // Right edge
     for (int i0 = -minY;  i0 < height - maxY;  i0++) {
         for (int j0 = width - maxX;  j0 < width;  j0++) {
-            setPixel(out, width, i0, j0,
-                    borderStructuralTransform(in, width, height,
+            setPixel(out, outStride, i0, j0,
+                    borderStructuralTransform(in, inStride, width, height,
                             i0, j0, numNeighbors, hOffsets, vOffsets, op, val0));
         }
     }
@@ -575,20 +787,20 @@ static void structuralTransform
     // Interior pixels
     for (int i0 = -minY;  i0 < height - maxY;  i0++) {
         for (int j0 = -minX;  j0 < width - maxX;  j0++) {
-            int lin0 = linearIndex(width, i0, j0);
+            int lin0 = linearIndex(inStride, i0, j0);
             unsigned char val = in[lin0 + linearOffsets[0]];
             for (int n = 1;  n < numNeighbors;  n++) {
                 val = op(val, in[lin0 + linearOffsets[n]]);
             }
-            setPixel(out, width, i0, j0, val);
+            setPixel(out, outStride, i0, j0, val);
         }
     }
 
-    env->ReleaseByteArrayElements(jin, (jbyte *)in, 0);
-    env->ReleaseByteArrayElements(jout, (jbyte *)out, 0);
-    env->ReleaseIntArrayElements (jhOffsets, (jint *)hOffsets, 0);
-    env->ReleaseIntArrayElements (jvOffsets, (jint *)vOffsets, 0);
-    env->ReleaseIntArrayElements (jlinearOffsets, (jint *)linearOffsets, 0);
+    env->ReleasePrimitiveArrayCritical(jin, inBase, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, outBase, 0);
+    env->ReleasePrimitiveArrayCritical(jhOffsets, hOffsets, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jvOffsets, vOffsets, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jlinearOffsets, linearOffsets, JNI_ABORT);
 }
 
 static struct MinOp
@@ -600,14 +812,16 @@ static struct MinOp
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeErode
   (JNIEnv *env, jclass cls,
-          jbyteArray jin, jbyteArray jout, jint width, jint height,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
           jint numNeighbors,
           jintArray jhOffsets, jintArray jvOffsets,
           jintArray jlinearOffsets,
           jint minX, jint maxX, jint minY, jint maxY)
 {
     structuralTransform(env, cls,
-            jin, jout, width, height,
+            jin, inOfs, inStride, jout, outOfs, outStride, width, height,
             numNeighbors, jhOffsets, jvOffsets, jlinearOffsets,
             minX, maxX, minY, maxY,
             minOp, 255);
@@ -622,15 +836,308 @@ static struct maxOp
 
 void Java_net_bitquill_ocr_image_GrayImage_nativeDilate
   (JNIEnv *env, jclass cls,
-          jbyteArray jin, jbyteArray jout, jint width, jint height,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
           jint numNeighbors,
           jintArray jhOffsets, jintArray jvOffsets,
           jintArray jlinearOffsets,
           jint minX, jint maxX, jint minY, jint maxY)
 {
     structuralTransform(env, cls,
-            jin, jout, width, height,
+            jin, inOfs, inStride, jout, outOfs, outStride, width, height,
             numNeighbors, jhOffsets, jvOffsets, jlinearOffsets,
             minX, maxX, minY, maxY,
             maxOp, 0);
 }
+
+/**
+ * van Herk/Gil-Werman min/max filter over a single line of n pixels
+ * (a row or a column, depending on inStep and outStep).  The line is copied into buffer f
+ * padded with the identity value, and split into blocks of length k.
+ * Prefix (g) and suffix (h) extrema within each block then give every
+ * output with one comparison.  Since the line is fully copied first,
+ * in and out may alias.
+ */
+template<class Op>
+static inline void lineTransform1D
+  (const unsigned char *in, int inStep, unsigned char *out, int outStep, int n,
+          int minOffset, int k, int m, int tStart, int tEnd,
+          unsigned char *f, unsigned char *g, unsigned char *h,
+          Op op, unsigned char identity)
+{
+    // Gather
+    for (int t = 0;  t < tStart;  t++) {
+        f[t] = identity;
+    }
+    for (int t = tStart;  t < tEnd;  t++) {
+        f[t] = in[(t + minOffset) * inStep];
+    }
+    for (int t = tEnd;  t < m;  t++) {
+        f[t] = identity;
+    }
+    // Block prefix and suffix extrema
+    for (int b = 0;  b < m;  b += k) {
+        g[b] = f[b];
+        for (int t = b + 1;  t < b + k;  t++) {
+            g[t] = op(g[t-1], f[t]);
+        }
+        h[b+k-1] = f[b+k-1];
+        for (int t = b + k - 2;  t >= b;  t--) {
+            h[t] = op(h[t+1], f[t]);
+        }
+    }
+    // Scatter
+    for (int x = 0;  x < n;  x++) {
+        out[x * outStep] = op(h[x], g[x+k-1]);
+    }
+}
+
+template<class Op>
+static void lineTransform
+  (JNIEnv *env, jclass cls,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
+          jint minOffset, jint maxOffset, jboolean vertical,
+          Op op, unsigned char identity)
+{
+    // Check parameters
+    if (width < 0 || height < 0) {
+        throwException(env, "java/lang/IllegalArgumentException", "Width and height must be non-negative");
+        return;
+    }
+    if (!validateArray(env, jin, inOfs, inStride, width, height, "Input array too short") ||
+            !validateArray(env, jout, outOfs, outStride, width, height, "Output array too short")) {
+        return;
+    }
+    if (minOffset > maxOffset) {
+        throwException(env, "java/lang/IllegalArgumentException", "Line element is empty");
+        return;
+    }
+
+    int n = vertical ? height : width;           // Line length
+    int numLines = vertical ? width : height;
+    int inStep = vertical ? inStride : 1;        // Pixel step along line
+    int outStep = vertical ? outStride : 1;
+    int inLineStep = vertical ? 1 : inStride;    // Step between lines
+    int outLineStep = vertical ? 1 : outStride;
+    int k = maxOffset - minOffset + 1;           // Element length
+    int m = ((n + 2*k - 2) / k) * k;             // Padded length, multiple of k
+    int tStart = min(m, max(0, -minOffset));
+    int tEnd = max(tStart, min(m, n - minOffset));
+
+    unsigned char *buf = new unsigned char[3*m];
+    if (buf == 0) {
+        throwException(env, "java/lang/OutOfMemoryError", "Failed to allocate line buffer");
+        return;
+    }
+
+    unsigned char *in = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *out = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+
+    for (int line = 0;  line < numLines;  line++) {
+        lineTransform1D(in + inOfs + line*inLineStep, inStep,
+                out + outOfs + line*outLineStep, outStep, n,
+                minOffset, k, m, tStart, tEnd,
+                buf, buf + m, buf + 2*m, op, identity);
+    }
+
+    delete[] buf;
+    env->ReleasePrimitiveArrayCritical(jin, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jout, out, 0);
+}
+
+void Java_net_bitquill_ocr_image_GrayImage_nativeLineErode
+  (JNIEnv *env, jclass cls,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
+          jint minOffset, jint maxOffset, jboolean vertical)
+{
+    lineTransform(env, cls, jin, inOfs, inStride, jout, outOfs, outStride, width, height,
+            minOffset, maxOffset, vertical, minOp, 255);
+}
+
+void Java_net_bitquill_ocr_image_GrayImage_nativeLineDilate
+  (JNIEnv *env, jclass cls,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height,
+          jint minOffset, jint maxOffset, jboolean vertical)
+{
+    lineTransform(env, cls, jin, inOfs, inStride, jout, outOfs, outStride, width, height,
+            minOffset, maxOffset, vertical, maxOp, 0);
+}
+
+/**
+ * Vertical erosion of one row, from a ring of horizontally eroded rows.
+ */
+static void verticalErodeRow
+  (const unsigned char *ring, int ringRows, unsigned char *out,
+          int row, int height, int radius, int width)
+{
+    int top = max(0, row - radius);
+    int bottom = min(height - 1, row + radius);
+    memcpy(out, ring + (top % ringRows)*width, width);
+    for (int i = top + 1;  i <= bottom;  i++) {
+        const unsigned char *r = ring + (i % ringRows)*width;
+        for (int j = 0;  j < width;  j++) {
+            out[j] = minOp(out[j], r[j]);
+        }
+    }
+}
+
+/**
+ * Contrast stretch, mean filter, adaptive threshold and horizontal then
+ * vertical line erosion in one pass over the input.  Stretched rows are
+ * kept in a ring of 2*meanRadius+2 rows and horizontally eroded rows in
+ * a ring of 2*vRadius+1 rows, so intermediate images never leave the cache.
+ * Results are identical to running the separate kernels in sequence.
+ */
+void Java_net_bitquill_ocr_image_GrayImage_nativeFusedBinarize
+  (JNIEnv *env, jclass cls,
+          jbyteArray jin, jint inOfs, jint inStride,
+          jbyteArray jthr, jint thrOfs, jint thrStride,
+          jbyteArray jout, jint outOfs, jint outStride,
+          jint width, jint height, jbyteArray jlut,
+          jint meanRadius, jbyte hi, jbyte lo, jint offset,
+          jint hRadius, jint vRadius)
+{
+    // Check parameters
+    if (width < 0 || height < 0) {
+        throwException(env, "java/lang/IllegalArgumentException", "Width and height must be non-negative");
+        return;
+    }
+    if (2*meanRadius + 1 > width || 2*meanRadius + 1 > height) {
+        throwException(env, "java/lang/IllegalArgumentException", "Radius is too large");
+        return;
+    }
+    if (hRadius < 0 || vRadius < 0) {
+        throwException(env, "java/lang/IllegalArgumentException", "Erosion radius must be non-negative");
+        return;
+    }
+    if (!validateArray(env, jin, inOfs, inStride, width, height, "Input array too short") ||
+            !validateArray(env, jthr, thrOfs, thrStride, width, height, "Threshold array too short") ||
+            !validateArray(env, jout, outOfs, outStride, width, height, "Output array too short")) {
+        return;
+    }
+    if (env->GetArrayLength(jlut) < 256) {
+        throwException(env, "java/lang/IllegalArgumentException", "Lookup table too short");
+        return;
+    }
+
+    unsigned char lut[256];
+    env->GetByteArrayRegion(jlut, 0, 256, (jbyte *)lut);
+
+    // Allocate ring and line buffers
+    int stretchRows = 2*meanRadius + 2;
+    int erodeRows = 2*vRadius + 1;
+    int k = 2*hRadius + 1;                       // Element length
+    int m = ((width + 2*k - 2) / k) * k;         // Padded length, multiple of k
+    int tStart = min(m, hRadius);
+    int tEnd = max(tStart, min(m, width + hRadius));
+    unsigned char *buf = new unsigned char[(stretchRows + erodeRows) * width + 3*m];
+    int *colSum = new int[width];
+    if (buf == 0 || colSum == 0) {
+        delete[] buf;
+        delete[] colSum;
+        throwException(env, "java/lang/OutOfMemoryError", "Failed to allocate ring buffers");
+        return;
+    }
+    unsigned char *stretchRing = buf;
+    unsigned char *erodeRing = buf + stretchRows * width;
+    unsigned char *lineBuf = erodeRing + erodeRows * width;
+    memset(colSum, 0, width * sizeof(int));
+
+    unsigned char *inBase = (unsigned char *) env->GetPrimitiveArrayCritical(jin, 0);
+    unsigned char *thrBase = (unsigned char *) env->GetPrimitiveArrayCritical(jthr, 0);
+    unsigned char *outBase = (unsigned char *) env->GetPrimitiveArrayCritical(jout, 0);
+    const unsigned char *in = inBase + inOfs;
+    unsigned char *thr = thrBase + thrOfs;
+    unsigned char *out = outBase + outOfs;
+
+    // Prime column sums with rows [0, meanRadius]
+    for (int si = 0;  si <= meanRadius;  si++) {
+        const unsigned char *src = in + si*inStride;
+        unsigned char *s = stretchRing + (si % stretchRows)*width;
+        for (int j = 0;  j < width;  j++) {
+            s[j] = lut[src[j]];
+            colSum[j] += s[j];
+        }
+    }
+
+    for (int i = 0;  i < height;  i++) {
+        // Slide mean filter window down
+        if (i > 0) {
+            int rowDec = i - meanRadius - 1, rowInc = i + meanRadius;
+            if (rowDec >= 0) {
+                const unsigned char *s = stretchRing + (rowDec % stretchRows)*width;
+                for (int j = 0;  j < width;  j++) {
+                    colSum[j] -= s[j];
+                }
+            }
+            if (rowInc < height) {
+                const unsigned char *src = in + rowInc*inStride;
+                unsigned char *s = stretchRing + (rowInc % stretchRows)*width;
+                for (int j = 0;  j < width;  j++) {
+                    s[j] = lut[src[j]];
+                    colSum[j] += s[j];
+                }
+            }
+        }
+
+        // Local mean and threshold of row i.  With integer division,
+        // sum/area - val < offset exactly when sum < (val + offset)*area
+        const unsigned char *val = stretchRing + (i % stretchRows)*width;
+        unsigned char *t = thr + i*thrStride;
+        int h = min(height - 1, i + meanRadius) - max(0, i - meanRadius) + 1;
+        int sum = 0;
+        for (int sj = 0;  sj < meanRadius;  sj++) {
+            sum += colSum[sj];
+        }
+        for (int j = 0;  j <= meanRadius;  j++) {
+            // Left edge
+            sum += colSum[j + meanRadius];
+            int area = (j + meanRadius + 1) * h;
+            t[j] = (sum < (val[j] + offset) * area) ? (unsigned char)hi : (unsigned char)lo;
+        }
+        int area = (2*meanRadius + 1) * h;
+        for (int j = meanRadius + 1;  j < width - meanRadius;  j++) {
+            // Internal
+            sum += colSum[j + meanRadius] - colSum[j - meanRadius - 1];
+            t[j] = (sum < (val[j] + offset) * area) ? (unsigned char)hi : (unsigned char)lo;
+        }
+        for (int j = max(meanRadius + 1, width - meanRadius);  j < width;  j++) {
+            // Right edge
+            sum -= colSum[j - meanRadius - 1];
+            area = (width - j + meanRadius) * h;
+            t[j] = (sum < (val[j] + offset) * area) ? (unsigned char)hi : (unsigned char)lo;
+        }
+
+        // Horizontal erosion into ring
+        unsigned char *e = erodeRing + (i % erodeRows)*width;
+        if (hRadius > 0) {
+            lineTransform1D(t, 1, e, 1, width, -hRadius, k, m, tStart, tEnd,
+                    lineBuf, lineBuf + m, lineBuf + 2*m, minOp, 255);
+        } else {
+            memcpy(e, t, width);
+        }
+
+        // Vertical erosion of row that now has its full halo
+        int j = i - vRadius;
+        if (j >= 0) {
+            verticalErodeRow(erodeRing, erodeRows, out + j*outStride, j, height, vRadius, width);
+        }
+    }
+    // Flush last rows, whose halo is clipped by the bottom edge
+    for (int j = max(0, height - vRadius);  j < height;  j++) {
+        verticalErodeRow(erodeRing, erodeRows, out + j*outStride, j, height, vRadius, width);
+    }
+
+    delete[] buf;
+    delete[] colSum;
+    env->ReleasePrimitiveArrayCritical(jin, inBase, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(jthr, thrBase, 0);
+    env->ReleasePrimitiveArrayCritical(jout, outBase, 0);
+}
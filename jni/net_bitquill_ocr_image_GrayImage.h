@@ -10,10 +10,10 @@ extern "C" {
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeMeanFilter
- * Signature: ([B[BIII)I
+ * Signature: ([BII[BIIIII)V
  */
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeMeanFilter
-  (JNIEnv *, jclass, jbyteArray, jbyteArray, jint, jint, jint);
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jint);
 
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
@@ -47,6 +47,14 @@ JNIEXPORT jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeMean
 JNIEXPORT jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeVariance
   (JNIEnv *, jclass, jbyteArray, jint, jint, jint, jint, jint, jint);
 
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeLaplacianVariance
+ * Signature: ([BIIIIII)F
+ */
+JNIEXPORT jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeLaplacianVariance
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jint, jint, jint, jint);
+
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeHistogram
@@ -55,6 +63,14 @@ JNIEXPORT jfloat JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeVariance
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeHistogram
   (JNIEnv *, jclass, jbyteArray, jint, jint, jintArray, jint, jint, jint, jint);
 
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeStatistics
+ * Signature: ([BII[J[IIIII)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeStatistics
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jlongArray, jintArray, jint, jint, jint, jint);
+
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeGrayToARGB
@@ -66,37 +82,78 @@ JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeGrayToARGB
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeAdaptiveThreshold
- * Signature: ([B[B[BIIBBI)V
+ * Signature: ([BII[BII[BIIIIBBI)V
  */
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeAdaptiveThreshold
-  (JNIEnv *, jclass, jbyteArray, jbyteArray, jbyteArray, jint, jint, jbyte, jbyte, jint);
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jbyteArray, jint, jint,
+        jint, jint, jbyte, jbyte, jint);
 
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeContrastStretch
- * Signature: ([B[BIIBB)V
+ * Signature: ([BII[BIIIIBB)V
  */
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeContrastStretch
-  (JNIEnv *, jclass, jbyteArray, jbyteArray, jint, jint, jbyte, jbyte);
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jbyte, jbyte);
+
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeApplyLut
+ * Signature: ([BII[BIIII[B)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeApplyLut
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jbyteArray);
+
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeDownsample
+ * Signature: ([BII[BIIII)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeDownsample
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint);
 
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeErode
- * Signature: ([B[BIII[I[I[IIIII)V
+ * Signature: ([BII[BIIIII[I[I[IIIII)V
  */
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeErode
-  (JNIEnv *, jclass, jbyteArray, jbyteArray, jint, jint,
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint,
         jint, jintArray, jintArray, jintArray, jint, jint, jint, jint);
 
 /*
  * Class:     net_bitquill_ocr_image_GrayImage
  * Method:    nativeDilate
- * Signature: ([B[BIII[I[I[IIIII)V
+ * Signature: ([BII[BIIIII[I[I[IIIII)V
  */
 JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeDilate
-  (JNIEnv *, jclass, jbyteArray, jbyteArray, jint, jint,
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint,
         jint, jintArray, jintArray, jintArray, jint, jint, jint, jint);
 
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeLineErode
+ * Signature: ([BII[BIIIIIIZ)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeLineErode
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jint, jint, jboolean);
+
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeLineDilate
+ * Signature: ([BII[BIIIIIIZ)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeLineDilate
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jint, jint, jboolean);
+
+/*
+ * Class:     net_bitquill_ocr_image_GrayImage
+ * Method:    nativeFusedBinarize
+ * Signature: ([BII[BII[BIIII[BIBBIII)V
+ */
+JNIEXPORT void JNICALL Java_net_bitquill_ocr_image_GrayImage_nativeFusedBinarize
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint, jbyteArray, jint, jint, jint, jint, jbyteArray, jint, jbyte, jbyte, jint, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
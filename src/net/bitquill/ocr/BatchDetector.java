@@ -0,0 +1,375 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.bitquill.ocr.image.GrayImage;
+
+/**
+ * Offline word detection over directories of stored frames or scans, 
+ * with a fixed pool of worker threads.  Inputs are raw frame dumps (see
+ * {@link FrameReplay}) and binary PGM (P5) images.  Each worker claims
+ * the next input, reads it with NIO into its own reusable buffer, and 
+ * runs its own {@link WordDetector} on it, so workers share nothing but
+ * the input index and the default image buffer pool.
+ * 
+ * Writes one line per input (in input order) with the word extent to 
+ * <code>extents.txt</code> in the output directory and, unless disabled,
+ * the binarized word crop as a PGM image.  Crops mirror the input paths
+ * under the output directory, relative to the parent of each input 
+ * argument, so that same-named frames in different subdirectories do 
+ * not overwrite each other; e.g., the crop of 
+ * <code>dumps/a/camera1.gray</code> is <code>out/dumps/a/camera1-word.pgm</code>:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.BatchDetector \
+ *       [-threads N] [-dilate N] [-threshold N] [-coarse] [-size WxH] [-nocrops] \
+ *       -out dir input_dir_or_file...
+ * </pre>
+ */
+public final class BatchDetector {
+    
+    private static final String EXTENTS_FILE = "extents.txt";
+    
+    private final File[] mInputs;
+    private final String[] mCropPaths;
+    private final String[] mResults;
+    private final File mOutDir;
+    private final AtomicInteger mNext = new AtomicInteger(0);
+    private final AtomicInteger mFailures = new AtomicInteger(0);
+    
+    private int mDilateRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM;
+    private int mThresholdMethod = WordDetector.THRESHOLD_MEAN;
+    private boolean mCoarseToFine = false;
+    private boolean mWriteCrops = true;
+    private int[] mDefaultSize = null;
+    
+    private BatchDetector (File[] inputs, String[] cropPaths, File outDir) {
+        mInputs = inputs;
+        mCropPaths = cropPaths;
+        mResults = new String[inputs.length];
+        mOutDir = outDir;
+    }
+    
+    /**
+     * Per-thread state: detector, with its image buffers, and read buffer.
+     */
+    private final class Worker extends Thread {
+        private final WordDetector mDetector = new WordDetector();
+        private byte[] mBuf = new byte[0];
+        private byte[] mRow = new byte[0];
+        
+        Worker (int index) {
+            super("BatchDetector-" + index);
+            mDetector.setDilateRadius(mDilateRadius);
+            mDetector.setThresholdMethod(mThresholdMethod);
+            mDetector.setCoarseToFine(mCoarseToFine);
+        }
+        
+        @Override
+        public void run () {
+            int i;
+            while ((i = mNext.getAndIncrement()) < mInputs.length) {
+                File input = mInputs[i];
+                try {
+                    mResults[i] = detect(input, mCropPaths[i]);
+                } catch (Exception e) {
+                    mFailures.incrementAndGet();
+                    mResults[i] = "error " + e.getMessage();
+                }
+            }
+            mDetector.releaseImageBuffers();
+        }
+        
+        /**
+         * Read whole file into the reusable buffer.
+         * @return Number of bytes read
+         */
+        private int readFile (File file) throws IOException {
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(file + " is too large");
+                }
+                if (mBuf.length < size) {
+                    mBuf = new byte[(int)size];
+                }
+                ByteBuffer bb = ByteBuffer.wrap(mBuf, 0, (int)size);
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb) < 0) {
+                        break;
+                    }
+                }
+                return bb.position();
+            } finally {
+                channel.close();
+            }
+        }
+        
+        private GrayImage loadImage (File file) throws IOException {
+            int length = readFile(file);
+            int[] header = new int[3];
+            int offset;
+            if (file.getName().endsWith(".pgm")) {
+                offset = parsePgmHeader(mBuf, length, header);
+            } else {
+                int[] size = FrameReplay.parseDumpSize(file.getName());
+                if (size == null) {
+                    size = mDefaultSize;
+                }
+                if (size == null) {
+                    throw new IOException("frame size unknown; use -size");
+                }
+                header[0] = size[0];
+                header[1] = size[1];
+                offset = 0;
+            }
+            int width = header[0], height = header[1];
+            if (length - offset < width * height) {
+                throw new IOException("file shorter than " + width + "x" + height);
+            }
+            if (offset > 0) {
+                // Views must start on a row boundary, so drop the header
+                System.arraycopy(mBuf, offset, mBuf, 0, width * height);
+            }
+            // Wrap the read buffer, which may be longer than the frame
+            return new GrayImage(mBuf, 0, width, width, height);
+        }
+        
+        private String detect (File input, String cropPath) throws IOException {
+            GrayImage img = loadImage(input);
+            WordDetector detector = mDetector;
+            detector.findWordExtent(img);
+            int left = detector.getLeft(), top = detector.getTop();
+            int right = detector.getRight(), bottom = detector.getBottom();
+            if (mWriteCrops) {
+                File cropFile = new File(mOutDir, cropPath);
+                File cropDir = cropFile.getParentFile();
+                // Another worker may create the same directory concurrently
+                if (!cropDir.mkdirs() && !cropDir.isDirectory()) {
+                    throw new IOException("cannot create " + cropDir);
+                }
+                writeCrop(detector.getResultImage().view(left, top, right, bottom), cropFile);
+            }
+            return left + " " + top + " " + right + " " + bottom + " " + detector.getContrastRange();
+        }
+        
+        private void writeCrop (GrayImage crop, File file) throws IOException {
+            int width = crop.getWidth(), height = crop.getHeight();
+            if (mRow.length < width) {
+                mRow = new byte[width];
+            }
+            FileChannel channel = new FileOutputStream(file).getChannel();
+            try {
+                writeFully(channel, ByteBuffer.wrap(("P5\n" + width + " " + height + "\n255\n").getBytes("US-ASCII")));
+                for (int i = 0;  i < height;  i++) {
+                    crop.getRow(i, mRow);
+                    writeFully(channel, ByteBuffer.wrap(mRow, 0, width));
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+    
+    private static void writeFully (FileChannel channel, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+    
+    /**
+     * @param inputPath  Input path, relative to the parent of its argument
+     * @return Crop path, relative to the output directory
+     */
+    private static String cropPath (String inputPath) {
+        int dot = inputPath.lastIndexOf('.');
+        if (dot <= inputPath.lastIndexOf(File.separatorChar) + 1) {
+            dot = -1;  // No extension, or a dot file
+        }
+        return (dot > 0 ? inputPath.substring(0, dot) : inputPath) + "-word.pgm";
+    }
+    
+    /**
+     * Parse binary PGM header, with 8-bit samples.
+     * @param header  Receives width, height and maximum value
+     * @return Offset of pixel data
+     */
+    static int parsePgmHeader (byte[] buf, int length, int[] header) throws IOException {
+        if (length < 2 || buf[0] != 'P' || buf[1] != '5') {
+            throw new IOException("not a binary PGM image");
+        }
+        int pos = 2;
+        for (int k = 0;  k < 3;  k++) {
+            // Skip whitespace and comments
+            while (pos < length && (Character.isWhitespace(buf[pos]) || buf[pos] == '#')) {
+                if (buf[pos] == '#') {
+                    while (pos < length && buf[pos] != '\n') {
+                        ++pos;
+                    }
+                } else {
+                    ++pos;
+                }
+            }
+            int value = 0, digits = 0;
+            while (pos < length && buf[pos] >= '0' && buf[pos] <= '9') {
+                value = 10 * value + (buf[pos++] - '0');
+                ++digits;
+            }
+            if (digits == 0) {
+                throw new IOException("malformed PGM header");
+            }
+            header[k] = value;
+        }
+        if (header[2] > 255) {
+            throw new IOException("16-bit PGM images are not supported");
+        }
+        // Single whitespace character before pixel data
+        return pos + 1;
+    }
+    
+    /**
+     * @param path  Path of file relative to the parent of its argument
+     */
+    private static void collectInputs (File file, String path, ArrayList<File> inputs, ArrayList<String> paths) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                String name = child.getName();
+                if (child.isDirectory() || name.endsWith(".gray") || name.endsWith(".pgm")) {
+                    collectInputs(child, path + File.separatorChar + name, inputs, paths);
+                }
+            }
+        } else {
+            inputs.add(file);
+            paths.add(path);
+        }
+    }
+    
+    private void run (int numThreads) throws IOException, InterruptedException {
+        if (numThreads > 1) {
+            // Workers already use all cores; avoid oversubscribing them
+            GrayImage.setParallel(false);
+        }
+        long startTime = System.nanoTime();
+        Worker[] workers = new Worker[numThreads];
+        for (int i = 0;  i < numThreads;  i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startTime) * 1e-9;
+        
+        PrintWriter writer = new PrintWriter(new File(mOutDir, EXTENTS_FILE));
+        try {
+            writer.println("# input left top right bottom contrastRange");
+            for (int i = 0;  i < mInputs.length;  i++) {
+                writer.println(mInputs[i].getPath() + " " + mResults[i]);
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println(String.format("%d inputs, %d failed, %d threads, %.2f s, %.1f frames/s",
+                mInputs.length, mFailures.get(), numThreads, seconds, mInputs.length / seconds));
+    }
+    
+    private static void usage () {
+        System.err.println("Usage: BatchDetector [-threads N] [-dilate N] [-threshold N] [-coarse] " 
+                + "[-size WxH] [-nocrops] -out dir input_dir_or_file...");
+        System.exit(2);
+    }
+    
+    public static void main (String[] args) throws IOException, InterruptedException {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int dilateRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM;
+        int thresholdMethod = WordDetector.THRESHOLD_MEAN;
+        boolean coarseToFine = false, writeCrops = true;
+        int[] defaultSize = null;
+        File outDir = null;
+        ArrayList<File> inputs = new ArrayList<File>();
+        ArrayList<String> paths = new ArrayList<String>();
+        for (int i = 0;  i < args.length;  i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if ("-threads".equals(arg) && hasValue) {
+                numThreads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-dilate".equals(arg) && hasValue) {
+                dilateRadius = Integer.parseInt(args[++i]);
+            } else if ("-threshold".equals(arg) && hasValue) {
+                thresholdMethod = Integer.parseInt(args[++i]);
+            } else if ("-coarse".equals(arg)) {
+                coarseToFine = true;
+            } else if ("-size".equals(arg) && hasValue) {
+                defaultSize = FrameReplay.parseSize(args[++i]);
+            } else if ("-nocrops".equals(arg)) {
+                writeCrops = false;
+            } else if ("-out".equals(arg) && hasValue) {
+                outDir = new File(args[++i]);
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                File file = new File(arg);
+                collectInputs(file, file.getAbsoluteFile().getName(), inputs, paths);
+            }
+        }
+        if (outDir == null || inputs.isEmpty()) {
+            usage();
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+        
+        // Arguments with the same name (e.g., a/dumps and b/dumps) would still collide
+        String[] cropPaths = new String[paths.size()];
+        HashMap<String,File> claimed = new HashMap<String,File>();
+        for (int i = 0;  i < cropPaths.length;  i++) {
+            cropPaths[i] = cropPath(paths.get(i));
+            File other = claimed.put(cropPaths[i], inputs.get(i));
+            if (writeCrops && other != null) {
+                System.err.println(other + " and " + inputs.get(i) + " would both be written to " + cropPaths[i]);
+                System.exit(2);
+            }
+        }
+        
+        BatchDetector batch = new BatchDetector(inputs.toArray(new File[inputs.size()]), cropPaths, outDir);
+        batch.mDilateRadius = dilateRadius;
+        batch.mThresholdMethod = thresholdMethod;
+        batch.mCoarseToFine = coarseToFine;
+        batch.mWriteCrops = writeCrops;
+        batch.mDefaultSize = defaultSize;
+        batch.run(Math.min(numThreads, inputs.size()));
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.bitquill.ocr.image.GrayImage;
+
+/**
+ * Cross-checks the two word extent searches of {@link WordDetector}, 
+ * connected component labeling and incremental growth of the target 
+ * rectangle (see {@link WordDetector#setUseComponentLabeling(boolean)}),
+ * on random synthetic frames, for both the fused and unfused pipelines
+ * and every dilate radius setting.
+ * 
+ * The two do not always agree.  Labeling merges whole components that
+ * touch the rectangle, including those that only touch one of its 
+ * corners diagonally, which growth along the edges never reaches.  Growth
+ * also stops one pixel short of the bottom and right frame edges.  So 
+ * the labeled extent must always contain the grown one, and must equal 
+ * it unless the grown rectangle reaches the frame edge, or has a dark 
+ * pixel diagonally outside one of its corners.  Frames where labeling 
+ * gives up (too many runs) and falls back to growth must agree exactly.
+ * 
+ * Also checks that coarse-to-fine detection (see 
+ * {@link WordDetector#setCoarseToFine(boolean)}) finds exactly the same 
+ * extent as full-resolution detection, on larger frames.
+ * 
+ * Runs with either kernel backend, e.g.:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.DetectorCrossCheck
+ * </pre>
+ * Exits with non-zero status on the first violation.
+ */
+public final class DetectorCrossCheck {
+    
+    private static final int[][] SIZES = { {64, 48}, {320, 240}, {480, 320}, {640, 480} };
+    private static final int ITERATIONS = 40;
+    private static final int[][] COARSE_SIZES = { {640, 480}, {1280, 720}, {1920, 1080} };
+    private static final int COARSE_ITERATIONS = 10;
+    // Extent padding added by WordDetector on each side
+    private static final int PAD = 2;
+    
+    private final Random mRandom = new Random(20091101L);
+    private int mNumFrames = 0;
+    private int mNumEqual = 0, mNumDiagonal = 0, mNumEdge = 0, mNumFallback = 0;
+    private int mNumCoarseFrames = 0, mNumCoarseRefined = 0;
+    
+    /**
+     * Frame with a few lines of letter-like blobs around the center, over
+     * a lighting gradient, noise and some salt-and-pepper specks.  Gaps 
+     * between letters and words vary, so that dilation sometimes bridges 
+     * them and sometimes leaves components touching only at corners.
+     */
+    private byte[] makeFrame (int width, int height) {
+        Random random = mRandom;
+        byte[] data = new byte[width * height];
+        int bg = 120 + random.nextInt(100);
+        int noise = 1 + random.nextInt(48);
+        for (int i = 0;  i < height;  i++) {
+            for (int j = 0;  j < width;  j++) {
+                data[i*width + j] = (byte)(bg + random.nextInt(noise) - noise/2 + (j * 20) / width);
+            }
+        }
+        int charHeight = Math.max(4, height / (12 + random.nextInt(12)));
+        int charWidth = Math.max(2, charHeight / 2 + random.nextInt(3) - 1);
+        int numLines = 1 + random.nextInt(3);
+        int y = height / 2 - numLines * charHeight;
+        for (int line = 0;  line < numLines;  line++, y += 2*charHeight) {
+            // Lines sometimes run off the frame
+            int x = random.nextInt(width / 4 + 1);
+            int end = width - random.nextInt(width / 4 + 1);
+            while (x + charWidth < end) {
+                int top = y + random.nextInt(3) - 1, h = charHeight - random.nextInt(3);
+                for (int i = Math.max(0, top);  i < Math.min(height, top + h);  i++) {
+                    for (int j = x;  j < x + charWidth;  j++) {
+                        if (random.nextInt(5) > 0) {
+                            data[i*width + j] = (byte)(20 + random.nextInt(40));
+                        }
+                    }
+                }
+                // Mostly letter gaps, sometimes word gaps
+                x += charWidth + ((random.nextInt(5) == 0) ? 2*charWidth : 1 + random.nextInt(3));
+            }
+        }
+        int numSpecks = width * height / (20 + random.nextInt(500));
+        for (int k = 0;  k < numSpecks;  k++) {
+            data[random.nextInt(width * height)] = (byte)random.nextInt(256);
+        }
+        return data;
+    }
+    
+    private static String extent (WordDetector detector) {
+        return "[" + detector.getLeft() + "," + detector.getTop() + " - " 
+            + detector.getRight() + "," + detector.getBottom() + "]";
+    }
+    
+    private static void fail (String what, int width, int height, WordDetector labeled, WordDetector grown) {
+        throw new AssertionError(what + " for " + width + "x" + height + " frame: labeling " 
+                + extent(labeled) + ", growth " + extent(grown));
+    }
+    
+    private static boolean isDark (GrayImage bin, int x, int y) {
+        return bin.get(y, x) == 0;
+    }
+    
+    private void checkFrame (int width, int height) {
+        Random random = mRandom;
+        byte[] data = makeFrame(width, height);
+        int halfWidth = 1 + random.nextInt(Math.max(1, width / 16));
+        int halfHeight = 1 + random.nextInt(Math.max(1, height / 32));
+        int left = width / 2 - halfWidth, top = height / 2 - halfHeight;
+        int right = width / 2 + halfWidth, bottom = height / 2 + halfHeight;
+        
+        for (int radius = 0;  radius <= WordDetector.DILATE_RADIUS_AUTO;  radius++) {
+            for (int fused = 0;  fused < 2;  fused++) {
+                WordDetector labeled = new WordDetector(), grown = new WordDetector();
+                labeled.setDilateRadius(radius);
+                grown.setDilateRadius(radius);
+                labeled.setUseFusedPipeline(fused != 0);
+                grown.setUseFusedPipeline(fused != 0);
+                grown.setUseComponentLabeling(false);
+                labeled.findWordExtent(new GrayImage(data, width, height), left, top, right, bottom);
+                grown.findWordExtent(new GrayImage(data, width, height), left, top, right, bottom);
+                ++mNumFrames;
+                
+                GrayImage bin = grown.getBinaryImage();
+                if (!Arrays.equals(labeled.getBinaryImage().getData(), bin.getData())) {
+                    fail("Binary images differ", width, height, labeled, grown);
+                }
+                boolean equal = labeled.getLeft() == grown.getLeft() && labeled.getTop() == grown.getTop()
+                    && labeled.getRight() == grown.getRight() && labeled.getBottom() == grown.getBottom();
+                if (labeled.getNumMergedComponents() < 0) {
+                    if (!equal) {
+                        fail("Fallback extent differs", width, height, labeled, grown);
+                    }
+                    ++mNumFallback;
+                    continue;
+                }
+                if (labeled.getLeft() > grown.getLeft() || labeled.getTop() > grown.getTop() 
+                        || labeled.getRight() < grown.getRight() || labeled.getBottom() < grown.getBottom()) {
+                    fail("Labeled extent does not contain grown extent", width, height, labeled, grown);
+                }
+                if (equal) {
+                    ++mNumEqual;
+                    continue;
+                }
+                // Padding is clipped at the frame edge, so the grown rectangle is known only away from it
+                if (grown.getLeft() == 0 || grown.getTop() == 0 
+                        || grown.getRight() >= width - 1 - PAD || grown.getBottom() >= height - 1 - PAD) {
+                    ++mNumEdge;
+                    continue;
+                }
+                // Grown rectangle; right and bottom exclusive
+                int gl = grown.getLeft() + PAD, gt = grown.getTop() + PAD;
+                int gr = grown.getRight() - PAD, gb = grown.getBottom() - PAD;
+                if (!isDark(bin, gl - 1, gt - 1) && !isDark(bin, gr, gt - 1) 
+                        && !isDark(bin, gl - 1, gb) && !isDark(bin, gr, gb)) {
+                    fail("Extents differ without diagonal contact", width, height, labeled, grown);
+                }
+                ++mNumDiagonal;
+            }
+        }
+    }
+    
+    private void checkCoarseFrame (int width, int height) {
+        byte[] data = makeFrame(width, height);
+        for (int radius = 0;  radius <= WordDetector.DILATE_RADIUS_AUTO;  radius++) {
+            WordDetector full = new WordDetector(), coarse = new WordDetector();
+            full.setDilateRadius(radius);
+            coarse.setDilateRadius(radius);
+            full.setUseFusedPipeline(true);
+            coarse.setUseFusedPipeline(true);
+            coarse.setCoarseToFine(true);
+            full.findWordExtent(new GrayImage(data, width, height));
+            coarse.findWordExtent(new GrayImage(data, width, height));
+            ++mNumCoarseFrames;
+            if (coarse.getCoarseLevel() > 0) {
+                ++mNumCoarseRefined;
+            }
+            if (full.getLeft() != coarse.getLeft() || full.getTop() != coarse.getTop() 
+                    || full.getRight() != coarse.getRight() || full.getBottom() != coarse.getBottom()) {
+                throw new AssertionError("Coarse-to-fine extent differs for " + width + "x" + height 
+                        + " frame: full " + extent(full) + ", coarse-to-fine " + extent(coarse));
+            }
+        }
+    }
+    
+    private void run () {
+        for (int[] size : SIZES) {
+            for (int n = 0;  n < ITERATIONS;  n++) {
+                checkFrame(size[0], size[1]);
+            }
+        }
+        for (int[] size : COARSE_SIZES) {
+            for (int n = 0;  n < COARSE_ITERATIONS;  n++) {
+                checkCoarseFrame(size[0], size[1]);
+            }
+        }
+    }
+    
+    public static void main (String[] args) {
+        DetectorCrossCheck checker = new DetectorCrossCheck();
+        try {
+            checker.run();
+        } catch (AssertionError ae) {
+            System.err.println("FAILED: " + ae.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK: " + checker.mNumFrames + " detections with " 
+                + (GrayImage.isNativeBackend() ? "native" : "Java") + " kernels; " 
+                + checker.mNumEqual + " equal, " + checker.mNumDiagonal + " differ by diagonal contact, " 
+                + checker.mNumEdge + " reach frame edge, " + checker.mNumFallback + " fell back to growth; " 
+                + checker.mNumCoarseFrames + " coarse-to-fine detections equal, " 
+                + checker.mNumCoarseRefined + " refined without falling back");
+    }
+}
@@ -29,6 +29,9 @@ import android.util.Log;
 
 /**
  * Simple utility class to dump image data for later debugging.
+ * Grayscale images are written as raw bytes, one per pixel, to files 
+ * named <code>&lt;prefix&gt;&lt;timestamp&gt;-&lt;width&gt;x&lt;height&gt;.gray</code>,
+ * which {@link FrameReplay} can read back.
  */
 public class FileDumpUtil {
     
@@ -46,9 +49,9 @@ public class FileDumpUtil {
         FileOutputStream os = null;
         try {
             long timestamp = System.currentTimeMillis();
-            File dumpFile = new File(sDumpDirectory, prefix + timestamp + ".gray");
+            File dumpFile = new File(sDumpDirectory, prefix + timestamp + "-" + img.getWidth() + "x" + img.getHeight() + ".gray");
             os = new FileOutputStream(dumpFile);
-            os.write(img.getData());
+            os.write(img.getCompactData(), 0, img.getWidth() * img.getHeight());
         } catch (IOException ioe) {
             Log.e(TAG, "GrayImage dump failed", ioe);
         } finally {
@@ -60,6 +63,24 @@ public class FileDumpUtil {
         }
     }
     
+    synchronized static public void dump (String prefix, String text) {
+        FileOutputStream os = null;
+        try {
+            long timestamp = System.currentTimeMillis();
+            File dumpFile = new File(sDumpDirectory, prefix + timestamp + ".txt");
+            os = new FileOutputStream(dumpFile);
+            os.write(text.getBytes("UTF-8"));
+        } catch (IOException ioe) {
+            Log.e(TAG, "Text dump failed", ioe);
+        } finally {
+            try {
+                os.close();
+            } catch (Throwable t) {
+                // Ignore
+            }
+        }
+    }
+    
     synchronized static public void dump (String prefix, Bitmap img) {
         FileOutputStream os = null;
         try {
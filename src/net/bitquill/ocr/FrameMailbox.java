@@ -0,0 +1,133 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+/**
+ * Single-slot, latest-frame-wins handoff of preview frames from the 
+ * camera to the detection thread.  Posting a frame replaces any frame 
+ * that is still pending, so a slow consumer always gets the newest frame
+ * and never works through a backlog of stale ones.
+ * 
+ * All methods are thread-safe.
+ */
+public final class FrameMailbox {
+    
+    /**
+     * Preview frame, with its size and time of posting.
+     */
+    public static final class Frame {
+        private final byte[] mData;
+        private final int mWidth, mHeight;
+        private final long mPostTime;
+        
+        Frame (byte[] data, int width, int height, long postTime) {
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mPostTime = postTime;
+        }
+        
+        public final byte[] getData () {
+            return mData;
+        }
+        
+        public final int getWidth () {
+            return mWidth;
+        }
+        
+        public final int getHeight () {
+            return mHeight;
+        }
+        
+        /**
+         * @return Value of {@link System#nanoTime()} when the frame was posted
+         */
+        public final long getPostTime () {
+            return mPostTime;
+        }
+    }
+    
+    private Frame mPending = null;
+    private long mPostedCount = 0;
+    private long mDroppedCount = 0;
+    private long mProcessedCount = 0;
+    private long mLastWaitNanos = 0;
+    
+    /**
+     * Post a new frame, dropping the pending one, if any.
+     * @return true if the mailbox was empty, i.e., the consumer must be 
+     *   notified; false if an already notified consumer will pick it up
+     */
+    public final synchronized boolean post (byte[] data, int width, int height) {
+        ++mPostedCount;
+        boolean wasEmpty = (mPending == null);
+        if (!wasEmpty) {
+            ++mDroppedCount;
+        }
+        mPending = new Frame(data, width, height, System.nanoTime());
+        return wasEmpty;
+    }
+    
+    /**
+     * Remove the newest frame for processing.
+     * @return Frame, or null if there is none pending
+     */
+    public final synchronized Frame take () {
+        Frame frame = mPending;
+        if (frame != null) {
+            mPending = null;
+            ++mProcessedCount;
+            mLastWaitNanos = System.nanoTime() - frame.mPostTime;
+        }
+        return frame;
+    }
+    
+    /**
+     * Drop the pending frame, if any (e.g., when the consumer quits).
+     */
+    public final synchronized void clear () {
+        if (mPending != null) {
+            mPending = null;
+            ++mDroppedCount;
+        }
+    }
+    
+    public final synchronized long getPostedCount () {
+        return mPostedCount;
+    }
+    
+    /**
+     * @return Number of frames replaced by a newer one, or cleared, 
+     *   before they could be processed
+     */
+    public final synchronized long getDroppedCount () {
+        return mDroppedCount;
+    }
+    
+    public final synchronized long getProcessedCount () {
+        return mProcessedCount;
+    }
+    
+    /**
+     * @return Time the last taken frame spent in the mailbox, in nanoseconds
+     */
+    public final synchronized long getLastWaitNanos () {
+        return mLastWaitNanos;
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.bitquill.ocr.image.GrayImage;
+
+/**
+ * Replays camera frames dumped by {@link FileDumpUtil} through the same 
+ * word detection as {@link OCRThread}, on a plain JVM.  Reports per-stage 
+ * latency and the detection results of each frame, and optionally diffs 
+ * the results against (or stores them as) golden outputs, e.g.:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.FrameReplay \
+ *       [-dilate N] [-threshold N] [-coarse] [-size WxH] [-repeat N] \
+ *       [-golden file [-update]] dump_dir_or_file...
+ * </pre>
+ * Directories are scanned for <code>camera*.gray</code> dumps.  Frame 
+ * size is taken from the file name, or from <code>-size</code> for dumps 
+ * that predate it.  Exits with status 1 if any result differs from the 
+ * golden outputs.
+ */
+public final class FrameReplay {
+    
+    private static final String CAMERA_PREFIX = "camera";
+    private static final Pattern SIZE_PATTERN = Pattern.compile("-(\\d+)x(\\d+)\\.gray$");
+    
+    private final WordDetector mDetector = new WordDetector();
+    private int mRepeat = 5;
+    private int[] mDefaultSize = null;
+    
+    /**
+     * Frame size from a dump file name.
+     * @return width and height, or null if the name does not include them
+     */
+    static int[] parseDumpSize (String name) {
+        Matcher m = SIZE_PATTERN.matcher(name);
+        if (!m.find()) {
+            return null;
+        }
+        return new int[] { Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) };
+    }
+    
+    static int[] parseSize (String size) {
+        int x = size.indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException("Size must be WxH: " + size);
+        }
+        return new int[] { Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)) };
+    }
+    
+    /**
+     * Read a raw grayscale frame, one byte per pixel.
+     */
+    static GrayImage readFrame (File file, int width, int height) throws IOException {
+        byte[] data = new byte[width * height];
+        InputStream is = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int count = is.read(data, n, data.length - n);
+                if (count < 0) {
+                    throw new IOException(file + " is shorter than " + width + "x" + height);
+                }
+                n += count;
+            }
+        } finally {
+            is.close();
+        }
+        return new GrayImage(data, width, height);
+    }
+    
+    private static void collectFrames (File file, ArrayList<File> frames) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                String name = child.getName();
+                if (child.isDirectory() || (name.startsWith(CAMERA_PREFIX) && name.endsWith(".gray"))) {
+                    collectFrames(child, frames);
+                }
+            }
+        } else {
+            frames.add(file);
+        }
+    }
+    
+    private static Map<String,String> readGolden (File file) throws IOException {
+        Map<String,String> golden = new LinkedHashMap<String,String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int sep = line.indexOf(' ');
+                if (line.length() == 0 || line.startsWith("#") || sep < 0) {
+                    continue;
+                }
+                golden.put(line.substring(0, sep), line.substring(sep + 1).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return golden;
+    }
+    
+    private static void writeGolden (File file, Map<String,String> results) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("# frame left top right bottom contrastRange lowContrast extentTooLarge");
+            for (Map.Entry<String,String> entry : results.entrySet()) {
+                writer.println(entry.getKey() + " " + entry.getValue());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Detection results that golden outputs are compared on.
+     */
+    private String formatResult () {
+        WordDetector detector = mDetector;
+        return detector.getLeft() + " " + detector.getTop() + " " 
+            + detector.getRight() + " " + detector.getBottom() + " " 
+            + detector.getContrastRange() + " " 
+            + (detector.isLowContrast() ? 1 : 0) + " " + (detector.isExtentTooLarge() ? 1 : 0);
+    }
+    
+    /**
+     * Run detection on one frame, the same way {@link OCRThread} does, 
+     * and print stage latencies averaged over all but the first run.
+     * @return Detection result, as in the golden outputs
+     */
+    private String replay (File file) throws IOException {
+        int[] size = parseDumpSize(file.getName());
+        if (size == null) {
+            size = mDefaultSize;
+        }
+        if (size == null) {
+            throw new IOException("Frame size unknown for " + file + "; use -size");
+        }
+        GrayImage img = readFrame(file, size[0], size[1]);
+        
+        WordDetector detector = mDetector;
+        long coarseNanos = 0, binarizeNanos = 0, extentNanos = 0, totalNanos = 0;
+        for (int i = 0;  i <= mRepeat;  i++) {
+            long startTime = System.nanoTime();
+            detector.findWordExtent(img);
+            long elapsed = System.nanoTime() - startTime;
+            if (i > 0) {
+                // First run warms up buffers and code
+                totalNanos += elapsed;
+                coarseNanos += detector.getCoarseNanos();
+                binarizeNanos += detector.getBinarizeNanos();
+                extentNanos += detector.getExtentNanos();
+            }
+        }
+        int n = Math.max(1, mRepeat);
+        String result = formatResult();
+        System.out.println(String.format("%-36s %4dx%-4d lvl %d  dil %dx%d  coarse %6.2f  binarize %6.2f  extent %6.2f  total %6.2f ms  [%s]",
+                file.getName(), size[0], size[1], detector.getCoarseLevel(), 
+                detector.getHorizontalRadius(), detector.getVerticalRadius(), 
+                coarseNanos * 1e-6 / n, binarizeNanos * 1e-6 / n, extentNanos * 1e-6 / n, totalNanos * 1e-6 / n, 
+                result));
+        return result;
+    }
+    
+    private static void usage () {
+        System.err.println("Usage: FrameReplay [-dilate N] [-threshold N] [-coarse] [-size WxH] [-repeat N] " 
+                + "[-golden file [-update]] dump_dir_or_file...");
+        System.exit(2);
+    }
+    
+    public static void main (String[] args) throws IOException {
+        FrameReplay replay = new FrameReplay();
+        WordDetector detector = replay.mDetector;
+        File goldenFile = null;
+        boolean update = false;
+        ArrayList<File> frames = new ArrayList<File>();
+        for (int i = 0;  i < args.length;  i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if ("-dilate".equals(arg) && hasValue) {
+                detector.setDilateRadius(Integer.parseInt(args[++i]));
+            } else if ("-threshold".equals(arg) && hasValue) {
+                detector.setThresholdMethod(Integer.parseInt(args[++i]));
+            } else if ("-coarse".equals(arg)) {
+                detector.setCoarseToFine(true);
+            } else if ("-size".equals(arg) && hasValue) {
+                replay.mDefaultSize = parseSize(args[++i]);
+            } else if ("-repeat".equals(arg) && hasValue) {
+                replay.mRepeat = Integer.parseInt(args[++i]);
+            } else if ("-golden".equals(arg) && hasValue) {
+                goldenFile = new File(args[++i]);
+            } else if ("-update".equals(arg)) {
+                update = true;
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                collectFrames(new File(arg), frames);
+            }
+        }
+        if (frames.isEmpty() || (update && goldenFile == null)) {
+            usage();
+        }
+        
+        Map<String,String> golden = (goldenFile != null && !update) ? readGolden(goldenFile) : null;
+        Map<String,String> results = new LinkedHashMap<String,String>();
+        int mismatches = 0;
+        for (File frame : frames) {
+            String result = replay.replay(frame);
+            results.put(frame.getName(), result);
+            if (golden != null) {
+                String expected = golden.get(frame.getName());
+                if (expected == null) {
+                    System.out.println("  no golden output for " + frame.getName());
+                    ++mismatches;
+                } else if (!expected.equals(result)) {
+                    System.out.println("  MISMATCH, expected [" + expected + "]");
+                    ++mismatches;
+                }
+            }
+        }
+        detector.releaseImageBuffers();
+        System.out.print(detector.getMetrics().format());
+        
+        if (update) {
+            writeGolden(goldenFile, results);
+            System.out.println("Wrote " + results.size() + " golden outputs to " + goldenFile);
+        } else if (golden != null) {
+            System.out.println(frames.size() + " frames, " + mismatches + " differ from golden outputs");
+            if (mismatches > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import net.bitquill.ocr.image.GrayImage;
+
+/**
+ * Cheap frame-to-frame change detection, for continuous capture.  Each 
+ * frame is reduced to the mean intensities of fixed-size blocks, and 
+ * compared block by block against the reference frame, i.e., the last 
+ * frame on which the word extent was found.  Comparing against that 
+ * frame, rather than the immediately preceding one, keeps slow drift 
+ * from going unnoticed.  The extent is remembered as well, so that 
+ * detection can skip frames where nothing changed around it, or search
+ * near it when little changed overall.
+ * 
+ * Not thread-safe.
+ */
+public final class FrameTracker {
+    
+    private static final int BLOCK_SHIFT = 4;  // 16x16 pixel blocks
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    // Blocks whose mean changes by more than this are considered changed
+    private static final int BLOCK_CHANGE_THRESHOLD = 8;
+    
+    private int mWidth, mHeight;
+    private int mBlocksX, mBlocksY;
+    private int[] mRefMeans = null;
+    private int[] mMeans = null;
+    private boolean mHasReference = false;
+    
+    private boolean mHasExtent = false;
+    private int mLeft, mTop, mRight, mBottom;
+    
+    // Results of last update
+    private int mChangedBlocks;
+    private int mChangedExtentBlocks;
+    
+    /**
+     * Forget reference frame and extent (e.g., after settings change).
+     */
+    public final void reset () {
+        mHasReference = false;
+        mHasExtent = false;
+        mChangedBlocks = 0;
+        mChangedExtentBlocks = 0;
+    }
+    
+    private void computeBlockMeans (GrayImage img, int[] means) {
+        byte[] data = img.getData();
+        int offset = img.getOffset(), stride = img.getStride();
+        int blocksX = mBlocksX, blocksY = mBlocksY;
+        int rowLength = blocksX << BLOCK_SHIFT;
+        for (int bi = 0;  bi < blocksY;  bi++) {
+            int base = bi * blocksX;
+            for (int bj = 0;  bj < blocksX;  bj++) {
+                means[base + bj] = 0;
+            }
+            for (int i = bi << BLOCK_SHIFT;  i < (bi + 1) << BLOCK_SHIFT;  i++) {
+                int rowOfs = offset + i*stride;
+                for (int j = 0;  j < rowLength;  j++) {
+                    means[base + (j >> BLOCK_SHIFT)] += data[rowOfs + j] & 0xFF;
+                }
+            }
+            for (int bj = 0;  bj < blocksX;  bj++) {
+                means[base + bj] >>= 2*BLOCK_SHIFT;
+            }
+        }
+    }
+    
+    /**
+     * Compare frame against the reference frame.  Partial blocks at the 
+     * right and bottom edges are ignored.
+     */
+    public final void update (GrayImage img) {
+        int width = img.getWidth(), height = img.getHeight();
+        if (mMeans == null || width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mBlocksX = width >> BLOCK_SHIFT;
+            mBlocksY = height >> BLOCK_SHIFT;
+            mMeans = new int[mBlocksX * mBlocksY];
+            mRefMeans = new int[mBlocksX * mBlocksY];
+            reset();
+        }
+        int[] means = mMeans, refMeans = mRefMeans;
+        computeBlockMeans(img, means);
+        
+        int changed = 0, changedExtent = 0;
+        if (mHasReference) {
+            // Blocks overlapping the extent (if any), plus one around it
+            int extLeft = 0, extTop = 0, extRight = -1, extBottom = -1;
+            if (mHasExtent) {
+                extLeft = (mLeft >> BLOCK_SHIFT) - 1;
+                extTop = (mTop >> BLOCK_SHIFT) - 1;
+                extRight = (mRight >> BLOCK_SHIFT) + 1;
+                extBottom = (mBottom >> BLOCK_SHIFT) + 1;
+            }
+            int blocksX = mBlocksX, blocksY = mBlocksY;
+            for (int bi = 0;  bi < blocksY;  bi++) {
+                for (int bj = 0;  bj < blocksX;  bj++) {
+                    int k = bi * blocksX + bj;
+                    if (Math.abs(means[k] - refMeans[k]) > BLOCK_CHANGE_THRESHOLD) {
+                        ++changed;
+                        if (bi >= extTop && bi <= extBottom && bj >= extLeft && bj <= extRight) {
+                            ++changedExtent;
+                        }
+                    }
+                }
+            }
+        } else {
+            changed = mBlocksX * mBlocksY;
+            changedExtent = changed;
+        }
+        mChangedBlocks = changed;
+        mChangedExtentBlocks = changedExtent;
+    }
+    
+    /**
+     * Remember word extent found in the last updated frame, and make 
+     * that frame the reference for subsequent updates.
+     */
+    public final void setExtent (int left, int top, int right, int bottom) {
+        int[] means = mMeans;
+        mMeans = mRefMeans;
+        mRefMeans = means;
+        mHasReference = true;
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        mHasExtent = true;
+    }
+    
+    public final boolean hasExtent () {
+        return mHasExtent;
+    }
+    
+    public final int getLeft () {
+        return mLeft;
+    }
+    
+    public final int getTop () {
+        return mTop;
+    }
+    
+    public final int getRight () {
+        return mRight;
+    }
+    
+    public final int getBottom () {
+        return mBottom;
+    }
+    
+    /**
+     * @return Fraction of blocks that changed in the last update (1 if 
+     *   there was no reference frame to compare against)
+     */
+    public final float getChangedFraction () {
+        int numBlocks = mBlocksX * mBlocksY;
+        return numBlocks == 0 ? 1.0f : (float)mChangedBlocks / numBlocks;
+    }
+    
+    /**
+     * @return true if a previous extent is known and no block around it 
+     *   changed in the last update, so the previous result still holds
+     */
+    public final boolean isExtentUnchanged () {
+        return mHasExtent && mHasReference && mChangedExtentBlocks == 0;
+    }
+}
@@ -31,6 +31,7 @@ public class OCRApplication extends Application {
     
     private WeOCRClient mWeOCRClient;
     private WeOCRServerList mWeOCRServerList;
+    private final RecognitionCache mRecognitionCache = new RecognitionCache();
     
     public OCRApplication () {
         sMe = this;
@@ -44,6 +45,10 @@ public class OCRApplication extends Application {
         return sMe.mWeOCRClient;
     }
     
+    public static final RecognitionCache getRecognitionCache () {
+        return sMe.mRecognitionCache;
+    }
+    
     public static final WeOCRServerList getOCRServerList () {
         return sMe.mWeOCRServerList;
     }
@@ -78,6 +83,8 @@ public class OCRApplication extends Application {
         }
         // Initialize new Delicious HTTP client
         mWeOCRClient = new WeOCRClient(endpointUrl);
+        // Results of another server may differ
+        mRecognitionCache.clear();
         
         // FIXME FIXME FIXME !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
     }
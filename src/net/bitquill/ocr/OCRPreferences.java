@@ -35,6 +35,8 @@ implements Preference.OnPreferenceChangeListener, Preference.OnPreferenceClickLi
     public static final String PREF_CONTINUOUS_MODE = "continuous_mode";
     public static final String PREF_DEBUG_DUMP = "enable_debug_dump";
     public static final String PREF_DILATE_RADIUS = "dilate_radius";
+    public static final String PREF_THRESHOLD_METHOD = "threshold_method";
+    public static final String PREF_COARSE_TO_FINE = "coarse_to_fine";
     
     public static final String PREF_EDIT_BEFORE = "edit_before";
     public static final String PREF_EXTENT_ALERT = "extent_alert";
@@ -50,10 +52,16 @@ implements Preference.OnPreferenceChangeListener, Preference.OnPreferenceClickLi
     public static final int PREF_ALERT_3G = 2;
     public static final int PREF_ALERT_ALWAYS = 3;
     // Values must match string array resource.
-    public static final String[] PREF_DILATE_RADIUS_VALUES = { "small", "medium", "large" };
+    public static final String[] PREF_DILATE_RADIUS_VALUES = { "small", "medium", "large", "auto" };
     public static final int PREF_DILATE_RADIUS_SMALL = 0;
     public static final int PREF_DILATE_RADIUS_MEDIUM = 1;
     public static final int PREF_DILATE_RADIUS_LARGE = 2;
+    public static final int PREF_DILATE_RADIUS_AUTO = 3;
+    // Values must match string array resource.
+    public static final String[] PREF_THRESHOLD_METHOD_VALUES = { "mean", "niblack", "sauvola" };
+    public static final int PREF_THRESHOLD_METHOD_MEAN = 0;
+    public static final int PREF_THRESHOLD_METHOD_NIBLACK = 1;
+    public static final int PREF_THRESHOLD_METHOD_SAUVOLA = 2;
     
     private static final int ID_WEOCR_SERVERS_DIALOG = 1;
 
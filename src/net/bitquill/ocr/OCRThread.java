@@ -1,9 +1,12 @@
 package net.bitquill.ocr;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.bitquill.ocr.image.GrayImage;
-import net.bitquill.ocr.image.SimpleStructuringElement;
 import net.bitquill.ocr.weocr.WeOCRClient;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
@@ -17,18 +20,41 @@ public class OCRThread extends HandlerThread {
     private static final String TAG = OCRThread.class.getSimpleName();
     
     public static final String WORD_RECT = "word_rect";
-
-    private static final float EXTENT_WARNING_WIDTH_FRACTION = 0.5f;
-    private static final float EXTENT_WARNING_HEIGHT_FRACTION = 0.1875f;
-    private static final int CONTRAST_WARNING_RANGE = 90; // XXX check value
+    /** Focus measure of word, see {@link GrayImage#laplacianVariance(Rect)} */
+    public static final String WORD_SHARPNESS = "word_sharpness";
+    /** True if the frame tracker found that the scene moved since the last extent */
+    public static final String WORD_SCENE_CHANGED = "word_scene_changed";
 
     private boolean mEnableDump = false;
-    private int mDilateRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM;
     
-    // Image buffers used during word detection; allocated only once
-    private GrayImage mBinImg = null;
-    private GrayImage mResultImg = null;
-    private GrayImage mTmpImg = null;
+    // Frame-to-frame tracking, in continuous mode only
+    private static final float TRACKING_CHANGE_FRACTION = 0.1f;  // Max changed blocks for seeded search
+    private static final float TRACKING_MARGIN_FRACTION = 0.0625f;  // Search region margin, relative to width
+    private final FrameTracker mTracker = new FrameTracker();
+    private volatile boolean mTracking = false;
+    private volatile boolean mResetTracker = true;
+    private Bitmap mLastTextBitmap = null;
+    
+    private final PipelineMetrics mMetrics = PipelineMetrics.getDefault();
+    private static final int METRICS_LOG_INTERVAL = 100;  // Log metrics snapshot every this many frames
+    
+    private final WordDetector mDetector = new WordDetector();
+    
+    private final FrameMailbox mFrameMailbox = new FrameMailbox();
+    
+    // Recognition requests are network-bound, so they run on their own
+    // threads and never hold up detection on this one
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    private final ExecutorService mRecognitionExecutor = 
+        Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+            
+            @Override
+            public Thread newThread (Runnable r) {
+                return new Thread(r, TAG + "-recognize-" + mCount.incrementAndGet());
+            }
+        });
+    private final AtomicInteger mLastRequestId = new AtomicInteger(0);
 
     private Handler mUIHandler;
 
@@ -41,12 +67,19 @@ public class OCRThread extends HandlerThread {
             public void handleMessage(Message msg) {
                 switch (msg.what) {
                 case R.id.msg_ocr_detect_word:
-                    detectWord((byte[])msg.obj, msg.arg1, msg.arg2);
-                    break;
-                case R.id.msg_ocr_recognize:
-                    sendOCRRequest((Bitmap)msg.obj);
+                    FrameMailbox.Frame frame = mFrameMailbox.take();
+                    if (frame != null) {
+                        detectWord(frame.getData(), frame.getWidth(), frame.getHeight());
+                    }
                     break;
                 case R.id.msg_ocr_quit:
+                    logMetrics();
+                    if (mEnableDump) {
+                        FileDumpUtil.dump("metrics", mMetrics.format());
+                    }
+                    mFrameMailbox.clear();
+                    mRecognitionExecutor.shutdownNow();
+                    mDetector.releaseImageBuffers();
                     getLooper().quit();
                     break;
                 default:
@@ -65,155 +98,217 @@ public class OCRThread extends HandlerThread {
         return mHandler;
     }
     
-    public final void setPreferences (boolean enableDump, int dilateRadius) {
+    /**
+     * Queue a preview frame for word detection.  Only the newest frame is
+     * kept, so frames posted faster than they can be processed are dropped.
+     */
+    public final void postFrame (byte[] yuv, int imageWidth, int imageHeight) {
+        if (mFrameMailbox.post(yuv, imageWidth, imageHeight)) {
+            mHandler.sendEmptyMessage(R.id.msg_ocr_detect_word);
+        } else {
+            mMetrics.increment(PipelineMetrics.COUNTER_FRAMES_DROPPED);
+        }
+    }
+    
+    public final FrameMailbox getFrameMailbox () {
+        return mFrameMailbox;
+    }
+    
+    /**
+     * Send word image for recognition, without waiting for the result. 
+     * The result is posted to the UI handler as a 
+     * <code>msg_ui_ocr_success</code> or <code>msg_ui_ocr_fail</code>
+     * message, with the returned request id as <code>arg1</code>.
+     * @return Request id (positive)
+     */
+    public final int recognize (final Bitmap textBitmap) {
+        final int requestId = mLastRequestId.incrementAndGet();
+        mRecognitionExecutor.execute(new Runnable() {
+            @Override
+            public void run () {
+                sendOCRRequest(requestId, textBitmap);
+            }
+        });
+        return requestId;
+    }
+    
+    /**
+     * @param tracking  Track word extent from frame to frame, skipping 
+     *   detection on unchanged frames; meant for continuous mode
+     */
+    public final void setPreferences (boolean enableDump, int dilateRadius, int thresholdMethod, 
+            boolean coarseToFine, boolean tracking) {
         mEnableDump = enableDump;
-        mDilateRadius = dilateRadius;
+        mDetector.setDilateRadius(dilateRadius);
+        mDetector.setThresholdMethod(thresholdMethod);
+        mDetector.setCoarseToFine(coarseToFine);
+        mTracking = tracking;
+        mResetTracker = true;  // Previous results may no longer hold
     }
     
-    private void sendOCRRequest (Bitmap textBitmap) {
+    private void logMetrics () {
+        for (String line : mMetrics.format().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+    
+    private void sendOCRRequest (int requestId, Bitmap textBitmap) {
         WeOCRClient weOCRClient = OCRApplication.getOCRClient();
+        RecognitionCache cache = OCRApplication.getRecognitionCache();
+        PipelineMetrics metrics = mMetrics;
+        
+        // Answer repeat snaps of the same word from the cache
+        long startTime = System.nanoTime();
+        int width = textBitmap.getWidth(), height = textBitmap.getHeight();
+        int[] pixels = new int[width * height];
+        textBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        RecognitionCache.Key cacheKey = new RecognitionCache.Key(pixels, width, height);
+        String cachedText = cache.get(cacheKey);
+        startTime = metrics.recordSince(PipelineMetrics.STAGE_CACHE_LOOKUP, startTime);
+        if (cachedText != null) {
+            metrics.increment(PipelineMetrics.COUNTER_CACHE_HITS);
+            Log.d(TAG, "WeOCR request " + requestId + " answered from cache");
+            Message msg = mUIHandler.obtainMessage(R.id.msg_ui_ocr_success, requestId, -1, cachedText);
+            mUIHandler.sendMessage(msg);
+            return;
+        }
+        metrics.increment(PipelineMetrics.COUNTER_CACHE_MISSES);
+        
+        metrics.increment(PipelineMetrics.COUNTER_OCR_REQUESTS);
         try {
-            String ocrText = weOCRClient.doOCR(textBitmap);
-            Message msg = mUIHandler.obtainMessage(R.id.msg_ui_ocr_success, ocrText);
+            String ocrText = weOCRClient.doOCR(textBitmap, metrics);
+            metrics.recordSince(PipelineMetrics.STAGE_RECOGNIZE, startTime);
+            if (ocrText.length() > 0) {
+                // Empty results are worth retrying
+                cache.put(cacheKey, ocrText);
+            }
+            Message msg = mUIHandler.obtainMessage(R.id.msg_ui_ocr_success, requestId, -1, ocrText);
             mUIHandler.sendMessage(msg);
         } catch (IOException ioe) {
             // TODO
-            Log.e(TAG, "WeOCR failed", ioe);
-            mUIHandler.sendEmptyMessage(R.id.msg_ui_ocr_fail);
+            Log.e(TAG, "WeOCR request " + requestId + " failed", ioe);
+            metrics.increment(PipelineMetrics.COUNTER_OCR_FAILURES);
+            Message msg = mUIHandler.obtainMessage(R.id.msg_ui_ocr_fail, requestId, -1);
+            mUIHandler.sendMessage(msg);
         }
     }
     
     private void detectWord (byte[] yuv, int imageWidth, int imageHeight) {
-        initImageBuffers(imageWidth, imageHeight);
+        WordDetector detector = mDetector;
+        FrameTracker tracker = mTracker;
+        PipelineMetrics metrics = mMetrics;
+        long startTime = System.nanoTime();
+        metrics.increment(PipelineMetrics.COUNTER_FRAMES);
+        if (metrics.getCounter(PipelineMetrics.COUNTER_FRAMES) % METRICS_LOG_INTERVAL == 0) {
+            logMetrics();
+        }
 
         GrayImage img = new GrayImage(yuv, imageWidth, imageHeight);
-        //long startTime = System.currentTimeMillis();
-        Rect ext = makeTargetRect(imageWidth, imageHeight);
-        findWordExtent(img, ext);
-        //Log.d(TAG, "Find word extent in " + (System.currentTimeMillis() - startTime) + " msec");
+        Rect ext = WordDetector.makeTargetRect(imageWidth, imageHeight);
+        boolean tracking = mTracking;
+        if (mResetTracker) {
+            mResetTracker = false;
+            tracker.reset();
+            mLastTextBitmap = null;
+        }
+        if (tracking) {
+            tracker.update(img);
+            if (tracker.isExtentUnchanged() && mLastTextBitmap != null) {
+                // Nothing changed around the word; previous result still holds
+                metrics.increment(PipelineMetrics.COUNTER_FRAMES_SKIPPED);
+                Log.d(TAG, "Frame unchanged around word extent; skipped");
+                ext.set(tracker.getLeft(), tracker.getTop(), tracker.getRight(), tracker.getBottom());
+                // Defocus hardly changes the block means the tracker compares, 
+                // so measure this frame's sharpness rather than reuse the last
+                long stageTime = System.nanoTime();
+                float sharpness = img.laplacianVariance(ext);
+                metrics.recordSince(PipelineMetrics.STAGE_SHARPNESS, stageTime);
+                Log.d(TAG, "Sharpness = " + sharpness);
+                sendDetectionResult(mLastTextBitmap, ext, sharpness, false);
+                return;
+            }
+        }
+        // Too many changed blocks: camera moved, or there was no reference yet
+        boolean sceneChanged = tracking && tracker.getChangedFraction() > TRACKING_CHANGE_FRACTION;
+        if (tracking && tracker.hasExtent() && !sceneChanged) {
+            // Camera is steady; binarize only around the previous extent,
+            // unless the word grows beyond that.  Search still starts from
+            // the target rectangle, since the (padded) previous extent 
+            // would only ever grow from frame to frame.
+            int margin = (int)(TRACKING_MARGIN_FRACTION * imageWidth);
+            int regionLeft = Math.min(ext.left, tracker.getLeft()) - margin;
+            int regionTop = Math.min(ext.top, tracker.getTop()) - margin;
+            int regionRight = Math.max(ext.right, tracker.getRight()) + margin;
+            int regionBottom = Math.max(ext.bottom, tracker.getBottom()) + margin;
+            if (detector.findWordExtentInRegion(img, ext.left, ext.top, ext.right, ext.bottom, 
+                    regionLeft, regionTop, regionRight, regionBottom)) {
+                ext.set(detector.getLeft(), detector.getTop(), detector.getRight(), detector.getBottom());
+            } else {
+                Log.d(TAG, "Word extent reaches tracking region border; detecting on whole frame");
+                detector.findWordExtent(img, ext);
+            }
+        } else {
+            detector.findWordExtent(img, ext);
+        }
+        if (tracking) {
+            tracker.setExtent(ext.left, ext.top, ext.right, ext.bottom);
+        }
+        Log.d(TAG, "Image min = " + detector.getImageMin() + ", max = " + detector.getImageMax());
+        Log.d(TAG, "Stretched image mean = " + detector.getStretchedMean());
+        Log.d(TAG, "Coarse level = " + detector.getCoarseLevel());
+        FrameMailbox mailbox = mFrameMailbox;
+        Log.d(TAG, "Frames processed = " + mailbox.getProcessedCount() + ", dropped = " + mailbox.getDroppedCount() 
+                + ", last wait = " + (mailbox.getLastWaitNanos() / 1000000L) + " msec");
         Log.d(TAG, "Extent is " + ext.top + "," + ext.left + "," + ext.bottom + "," + ext.right);
-
-        boolean extentWarningActive = 
-            ext.width() >= imageWidth * EXTENT_WARNING_WIDTH_FRACTION || ext.height() >= imageHeight * EXTENT_WARNING_HEIGHT_FRACTION;
-        Message warningMsg = mUIHandler.obtainMessage(R.id.msg_ui_extent_warning,
-                extentWarningActive ? 1 : 0, -1);
-        mUIHandler.sendMessage(warningMsg);
+        Log.d(TAG, "Contrast range = " + detector.getContrastRange());
+        
+        // Focus measure over the word; cheap, since the region is small
+        long stageTime = System.nanoTime();
+        float sharpness = img.laplacianVariance(ext);
+        metrics.recordSince(PipelineMetrics.STAGE_SHARPNESS, stageTime);
+        Log.d(TAG, "Sharpness = " + sharpness);
         
         if (mEnableDump) {
             FileDumpUtil.dump("camera", img);
-            FileDumpUtil.dump("bin", mResultImg);
+            FileDumpUtil.dump("bin", detector.getResultImage());
         }
 
-        //startTime = System.currentTimeMillis();
-        Bitmap textBitmap = mResultImg.asBitmap(ext);
-        //Log.d(TAG, "Converted to Bitmap in " + (System.currentTimeMillis() - startTime) + " msec");
+        stageTime = System.nanoTime();
+        Bitmap textBitmap = detector.getResultImage().asBitmap(ext);
+        metrics.recordSince(PipelineMetrics.STAGE_BITMAP, stageTime);
         
         if (mEnableDump) {
             FileDumpUtil.dump("word", textBitmap);
         }
         
-        Message bitmapMsg = mUIHandler.obtainMessage(R.id.msg_ui_word_bitmap, textBitmap);
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(WORD_RECT, ext);
-        bitmapMsg.setData(bundle);
-        mUIHandler.sendMessage(bitmapMsg);
-    }
-
-    private static final float TARGET_HEIGHT_FRACTION = 0.033f;
-    private static final float TARGET_WIDTH_FRACTION = 0.021f;
-        
-    private Rect makeTargetRect (int imageWidth, int imageHeight) {
-        int halfWidth = (int)(TARGET_WIDTH_FRACTION * imageWidth / 2.0f);
-        int halfHeight = (int)(TARGET_HEIGHT_FRACTION * imageHeight / 2.0f);
-        int centerX = imageHeight / 2;
-        int centerY = imageWidth / 2;
-        return new Rect(centerY - halfWidth, centerX - halfHeight, 
-                    centerY + halfWidth, centerX + halfHeight);
+        mLastTextBitmap = tracking ? textBitmap : null;
+        metrics.recordSince(PipelineMetrics.STAGE_DETECT, startTime);
+        sendDetectionResult(textBitmap, ext, sharpness, sceneChanged);
     }
     
-    private void initImageBuffers (int width, int height) {
-        if (mResultImg == null) {
-            mBinImg = new GrayImage(width, height);
-            mTmpImg = new GrayImage(width, height);
-            mResultImg = new GrayImage(width, height);
-        }
-    }
-
-    // Values should correspond to OCRPreferences.PREF_DILATE_RADIUS_* indices
-    private static final SimpleStructuringElement[] sHStrel = {
-        SimpleStructuringElement.makeHorizontal(1), 
-        SimpleStructuringElement.makeHorizontal(2),
-        SimpleStructuringElement.makeHorizontal(3) };
-    private static final SimpleStructuringElement[] sVStrel = {
-        SimpleStructuringElement.makeVertical(1),
-        SimpleStructuringElement.makeVertical(2),
-        SimpleStructuringElement.makeVertical(3) };
-
-    private final void findWordExtent (GrayImage img, Rect ext) {
-        GrayImage resultImg = mResultImg;
-        GrayImage tmpImg = mTmpImg;
-        GrayImage binImg = mBinImg;
+    /**
+     * Send warnings (as of last detection) and word bitmap to UI.
+     */
+    private void sendDetectionResult (Bitmap textBitmap, Rect ext, float sharpness, boolean sceneChanged) {
+        WordDetector detector = mDetector;
         
-        // Contrast stretch
-        int imgMin = img.min(), imgMax = img.max();
-        Log.d(TAG, "Image min = " + imgMin + ", max = " + imgMax);
-        img.contrastStretch((byte)imgMin, (byte)imgMax, resultImg); // Temporarily store stretched image here
-
-        // XXX - Refactor code, this shouldn't be here?
-        boolean contrastWarningActive = 
-            (imgMax - imgMin) <= CONTRAST_WARNING_RANGE;
-        Log.d(TAG, "Contrast range = " + (imgMax - imgMin));
-        Message warningMsg = mUIHandler.obtainMessage(R.id.msg_ui_contrast_warning, 
+        boolean contrastWarningActive = detector.isLowContrast();
+        Message contrastWarningMsg = mUIHandler.obtainMessage(R.id.msg_ui_contrast_warning, 
                 contrastWarningActive ? 1 : 0, -1);
+        mUIHandler.sendMessage(contrastWarningMsg);
+
+        boolean extentWarningActive = detector.isExtentTooLarge();
+        Message warningMsg = mUIHandler.obtainMessage(R.id.msg_ui_extent_warning,
+                extentWarningActive ? 1 : 0, -1);
         mUIHandler.sendMessage(warningMsg);
         
-        // Adaptive threshold
-        float imgMean = resultImg.mean();
-        Log.d(TAG, "Stretched image mean = " + imgMean);
-        byte hi, lo;
-        if (imgMean > 127) { // XXX Arbitrary threshold
-            // Most likely dark text on light background
-            hi = (byte)255; 
-            lo = (byte)0;
-        } else {
-            // Most likely light text on dark background
-            hi = (byte)0;
-            lo = (byte)255;
-        }
-        resultImg.meanFilter(10, tmpImg);  // Temporarily store local means here
-        int threshOffset = (int)(0.33 * Math.sqrt(resultImg.variance()));  // 0.33 pulled out of my butt
-        resultImg.adaptiveThreshold(hi, lo, threshOffset, tmpImg, resultImg);
-
-        // Dilate; it's grayscale, so we should use erosion instead
-        resultImg.erode(sHStrel[mDilateRadius], tmpImg);
-        tmpImg.erode(sVStrel[mDilateRadius], binImg);
-
-        // Find word extents
-        int left = ext.left, right = ext.right, top = ext.top, bottom = ext.bottom;
-        int imgWidth = img.getWidth(), imgHeight = img.getHeight();
-        boolean extended;
-        do {
-            extended = false;
-            
-            if ((top - 1 >= 0) && binImg.min(left, top - 1, right, top) == 0) {
-                --top;
-                extended = true;
-            }
-            if ((bottom + 1 < imgHeight) && binImg.min(left, bottom, right, bottom + 1) == 0) {
-                ++bottom;
-                extended = true;
-            }
-            if ((left - 1 >= 0) && binImg.min(left - 1, top, left, bottom) == 0) {
-                --left;
-                extended = true;
-            }
-            if ((right + 1 < imgWidth) && binImg.min(right, top, right + 1, bottom) == 0) {
-                ++right;
-                extended = true;
-            }
-        } while (extended);
-        ext.set(Math.max(0, left - 2), Math.max(0, top - 2), 
-                Math.min(imgWidth - 1, right + 2), Math.min(imgHeight - 1, bottom + 2));
+        Message bitmapMsg = mUIHandler.obtainMessage(R.id.msg_ui_word_bitmap, textBitmap);
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(WORD_RECT, ext);
+        bundle.putFloat(WORD_SHARPNESS, sharpness);
+        bundle.putBoolean(WORD_SCENE_CHANGED, sceneChanged);
+        bitmapMsg.setData(bundle);
+        mUIHandler.sendMessage(bitmapMsg);
     }
 
 }
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+import net.bitquill.ocr.image.GrayImage;
+import net.bitquill.ocr.image.IntegralImage;
+import net.bitquill.ocr.image.SimpleStructuringElement;
+
+/**
+ * Benchmarks every {@link GrayImage} operation and the end-to-end 
+ * {@link WordDetector#findWordExtent(GrayImage, int, int, int, int)} path, 
+ * for each dilate radius setting, with the unfused and the fused pipeline,
+ * and with coarse-to-fine detection (which needs the fused pipeline).  
+ * Reports operations per second, nanoseconds per frame pixel and bytes 
+ * allocated per operation by the calling thread (if the JVM can tell; 
+ * worker threads of the parallel backend are not counted).
+ *
+ * Frames are synthetic, at common preview sizes, unless sizes or raw 
+ * frame dumps (as written by {@link FileDumpUtil}) are given, e.g.:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.PipelineBenchmark \
+ *       [-size WxH]... [-frame file.gray WxH]...
+ * </pre>
+ */
+public final class PipelineBenchmark {
+
+    private static final int[][] PREVIEW_SIZES = { {320, 240}, {640, 480}, {1280, 720}, {1920, 1080} };
+    private static final int WARMUP_MILLIS = 500;
+    private static final int MEASURE_MILLIS = 1000;
+    private static final int RADIUS = 10;
+    
+    private static final String[] DILATE_RADIUS_NAMES = { "small", "medium", "large", "auto" };
+    private static final String[] PIPELINE_NAMES = { " unfused", " fused", " fused c2f" };
+
+    private static final Allocations sAllocations = new Allocations();
+
+    private final String mName;
+    private final GrayImage mImg;
+    private final GrayImage mOut;
+    private final GrayImage mThresh;
+    private final GrayImage mHalf;
+    private final IntegralImage mIntegral;
+    private final int[] mHist = new int[256];
+    private final byte[] mLut = new byte[256];
+    private final SimpleStructuringElement mStrel = SimpleStructuringElement.makeHorizontal(2);
+    
+    private PipelineBenchmark (String name, GrayImage img) {
+        int width = img.getWidth(), height = img.getHeight();
+        mName = name;
+        mImg = img;
+        mOut = new GrayImage(width, height);
+        mThresh = new GrayImage(width, height);
+        mHalf = new GrayImage(width / 2, height / 2);
+        mIntegral = new IntegralImage(width, height);
+        for (int i = 0;  i < mLut.length;  i++) {
+            mLut[i] = (byte)(255 - i);
+        }
+    }
+    
+    /**
+     * Thread allocation counter of HotSpot-derived JVMs, looked up 
+     * reflectively since it is not available on Android.
+     */
+    private static final class Allocations {
+        private Object mBean;
+        private Method mAllocatedBytes;
+        
+        Allocations () {
+            try {
+                mBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                mAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+                get();
+            } catch (Throwable t) {
+                mAllocatedBytes = null;
+            }
+        }
+        
+        final boolean isAvailable () {
+            return mAllocatedBytes != null;
+        }
+        
+        /**
+         * @return bytes allocated by the current thread so far, or -1 if unknown 
+         */
+        final long get () {
+            if (mAllocatedBytes == null) {
+                return -1;
+            }
+            try {
+                return (Long)mAllocatedBytes.invoke(mBean, Thread.currentThread().getId());
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+    }
+
+    private abstract class Op {
+        final String mOpName;
+
+        Op (String name) {
+            mOpName = name;
+        }
+
+        abstract void run ();
+
+        private int runFor (long millis) {
+            long end = System.currentTimeMillis() + millis;
+            int n = 0;
+            do {
+                run();
+                n++;
+            } while (System.currentTimeMillis() < end);
+            return n;
+        }
+
+        final void measure () {
+            runFor(WARMUP_MILLIS);
+            long startBytes = sAllocations.get();
+            long start = System.nanoTime();
+            int n = runFor(MEASURE_MILLIS);
+            long nanos = System.nanoTime() - start;
+            long bytes = sAllocations.get() - startBytes;
+            long pixels = (long)mImg.getWidth() * mImg.getHeight();
+            System.out.println(String.format("  %-28s %10.1f ops/s %8.3f ns/px %12s B/op",
+                    mOpName, n * 1e9 / nanos, (double)nanos / ((double)n * pixels),
+                    sAllocations.isAvailable() ? String.format("%.1f", (double)bytes / n) : "n/a"));
+        }
+    }
+    
+    private Op[] makeKernelOps () {
+        final GrayImage img = mImg;
+        final int width = img.getWidth(), height = img.getHeight();
+        return new Op[] {
+            new Op("min") { 
+                @Override void run () { img.min(); } 
+            },
+            new Op("max") { 
+                @Override void run () { img.max(); } 
+            },
+            new Op("mean") { 
+                @Override void run () { img.mean(); } 
+            },
+            new Op("variance") { 
+                @Override void run () { img.variance(); } 
+            },
+            new Op("histogram") { 
+                @Override void run () { img.histogram(mHist); } 
+            },
+            new Op("erode") { 
+                @Override void run () { img.erode(mStrel, mOut); } 
+            },
+            new Op("dilate") { 
+                @Override void run () { img.dilate(mStrel, mOut); } 
+            },
+            new Op("meanFilter") { 
+                @Override void run () { img.meanFilter(RADIUS, mThresh); } 
+            },
+            new Op("adaptiveThreshold") { 
+                @Override void run () { img.adaptiveThreshold((byte)255, (byte)0, 10, mThresh, mOut); } 
+            },
+            new Op("contrastStretch") { 
+                @Override void run () { img.contrastStretch((byte)40, (byte)200, mOut); } 
+            },
+            new Op("applyLut") { 
+                @Override void run () { img.applyLut(mLut, mOut); } 
+            },
+            new Op("downsample") { 
+                @Override void run () { img.downsample(mHalf); } 
+            },
+            new Op("meanFilter (view)") { 
+                @Override void run () { 
+                    img.view(0, height / 4, width, 3 * height / 4).meanFilter(RADIUS, mThresh.view(0, 0, width, height / 2)); 
+                } 
+            },
+            new Op("integral meanFilter") { 
+                @Override void run () { mIntegral.compute(img).meanFilter(RADIUS, mThresh); } 
+            }
+        };
+    }
+    
+    private Op[] makePipelineOps () {
+        final int width = mImg.getWidth(), height = mImg.getHeight();
+        // Stand-in for the on-screen guide, around the frame center
+        final int left = width / 2 - width / 16, right = width / 2 + width / 16;
+        final int top = height / 2 - height / 32, bottom = height / 2 + height / 32;
+        ArrayList<Op> ops = new ArrayList<Op>();
+        for (int radius = 0;  radius < DILATE_RADIUS_NAMES.length;  radius++) {
+            // Unfused, fused, and fused coarse-to-fine
+            for (int c = 0;  c < 3;  c++) {
+                final WordDetector detector = new WordDetector();
+                detector.setDilateRadius(radius);
+                detector.setUseFusedPipeline(c != 0);
+                detector.setCoarseToFine(c == 2);
+                ops.add(new Op("findWordExtent " + DILATE_RADIUS_NAMES[radius] + PIPELINE_NAMES[c]) {
+                    @Override 
+                    void run () {
+                        detector.findWordExtent(mImg, left, top, right, bottom);
+                    }
+                });
+            }
+        }
+        return ops.toArray(new Op[ops.size()]);
+    }
+
+    private void run () {
+        System.out.println(mName + ", " + mImg.getWidth() + "x" + mImg.getHeight() + ", " 
+                + (GrayImage.isNativeBackend() ? "native" : "Java") + " kernels"
+                + (GrayImage.isParallel() ? ", parallel" : ""));
+        for (Op op : makeKernelOps()) {
+            op.measure();
+        }
+        for (Op op : makePipelineOps()) {
+            op.measure();
+        }
+    }
+
+    /**
+     * Synthetic frame: a row of text-like blobs at the center, over a 
+     * lighting gradient and some noise.
+     */
+    private static GrayImage makeSyntheticFrame (int width, int height) {
+        Random random = new Random(20091019L);
+        byte[] data = new byte[width * height];
+        int charWidth = Math.max(2, width / 80), lineHeight = Math.max(4, height / 20);
+        for (int i = 0;  i < height;  i++) {
+            for (int j = 0;  j < width;  j++) {
+                int val = 90 + 100 * j / width + random.nextInt(12);
+                if (Math.abs(i - height / 2) < lineHeight / 2 && Math.abs(j - width / 2) < width / 4 
+                        && (j / charWidth) % 2 == 0) {
+                    val -= 70;
+                }
+                data[i*width + j] = (byte)val;
+            }
+        }
+        return new GrayImage(data, width, height);
+    }
+    
+    public static void main (String[] args) throws IOException {
+        ArrayList<PipelineBenchmark> benchmarks = new ArrayList<PipelineBenchmark>();
+        for (int i = 0;  i < args.length;  i++) {
+            if ("-size".equals(args[i]) && i + 1 < args.length) {
+                int[] size = FrameReplay.parseSize(args[++i]);
+                benchmarks.add(new PipelineBenchmark("synthetic", makeSyntheticFrame(size[0], size[1])));
+            } else if ("-frame".equals(args[i]) && i + 2 < args.length) {
+                String path = args[++i];
+                int[] size = FrameReplay.parseSize(args[++i]);
+                benchmarks.add(new PipelineBenchmark(path, FrameReplay.readFrame(new File(path), size[0], size[1])));
+            } else {
+                System.err.println("Usage: PipelineBenchmark [-size WxH]... [-frame file.gray WxH]...");
+                System.exit(2);
+            }
+        }
+        if (benchmarks.isEmpty()) {
+            for (int[] size : PREVIEW_SIZES) {
+                benchmarks.add(new PipelineBenchmark("synthetic", makeSyntheticFrame(size[0], size[1])));
+            }
+        }
+        for (PipelineBenchmark benchmark : benchmarks) {
+            benchmark.run();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.util.Arrays;
+
+/**
+ * Latency histograms of the OCR pipeline stages, plus event counters.
+ * Recording does not allocate, so it can stay enabled in production; 
+ * {@link #format()} gives a snapshot for logcat or a dump file.
+ * 
+ * Histogram buckets are powers of two in microseconds, so percentiles 
+ * are upper bounds, accurate to within a factor of two.  All methods 
+ * are thread-safe.
+ */
+public final class PipelineMetrics {
+    
+    // Word detection; the unfused pipeline records the individual steps,
+    // the fused one records them as a single pass
+    public static final int STAGE_CONTRAST_STRETCH = 0;
+    public static final int STAGE_DILATE_ESTIMATE = 1;
+    public static final int STAGE_MEAN_FILTER = 2;
+    public static final int STAGE_THRESHOLD = 3;
+    public static final int STAGE_EROSION = 4;
+    public static final int STAGE_FUSED_BINARIZE = 5;
+    public static final int STAGE_COARSE = 6;
+    public static final int STAGE_EXTENT_SEARCH = 7;
+    public static final int STAGE_SHARPNESS = 8;
+    public static final int STAGE_BITMAP = 9;
+    public static final int STAGE_DETECT = 10;
+    // Recognition
+    public static final int STAGE_CACHE_LOOKUP = 11;
+    public static final int STAGE_JPEG_ENCODE = 12;
+    public static final int STAGE_HTTP = 13;
+    public static final int STAGE_RESPONSE_PARSE = 14;
+    public static final int STAGE_RECOGNIZE = 15;
+    public static final int NUM_STAGES = 16;
+    
+    private static final String[] STAGE_NAMES = {
+        "contrast stretch", "dilate estimate", "mean filter", "threshold", "erosion", "fused binarize", 
+        "coarse level", "extent search", "sharpness", "bitmap", "detect (total)", 
+        "cache lookup", "jpeg encode", "http round-trip", "response parse", "recognize (total)" };
+    
+    public static final int COUNTER_FRAMES = 0;
+    public static final int COUNTER_FRAMES_DROPPED = 1;
+    public static final int COUNTER_FRAMES_SKIPPED = 2;
+    public static final int COUNTER_OCR_REQUESTS = 3;
+    public static final int COUNTER_OCR_FAILURES = 4;
+    public static final int COUNTER_CACHE_HITS = 5;
+    public static final int COUNTER_CACHE_MISSES = 6;
+    public static final int NUM_COUNTERS = 7;
+    
+    private static final String[] COUNTER_NAMES = {
+        "frames", "dropped", "skipped", "ocr requests", "ocr failures", "cache hits", "cache misses" };
+    
+    // Bucket k > 0 holds [2^(k-1), 2^k) microseconds; the last one is open
+    private static final int NUM_BUCKETS = 24;
+    
+    private final long[][] mBuckets = new long[NUM_STAGES][NUM_BUCKETS];
+    private final long[] mCount = new long[NUM_STAGES];
+    private final long[] mTotalNanos = new long[NUM_STAGES];
+    private final long[] mMaxNanos = new long[NUM_STAGES];
+    private final long[] mCounters = new long[NUM_COUNTERS];
+    
+    private static PipelineMetrics sDefault = null;
+    
+    /**
+     * @return Registry shared by the app's pipeline stages
+     */
+    public static synchronized PipelineMetrics getDefault () {
+        if (sDefault == null) {
+            sDefault = new PipelineMetrics();
+        }
+        return sDefault;
+    }
+    
+    private static int bucket (long nanos) {
+        long micros = nanos / 1000L;
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+    
+    public final synchronized void record (int stage, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        ++mBuckets[stage][bucket(nanos)];
+        ++mCount[stage];
+        mTotalNanos[stage] += nanos;
+        if (nanos > mMaxNanos[stage]) {
+            mMaxNanos[stage] = nanos;
+        }
+    }
+    
+    /**
+     * Record time elapsed since <code>startTime</code>, to chain timings 
+     * of consecutive stages.
+     * @return Current value of {@link System#nanoTime()}
+     */
+    public final long recordSince (int stage, long startTime) {
+        long now = System.nanoTime();
+        record(stage, now - startTime);
+        return now;
+    }
+    
+    public final synchronized void increment (int counter) {
+        ++mCounters[counter];
+    }
+    
+    public final synchronized long getCounter (int counter) {
+        return mCounters[counter];
+    }
+    
+    public final synchronized long getCount (int stage) {
+        return mCount[stage];
+    }
+    
+    public final synchronized long getTotalNanos (int stage) {
+        return mTotalNanos[stage];
+    }
+    
+    public final synchronized long getMaxNanos (int stage) {
+        return mMaxNanos[stage];
+    }
+    
+    /**
+     * @return Upper bound of given latency percentile, in microseconds, 
+     *   or 0 if nothing was recorded
+     */
+    public final synchronized long getPercentileMicros (int stage, float fraction) {
+        long count = mCount[stage];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction * count);
+        long[] buckets = mBuckets[stage];
+        long seen = 0;
+        for (int k = 0;  k < NUM_BUCKETS - 1;  k++) {
+            seen += buckets[k];
+            if (seen >= rank) {
+                return 1L << k;
+            }
+        }
+        return mMaxNanos[stage] / 1000L;
+    }
+    
+    public final synchronized void reset () {
+        for (int s = 0;  s < NUM_STAGES;  s++) {
+            Arrays.fill(mBuckets[s], 0);
+            mCount[s] = 0;
+            mTotalNanos[s] = 0;
+            mMaxNanos[s] = 0;
+        }
+        Arrays.fill(mCounters, 0);
+    }
+    
+    /**
+     * Snapshot of all counters and of stages recorded so far, one line 
+     * each, with latencies in milliseconds.
+     */
+    public final synchronized String format () {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0;  c < NUM_COUNTERS;  c++) {
+            if (c > 0) {
+                sb.append(", ");
+            }
+            sb.append(COUNTER_NAMES[c]).append(' ').append(mCounters[c]);
+        }
+        sb.append('\n');
+        sb.append(String.format("%-20s %8s %9s %9s %9s %9s %9s\n", 
+                "stage", "count", "mean", "p50", "p90", "p99", "max"));
+        for (int s = 0;  s < NUM_STAGES;  s++) {
+            long count = mCount[s];
+            if (count == 0) {
+                continue;
+            }
+            sb.append(String.format("%-20s %8d %9.2f %9.2f %9.2f %9.2f %9.2f\n",
+                    STAGE_NAMES[s], count, mTotalNanos[s] * 1e-6 / count,
+                    getPercentileMicros(s, 0.5f) * 1e-3, getPercentileMicros(s, 0.9f) * 1e-3, 
+                    getPercentileMicros(s, 0.99f) * 1e-3, mMaxNanos[s] * 1e-6));
+        }
+        return sb.toString();
+    }
+}
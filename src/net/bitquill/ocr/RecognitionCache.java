@@ -0,0 +1,397 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.bitquill.ocr.image.RunLengthStats;
+
+/**
+ * Least-recently-used cache of recognition results, keyed by a 
+ * perceptual hash of the word image, so that snapping the same word 
+ * again skips the round-trip to the OCR server.
+ * 
+ * The hash is a 64-bit difference hash (dHash): the image is averaged 
+ * down to a 9x8 grid, and each bit records whether a cell is darker than 
+ * its right neighbor.  Unlike a cryptographic hash, it changes little 
+ * when the crop shifts or scales slightly, so lookups consider any entry 
+ * within a small Hamming distance.  For the same reason it hardly 
+ * changes when the whole crop is scaled, so candidate entries must also 
+ * have a similar width and height, in pixels, and aspect ratio.
+ * 
+ * A hash this short cannot tell a re-snap of the same word from a word 
+ * that differs in one letter (e.g., "than" and "then"), so it only 
+ * selects candidates.  Each entry also keeps the shape of its word: the 
+ * bounding box of ink pixels (at or below the intermeans threshold of 
+ * the image), averaged down to at most a fixed number of rows, and 
+ * thresholded again.  Since it spans only the ink, the shape does not 
+ * depend on how much background the crop includes.  A candidate is a 
+ * hit only if, after aligning the two shapes within a couple of pixels, 
+ * hardly any ink pixel of either has no ink next to it in the other.  
+ * Edges that move by a pixel are tolerated, but a changed letter stroke 
+ * is not.
+ * 
+ * All methods are thread-safe.
+ */
+public final class RecognitionCache {
+    
+    private static final int HASH_COLUMNS = 9;
+    private static final int HASH_ROWS = 8;
+    
+    // Rows of word shapes, unless the ink is shorter; columns follow the 
+    // aspect ratio, up to a limit
+    private static final int MAX_SHAPE_ROWS = 24;
+    private static final int MAX_SHAPE_ASPECT_RATIO = 8;
+    // Largest shift, in shape pixels, tried when aligning two shapes
+    private static final int MAX_SHAPE_SHIFT = 2;
+    
+    /** Default number of entries */
+    public static final int DEFAULT_CAPACITY = 32;
+    /** Default maximum number of differing hash bits, out of 64 */
+    public static final int DEFAULT_MAX_DISTANCE = 5;
+    /** Default maximum number of unmatched ink pixels of aligned shapes */
+    public static final int DEFAULT_MAX_MISMATCH = 2;
+    // Widths and heights of matching images may each differ by at most this factor
+    private static final float MAX_SIZE_CHANGE = 1.2f;
+    // Width-to-height ratios of matching images may differ by at most this factor
+    private static final float MAX_ASPECT_RATIO_CHANGE = 1.2f;
+    
+    /**
+     * Lookup key of a word image: its hash, plus the pixels, from which 
+     * shapes are computed only when there are candidate entries.
+     */
+    public static final class Key {
+        final int[] mPixels;
+        final int mWidth;
+        final int mHeight;
+        final long mHash;
+        // Ink bounding box, and the threshold that defines ink
+        final int mInkLeft, mInkTop, mInkRight, mInkBottom;
+        final int mInkThreshold;
+        // Shape at the size of the last compared entry
+        private byte[] mShape = null;
+        private int mShapeRows = 0, mShapeColumns = 0;
+        
+        /**
+         * @param argb  Pixels, row by row, as returned by Bitmap.getPixels(); 
+         *   not copied, so they must not change while the key is in use
+         */
+        public Key (int[] argb, int width, int height) {
+            mPixels = argb;
+            mWidth = width;
+            mHeight = height;
+            mHash = hash(argb, width, height);
+            
+            int[] hist = new int[256];
+            for (int k = 0;  k < width * height;  k++) {
+                ++hist[(argb[k] >> 8) & 0xFF];
+            }
+            int threshold = RunLengthStats.intermeansThreshold(hist);
+            int left = width, top = height, right = 0, bottom = 0;
+            for (int i = 0;  i < height;  i++) {
+                for (int j = 0;  j < width;  j++) {
+                    if (((argb[i*width + j] >> 8) & 0xFF) <= threshold) {
+                        left = Math.min(left, j);
+                        right = Math.max(right, j + 1);
+                        top = Math.min(top, i);
+                        bottom = Math.max(bottom, i + 1);
+                    }
+                }
+            }
+            if (left >= right) {
+                // Blank image; use all of it
+                left = top = 0;
+                right = width;
+                bottom = height;
+            }
+            mInkLeft = left;
+            mInkTop = top;
+            mInkRight = right;
+            mInkBottom = bottom;
+            mInkThreshold = threshold;
+        }
+        
+        public final long getHash () {
+            return mHash;
+        }
+        
+        final byte[] getShape (int rows, int columns) {
+            if (mShape == null || mShapeRows != rows || mShapeColumns != columns) {
+                mShape = shape(this, rows, columns);
+                mShapeRows = rows;
+                mShapeColumns = columns;
+            }
+            return mShape;
+        }
+    }
+    
+    private static final class CachedText {
+        final long mHash;
+        final int mWidth;
+        final int mHeight;
+        final int mShapeRows;
+        final int mShapeColumns;
+        final byte[] mShape;
+        final String mText;
+        
+        CachedText (Key key, String text) {
+            mHash = key.mHash;
+            mWidth = key.mWidth;
+            mHeight = key.mHeight;
+            mShapeRows = shapeRows(key);
+            mShapeColumns = shapeColumns(key, mShapeRows);
+            mShape = key.getShape(mShapeRows, mShapeColumns);
+            mText = text;
+        }
+    }
+    
+    private final int mMaxDistance;
+    private final int mMaxMismatch;
+    private final LinkedHashMap<Long,CachedText> mEntries;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    
+    public RecognitionCache () {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_DISTANCE, DEFAULT_MAX_MISMATCH);
+    }
+    
+    public RecognitionCache (final int capacity, int maxDistance, int maxMismatch) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mMaxDistance = maxDistance;
+        mMaxMismatch = maxMismatch;
+        // Access order, so iteration starts from the least recently used entry
+        mEntries = new LinkedHashMap<Long,CachedText>(2 * capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<Long,CachedText> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    /**
+     * Compute difference hash of an image.  Only the green channel is 
+     * used, which is enough for grayscale images.
+     * @param argb  Pixels, row by row, as returned by Bitmap.getPixels()
+     */
+    public static long hash (int[] argb, int width, int height) {
+        if (width <= 0 || height <= 0 || argb.length < width * height) {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        long[] cellSums = new long[HASH_COLUMNS];
+        int[] cellWidths = new int[HASH_COLUMNS];
+        long hash = 0;
+        for (int r = 0;  r < HASH_ROWS;  r++) {
+            int top = r * height / HASH_ROWS;
+            int bottom = Math.max(top + 1, (r + 1) * height / HASH_ROWS);
+            for (int c = 0;  c < HASH_COLUMNS;  c++) {
+                int left = c * width / HASH_COLUMNS;
+                int right = Math.max(left + 1, (c + 1) * width / HASH_COLUMNS);
+                long sum = 0;
+                for (int i = top;  i < bottom;  i++) {
+                    for (int j = left;  j < right;  j++) {
+                        sum += (argb[i*width + j] >> 8) & 0xFF;
+                    }
+                }
+                cellSums[c] = sum;
+                cellWidths[c] = right - left;
+            }
+            for (int c = 0;  c < HASH_COLUMNS - 1;  c++) {
+                // Compare means of cells in the same row, without dividing
+                hash <<= 1;
+                if (cellSums[c] * cellWidths[c + 1] < cellSums[c + 1] * cellWidths[c]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+    
+    /**
+     * Compute word shape: average the ink bounding box down to the given 
+     * number of rows and columns, and mark cells at or below the ink 
+     * threshold.
+     */
+    static byte[] shape (Key key, int rows, int columns) {
+        int[] argb = key.mPixels;
+        int width = key.mWidth;
+        int boxWidth = key.mInkRight - key.mInkLeft, boxHeight = key.mInkBottom - key.mInkTop;
+        byte[] shape = new byte[rows * columns];
+        for (int r = 0;  r < rows;  r++) {
+            int top = key.mInkTop + r * boxHeight / rows;
+            int bottom = Math.max(top + 1, key.mInkTop + (r + 1) * boxHeight / rows);
+            for (int c = 0;  c < columns;  c++) {
+                int left = key.mInkLeft + c * boxWidth / columns;
+                int right = Math.max(left + 1, key.mInkLeft + (c + 1) * boxWidth / columns);
+                int sum = 0;
+                for (int i = top;  i < bottom;  i++) {
+                    for (int j = left;  j < right;  j++) {
+                        sum += (argb[i*width + j] >> 8) & 0xFF;
+                    }
+                }
+                if (sum <= key.mInkThreshold * (bottom - top) * (right - left)) {
+                    shape[r*columns + c] = 1;
+                }
+            }
+        }
+        return shape;
+    }
+    
+    // Shapes are never scaled up, so a shape pixel spans at least one image pixel
+    static int shapeRows (Key key) {
+        return Math.min(MAX_SHAPE_ROWS, key.mInkBottom - key.mInkTop);
+    }
+    
+    static int shapeColumns (Key key, int rows) {
+        int boxWidth = key.mInkRight - key.mInkLeft, boxHeight = key.mInkBottom - key.mInkTop;
+        int columns = Math.round((float)rows * boxWidth / boxHeight);
+        return Math.max(1, Math.min(Math.min(boxWidth, MAX_SHAPE_ASPECT_RATIO * rows), columns));
+    }
+    
+    // Shape with each ink cell grown to its 3x3 neighborhood
+    private static byte[] growShape (byte[] shape, int rows, int columns) {
+        byte[] grown = new byte[shape.length];
+        for (int r = 0;  r < rows;  r++) {
+            for (int c = 0;  c < columns;  c++) {
+                if (shape[r*columns + c] == 0) {
+                    continue;
+                }
+                for (int i = Math.max(0, r - 1);  i <= Math.min(rows - 1, r + 1);  i++) {
+                    for (int j = Math.max(0, c - 1);  j <= Math.min(columns - 1, c + 1);  j++) {
+                        grown[i*columns + j] = 1;
+                    }
+                }
+            }
+        }
+        return grown;
+    }
+    
+    // Ink cells of a with no ink next to them in b, shifted by (dy, dx) 
+    // relative to a; stops counting past limit
+    private static int countUnmatched (byte[] a, byte[] grownB, int rows, int columns, 
+                                       int dy, int dx, int limit) {
+        int count = 0;
+        for (int r = 0;  r < rows;  r++) {
+            int rb = r + dy;
+            boolean rowInside = rb >= 0 && rb < rows;
+            for (int c = 0;  c < columns;  c++) {
+                if (a[r*columns + c] == 0) {
+                    continue;
+                }
+                int cb = c + dx;
+                if (!rowInside || cb < 0 || cb >= columns || grownB[rb*columns + cb] == 0) {
+                    if (++count > limit) {
+                        return count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Smallest number of unmatched ink cells of two shapes, in either 
+     * direction, over all alignments within MAX_SHAPE_SHIFT.
+     */
+    static int shapeMismatch (byte[] a, byte[] b, int rows, int columns) {
+        byte[] grownA = growShape(a, rows, columns);
+        byte[] grownB = growShape(b, rows, columns);
+        int best = Integer.MAX_VALUE;
+        for (int dy = -MAX_SHAPE_SHIFT;  dy <= MAX_SHAPE_SHIFT;  dy++) {
+            for (int dx = -MAX_SHAPE_SHIFT;  dx <= MAX_SHAPE_SHIFT;  dx++) {
+                int count = countUnmatched(a, grownB, rows, columns, dy, dx, best);
+                if (count < best) {
+                    count += countUnmatched(b, grownA, rows, columns, -dy, -dx, best - count);
+                    best = Math.min(best, count);
+                }
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Find the closest entry within the maximum Hamming distance, with 
+     * a similar size and aspect ratio, and with a matching shape, and 
+     * mark it as most recently used.  Counts as a hit or a miss.
+     * @return Recognized text, or null if there is no match
+     */
+    public final synchronized String get (Key key) {
+        CachedText best = null;
+        int bestDistance = mMaxDistance + 1;
+        for (CachedText entry : mEntries.values()) {
+            int distance = Long.bitCount(entry.mHash ^ key.mHash);
+            if (distance < bestDistance && isSimilarSize(entry, key.mWidth, key.mHeight) 
+                    && shapeMismatch(entry.mShape, key.getShape(entry.mShapeRows, entry.mShapeColumns), 
+                                     entry.mShapeRows, entry.mShapeColumns) <= mMaxMismatch) {
+                best = entry;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        mEntries.get(best.mHash);  // Refresh access order
+        return best.mText;
+    }
+    
+    /**
+     * Store recognized text, evicting the least recently used entry if 
+     * the cache is full.
+     */
+    public final synchronized void put (Key key, String text) {
+        mEntries.put(key.mHash, new CachedText(key, text));
+    }
+    
+    /**
+     * Remove all entries; e.g., when results from a different OCR 
+     * server are not interchangeable.  Statistics are kept.
+     */
+    public final synchronized void clear () {
+        mEntries.clear();
+    }
+    
+    public final synchronized int size () {
+        return mEntries.size();
+    }
+    
+    public final synchronized long getHitCount () {
+        return mHitCount;
+    }
+    
+    public final synchronized long getMissCount () {
+        return mMissCount;
+    }
+    
+    private static boolean isSimilarSize (CachedText entry, int width, int height) {
+        return isWithinFactor(entry.mWidth, width, MAX_SIZE_CHANGE) 
+            && isWithinFactor(entry.mHeight, height, MAX_SIZE_CHANGE)
+            && isWithinFactor((float)entry.mWidth * height, (float)width * entry.mHeight, 
+                              MAX_ASPECT_RATIO_CHANGE);
+    }
+    
+    private static boolean isWithinFactor (float a, float b, float factor) {
+        return a <= b * factor && b <= a * factor;
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import java.util.Random;
+
+/**
+ * Pins the match criteria of {@link RecognitionCache} on rendered word 
+ * crops.  Each word is rendered with a small bitmap font, area-sampled 
+ * at a given scale and sub-pixel offset, on a shaded and noisy 
+ * background, like the crops sent to the OCR server.
+ * 
+ * The criteria are lopsided on purpose: a miss only costs a round-trip 
+ * to the server, but a false hit shows the wrong text.  So a cached word 
+ * must never be returned for any other word, including words that 
+ * differ in a single letter (e.g., "than" and "then"), however either 
+ * is re-snapped, while re-snaps of the same word (shifted by a fraction 
+ * of a pixel, cropped a pixel or two differently, or scaled by a few 
+ * percent) need only mostly hit; those that miss do so because their 
+ * hash is too far, but their shapes must still match.  Shapes of other 
+ * words must be more than twice the maximum mismatch away.  The same 
+ * word at a clearly different size must always miss, even though its 
+ * hash is nearly identical.  Prints, for each word, the hash distance 
+ * and shape mismatch of its re-snaps, and the closest other word with 
+ * its smallest shape mismatch, e.g.:
+ * <pre>
+ *   java -cp bin net.bitquill.ocr.RecognitionCacheCheck
+ * </pre>
+ * Exits with non-zero status on the first violation.
+ */
+public final class RecognitionCacheCheck {
+    
+    private static final String[] WORDS = {
+        "people", "liberty", "nation", "perish", "shall",
+        "brought", "equal", "engaged", "dedicated", "larger",
+        // Pairs that differ in one letter, and hash close together
+        "than", "then", "shell", "bread", "broad",
+        "hat", "hot", "cat", "cut", "hand", "band"
+    };
+    
+    // Lower-case glyphs, 5 font pixels wide, with ascender and descender rows
+    private static final int GLYPH_WIDTH = 5, GLYPH_HEIGHT = 9, GLYPH_ADVANCE = 6;
+    private static final String GLYPH_LETTERS = "abcdeghilnopqrstuy";
+    private static final String[][] GLYPHS = {
+        { ".....", ".....", ".###.", "....#", ".####", "#...#", ".####", ".....", "....." },  // a
+        { "#....", "#....", "####.", "#...#", "#...#", "#...#", "####.", ".....", "....." },  // b
+        { ".....", ".....", ".####", "#....", "#....", "#....", ".####", ".....", "....." },  // c
+        { "....#", "....#", ".####", "#...#", "#...#", "#...#", ".####", ".....", "....." },  // d
+        { ".....", ".....", ".###.", "#...#", "#####", "#....", ".###.", ".....", "....." },  // e
+        { ".....", ".....", ".####", "#...#", "#...#", "#...#", ".####", "....#", ".###." },  // g
+        { "#....", "#....", "####.", "#...#", "#...#", "#...#", "#...#", ".....", "....." },  // h
+        { "..#..", ".....", ".##..", "..#..", "..#..", "..#..", ".###.", ".....", "....." },  // i
+        { ".##..", "..#..", "..#..", "..#..", "..#..", "..#..", ".###.", ".....", "....." },  // l
+        { ".....", ".....", "####.", "#...#", "#...#", "#...#", "#...#", ".....", "....." },  // n
+        { ".....", ".....", ".###.", "#...#", "#...#", "#...#", ".###.", ".....", "....." },  // o
+        { ".....", ".....", "####.", "#...#", "#...#", "#...#", "####.", "#....", "#...." },  // p
+        { ".....", ".....", ".####", "#...#", "#...#", "#...#", ".####", "....#", "....#" },  // q
+        { ".....", ".....", "#.##.", "##..#", "#....", "#....", "#....", ".....", "....." },  // r
+        { ".....", ".....", ".####", "#....", ".###.", "....#", "####.", ".....", "....." },  // s
+        { "..#..", "..#..", "#####", "..#..", "..#..", "..#..", "...##", ".....", "....." },  // t
+        { ".....", ".....", "#...#", "#...#", "#...#", "#...#", ".####", ".....", "....." },  // u
+        { ".....", ".....", "#...#", "#...#", "#...#", "#...#", ".####", "....#", ".###." },  // y
+    };
+    
+    private static final float BASE_SCALE = 4.0f;  // Output pixels per font pixel
+    private static final int BASE_PAD = 4;  // Background pixels around the glyphs
+    private static final int SUBSAMPLES = 4;  // Per output pixel, in each direction
+    
+    // Re-snaps of the same word: scale factor, sub-pixel x and y offset,
+    // and extra crop padding on each side (left, top, right, bottom)
+    private static final float[][] RESNAPS = {
+        { 1.00f, 0.25f, 0.00f,  0,  0,  0,  0 },
+        { 1.00f, 0.50f, 0.50f,  0,  0,  0,  0 },
+        { 1.00f, 0.75f, 0.25f,  0,  0,  0,  0 },
+        { 1.00f, 0.00f, 0.00f,  1,  0, -1,  0 },
+        { 1.00f, 0.00f, 0.00f, -1,  1,  0, -1 },
+        { 1.00f, 0.50f, 0.00f,  2, -1,  1,  1 },
+        { 0.97f, 0.00f, 0.00f,  0,  0,  0,  0 },
+        { 1.03f, 0.30f, 0.60f,  0,  0,  0,  0 },
+        { 1.05f, 0.00f, 0.00f,  1,  1,  0,  0 },
+    };
+    // Same word, too much smaller or larger to be the same crop
+    private static final float[] RESIZES = { 0.6f, 1.5f, 2.0f };
+    // Fraction of re-snaps that must hit
+    private static final float MIN_RESNAP_HIT_RATE = 0.8f;
+    
+    private final Random mRandom = new Random(20091107L);
+    private int mNumResnaps = 0, mNumResnapHits = 0;
+    private int mMaxSameDistance = 0;
+    private int mMaxSameMismatch = 0;
+    private int mMinOtherMismatch = Integer.MAX_VALUE;
+    
+    /**
+     * Render a word crop, as ARGB pixels.
+     * @param scale  Output pixels per font pixel
+     * @param dx  Sub-pixel offset of the glyphs, in output pixels
+     * @param dy  Sub-pixel offset of the glyphs, in output pixels
+     * @param pad  Background pixels around the glyphs: left, top, right, bottom
+     * @param size  Returns the crop width and height
+     */
+    private int[] render (String word, float scale, float dx, float dy, int[] pad, int[] size) {
+        int fontWidth = GLYPH_ADVANCE * word.length() - 1;
+        int width = pad[0] + (int)Math.ceil(fontWidth * scale) + pad[2];
+        int height = pad[1] + (int)Math.ceil(GLYPH_HEIGHT * scale) + pad[3];
+        float originX = pad[0] + dx, originY = pad[1] + dy;
+        int[] argb = new int[width * height];
+        for (int y = 0;  y < height;  y++) {
+            for (int x = 0;  x < width;  x++) {
+                int covered = 0;
+                for (int sy = 0;  sy < SUBSAMPLES;  sy++) {
+                    for (int sx = 0;  sx < SUBSAMPLES;  sx++) {
+                        float u = (x + (sx + 0.5f) / SUBSAMPLES - originX) / scale;
+                        float v = (y + (sy + 0.5f) / SUBSAMPLES - originY) / scale;
+                        if (isInk(word, (int)Math.floor(u), (int)Math.floor(v))) {
+                            ++covered;
+                        }
+                    }
+                }
+                // Dark text on a background that gets lighter to the right
+                int gray = 60 + 150 * (SUBSAMPLES * SUBSAMPLES - covered) / (SUBSAMPLES * SUBSAMPLES)
+                    + 40 * x / width + mRandom.nextInt(3);
+                gray = Math.min(255, gray);
+                argb[y*width + x] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+        size[0] = width;
+        size[1] = height;
+        return argb;
+    }
+    
+    private static boolean isInk (String word, int u, int v) {
+        if (u < 0 || v < 0 || v >= GLYPH_HEIGHT) {
+            return false;
+        }
+        int letter = u / GLYPH_ADVANCE, column = u % GLYPH_ADVANCE;
+        if (letter >= word.length() || column >= GLYPH_WIDTH) {
+            return false;
+        }
+        int glyph = GLYPH_LETTERS.indexOf(word.charAt(letter));
+        if (glyph < 0) {
+            throw new IllegalArgumentException("No glyph for " + word.charAt(letter));
+        }
+        return GLYPHS[glyph][v].charAt(column) == '#';
+    }
+    
+    private static int[] padding (float[] resnap) {
+        return new int[] {
+            BASE_PAD + (int)resnap[3], BASE_PAD + (int)resnap[4],
+            BASE_PAD + (int)resnap[5], BASE_PAD + (int)resnap[6]
+        };
+    }
+    
+    private void check (boolean condition, String message) {
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+    
+    private RecognitionCache.Key renderKey (String word, float[] resnap) {
+        int[] size = new int[2];
+        int[] argb = render(word, BASE_SCALE * resnap[0], resnap[1], resnap[2], padding(resnap), size);
+        return new RecognitionCache.Key(argb, size[0], size[1]);
+    }
+    
+    private static int shapeMismatch (RecognitionCache.Key entry, RecognitionCache.Key key) {
+        int rows = RecognitionCache.shapeRows(entry);
+        int columns = RecognitionCache.shapeColumns(entry, rows);
+        return RecognitionCache.shapeMismatch(entry.getShape(rows, columns), key.getShape(rows, columns), 
+                                              rows, columns);
+    }
+    
+    private void run () {
+        float[] base = { 1.0f, 0, 0, 0, 0, 0, 0 };
+        RecognitionCache.Key[] baseKeys = new RecognitionCache.Key[WORDS.length];
+        RecognitionCache.Key[][] resnapKeys = new RecognitionCache.Key[WORDS.length][RESNAPS.length];
+        for (int k = 0;  k < WORDS.length;  k++) {
+            baseKeys[k] = renderKey(WORDS[k], base);
+            for (int n = 0;  n < RESNAPS.length;  n++) {
+                resnapKeys[k][n] = renderKey(WORDS[k], RESNAPS[n]);
+            }
+        }
+        
+        for (int k = 0;  k < WORDS.length;  k++) {
+            String word = WORDS[k];
+            RecognitionCache.Key baseKey = baseKeys[k];
+            // Fresh cache with only this word, so each lookup is judged on its own
+            RecognitionCache cache = new RecognitionCache();
+            cache.put(baseKey, word);
+            
+            StringBuilder line = new StringBuilder(word);
+            line.append(' ').append(baseKey.mWidth).append('x').append(baseKey.mHeight).append(": same");
+            for (RecognitionCache.Key key : resnapKeys[k]) {
+                int distance = Long.bitCount(key.getHash() ^ baseKey.getHash());
+                int mismatch = shapeMismatch(baseKey, key);
+                mMaxSameDistance = Math.max(mMaxSameDistance, distance);
+                mMaxSameMismatch = Math.max(mMaxSameMismatch, mismatch);
+                line.append(' ').append(distance).append('/').append(mismatch);
+                ++mNumResnaps;
+                if (cache.get(key) != null) {
+                    ++mNumResnapHits;
+                }
+            }
+            
+            for (float resize : RESIZES) {
+                RecognitionCache.Key key = renderKey(word, new float[] { resize, 0, 0, 0, 0, 0, 0 });
+                check(cache.get(key) == null, word + " resized to " + key.mWidth + "x" + key.mHeight + " hit");
+            }
+            
+            int minMismatch = Integer.MAX_VALUE;
+            String closest = null;
+            for (int m = 0;  m < WORDS.length;  m++) {
+                if (m == k) {
+                    continue;
+                }
+                check(cache.get(baseKeys[m]) == null, WORDS[m] + " matched " + word);
+                for (RecognitionCache.Key key : resnapKeys[m]) {
+                    check(cache.get(key) == null, "re-snap of " + WORDS[m] + " matched " + word);
+                }
+                if (!isSimilarSize(baseKey, baseKeys[m])) {
+                    continue;
+                }
+                int mismatch = shapeMismatch(baseKey, baseKeys[m]);
+                for (RecognitionCache.Key key : resnapKeys[m]) {
+                    mismatch = Math.min(mismatch, shapeMismatch(baseKey, key));
+                }
+                if (mismatch < minMismatch) {
+                    minMismatch = mismatch;
+                    closest = WORDS[m];
+                }
+            }
+            if (closest != null) {
+                line.append(" | closest ").append(closest).append(' ').append(minMismatch);
+                mMinOtherMismatch = Math.min(mMinOtherMismatch, minMismatch);
+            }
+            System.out.println(line);
+        }
+        
+        System.out.println("Maximum distance " + RecognitionCache.DEFAULT_MAX_DISTANCE + 
+                           ", mismatch " + RecognitionCache.DEFAULT_MAX_MISMATCH + 
+                           ": re-snaps up to " + mMaxSameDistance + "/" + mMaxSameMismatch + 
+                           " (" + mNumResnapHits + "/" + mNumResnaps + " hit)" + 
+                           ", other words of similar size from mismatch " + mMinOtherMismatch);
+        check(mNumResnapHits >= MIN_RESNAP_HIT_RATE * mNumResnaps, "too few re-snaps hit");
+        check(mMaxSameMismatch <= RecognitionCache.DEFAULT_MAX_MISMATCH, "re-snap shapes differ");
+        check(mMinOtherMismatch > 2 * RecognitionCache.DEFAULT_MAX_MISMATCH, 
+              "other word shapes within twice the maximum mismatch");
+        System.out.println("OK");
+    }
+    
+    // Same as the size criterion of the cache, to skip mismatches that never count
+    private static boolean isSimilarSize (RecognitionCache.Key a, RecognitionCache.Key b) {
+        return a.mWidth <= 1.2f * b.mWidth && b.mWidth <= 1.2f * a.mWidth;
+    }
+    
+    public static void main (String[] args) {
+        new RecognitionCacheCheck().run();
+    }
+}
@@ -68,7 +68,8 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
     private static final int TOUCH_BORDER = 20;  // How many pixels to ignore around edges
     private static final long AUTOFOCUS_MAX_WAIT_TIME = 2000L;  // How long to wait for touch-triggered AF to succeed
     private static final long CONTINUOUS_INTERVAL_TIME = 300L;  // How long to wait between image capture requests in continuous mode
-    private static final int AUTOFOCUS_COUNTDOWN_INIT = 5;  // How many times to do capture before issuing a new autofocus request
+    private static final float SHARPNESS_DROP_FRACTION = 0.6f;  // Refocus if sharpness drops below this fraction of best since last autofocus
+    private static final int BURST_SIZE = 3;  // How many recent frames to choose the sharpest from, in continuous mode
     
     private static final int MENU_SETTINGS_ID = Menu.FIRST;
     private static final int MENU_ABOUT_ID = Menu.FIRST + 1;
@@ -84,8 +85,23 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
     private boolean mPreviewCaptureInProgress;
     private boolean mProcessingInProgress;
 
-    private int mAutoFocusCountDown;
+    private float mReferenceSharpness;  // Best sharpness since last autofocus, or 0 if none yet
     private boolean mUserTriggeredOCR;
+    
+    // Word bitmaps of recent frames in continuous mode, and their sharpness;
+    // all frames in the burst have the same word extent
+    private final Bitmap[] mBurstBitmaps = new Bitmap[BURST_SIZE];
+    private final float[] mBurstSharpness = new float[BURST_SIZE];
+    private final Rect mBurstExtent = new Rect();
+    private int mBurstCount;
+    private int mBurstNext;
+    
+    // Id of the recognition request whose result is awaited, or 0 if none;
+    // results of any other requests are stale and ignored
+    private int mPendingRequestId;
+    // Incremented whenever a result is shown, so that camera callbacks
+    // requested before it do not continue the capture loop
+    private int mCaptureGeneration;
 
     private static final int AUTOFOCUS_UNKNOWN = 0;
     private static final int AUTOFOCUS_SUCCESS = 1;
@@ -254,9 +270,12 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
         int dilateRadius = getStringListPreference(preferences,
                 OCRPreferences.PREF_DILATE_RADIUS, OCRPreferences.PREF_DILATE_RADIUS_VALUES,
                 getString(R.string.pref_dilate_radius_default));
-        mOCRThread.setPreferences(enableDump, dilateRadius);
-        
+        int thresholdMethod = getStringListPreference(preferences,
+                OCRPreferences.PREF_THRESHOLD_METHOD, OCRPreferences.PREF_THRESHOLD_METHOD_VALUES,
+                getString(R.string.pref_threshold_method_default));
+        boolean coarseToFine = preferences.getBoolean(OCRPreferences.PREF_COARSE_TO_FINE, true);
         mContinuousMode = preferences.getBoolean(OCRPreferences.PREF_CONTINUOUS_MODE, true);
+        mOCRThread.setPreferences(enableDump, dilateRadius, thresholdMethod, coarseToFine, mContinuousMode);
 
         mEditBefore = preferences.getBoolean(OCRPreferences.PREF_EDIT_BEFORE, false);
         mAlertModes[ID_WARNING_FOCUS] = getStringListPreference(preferences, 
@@ -317,11 +336,14 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
         }
         mAutoFocusStatus = AUTOFOCUS_UNKNOWN;
         mAutoFocusInProgress = true;
+        mReferenceSharpness = 0.0f;
+        clearBurst();  // Frames before refocusing are likely blurry
+        final int generation = mCaptureGeneration;
         mCamera.autoFocus(new Camera.AutoFocusCallback() { 
             @Override
             public void onAutoFocus(boolean success, Camera camera) {
                 Message msg = mHandler.obtainMessage(R.id.msg_camera_auto_focus, 
-                        success ? AUTOFOCUS_SUCCESS : AUTOFOCUS_FAILURE, -1);
+                        success ? AUTOFOCUS_SUCCESS : AUTOFOCUS_FAILURE, generation);
                 mHandler.sendMessage(msg);
             }
         });
@@ -332,10 +354,11 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
             return;
         }
         mPreviewCaptureInProgress = true;
+        final int generation = mCaptureGeneration;
         mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(byte[] data, Camera camera) {
-                Message msg = mHandler.obtainMessage(R.id.msg_camera_preview_frame, data);
+                Message msg = mHandler.obtainMessage(R.id.msg_camera_preview_frame, generation, -1, data);
                 mHandler.sendMessage(msg);
             }
         });
@@ -347,7 +370,47 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
         mPreviewCaptureInProgress = false;
         mProcessingInProgress = false;
         mUserTriggeredOCR = false;
-        mAutoFocusCountDown = AUTOFOCUS_COUNTDOWN_INIT;
+        mReferenceSharpness = 0.0f;
+        mPendingRequestId = 0;
+        clearBurst();
+    }
+    
+    private void clearBurst () {
+        for (int i = 0;  i < BURST_SIZE;  i++) {
+            mBurstBitmaps[i] = null;
+        }
+        mBurstCount = 0;
+        mBurstNext = 0;
+    }
+    
+    /**
+     * Add frame to burst.  Frames with a different word extent show a 
+     * different crop (or another word), so the burst restarts whenever 
+     * the extent moves.
+     */
+    private void addToBurst (Bitmap textBitmap, float sharpness, Rect wordExt) {
+        if (mBurstCount > 0 && !mBurstExtent.equals(wordExt)) {
+            clearBurst();
+        }
+        mBurstExtent.set(wordExt);
+        mBurstBitmaps[mBurstNext] = textBitmap;
+        mBurstSharpness[mBurstNext] = sharpness;
+        mBurstNext = (mBurstNext + 1) % BURST_SIZE;
+        mBurstCount = Math.min(mBurstCount + 1, BURST_SIZE);
+    }
+    
+    /**
+     * @return Sharpest word bitmap among recent frames with the current 
+     *   word extent, or null if none
+     */
+    private Bitmap getSharpestBurstBitmap () {
+        int best = -1;
+        for (int i = 0;  i < mBurstCount;  i++) {
+            if (best < 0 || mBurstSharpness[i] > mBurstSharpness[best]) {
+                best = i;
+            }
+        }
+        return best < 0 ? null : mBurstBitmaps[best];
     }
     
     private void startOCRThread () {
@@ -409,7 +472,6 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
             if (event.getRepeatCount() == 0) {
                 mButtonGroup.setVisibility(View.GONE);
                 mHandler.removeMessages(R.id.msg_request_delayed_capture);
-                mAutoFocusCountDown = AUTOFOCUS_COUNTDOWN_INIT;
                 requestAutoFocus();
             }
             return true;
@@ -483,9 +545,20 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
     
     private void sendOCRRequest (final Bitmap textBitmap) {
         mStatusText.setText(R.string.status_processing_text);
-        Handler ocrHandler = mOCRThread.getHandler();
-        Message ocrMessage = ocrHandler.obtainMessage(R.id.msg_ocr_recognize, textBitmap);
-        ocrHandler.sendMessage(ocrMessage);
+        mPendingRequestId = mOCRThread.recognize(textBitmap);
+        if (mContinuousMode) {
+            // Keep detection feedback going while the request is in flight
+            mHandler.sendEmptyMessageDelayed(R.id.msg_request_delayed_capture, CONTINUOUS_INTERVAL_TIME);
+        }
+    }
+    
+    /**
+     * Stop capture loop of continuous mode once a recognition result is in.
+     */
+    private void finishRecognition () {
+        mPendingRequestId = 0;
+        ++mCaptureGeneration;
+        mHandler.removeMessages(R.id.msg_request_delayed_capture);
     }
     
     private void setWarning (int warningId, boolean active) {
@@ -551,6 +624,9 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
             case R.id.msg_camera_auto_focus:
                 mAutoFocusStatus = msg.arg1;
                 mAutoFocusInProgress = false;
+                if (msg.arg2 != mCaptureGeneration) {
+                    break;  // Requested before last recognition result
+                }
                 clearAllWarnings(); // FIXME - sort out the warning state logic!!!
                 // We could do this without a separate message, but sending one anyway for consistency...
                 boolean focusWarningActive = 
@@ -563,10 +639,12 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
                 }
                 break;
             case R.id.msg_camera_preview_frame:
+                if (msg.arg1 != mCaptureGeneration) {
+                    mPreviewCaptureInProgress = false;
+                    break;  // Requested before last recognition result
+                }
                 mProcessingInProgress = true;
-                Handler ocrHandler = mOCRThread.getHandler();
-                Message preprocessMsg = ocrHandler.obtainMessage(R.id.msg_ocr_detect_word, mPreviewWidth, mPreviewHeight, msg.obj);
-                ocrHandler.sendMessage(preprocessMsg);
+                mOCRThread.postFrame((byte[])msg.obj, mPreviewWidth, mPreviewHeight);
                 mButtonGroup.setVisibility(View.GONE);
                 mResultText.setVisibility(View.INVISIBLE);
                 //mStatusText.setText(R.string.status_preprocessing_text);
@@ -578,15 +656,28 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
                 break;
             case R.id.msg_ui_word_bitmap:
                 mPreviewCaptureInProgress = false;
-                final Bitmap textBitmap = (Bitmap)msg.obj;
+                final Bitmap frameBitmap = (Bitmap)msg.obj;
                 
                 final Bundle bundle = msg.getData();
                 final Rect wordExt = bundle.getParcelable(OCRThread.WORD_RECT);
+                final float sharpness = bundle.getFloat(OCRThread.WORD_SHARPNESS);
                 mGuideView.setExtentRect(getWarning(ID_WARNING_EXTENT) ? null : wordExt);
                 
+                if (continuousMode) {
+                    if (bundle.getBoolean(OCRThread.WORD_SCENE_CHANGED)) {
+                        clearBurst();  // Camera moved; earlier frames may show something else
+                    }
+                    addToBurst(frameBitmap, sharpness, wordExt);
+                }
                 if (continuousMode && !mUserTriggeredOCR) {
-                    if (--mAutoFocusCountDown < 0 || mAutoFocusStatus != AUTOFOCUS_SUCCESS) {
-                        mAutoFocusCountDown = AUTOFOCUS_COUNTDOWN_INIT;
+                    if (mPendingRequestId == 0 && mResultText.getVisibility() == View.VISIBLE) {
+                        break;  // Frame was in flight when recognition result came in
+                    }
+                    // Refocus only if image got blurrier than it was right after focusing
+                    boolean sharpnessDropped = sharpness < SHARPNESS_DROP_FRACTION * mReferenceSharpness;
+                    mReferenceSharpness = Math.max(mReferenceSharpness, sharpness);
+                    if (sharpnessDropped || mAutoFocusStatus != AUTOFOCUS_SUCCESS) {
+                        Log.d(TAG, "Sharpness " + sharpness + " (best " + mReferenceSharpness + "); refocusing");
                         requestAutoFocus();
                     } else {
                         mHandler.sendEmptyMessageDelayed(R.id.msg_request_delayed_capture, CONTINUOUS_INTERVAL_TIME);
@@ -595,6 +686,10 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
                 }
                 mUserTriggeredOCR = false;  // for the next time around
                 
+                // In continuous mode, send sharpest of the last few frames
+                final Bitmap textBitmap = continuousMode ? getSharpestBurstBitmap() : frameBitmap;
+                clearBurst();
+                
                 int networkAlertLevel = mNetworkAlertLevel;
                 int[] alertModes = mAlertModes;
                 //Log.d(TAG, "network alert level = " + networkAlertLevel);
@@ -632,6 +727,11 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
                 }
                 break;
             case R.id.msg_ui_ocr_success:
+                if (msg.arg1 != mPendingRequestId) {
+                    Log.d(TAG, "Ignoring stale OCR result of request " + msg.arg1);
+                    break;
+                }
+                finishRecognition();
                 final String ocrText = (String)msg.obj;
                 Log.i(TAG, "OCR result text: " + ocrText);
                 // Toast fails from this thread
@@ -647,6 +747,11 @@ public class WordCaptureActivity extends Activity implements SurfaceHolder.Callb
                 mHandler.sendEmptyMessageDelayed(R.id.msg_ui_reset_status, 2000L);
                 break;
             case R.id.msg_ui_ocr_fail:
+                if (msg.arg1 != mPendingRequestId) {
+                    Log.d(TAG, "Ignoring stale OCR failure of request " + msg.arg1);
+                    break;
+                }
+                finishRecognition();
                 mStatusText.setText(R.string.status_processing_error_text);
                 mGuideView.setExtentRect(null);
                 mProcessingInProgress = false;
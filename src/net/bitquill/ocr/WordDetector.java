@@ -0,0 +1,839 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr;
+
+import net.bitquill.ocr.image.BinaryImage;
+import net.bitquill.ocr.image.ComponentLabeler;
+import net.bitquill.ocr.image.FusedBinarizer;
+import net.bitquill.ocr.image.GrayImage;
+import net.bitquill.ocr.image.ImageBufferPool;
+import net.bitquill.ocr.image.ImagePyramid;
+import net.bitquill.ocr.image.ImageStats;
+import net.bitquill.ocr.image.IntegralImage;
+import net.bitquill.ocr.image.RunLengthStats;
+import net.bitquill.ocr.image.SimpleStructuringElement;
+import android.graphics.Rect;
+
+/**
+ * Word extent detection on grayscale camera frames.
+ * 
+ * This class holds the detection pipeline proper, independent of any
+ * threading or messaging.  Apart from the {@link Rect} convenience 
+ * overloads, it depends only on the image package, so it can also be 
+ * driven from a plain JVM.
+ * 
+ * Instances are not thread-safe; each keeps its own image buffers.
+ */
+public class WordDetector {
+    
+    private int mDilateRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM;
+    private int mHRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM + 1;
+    private int mVRadius = OCRPreferences.PREF_DILATE_RADIUS_MEDIUM + 1;
+    private boolean mUseFusedPipeline = GrayImage.isNativeBackend();
+    private boolean mUseComponentLabeling = true;
+    private int mThresholdMethod = THRESHOLD_MEAN;
+    private boolean mCoarseToFine = false;
+    private int mMeanFilterRadius = MEAN_FILTER_RADIUS;
+    
+    // Values should correspond to OCRPreferences.PREF_THRESHOLD_METHOD_* indices
+    /** Threshold against local mean, with a global offset */
+    public static final int THRESHOLD_MEAN = 0;
+    /** Niblack threshold, from local mean and standard deviation */
+    public static final int THRESHOLD_NIBLACK = 1;
+    /** Sauvola threshold, from local mean and standard deviation */
+    public static final int THRESHOLD_SAUVOLA = 2;
+    
+    private static final int MEAN_FILTER_RADIUS = 10;
+    private static final double THRESHOLD_OFFSET_FACTOR = 0.33;  // 0.33 pulled out of my butt
+    private static final float NIBLACK_K = -0.2f;
+    private static final float SAUVOLA_K = 0.34f;
+    private static final float SAUVOLA_R = 128.0f;
+    
+    // Coarse-to-fine detection uses the highest pyramid level that is at 
+    // least this large, and at most this many levels up
+    private static final int MIN_COARSE_WIDTH = 160;
+    private static final int MIN_COARSE_HEIGHT = 120;
+    private static final int MAX_COARSE_LEVELS = 3;
+    
+    // Detections that warrant a user warning
+    private static final float EXTENT_WARNING_WIDTH_FRACTION = 0.5f;
+    private static final float EXTENT_WARNING_HEIGHT_FRACTION = 0.1875f;
+    private static final int CONTRAST_WARNING_RANGE = 90; // XXX check value
+    
+    /** Dilate radius setting that estimates per-axis radii on every frame */
+    public static final int DILATE_RADIUS_AUTO = OCRPreferences.PREF_DILATE_RADIUS_AUTO;
+    // Automatic selection stays within the radii of the small and large 
+    // settings, so that it never costs more than the large setting
+    public static final int MIN_DILATE_RADIUS = OCRPreferences.PREF_DILATE_RADIUS_SMALL + 1;
+    public static final int MAX_DILATE_RADIUS = OCRPreferences.PREF_DILATE_RADIUS_LARGE + 1;
+    
+    // Automatic dilate radius: run lengths are measured in a window of
+    // this size around the target, and radii follow the estimated 
+    // character height and inter-letter gap.  The horizontal radius must 
+    // not close inter-word spaces, which are about half a character high.
+    private static final float ESTIMATE_WIDTH_FRACTION = 0.25f;
+    private static final float ESTIMATE_HEIGHT_FRACTION = 0.25f;
+    private static final int MIN_ESTIMATE_RUNS = 8;
+    private static final float CHAR_HEIGHT_PERCENTILE = 0.75f;
+    private static final int CHAR_HEIGHT_PER_V_RADIUS = 6;
+    private static final int CHAR_HEIGHT_PER_MAX_H_RADIUS = 4;
+    
+    // Image buffers used during word detection; leased from the default
+    // pool on first use, and again only if the frame size changes
+    private GrayImage mBinImg = null;
+    private GrayImage mResultImg = null;
+    private GrayImage mTmpImg = null;
+    private IntegralImage mIntegralImg = null;
+    private BinaryImage mBinBits = null;
+    private BinaryImage mTmpBits = null;
+    private final FusedBinarizer mFusedBinarizer = new FusedBinarizer();
+    private final ImageStats mImageStats = new ImageStats();
+    private final ImageStats mStretchedStats = new ImageStats();
+    private final byte[] mStretchLut = new byte[256];
+    private float mStretchClipFraction = 0.0f;
+    private final RunLengthStats mRunLengthStats = new RunLengthStats();
+    
+    // Coarse-to-fine detection only; created on first use
+    private ImagePyramid mPyramid = null;
+    private WordDetector mCoarseDetector = null;
+    
+    // Cap on foreground runs, beyond which we fall back to growing the extent
+    private static final int MAX_COMPONENT_RUNS = 1 << 15;
+    private final ComponentLabeler mLabeler = new ComponentLabeler(MAX_COMPONENT_RUNS);
+    
+    // Results of last detection
+    private int mImageMin, mImageMax;
+    private float mStretchedMean;
+    private int mLeft, mTop, mRight, mBottom;
+    private int mNumMergedComponents;
+    private int mCoarseLevel;
+    private int mFrameWidth, mFrameHeight;
+    private long mCoarseNanos, mBinarizeNanos, mExtentNanos;
+    
+    private PipelineMetrics mMetrics = PipelineMetrics.getDefault();
+    
+    // Unfused pipeline only; indexed by radius
+    private static final SimpleStructuringElement[] sHStrel = new SimpleStructuringElement[MAX_DILATE_RADIUS + 1];
+    private static final SimpleStructuringElement[] sVStrel = new SimpleStructuringElement[MAX_DILATE_RADIUS + 1];
+    static {
+        for (int r = 1;  r <= MAX_DILATE_RADIUS;  r++) {
+            sHStrel[r] = SimpleStructuringElement.makeHorizontal(r);
+            sVStrel[r] = SimpleStructuringElement.makeVertical(r);
+        }
+    }
+    
+    /**
+     * Set dilate radius; one of the OCRPreferences.PREF_DILATE_RADIUS_* 
+     * values, i.e., radius minus one, or {@link #DILATE_RADIUS_AUTO}.
+     */
+    public final void setDilateRadius (int dilateRadius) {
+        if (dilateRadius < 0 || dilateRadius > DILATE_RADIUS_AUTO) {
+            throw new IllegalArgumentException("Unknown dilate radius " + dilateRadius);
+        }
+        mDilateRadius = dilateRadius;
+        if (dilateRadius != DILATE_RADIUS_AUTO) {
+            mHRadius = mVRadius = dilateRadius + 1;
+        }
+    }
+    
+    public final int getDilateRadius () {
+        return mDilateRadius;
+    }
+    
+    /** Horizontal dilate radius used in last detection */
+    public final int getHorizontalRadius () {
+        return mHRadius;
+    }
+    
+    /** Vertical dilate radius used in last detection */
+    public final int getVerticalRadius () {
+        return mVRadius;
+    }
+    
+    /**
+     * Choose local thresholding method; one of {@link #THRESHOLD_MEAN} 
+     * (default), {@link #THRESHOLD_NIBLACK} or {@link #THRESHOLD_SAUVOLA}.
+     * The latter two cope better with uneven lighting, but always run 
+     * the unfused pipeline.
+     */
+    public final void setThresholdMethod (int method) {
+        if (method < THRESHOLD_MEAN || method > THRESHOLD_SAUVOLA) {
+            throw new IllegalArgumentException("Unknown threshold method " + method);
+        }
+        mThresholdMethod = method;
+    }
+    
+    public final int getThresholdMethod () {
+        return mThresholdMethod;
+    }
+    
+    /**
+     * Choose between the fused, single-pass binarization pipeline and the
+     * original sequence of full-frame operations.  Both give identical 
+     * results.  The fused pipeline is the default with native kernels; 
+     * with the pure-Java kernels the separate operations are faster, so 
+     * they are the default there.
+     */
+    public final void setUseFusedPipeline (boolean useFused) {
+        mUseFusedPipeline = useFused;
+    }
+    
+    public final boolean getUseFusedPipeline () {
+        return mUseFusedPipeline;
+    }
+    
+    /**
+     * Set fraction of pixels clipped at each end of the histogram by the 
+     * contrast stretch.  Zero (default) stretches between min and max; 
+     * a small positive value (e.g., 0.01) keeps a few specular highlights 
+     * or dark specks from defeating the stretch.
+     */
+    public final void setStretchClipFraction (float clipFraction) {
+        if (clipFraction < 0.0f || clipFraction >= 0.5f) {
+            throw new IllegalArgumentException("Clip fraction must be in [0, 0.5)");
+        }
+        mStretchClipFraction = clipFraction;
+    }
+    
+    public final float getStretchClipFraction () {
+        return mStretchClipFraction;
+    }
+    
+    /**
+     * Enable or disable coarse-to-fine detection (disabled by default).
+     * If enabled, the word is first located on a downsampled copy of the
+     * frame (see {@link ImagePyramid}), and only the region around it is 
+     * then binarized at full resolution.  If the refined extent reaches the
+     * edge of that region (less the local threshold window), the word may 
+     * continue outside it, and the whole frame is processed instead.  
+     * Frames too small to downsample are processed at full resolution 
+     * anyway.
+     * 
+     * Applies to the fused pipeline only (see 
+     * {@link #setUseFusedPipeline(boolean)}).  Global statistics (such as 
+     * the contrast range) still come from a histogram pass over the whole 
+     * frame, so the refined extent is the same as that of full-resolution 
+     * detection.  The result images are only valid within the region.
+     */
+    public final void setCoarseToFine (boolean coarseToFine) {
+        mCoarseToFine = coarseToFine;
+    }
+    
+    public final boolean getCoarseToFine () {
+        return mCoarseToFine;
+    }
+    
+    /**
+     * Choose between connected component labeling (default) and incrementally 
+     * growing the target rectangle, to find the word extent.  Labeling 
+     * falls back to the latter on very noisy frames anyway.  Labeling also
+     * merges components that touch the rectangle only at a corner, so its
+     * extent contains, and occasionally exceeds, the grown one (see 
+     * {@link DetectorCrossCheck}).
+     */
+    public final void setUseComponentLabeling (boolean useLabeling) {
+        mUseComponentLabeling = useLabeling;
+    }
+    
+    public final boolean getUseComponentLabeling () {
+        return mUseComponentLabeling;
+    }
+    
+    /**
+     * @return Binarized (thresholded) version of last frame, before dilation
+     */
+    public final GrayImage getResultImage () {
+        return mResultImg;
+    }
+    
+    /**
+     * @return Dilated binary image of last frame, used for extent search
+     */
+    public final GrayImage getBinaryImage () {
+        return mBinImg;
+    }
+    
+    public final int getImageMin () {
+        return mImageMin;
+    }
+    
+    public final int getImageMax () {
+        return mImageMax;
+    }
+    
+    public final int getContrastRange () {
+        return mImageMax - mImageMin;
+    }
+    
+    public final float getStretchedMean () {
+        return mStretchedMean;
+    }
+    
+    public final int getLeft () {
+        return mLeft;
+    }
+    
+    public final int getTop () {
+        return mTop;
+    }
+    
+    public final int getRight () {
+        return mRight;
+    }
+    
+    public final int getBottom () {
+        return mBottom;
+    }
+    
+    /**
+     * @return Number of components merged into the word extent by the last
+     *   detection, or -1 if the extent was found by incremental growing
+     */
+    public final int getNumMergedComponents () {
+        return mNumMergedComponents;
+    }
+    
+    /**
+     * @return Pyramid level on which the last detection located the word,
+     *   or 0 if it ran on the whole frame at full resolution (including 
+     *   when coarse-to-fine detection fell back to it)
+     */
+    public final int getCoarseLevel () {
+        return mCoarseLevel;
+    }
+    
+    /**
+     * @return true if the contrast range of the last frame is too low for
+     *   reliable binarization
+     */
+    public final boolean isLowContrast () {
+        return getContrastRange() <= CONTRAST_WARNING_RANGE;
+    }
+    
+    /**
+     * @return true if the last word extent is too large, relative to the 
+     *   frame, to be a single word (e.g., target is not on text)
+     */
+    public final boolean isExtentTooLarge () {
+        return (mRight - mLeft) >= mFrameWidth * EXTENT_WARNING_WIDTH_FRACTION 
+            || (mBottom - mTop) >= mFrameHeight * EXTENT_WARNING_HEIGHT_FRACTION;
+    }
+    
+    /**
+     * @return Time spent by the last detection on the coarse pyramid level 
+     *   (including pyramid construction), in nanoseconds; zero if none
+     */
+    public final long getCoarseNanos () {
+        return mCoarseNanos;
+    }
+    
+    /**
+     * @return Time spent by the last detection on full-resolution 
+     *   statistics and binarization, in nanoseconds
+     */
+    public final long getBinarizeNanos () {
+        return mBinarizeNanos;
+    }
+    
+    /**
+     * @return Time spent by the last detection on finding the extent in 
+     *   the binary image, in nanoseconds
+     */
+    public final long getExtentNanos () {
+        return mExtentNanos;
+    }
+    
+    /**
+     * Registry for per-stage latencies; {@link PipelineMetrics#getDefault()}
+     * by default, or null to disable recording.
+     */
+    public final void setMetrics (PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+    
+    public final PipelineMetrics getMetrics () {
+        return mMetrics;
+    }
+    
+    /**
+     * Record stage latency, if enabled.
+     * @return Current value of {@link System#nanoTime()}
+     */
+    private long lap (int stage, long startTime) {
+        long now = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.record(stage, now - startTime);
+        }
+        return now;
+    }
+    
+    private static final float TARGET_HEIGHT_FRACTION = 0.033f;
+    private static final float TARGET_WIDTH_FRACTION = 0.021f;
+    
+    private static int targetHalfWidth (int imageWidth) {
+        return (int)(TARGET_WIDTH_FRACTION * imageWidth / 2.0f);
+    }
+    
+    private static int targetHalfHeight (int imageHeight) {
+        return (int)(TARGET_HEIGHT_FRACTION * imageHeight / 2.0f);
+    }
+    
+    public static Rect makeTargetRect (int imageWidth, int imageHeight) {
+        int halfWidth = targetHalfWidth(imageWidth);
+        int halfHeight = targetHalfHeight(imageHeight);
+        int centerX = imageHeight / 2;
+        int centerY = imageWidth / 2;
+        return new Rect(centerY - halfWidth, centerX - halfHeight, 
+                    centerY + halfWidth, centerX + halfHeight);
+    }
+    
+    /**
+     * @return true if the fused pipeline applies to current settings
+     */
+    private boolean isFused () {
+        return mUseFusedPipeline && mThresholdMethod == THRESHOLD_MEAN;
+    }
+    
+    private void initImageBuffers (int width, int height) {
+        GrayImage resultImg = mResultImg;
+        if (resultImg != null && 
+                (resultImg.getWidth() != width || resultImg.getHeight() != height)) {
+            // Frame size changed (e.g., new preview size); old size is stale
+            releaseImageBuffers();
+            ImageBufferPool.getDefault().evictImages(resultImg.getWidth(), resultImg.getHeight());
+        }
+        ImageBufferPool pool = ImageBufferPool.getDefault();
+        if (mResultImg == null) {
+            mBinImg = pool.leaseImage(width, height);
+            mResultImg = pool.leaseImage(width, height);
+        }
+        if (!isFused() && mTmpImg == null) {
+            // Only needed by the unfused pipeline
+            mTmpImg = pool.leaseImage(width, height);
+            mBinBits = new BinaryImage(width, height);
+            mTmpBits = new BinaryImage(width, height);
+        }
+    }
+    
+    /**
+     * Return image buffers to the default pool.  The detector may still be 
+     * used afterwards, but images from previous detections are invalid.
+     */
+    public final void releaseImageBuffers () {
+        ImageBufferPool pool = ImageBufferPool.getDefault();
+        if (mResultImg != null) {
+            pool.release(mBinImg);
+            pool.release(mResultImg);
+            mBinImg = null;
+            mResultImg = null;
+        }
+        if (mTmpImg != null) {
+            pool.release(mTmpImg);
+            mTmpImg = null;
+            mIntegralImg = null;
+            mBinBits = null;
+            mTmpBits = null;
+        }
+        if (mPyramid != null) {
+            mPyramid.release();
+            mCoarseDetector.releaseImageBuffers();
+        }
+    }
+    
+    /**
+     * Decide polarity of thresholded image.
+     * @return true if text is most likely dark on light background
+     */
+    private static boolean isDarkOnLight (float stretchedMean) {
+        return stretchedMean > 127;  // XXX Arbitrary threshold
+    }
+    
+    /**
+     * Choose per-axis dilate radii from run-length statistics of a window 
+     * around the target.  The vertical radius follows the character height, 
+     * and the horizontal radius is just enough to close the typical 
+     * inter-letter gap, both within the range of the fixed settings.  If 
+     * the window holds too few runs (e.g., no text yet), the radii of the 
+     * previous frame are kept.
+     * @param img  Frame, or region view of it; center is relative to it
+     */
+    private void estimateDilateRadii (GrayImage img, int centerX, int centerY, boolean darkOnLight) {
+        int halfWidth = Math.max(1, (int)(ESTIMATE_WIDTH_FRACTION * mFrameWidth / 2.0f));
+        int halfHeight = Math.max(1, (int)(ESTIMATE_HEIGHT_FRACTION * mFrameHeight / 2.0f));
+        RunLengthStats runs = mRunLengthStats.compute(img, 
+                Math.max(0, centerX - halfWidth), Math.max(0, centerY - halfHeight),
+                Math.min(img.getWidth(), centerX + halfWidth), Math.min(img.getHeight(), centerY + halfHeight),
+                darkOnLight);
+        if (runs.getNumRuns() < MIN_ESTIMATE_RUNS) {
+            return;
+        }
+        int charHeight = runs.runPercentile(CHAR_HEIGHT_PERCENTILE);
+        mVRadius = clampRadius(Math.round((float)charHeight / CHAR_HEIGHT_PER_V_RADIUS), MAX_DILATE_RADIUS);
+        if (runs.getNumGaps() >= MIN_ESTIMATE_RUNS) {
+            int gap = runs.gapPercentile(0.5f);
+            mHRadius = clampRadius((gap + 1) / 2, charHeight / CHAR_HEIGHT_PER_MAX_H_RADIUS);
+        }
+    }
+    
+    private static int clampRadius (int radius, int maxRadius) {
+        return Math.max(MIN_DILATE_RADIUS, Math.min(Math.min(maxRadius, MAX_DILATE_RADIUS), radius));
+    }
+    
+    /**
+     * Contrast stretch, adaptive threshold and dilation, one full-frame 
+     * operation at a time.
+     */
+    private void binarize (GrayImage img, int centerX, int centerY) {
+        GrayImage resultImg = mResultImg;
+        GrayImage tmpImg = mTmpImg;
+        GrayImage binImg = mBinImg;
+        
+        // Contrast stretch; range from a single statistics pass, and 
+        // statistics of the stretched image from its histogram
+        long time = System.nanoTime();
+        float clipFraction = mStretchClipFraction;
+        ImageStats stats = mImageStats.compute(img, true);
+        mImageMin = stats.getMin();
+        mImageMax = stats.getMax();
+        byte[] lut = stats.percentileStretchLut(clipFraction, mStretchLut);
+        // Temporarily store stretched image in resultImg
+        if (clipFraction > 0.0f) {
+            img.applyLut(lut, resultImg);
+        } else {
+            stats.contrastStretch(img, resultImg);
+        }
+        ImageStats stretchedStats = stats.mapped(lut, mStretchedStats);
+        time = lap(PipelineMetrics.STAGE_CONTRAST_STRETCH, time);
+
+        // Adaptive threshold
+        float imgMean = stretchedStats.getMean();
+        mStretchedMean = imgMean;
+        boolean darkOnLight = isDarkOnLight(imgMean);
+        IntegralImage integralImg = null;
+        if (mThresholdMethod == THRESHOLD_NIBLACK || mThresholdMethod == THRESHOLD_SAUVOLA) {
+            // Local variances need the integral image; built only for these
+            if (mIntegralImg == null) {
+                mIntegralImg = new IntegralImage(resultImg.getWidth(), resultImg.getHeight());
+            }
+            integralImg = mIntegralImg;
+            resultImg.integral(integralImg);
+        }
+        switch (mThresholdMethod) {
+        case THRESHOLD_NIBLACK:
+            integralImg.niblackThreshold(resultImg, mMeanFilterRadius, NIBLACK_K, !darkOnLight, resultImg);
+            break;
+        case THRESHOLD_SAUVOLA:
+            integralImg.sauvolaThreshold(resultImg, mMeanFilterRadius, SAUVOLA_K, SAUVOLA_R, !darkOnLight, resultImg);
+            break;
+        default:
+            byte hi, lo;
+            if (darkOnLight) {
+                hi = (byte)255; 
+                lo = (byte)0;
+            } else {
+                // Most likely light text on dark background
+                hi = (byte)0;
+                lo = (byte)255;
+            }
+            resultImg.meanFilter(mMeanFilterRadius, tmpImg);  // Temporarily store local means here
+            time = lap(PipelineMetrics.STAGE_MEAN_FILTER, time);
+            int threshOffset = (int)(THRESHOLD_OFFSET_FACTOR * Math.sqrt(stretchedStats.getVariance()));
+            resultImg.adaptiveThreshold(hi, lo, threshOffset, tmpImg, resultImg);
+        }
+        // Niblack and Sauvola compute their local statistics as they threshold
+        time = lap(PipelineMetrics.STAGE_THRESHOLD, time);
+        if (mDilateRadius == DILATE_RADIUS_AUTO) {
+            estimateDilateRadii(img, centerX, centerY, darkOnLight);
+            time = lap(PipelineMetrics.STAGE_DILATE_ESTIMATE, time);
+        }
+
+        // Dilate; text pixels are zero, so we should use erosion instead.
+        // Thresholded image is binary, so do it on packed bits.
+        BinaryImage binBits = mBinBits, tmpBits = mTmpBits;
+        binBits.fromGray(resultImg);
+        binBits.erode(sHStrel[mHRadius], tmpBits);
+        tmpBits.erode(sVStrel[mVRadius], binBits);
+        binBits.toGray(binImg);
+        lap(PipelineMetrics.STAGE_EROSION, time);
+    }
+    
+    /**
+     * Same as {@link #binarize(GrayImage)}, but all steps after the initial 
+     * statistics are fused into a single streaming pass.  Image and 
+     * destinations may be views of same-size regions of the frame; global
+     * statistics and dilate radii are still those of the whole frame, so 
+     * that the region is binarized just as it would be within the frame.
+     * @param frame  Whole frame; center is relative to it
+     */
+    private void binarizeFused (GrayImage img, GrayImage resultImg, GrayImage binImg, 
+            GrayImage frame, int centerX, int centerY) {
+        FusedBinarizer fused = mFusedBinarizer;
+        long time = System.nanoTime();
+        fused.computeStatistics(frame, mStretchClipFraction);
+        time = lap(PipelineMetrics.STAGE_CONTRAST_STRETCH, time);
+        mImageMin = fused.getMin();
+        mImageMax = fused.getMax();
+        
+        float imgMean = fused.getStretchedMean();
+        mStretchedMean = imgMean;
+        boolean darkOnLight = isDarkOnLight(imgMean);
+        byte hi, lo;
+        if (darkOnLight) {
+            hi = (byte)255; 
+            lo = (byte)0;
+        } else {
+            hi = (byte)0;
+            lo = (byte)255;
+        }
+        int threshOffset = (int)(THRESHOLD_OFFSET_FACTOR * Math.sqrt(fused.getStretchedVariance()));
+        if (mDilateRadius == DILATE_RADIUS_AUTO) {
+            estimateDilateRadii(frame, centerX, centerY, darkOnLight);
+            time = lap(PipelineMetrics.STAGE_DILATE_ESTIMATE, time);
+        }
+        
+        fused.run(img, mMeanFilterRadius, hi, lo, threshOffset, mHRadius, mVRadius, resultImg, binImg);
+        lap(PipelineMetrics.STAGE_FUSED_BINARIZE, time);
+    }
+    
+    /**
+     * Find word extent, starting from given target rectangle.
+     * @param img  Grayscale camera frame
+     * @param ext  Initial target rectangle; updated with word extent
+     */
+    public final void findWordExtent (GrayImage img, Rect ext) {
+        findWordExtent(img, ext.left, ext.top, ext.right, ext.bottom);
+        ext.set(mLeft, mTop, mRight, mBottom);
+    }
+    
+    /**
+     * Find word extent, starting from the target rectangle of 
+     * {@link #makeTargetRect(int, int)}, without needing a {@link Rect}.
+     * Result is available via {@link #getLeft()} etc.
+     */
+    public final void findWordExtent (GrayImage img) {
+        int width = img.getWidth(), height = img.getHeight();
+        int halfWidth = targetHalfWidth(width), halfHeight = targetHalfHeight(height);
+        findWordExtent(img, width / 2 - halfWidth, height / 2 - halfHeight, 
+                width / 2 + halfWidth, height / 2 + halfHeight);
+    }
+    
+    /**
+     * Find word extent, starting from given target rectangle.  
+     * Result is available via {@link #getLeft()} etc.
+     */
+    public final void findWordExtent (GrayImage img, int left, int top, int right, int bottom) {
+        mFrameWidth = img.getWidth();
+        mFrameHeight = img.getHeight();
+        initImageBuffers(img.getWidth(), img.getHeight());
+        
+        int level = 0;
+        if (mCoarseToFine && isFused()) {
+            level = Math.min(MAX_COARSE_LEVELS, 
+                    ImagePyramid.numLevels(img.getWidth(), img.getHeight(), MIN_COARSE_WIDTH, MIN_COARSE_HEIGHT));
+        }
+        mCoarseLevel = level;
+        mCoarseNanos = 0;
+        if (level > 0) {
+            findWordExtentCoarseToFine(img, level, left, top, right, bottom);
+        } else {
+            detect(img, mResultImg, mBinImg, img, 0, 0, left, top, right, bottom);
+        }
+    }
+    
+    /**
+     * Locate word on a pyramid level, then detect it again at full 
+     * resolution, but only within the corresponding region plus a margin 
+     * that covers the local threshold window and dilation.
+     */
+    private void findWordExtentCoarseToFine (GrayImage img, int level, 
+            int left, int top, int right, int bottom) {
+        long startTime = System.nanoTime();
+        if (mPyramid == null) {
+            mPyramid = new ImagePyramid(MAX_COARSE_LEVELS);
+            mCoarseDetector = new WordDetector();
+            mCoarseDetector.mMetrics = null;  // Part of this detector's coarse stage
+        }
+        GrayImage coarseImg = mPyramid.build(img, level).getLevel(level);
+        
+        // Same settings, with neighborhoods scaled down to the coarse level
+        WordDetector coarse = mCoarseDetector;
+        coarse.mThresholdMethod = mThresholdMethod;
+        coarse.mUseFusedPipeline = mUseFusedPipeline;
+        coarse.mUseComponentLabeling = mUseComponentLabeling;
+        coarse.mStretchClipFraction = mStretchClipFraction;
+        coarse.mMeanFilterRadius = Math.max(1, mMeanFilterRadius >> level);
+        if (mDilateRadius == DILATE_RADIUS_AUTO) {
+            // Estimated again at the coarse level; character size scales along
+            coarse.mDilateRadius = DILATE_RADIUS_AUTO;
+        } else {
+            coarse.mDilateRadius = Math.max(0, ((mDilateRadius + 1) >> level) - 1);
+            coarse.mHRadius = coarse.mVRadius = coarse.mDilateRadius + 1;
+        }
+        int coarseLeft = left >> level, coarseTop = top >> level;
+        coarse.findWordExtent(coarseImg, coarseLeft, coarseTop, 
+                Math.max(coarseLeft + 1, right >> level), Math.max(coarseTop + 1, bottom >> level));
+        
+        int imgWidth = img.getWidth(), imgHeight = img.getHeight();
+        int margin = mMeanFilterRadius + (2 << level);
+        int regionLeft = Math.max(0, Math.min(left, coarse.mLeft << level) - margin);
+        int regionTop = Math.max(0, Math.min(top, coarse.mTop << level) - margin);
+        int regionRight = Math.min(imgWidth, Math.max(right, (coarse.mRight + 1) << level) + margin);
+        int regionBottom = Math.min(imgHeight, Math.max(bottom, (coarse.mBottom + 1) << level) + margin);
+        mCoarseNanos = lap(PipelineMetrics.STAGE_COARSE, startTime) - startTime;
+        detectInRegion(img, left, top, right, bottom, regionLeft, regionTop, regionRight, regionBottom);
+        if (!isInsideRegion(regionLeft, regionTop, regionRight, regionBottom, imgWidth, imgHeight)) {
+            // Word extends beyond what the coarse level found; detect on whole frame
+            mCoarseLevel = 0;
+            detect(img, mResultImg, mBinImg, img, 0, 0, left, top, right, bottom);
+        }
+    }
+    
+    /**
+     * Find word extent, like {@link #findWordExtent(GrayImage, int, int, int, int)},
+     * but binarize only the given region of the frame; e.g., around the 
+     * extent found in a previous, nearly identical frame.  The region is 
+     * clipped to the frame and must contain the target rectangle.  
+     * 
+     * Applies to the fused pipeline only; otherwise the whole frame is 
+     * processed.  As with coarse-to-fine detection, global statistics are 
+     * those of the whole frame, and the result images are only valid 
+     * within the region.
+     * 
+     * @return true if the extent lies inside the region, by at least the 
+     *   local threshold window; otherwise the word may extend beyond the
+     *   region, and the caller should fall back to the whole frame
+     */
+    public final boolean findWordExtentInRegion (GrayImage img, int left, int top, int right, int bottom,
+            int regionLeft, int regionTop, int regionRight, int regionBottom) {
+        if (!isFused()) {
+            findWordExtent(img, left, top, right, bottom);
+            return true;
+        }
+        int imgWidth = img.getWidth(), imgHeight = img.getHeight();
+        regionLeft = Math.max(0, regionLeft);
+        regionTop = Math.max(0, regionTop);
+        regionRight = Math.min(imgWidth, regionRight);
+        regionBottom = Math.min(imgHeight, regionBottom);
+        if (left < regionLeft || top < regionTop || right > regionRight || bottom > regionBottom) {
+            throw new IllegalArgumentException("Region must contain target rectangle");
+        }
+        mFrameWidth = imgWidth;
+        mFrameHeight = imgHeight;
+        initImageBuffers(imgWidth, imgHeight);
+        mCoarseLevel = 0;
+        mCoarseNanos = 0;
+        detectInRegion(img, left, top, right, bottom, regionLeft, regionTop, regionRight, regionBottom);
+        return isInsideRegion(regionLeft, regionTop, regionRight, regionBottom, imgWidth, imgHeight);
+    }
+    
+    /**
+     * @return true if the last extent lies inside the region by at least 
+     *   the local threshold window plus the erosion, on every side not on 
+     *   the frame edge; pixels closer to the region edge may differ from 
+     *   those of the whole frame
+     */
+    private boolean isInsideRegion (int regionLeft, int regionTop, int regionRight, int regionBottom,
+            int imgWidth, int imgHeight) {
+        int hMargin = mMeanFilterRadius + mHRadius;
+        int vMargin = mMeanFilterRadius + mVRadius;
+        return (regionLeft == 0 || mLeft - hMargin >= regionLeft)
+            && (regionTop == 0 || mTop - vMargin >= regionTop)
+            && (regionRight == imgWidth || mRight + hMargin < regionRight)
+            && (regionBottom == imgHeight || mBottom + vMargin < regionBottom);
+    }
+    
+    /**
+     * Fused detection on views of a region, with the target and the 
+     * resulting extent in frame coordinates.
+     */
+    private void detectInRegion (GrayImage img, int left, int top, int right, int bottom,
+            int regionLeft, int regionTop, int regionRight, int regionBottom) {
+        detect(img.view(regionLeft, regionTop, regionRight, regionBottom), 
+                mResultImg.view(regionLeft, regionTop, regionRight, regionBottom),
+                mBinImg.view(regionLeft, regionTop, regionRight, regionBottom),
+                img, regionLeft, regionTop,
+                left - regionLeft, top - regionTop, right - regionLeft, bottom - regionTop);
+        mLeft += regionLeft;
+        mTop += regionTop;
+        mRight += regionLeft;
+        mBottom += regionTop;
+    }
+    
+    /**
+     * Binarize image and find word extent in it.  For the fused pipeline,
+     * the image may be a region view, with same-size destination views.
+     * @param frame  Whole frame, with the region at the given origin; 
+     *   same as the image, at origin zero, if not a region
+     */
+    private void detect (GrayImage img, GrayImage resultImg, GrayImage binImg, 
+            GrayImage frame, int regionLeft, int regionTop, 
+            int left, int top, int right, int bottom) {
+        long startTime = System.nanoTime();
+        boolean fused = isFused();
+        int centerX = (left + right) / 2, centerY = (top + bottom) / 2;
+        if (fused) {
+            binarizeFused(img, resultImg, binImg, frame, regionLeft + centerX, regionTop + centerY);
+        } else {
+            binarize(img, centerX, centerY);
+        }
+        long binarizedTime = System.nanoTime();
+        mBinarizeNanos = binarizedTime - startTime;
+
+        // Find word extents
+        int imgWidth = img.getWidth(), imgHeight = img.getHeight();
+        ComponentLabeler labeler = mLabeler;
+        if (mUseComponentLabeling 
+                && (fused ? labeler.label(binImg) : labeler.label(mBinBits))) {
+            mNumMergedComponents = labeler.mergeComponents(left, top, right, bottom);
+            left = labeler.getMergedLeft();
+            top = labeler.getMergedTop();
+            right = labeler.getMergedRight();
+            bottom = labeler.getMergedBottom();
+        } else {
+            // Too many runs (probably noise); grow extent incrementally instead
+            mNumMergedComponents = -1;
+            boolean extended;
+            do {
+                extended = false;
+                
+                if ((top - 1 >= 0) && binImg.min(left, top - 1, right, top) == 0) {
+                    --top;
+                    extended = true;
+                }
+                if ((bottom + 1 < imgHeight) && binImg.min(left, bottom, right, bottom + 1) == 0) {
+                    ++bottom;
+                    extended = true;
+                }
+                if ((left - 1 >= 0) && binImg.min(left - 1, top, left, bottom) == 0) {
+                    --left;
+                    extended = true;
+                }
+                if ((right + 1 < imgWidth) && binImg.min(right, top, right + 1, bottom) == 0) {
+                    ++right;
+                    extended = true;
+                }
+            } while (extended);
+        }
+        mLeft = Math.max(0, left - 2);
+        mTop = Math.max(0, top - 2);
+        mRight = Math.min(imgWidth - 1, right + 2);
+        mBottom = Math.min(imgHeight - 1, bottom + 2);
+        mExtentNanos = lap(PipelineMetrics.STAGE_EXTENT_SEARCH, binarizedTime) - binarizedTime;
+    }
+}
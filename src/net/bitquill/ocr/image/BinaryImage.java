@@ -0,0 +1,448 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import android.graphics.Rect;
+
+/**
+ * Bit-packed binary image, storing 64 pixels per <code>long</code>.
+ * A set bit corresponds to a non-zero (i.e., 255) pixel of the equivalent
+ * {@link GrayImage}, so that erosion and dilation here give the same 
+ * results as grayscale erosion (min) and dilation (max) of a thresholded
+ * image, but operate on 64 pixels at a time.
+ * 
+ * Each row starts at a word boundary; pixel (i,j) is bit <code>j % 64</code>
+ * of word <code>i*getWordsPerRow() + j/64</code>.  Bits past the right edge 
+ * are always zero.
+ */
+public class BinaryImage {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "BinaryImage";
+    
+    private final int mWidth, mHeight;
+    private final int mWordsPerRow;
+    private final long[] mBits;
+    private final long mLastWordMask;  // Valid bits of last word in each row
+    
+    public BinaryImage (int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        mWidth = width;
+        mHeight = height;
+        mWordsPerRow = (width + 63) >>> 6;
+        mBits = new long[mWordsPerRow * height];
+        mLastWordMask = ((width & 63) == 0) ? -1L : (1L << (width & 63)) - 1;
+    }
+    
+    /**
+     * Bit-pack a thresholded grayscale image; non-zero pixels become set bits.
+     */
+    public BinaryImage (GrayMatrix img) {
+        this(img.mWidth, img.mHeight);
+        fromGray(img);
+    }
+    
+    public final int getWidth () {
+        return mWidth;
+    }
+    
+    public final int getHeight () {
+        return mHeight;
+    }
+    
+    public final int getWordsPerRow () {
+        return mWordsPerRow;
+    }
+    
+    public final long[] getBits () {
+        return mBits;
+    }
+    
+    public final boolean get (int i, int j) {
+        return (mBits[i*mWordsPerRow + (j >>> 6)] & (1L << (j & 63))) != 0;
+    }
+    
+    public final void set (int i, int j, boolean value) {
+        int k = i*mWordsPerRow + (j >>> 6);
+        if (value) {
+            mBits[k] |= 1L << (j & 63);
+        } else {
+            mBits[k] &= ~(1L << (j & 63));
+        }
+    }
+    
+    private void checkSize (int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            throw new IllegalArgumentException("Image dimensions do not match");
+        }
+    }
+    
+    private void checkSize (BinaryImage other) {
+        checkSize(other.mWidth, other.mHeight);
+    }
+    
+    /**
+     * Bit-pack a grayscale image; non-zero pixels become set bits.
+     * @return This image
+     */
+    public final BinaryImage fromGray (GrayMatrix img) {
+        checkSize(img.mWidth, img.mHeight);
+        byte[] data = img.mData;
+        long[] bits = mBits;
+        int width = mWidth, height = mHeight, wordsPerRow = mWordsPerRow;
+        for (int i = 0;  i < height;  i++) {
+            int rowOfs = img.mOffset + i*img.mStride;
+            int k = i*wordsPerRow;
+            for (int j0 = 0;  j0 < width;  j0 += 64) {
+                int n = Math.min(64, width - j0);
+                long word = 0;
+                for (int b = 0;  b < n;  b++) {
+                    if (data[rowOfs + j0 + b] != 0) {
+                        word |= 1L << b;
+                    }
+                }
+                bits[k++] = word;
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Threshold directly into bits.  A bit is set where 
+     * <code>thresh - img < offset</code>, which is where 
+     * {@link GrayImage#adaptiveThreshold(byte, byte, int, GrayImage, GrayImage)}
+     * would output <code>hi</code>; if <code>invert</code> is true, the
+     * opposite.
+     * @return This image
+     */
+    public final BinaryImage adaptiveThreshold (GrayMatrix img, GrayMatrix thresh, int offset, boolean invert) {
+        checkSize(img.mWidth, img.mHeight);
+        checkSize(thresh.mWidth, thresh.mHeight);
+        byte[] data = img.mData, thr = thresh.mData;
+        long[] bits = mBits;
+        int width = mWidth, height = mHeight, wordsPerRow = mWordsPerRow;
+        long flip = invert ? -1L : 0L;
+        for (int i = 0;  i < height;  i++) {
+            int rowOfs = img.mOffset + i*img.mStride;
+            int thrOfs = thresh.mOffset + i*thresh.mStride;
+            int k = i*wordsPerRow;
+            for (int j0 = 0;  j0 < width;  j0 += 64) {
+                int n = Math.min(64, width - j0);
+                long word = 0;
+                for (int b = 0;  b < n;  b++) {
+                    int j = j0 + b;
+                    if ((thr[thrOfs + j] & 0xFF) - (data[rowOfs + j] & 0xFF) < offset) {
+                        word |= 1L << b;
+                    }
+                }
+                bits[k++] = word ^ (flip & ((n == 64) ? -1L : (1L << n) - 1));
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Unpack into a grayscale image; set bits become 255, clear bits 0.
+     */
+    public final GrayImage toGray (GrayImage dest) {
+        checkSize(dest.mWidth, dest.mHeight);
+        byte[] data = dest.mData;
+        long[] bits = mBits;
+        int width = mWidth, height = mHeight, wordsPerRow = mWordsPerRow;
+        for (int i = 0;  i < height;  i++) {
+            int rowOfs = dest.mOffset + i*dest.mStride;
+            int k = i*wordsPerRow;
+            for (int j0 = 0;  j0 < width;  j0 += 64) {
+                int n = Math.min(64, width - j0);
+                long word = bits[k++];
+                for (int b = 0;  b < n;  b++) {
+                    data[rowOfs + j0 + b] = (byte)(-(int)((word >>> b) & 1L));
+                }
+            }
+        }
+        return dest;
+    }
+    
+    public final GrayImage toGray () {
+        return toGray(ImageBufferPool.getDefault().leaseImage(mWidth, mHeight));
+    }
+    
+    public final BinaryImage and (BinaryImage other, BinaryImage dest) {
+        checkSize(other);
+        checkSize(dest);
+        long[] a = mBits, b = other.mBits, c = dest.mBits;
+        for (int k = 0;  k < a.length;  k++) {
+            c[k] = a[k] & b[k];
+        }
+        return dest;
+    }
+    
+    public final BinaryImage or (BinaryImage other, BinaryImage dest) {
+        checkSize(other);
+        checkSize(dest);
+        long[] a = mBits, b = other.mBits, c = dest.mBits;
+        for (int k = 0;  k < a.length;  k++) {
+            c[k] = a[k] | b[k];
+        }
+        return dest;
+    }
+    
+    public final BinaryImage not (BinaryImage dest) {
+        checkSize(dest);
+        long[] a = mBits, c = dest.mBits;
+        int wordsPerRow = mWordsPerRow;
+        long lastMask = mLastWordMask;
+        for (int k = 0;  k < a.length;  k++) {
+            c[k] = ~a[k];
+            if (k % wordsPerRow == wordsPerRow - 1) {
+                c[k] &= lastMask;
+            }
+        }
+        return dest;
+    }
+    
+    /**
+     * Copy of row <code>i</code> into <code>buf</code>, starting at word 
+     * <code>pad</code>, with pixels outside the image set to <code>fill</code>.
+     */
+    private void loadPaddedRow (int i, long[] buf, int pad, long fill) {
+        int wordsPerRow = mWordsPerRow;
+        for (int k = 0;  k < pad;  k++) {
+            buf[k] = fill;
+            buf[pad + wordsPerRow + k] = fill;
+        }
+        System.arraycopy(mBits, i*wordsPerRow, buf, pad, wordsPerRow);
+        if (wordsPerRow > 0) {
+            buf[pad + wordsPerRow - 1] |= fill & ~mLastWordMask;
+        }
+    }
+    
+    /**
+     * @return The 64 pixels starting at bit position <code>pos</code> of <code>buf</code>
+     */
+    private static long extractWord (long[] buf, int pos) {
+        int k = pos >>> 6, b = pos & 63;
+        if (b == 0) {
+            return buf[k];
+        }
+        return (buf[k] >>> b) | (buf[k + 1] << (64 - b));
+    }
+    
+    /**
+     * Shift contents by <code>(dx, dy)</code>, i.e., pixel (x,y) of the 
+     * result is pixel (x-dx,y-dy) of this image; vacated pixels are set 
+     * to <code>fill</code>.  Destination must differ from this image.
+     */
+    public final BinaryImage shift (int dx, int dy, boolean fill, BinaryImage dest) {
+        checkSize(dest);
+        if (dest == this) {
+            throw new IllegalArgumentException("Destination must not be the source image");
+        }
+        int width = mWidth, height = mHeight, wordsPerRow = mWordsPerRow;
+        long fillWord = fill ? -1L : 0L;
+        long lastMask = mLastWordMask;
+        long[] out = dest.mBits;
+        int pad = ((Math.abs(dx) + 63) >>> 6) + 1;
+        long[] buf = new long[wordsPerRow + 2*pad];
+        for (int i = 0;  i < height;  i++) {
+            int k = i*wordsPerRow;
+            int src = i - dy;
+            if (src < 0 || src >= height || Math.abs(dx) >= width) {
+                for (int w = 0;  w < wordsPerRow;  w++) {
+                    out[k + w] = fillWord;
+                }
+            } else {
+                loadPaddedRow(src, buf, pad, fillWord);
+                for (int w = 0;  w < wordsPerRow;  w++) {
+                    out[k + w] = extractWord(buf, ((pad + w) << 6) - dx);
+                }
+            }
+            if (wordsPerRow > 0) {
+                out[k + wordsPerRow - 1] &= lastMask;
+            }
+        }
+        return dest;
+    }
+    
+    /**
+     * Binary erosion; same as grayscale erosion of the unpacked image.  
+     * Neighbors outside the image are ignored.  Destination must differ 
+     * from this image.
+     */
+    public final BinaryImage erode (StructuringElement strel, BinaryImage dest) {
+        return morphology(strel, dest, false);
+    }
+    
+    public final BinaryImage erode (StructuringElement strel) {
+        return erode(strel, new BinaryImage(mWidth, mHeight));
+    }
+    
+    /**
+     * Binary dilation; same as grayscale dilation of the unpacked image.  
+     * Destination must differ from this image.
+     */
+    public final BinaryImage dilate (StructuringElement strel, BinaryImage dest) {
+        return morphology(strel, dest, true);
+    }
+    
+    public final BinaryImage dilate (StructuringElement strel) {
+        return dilate(strel, new BinaryImage(mWidth, mHeight));
+    }
+    
+    private BinaryImage morphology (StructuringElement strel, BinaryImage dest, boolean dilate) {
+        checkSize(dest);
+        if (dest == this) {
+            throw new IllegalArgumentException("Destination must not be the source image");
+        }
+        int height = mHeight, wordsPerRow = mWordsPerRow;
+        int numNeighbors = strel.getNumNeighbors();
+        int[] hOffsets = strel.getHorizontalOffsets();
+        int[] vOffsets = strel.getVerticalOffsets();
+        int pad = ((Math.max(-strel.getMinX(), strel.getMaxX()) + 63) >>> 6) + 1;
+        
+        // Neighbors outside the image take the identity value of the operation
+        long identity = dilate ? 0L : -1L;
+        long lastMask = mLastWordMask;
+        long[] out = dest.mBits;
+        long[] buf = new long[wordsPerRow + 2*pad];
+        for (int i = 0;  i < height;  i++) {
+            int k = i*wordsPerRow;
+            for (int w = 0;  w < wordsPerRow;  w++) {
+                out[k + w] = identity;
+            }
+            int loadedRow = -1;
+            for (int n = 0;  n < numNeighbors;  n++) {
+                int src = i + vOffsets[n];
+                if (src < 0 || src >= height) {
+                    continue;
+                }
+                if (src != loadedRow) {
+                    loadPaddedRow(src, buf, pad, identity);
+                    loadedRow = src;
+                }
+                int pos = (pad << 6) + hOffsets[n];
+                if (dilate) {
+                    for (int w = 0;  w < wordsPerRow;  w++, pos += 64) {
+                        out[k + w] |= extractWord(buf, pos);
+                    }
+                } else {
+                    for (int w = 0;  w < wordsPerRow;  w++, pos += 64) {
+                        out[k + w] &= extractWord(buf, pos);
+                    }
+                }
+            }
+            if (wordsPerRow > 0) {
+                out[k + wordsPerRow - 1] &= lastMask;
+            }
+        }
+        return dest;
+    }
+    
+    /**
+     * Mask selecting bits <code>[from, to)</code> of a word, 0 <= from < to <= 64.
+     */
+    private static long rangeMask (int from, int to) {
+        long hi = (to == 64) ? -1L : (1L << to) - 1;
+        return hi & (-1L << from);
+    }
+    
+    /**
+     * Number of set pixels in region of interest.
+     * Right and bottom are exclusive.
+     */
+    public final int countSet (int left, int top, int right, int bottom) {
+        checkRoi(left, top, right, bottom);
+        if (left >= right) {
+            return 0;
+        }
+        long[] bits = mBits;
+        int wordsPerRow = mWordsPerRow;
+        int wFirst = left >>> 6, wLast = (right - 1) >>> 6;
+        long firstMask = rangeMask(left & 63, (wFirst == wLast) ? ((right - 1) & 63) + 1 : 64);
+        long lastMask = rangeMask(0, ((right - 1) & 63) + 1);
+        int count = 0;
+        for (int i = top;  i < bottom;  i++) {
+            int k = i*wordsPerRow;
+            if (wFirst == wLast) {
+                count += Long.bitCount(bits[k + wFirst] & firstMask);
+            } else {
+                count += Long.bitCount(bits[k + wFirst] & firstMask);
+                for (int w = wFirst + 1;  w < wLast;  w++) {
+                    count += Long.bitCount(bits[k + w]);
+                }
+                count += Long.bitCount(bits[k + wLast] & lastMask);
+            }
+        }
+        return count;
+    }
+    
+    public final int countSet (Rect roi) {
+        return countSet(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    public final int countSet () {
+        return countSet(0, 0, mWidth, mHeight);
+    }
+    
+    /**
+     * Test whether region of interest contains any pixel with the given 
+     * value; stops at the first word that does.  Right and bottom are exclusive.
+     */
+    public final boolean contains (boolean value, int left, int top, int right, int bottom) {
+        checkRoi(left, top, right, bottom);
+        if (left >= right) {
+            return false;
+        }
+        long[] bits = mBits;
+        int wordsPerRow = mWordsPerRow;
+        long flip = value ? 0L : -1L;
+        int wFirst = left >>> 6, wLast = (right - 1) >>> 6;
+        long firstMask = rangeMask(left & 63, (wFirst == wLast) ? ((right - 1) & 63) + 1 : 64);
+        long lastMask = rangeMask(0, ((right - 1) & 63) + 1);
+        for (int i = top;  i < bottom;  i++) {
+            int k = i*wordsPerRow;
+            if (((bits[k + wFirst] ^ flip) & firstMask) != 0) {
+                return true;
+            }
+            if (wFirst != wLast) {
+                for (int w = wFirst + 1;  w < wLast;  w++) {
+                    if ((bits[k + w] ^ flip) != 0) {
+                        return true;
+                    }
+                }
+                if (((bits[k + wLast] ^ flip) & lastMask) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    public final boolean contains (boolean value, Rect roi) {
+        return contains(value, roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    private void checkRoi (int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0 || right > mWidth || bottom > mHeight) {
+            throw new IllegalArgumentException("ROI exceeds image bounds");
+        }
+    }
+}
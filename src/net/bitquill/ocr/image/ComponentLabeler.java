@@ -0,0 +1,429 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import android.graphics.Rect;
+
+/**
+ * Connected component labeling of binary images, based on run-length 
+ * encoding and union-find over runs.  Pixels with value zero are 
+ * foreground; components are 8-connected.
+ * 
+ * Labeling makes a single linear pass over the image.  Afterwards, the 
+ * bounding box and pixel count of every component are available, and 
+ * {@link #mergeComponents(int, int, int, int)} finds the union of all 
+ * components touching a target rectangle, transitively.
+ * 
+ * To bound the running time on worst-case (e.g., very noisy) frames, the 
+ * number of runs is capped; if the cap is hit, labeling is abandoned and 
+ * the caller should fall back to some other method.
+ * 
+ * Instances keep their buffers between calls and are not thread-safe.
+ */
+public class ComponentLabeler {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "ComponentLabeler";
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private final int mMaxRuns;
+    
+    // Runs of row i are those with index in [mRowStart[i], mRowStart[i+1])
+    private int[] mRowStart = new int[1];
+    private int[] mRunStart = new int[INITIAL_CAPACITY];
+    private int[] mRunEnd = new int[INITIAL_CAPACITY];   // Exclusive
+    private int[] mRunLabel = new int[INITIAL_CAPACITY]; // Union-find parent, then component label
+    private int mNumRuns;
+    
+    // Per-component statistics; right and bottom are exclusive
+    private int[] mLeft = new int[INITIAL_CAPACITY];
+    private int[] mTop = new int[INITIAL_CAPACITY];
+    private int[] mRight = new int[INITIAL_CAPACITY];
+    private int[] mBottom = new int[INITIAL_CAPACITY];
+    private int[] mPixelCount = new int[INITIAL_CAPACITY];
+    private int[] mMergeStamp = new int[INITIAL_CAPACITY];
+    private int mNumComponents;
+    private int mStamp = 0;
+    
+    private int mWidth, mHeight;
+    
+    // Result of last merge
+    private int mMergedLeft, mMergedTop, mMergedRight, mMergedBottom;
+    private int mMergedPixelCount;
+    
+    /**
+     * @param maxRuns  Maximum number of foreground runs before labeling is abandoned
+     */
+    public ComponentLabeler (int maxRuns) {
+        if (maxRuns <= 0) {
+            throw new IllegalArgumentException("Run cap must be positive");
+        }
+        mMaxRuns = maxRuns;
+    }
+    
+    private static int[] grow (int[] a, int length) {
+        int[] b = new int[length];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+    
+    private void ensureRunCapacity (int n) {
+        if (n > mRunStart.length) {
+            int capacity = Math.min(mMaxRuns, Math.max(n, 2*mRunStart.length));
+            mRunStart = grow(mRunStart, capacity);
+            mRunEnd = grow(mRunEnd, capacity);
+            mRunLabel = grow(mRunLabel, capacity);
+        }
+    }
+    
+    private void ensureComponentCapacity (int n) {
+        if (n > mLeft.length) {
+            int capacity = Math.max(n, 2*mLeft.length);
+            mLeft = grow(mLeft, capacity);
+            mTop = grow(mTop, capacity);
+            mRight = grow(mRight, capacity);
+            mBottom = grow(mBottom, capacity);
+            mPixelCount = grow(mPixelCount, capacity);
+            mMergeStamp = grow(mMergeStamp, capacity);
+        }
+    }
+    
+    private int find (int r) {
+        int[] parent = mRunLabel;
+        while (parent[r] != r) {
+            parent[r] = parent[parent[r]];  // Path halving
+            r = parent[r];
+        }
+        return r;
+    }
+    
+    private void union (int a, int b) {
+        int ra = find(a), rb = find(b);
+        // Keep lowest index as root, so roots precede their runs
+        if (ra < rb) {
+            mRunLabel[rb] = ra;
+        } else if (rb < ra) {
+            mRunLabel[ra] = rb;
+        }
+    }
+    
+    /**
+     * Start labeling an image of the given size.
+     */
+    private void beginLabeling (int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mNumRuns = 0;
+        mNumComponents = 0;
+        if (mRowStart.length < height + 1) {
+            mRowStart = new int[height + 1];
+        }
+    }
+    
+    /**
+     * Append a run to current row.
+     * @return false if the run cap would be exceeded
+     */
+    private boolean addRun (int start, int end) {
+        int n = mNumRuns;
+        if (n == mMaxRuns) {
+            return false;
+        }
+        ensureRunCapacity(n + 1);
+        mRunStart[n] = start;
+        mRunEnd[n] = end;
+        mRunLabel[n] = n;
+        mNumRuns = n + 1;
+        return true;
+    }
+    
+    /**
+     * Union runs of row i with the runs they touch in row i-1.
+     */
+    private void connectRow (int i) {
+        if (i == 0) {
+            return;
+        }
+        int[] rowStart = mRowStart;
+        int[] runStart = mRunStart, runEnd = mRunEnd;
+        int p = rowStart[i-1], pEnd = rowStart[i];  // Candidate runs in previous row
+        int n = mNumRuns;
+        for (int r = rowStart[i];  r < n;  r++) {
+            // 8-connectivity: previous run [ps, pe) touches [s, e) iff ps <= e && pe >= s
+            int start = runStart[r], end = runEnd[r];
+            while (p < pEnd && runEnd[p] < start) {
+                ++p;
+            }
+            for (int q = p;  q < pEnd && runStart[q] <= end;  q++) {
+                union(r, q);
+            }
+        }
+    }
+    
+    /**
+     * Label connected components of zero-valued pixels.
+     * @param img  Binary image
+     * @return true on success, false if the run cap was exceeded
+     */
+    public final boolean label (GrayMatrix img) {
+        int width = img.mWidth, height = img.mHeight;
+        byte[] data = img.mData;
+        beginLabeling(width, height);
+        int[] rowStart = mRowStart;
+        
+        // Run-length encode rows, and union runs that touch runs in previous row
+        for (int i = 0;  i < height;  i++) {
+            rowStart[i] = mNumRuns;
+            int rowOfs = img.mOffset + i*img.mStride;
+            int j = 0;
+            while (j < width) {
+                while (j < width && data[rowOfs + j] != 0) {
+                    ++j;
+                }
+                if (j == width) {
+                    break;
+                }
+                int start = j;
+                while (j < width && data[rowOfs + j] == 0) {
+                    ++j;
+                }
+                if (!addRun(start, j)) {
+                    return false;
+                }
+            }
+            connectRow(i);
+        }
+        rowStart[height] = mNumRuns;
+        labelComponents();
+        return true;
+    }
+    
+    /**
+     * Label connected components of clear pixels, i.e., the same 
+     * components as {@link #label(GrayMatrix)} on the unpacked image.  
+     * Runs are found a word at a time.
+     * @param img  Bit-packed binary image
+     * @return true on success, false if the run cap was exceeded
+     */
+    public final boolean label (BinaryImage img) {
+        int width = img.getWidth(), height = img.getHeight();
+        int wordsPerRow = img.getWordsPerRow();
+        long[] bits = img.getBits();
+        beginLabeling(width, height);
+        int[] rowStart = mRowStart;
+        
+        for (int i = 0;  i < height;  i++) {
+            rowStart[i] = mNumRuns;
+            int rowOfs = i*wordsPerRow;
+            int runStart = -1;  // Start of open run, if any
+            for (int w = 0;  w < wordsPerRow;  w++) {
+                int base = w << 6;
+                // Foreground is clear bits; mask off bits past right edge
+                long fg = ~bits[rowOfs + w];
+                if (base + 64 > width) {
+                    fg &= (1L << (width - base)) - 1;
+                }
+                int b = 0;
+                while (b < 64) {
+                    if (runStart < 0) {
+                        long rest = fg >>> b;
+                        if (rest == 0) {
+                            break;
+                        }
+                        b += Long.numberOfTrailingZeros(rest);
+                        runStart = base + b;
+                    } else {
+                        long rest = ~fg >>> b;
+                        if (rest == 0) {
+                            break;  // Run continues into next word
+                        }
+                        b += Long.numberOfTrailingZeros(rest);
+                        if (!addRun(runStart, base + b)) {
+                            return false;
+                        }
+                        runStart = -1;
+                    }
+                }
+            }
+            if (runStart >= 0 && !addRun(runStart, width)) {
+                return false;
+            }
+            connectRow(i);
+        }
+        rowStart[height] = mNumRuns;
+        labelComponents();
+        return true;
+    }
+    
+    /**
+     * Assign component labels to runs and gather per-component statistics.
+     */
+    private void labelComponents () {
+        int height = mHeight;
+        int[] rowStart = mRowStart;
+        int[] label = mRunLabel;  // Union-find parents, replaced by labels as we go
+        int numComponents = 0;
+        for (int i = 0;  i < height;  i++) {
+            for (int r = rowStart[i];  r < rowStart[i+1];  r++) {
+                int parent = label[r];
+                if (parent == r) {
+                    // Root; roots precede all other runs of their component
+                    ensureComponentCapacity(numComponents + 1);
+                    int c = numComponents++;
+                    label[r] = c;
+                    mLeft[c] = mRunStart[r];
+                    mRight[c] = mRunEnd[r];
+                    mTop[c] = i;
+                    mBottom[c] = i + 1;
+                    mPixelCount[c] = mRunEnd[r] - mRunStart[r];
+                    mMergeStamp[c] = 0;
+                } else {
+                    // Parents have lower index, so they have already been relabeled
+                    int c = label[parent];
+                    label[r] = c;
+                    mLeft[c] = Math.min(mLeft[c], mRunStart[r]);
+                    mRight[c] = Math.max(mRight[c], mRunEnd[r]);
+                    mBottom[c] = i + 1;
+                    mPixelCount[c] += mRunEnd[r] - mRunStart[r];
+                }
+            }
+        }
+        mNumComponents = numComponents;
+        mStamp = 0;
+    }
+    
+    public final int getNumComponents () {
+        return mNumComponents;
+    }
+    
+    public final int getNumRuns () {
+        return mNumRuns;
+    }
+    
+    public final int getComponentLeft (int c) {
+        return mLeft[c];
+    }
+    
+    public final int getComponentTop (int c) {
+        return mTop[c];
+    }
+    
+    /**
+     * @return Right edge of component bounding box (exclusive)
+     */
+    public final int getComponentRight (int c) {
+        return mRight[c];
+    }
+    
+    /**
+     * @return Bottom edge of component bounding box (exclusive)
+     */
+    public final int getComponentBottom (int c) {
+        return mBottom[c];
+    }
+    
+    public final int getComponentPixelCount (int c) {
+        return mPixelCount[c];
+    }
+    
+    /**
+     * Merge all components that overlap or are 4-adjacent to the target 
+     * rectangle, growing the rectangle with each merged component's bounding 
+     * box until no more components touch it.  This is essentially the 
+     * fixpoint that growing the rectangle one pixel at a time would reach, 
+     * except that components entering the rectangle only diagonally are 
+     * also merged.  Must be called after a successful {@link #label(GrayMatrix)}.
+     * Right and bottom are exclusive.
+     * 
+     * @return Number of merged components
+     */
+    public final int mergeComponents (int left, int top, int right, int bottom) {
+        int[] rowStart = mRowStart;
+        int[] runStart = mRunStart, runEnd = mRunEnd, label = mRunLabel;
+        int[] stamp = mMergeStamp;
+        int curStamp = ++mStamp;
+        int height = mHeight;
+        int numMerged = 0, pixelCount = 0;
+        boolean changed;
+        do {
+            changed = false;
+            // Scan runs in rows of rectangle and rows just above and below it
+            int iStart = Math.max(0, top - 1), iEnd = Math.min(height, bottom + 1);
+            for (int i = iStart;  i < iEnd;  i++) {
+                // Rows above and below are adjacent only along the edge, not at the corners
+                int colStart = (i < top || i >= bottom) ? left + 1 : left;
+                int colEnd = (i < top || i >= bottom) ? right - 1 : right;
+                for (int r = rowStart[i];  r < rowStart[i+1];  r++) {
+                    if (runStart[r] > colEnd || runEnd[r] < colStart) {
+                        continue;  // Neither inside nor adjacent
+                    }
+                    int c = label[r];
+                    if (stamp[c] == curStamp) {
+                        continue;
+                    }
+                    stamp[c] = curStamp;
+                    ++numMerged;
+                    pixelCount += mPixelCount[c];
+                    left = Math.min(left, mLeft[c]);
+                    top = Math.min(top, mTop[c]);
+                    right = Math.max(right, mRight[c]);
+                    bottom = Math.max(bottom, mBottom[c]);
+                    changed = true;
+                }
+            }
+        } while (changed);
+        mMergedLeft = left;
+        mMergedTop = top;
+        mMergedRight = right;
+        mMergedBottom = bottom;
+        mMergedPixelCount = pixelCount;
+        return numMerged;
+    }
+    
+    /**
+     * Same as {@link #mergeComponents(int, int, int, int)}, updating the 
+     * given rectangle in place.
+     */
+    public final int mergeComponents (Rect ext) {
+        int numMerged = mergeComponents(ext.left, ext.top, ext.right, ext.bottom);
+        ext.set(mMergedLeft, mMergedTop, mMergedRight, mMergedBottom);
+        return numMerged;
+    }
+    
+    public final int getMergedLeft () {
+        return mMergedLeft;
+    }
+    
+    public final int getMergedTop () {
+        return mMergedTop;
+    }
+    
+    public final int getMergedRight () {
+        return mMergedRight;
+    }
+    
+    public final int getMergedBottom () {
+        return mMergedBottom;
+    }
+    
+    public final int getMergedPixelCount () {
+        return mMergedPixelCount;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+/**
+ * Fused binarization pipeline: contrast stretch, local mean, adaptive 
+ * threshold and separable (horizontal, then vertical) erosion, evaluated 
+ * in a single streaming pass over the frame.
+ * 
+ * Rows are processed top to bottom.  Only the rows still needed by a later
+ * stage (the halo of the mean filter and of the vertical erosion) are kept,
+ * in small ring buffers of whole rows, so intermediates stay in cache
+ * instead of making round-trips through frame-sized buffers.  The source 
+ * frame is read twice (once for {@link #computeStatistics(GrayImage)}, once
+ * by {@link #run}), and only the thresholded and the eroded images are 
+ * written.  The streaming pass itself is 
+ * {@link ImageKernels#fusedBinarize}, run by the current kernels backend.
+ * 
+ * Output is identical to the unfused sequence 
+ * {@link GrayImage#contrastStretch(byte, byte, GrayImage)}, 
+ * {@link GrayImage#meanFilter(int, GrayImage)},
+ * {@link GrayImage#adaptiveThreshold(byte, byte, int, GrayImage, GrayImage)}
+ * and two {@link GrayImage#erode(StructuringElement, GrayImage)} calls with 
+ * horizontal and vertical line elements.
+ * 
+ * Instances keep the statistics of the last frame and are not thread-safe.
+ */
+public class FusedBinarizer {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "FusedBinarizer";
+    
+    // Statistics of last frame
+    private final ImageStats mStats = new ImageStats();
+    private final ImageStats mStretchedStats = new ImageStats();
+    private final byte[] mLut = new byte[256];
+    private int mMin, mMax;
+    private float mStretchedMean, mStretchedVariance;
+    
+    public final int getMin () {
+        return mMin;
+    }
+    
+    public final int getMax () {
+        return mMax;
+    }
+    
+    /**
+     * @return Mean of contrast-stretched frame
+     */
+    public final float getStretchedMean () {
+        return mStretchedMean;
+    }
+    
+    /**
+     * @return Variance of contrast-stretched frame
+     */
+    public final float getStretchedVariance () {
+        return mStretchedVariance;
+    }
+    
+    /**
+     * Compute intensity range of the frame, and mean and variance of the 
+     * contrast-stretched frame, from a single histogram pass.  The stretched 
+     * frame itself is never materialized.  Results match min(), max() on 
+     * the frame, and mean(), variance() on the stretched frame.
+     * @param img  Source frame
+     */
+    public final void computeStatistics (GrayImage img) {
+        computeStatistics(img, 0.0f);
+    }
+    
+    /**
+     * Same as {@link #computeStatistics(GrayImage)}, but stretch between 
+     * histogram percentiles rather than min and max, clipping the given 
+     * fraction of pixels at each end (see 
+     * {@link ImageStats#percentileStretchLut(float, byte[])}).  Min and max 
+     * are still those of the whole frame.
+     */
+    public final void computeStatistics (GrayImage img, float clipFraction) {
+        ImageStats stats = mStats.compute(img, true);
+        mMin = stats.getMin();
+        mMax = stats.getMax();
+        stats.percentileStretchLut(clipFraction, mLut);
+        
+        ImageStats stretchedStats = stats.mapped(mLut, mStretchedStats);
+        mStretchedMean = stretchedStats.getMean();
+        mStretchedVariance = stretchedStats.getVariance();
+    }
+    
+    /**
+     * @return Contrast stretch table of last frame, owned by this object
+     */
+    public final byte[] getStretchLut () {
+        return mLut;
+    }
+    
+    /**
+     * @return Statistics of last frame, including its histogram
+     */
+    public final ImageStats getStatistics () {
+        return mStats;
+    }
+    
+    /**
+     * Run fused pipeline.  Contrast stretch uses the bounds found by the 
+     * last call to {@link #computeStatistics(GrayImage)}, which must have 
+     * been made on the same frame.
+     * 
+     * @param img         Source frame
+     * @param meanRadius  Radius of local mean filter
+     * @param hi          Value for pixels above local threshold
+     * @param lo          Value for pixels below local threshold
+     * @param offset      Threshold offset from local mean
+     * @param hRadius     Radius of horizontal erosion
+     * @param vRadius     Radius of vertical erosion
+     * @param thresholded Destination of thresholded image, before erosion
+     * @param dest        Destination of eroded image
+     * @return Destination (eroded) image
+     */
+    public final GrayImage run (GrayImage img, int meanRadius, byte hi, byte lo, int offset,
+            int hRadius, int vRadius, GrayImage thresholded, GrayImage dest) {
+        int width = img.mWidth, height = img.mHeight;
+        if (thresholded.mWidth != width || thresholded.mHeight != height ||
+                dest.mWidth != width || dest.mHeight != height) {
+            throw new IllegalArgumentException("Destination image size must match");
+        }
+        GrayImage.getKernels().fusedBinarize(img.mData, img.mOffset, img.mStride, 
+                thresholded.mData, thresholded.mOffset, thresholded.mStride,
+                dest.mData, dest.mOffset, dest.mStride, width, height, mLut, 
+                meanRadius, hi, lo, offset, hRadius, vRadius);
+        return dest;
+    }
+}
@@ -21,18 +21,81 @@ package net.bitquill.ocr.image;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.Bitmap.Config;
-import android.util.Log;
 
 public class GrayImage extends GrayMatrix {
     
+    @SuppressWarnings("unused")
     private static final String TAG = "GrayImage";
     
+    /**
+     * System property that can be set to "java" to force the pure-Java kernels,
+     * even when the native library is available (e.g., to cross-check backends).
+     */
+    public static final String KERNELS_PROPERTY = "net.bitquill.ocr.image.kernels";
+    
+    /**
+     * System property that can be set to "true" to enable stripe-parallel
+     * execution at startup; see {@link #setParallel(boolean)}.
+     */
+    public static final String PARALLEL_PROPERTY = "net.bitquill.ocr.image.parallel";
+    
+    private static final ImageKernels sSerialKernels;
+    private static ParallelImageKernels sParallelKernels = null;
+    private static volatile ImageKernels sKernels;
+    
     static {
-        try {
-            System.loadLibrary("imageproc");
-        } catch (UnsatisfiedLinkError ule) {
-            Log.e(TAG, "Could not load native library imageproc", ule);
-        }   
+        ImageKernels kernels = null;
+        if (!"java".equals(System.getProperty(KERNELS_PROPERTY))) {
+            try {
+                System.loadLibrary("imageproc");
+                kernels = new NativeImageKernels();
+            } catch (UnsatisfiedLinkError ule) {
+                // Not on a device, or library missing; fall through to Java kernels.
+                // Do not log here, android.util.Log may not exist on a plain JVM.
+            }
+        }
+        if (kernels == null) {
+            kernels = new JavaImageKernels();
+        }
+        sSerialKernels = kernels;
+        sKernels = kernels;
+        if (Boolean.getBoolean(PARALLEL_PROPERTY)) {
+            setParallel(true);
+        }
+    }
+    
+    /**
+     * @return true if image operations are executed by libimageproc,
+     *   false if the pure-Java fallback kernels are in use
+     */
+    public static final boolean isNativeBackend () {
+        return sSerialKernels instanceof NativeImageKernels;
+    }
+    
+    /**
+     * Enable or disable stripe-parallel execution of image operations, 
+     * using one thread per available processor.  Small images are always 
+     * processed serially.  Has no effect on single-core devices.  
+     * Results are identical either way.
+     */
+    public static final synchronized void setParallel (boolean parallel) {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        if (parallel && numThreads > 1) {
+            if (sParallelKernels == null) {
+                sParallelKernels = new ParallelImageKernels(sSerialKernels, numThreads);
+            }
+            sKernels = sParallelKernels;
+        } else {
+            sKernels = sSerialKernels;
+        }
+    }
+    
+    public static final boolean isParallel () {
+        return sKernels instanceof ParallelImageKernels;
+    }
+    
+    static final ImageKernels getKernels () {
+        return sKernels;
     }
     
     public GrayImage (int width, int height) {
@@ -43,12 +106,38 @@ public class GrayImage extends GrayMatrix {
         super(data, width, height);
     }
     
+    /**
+     * Wrap a window of a larger pixel buffer without copying; see 
+     * {@link GrayMatrix#GrayMatrix(byte[], int, int, int, int)}.
+     */
+    public GrayImage (byte[] data, int offset, int stride, int width, int height) {
+        super(data, offset, stride, width, height);
+    }
+    
     public GrayImage (GrayImage other) {
         super(other);
     }
     
+    /**
+     * Zero-copy view of a rectangular region; pixel writes through 
+     * either image are visible in the other.
+     * @return Image whose pixel (0,0) is pixel (left,top) of this image
+     */
+    final public GrayImage view (int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0 || right > mWidth || bottom > mHeight || left > right || top > bottom) {
+            throw new IllegalArgumentException("ROI exceeds image boundaries");
+        }
+        return new GrayImage(mData, mOffset + top*mStride + left, mStride, right - left, bottom - top);
+    }
+    
+    final public GrayImage view (Rect roi) {
+        return view(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
     final public int min (int left, int top, int right, int bottom) {
-        return GrayImage.nativeMin(mData, mWidth, mHeight, left, top, right - left, bottom - top);
+        checkViewRoi(left, top, right - left, bottom - top);
+        return sKernels.min(mData, mStride, bufferHeight(), 
+                originCol() + left, originRow() + top, right - left, bottom - top);
     }
 
     final public int min (Rect roi) {
@@ -56,12 +145,13 @@ public class GrayImage extends GrayMatrix {
     }
     
     final public int min () {
-        int width = mWidth, height = mHeight;
-        return GrayImage.nativeMin(mData, width, height, 0, 0, width, height);
+        return min(0, 0, mWidth, mHeight);
     }
 
     final public int max (int left, int top, int right, int bottom) {
-        return GrayImage.nativeMax(mData, mWidth, mHeight, left, top, right - left, bottom - top);
+        checkViewRoi(left, top, right - left, bottom - top);
+        return sKernels.max(mData, mStride, bufferHeight(), 
+                originCol() + left, originRow() + top, right - left, bottom - top);
     }
     
     final public int max (Rect roi) {
@@ -69,91 +159,128 @@ public class GrayImage extends GrayMatrix {
     }
     
     final public int max () {
-        int width = mWidth, height = mHeight;
-        return GrayImage.nativeMax(mData, width, height, 0, 0, width, height);
+        return max(0, 0, mWidth, mHeight);
     }
 
     final public float mean (Rect roi) {
-        int left = roi.left, top = roi.top;
-        return GrayImage.nativeMean(mData, mWidth, mHeight, left, top, roi.right - left, roi.bottom - top);
+        return mean(roi.left, roi.top, roi.right - roi.left, roi.bottom - roi.top);
     }
     
     final public float mean () {
-        int width = mWidth, height = mHeight;
-        return GrayImage.nativeMean(mData, width, height, 0, 0, width, height);
+        return mean(0, 0, mWidth, mHeight);
+    }
+    
+    private float mean (int left, int top, int width, int height) {
+        checkViewRoi(left, top, width, height);
+        return sKernels.mean(mData, mStride, bufferHeight(), 
+                originCol() + left, originRow() + top, width, height);
     }
     
     final public float variance (Rect roi) {
-        int left = roi.left, top = roi.top;
-        return GrayImage.nativeVariance(mData, mWidth, mHeight, left, top, roi.right - left, roi.bottom - top);        
+        return variance(roi.left, roi.top, roi.right - roi.left, roi.bottom - roi.top);
     }
     
     final public float variance () {
-        int width = mWidth, height = mHeight;
-        return GrayImage.nativeVariance(mData, width, height, 0, 0, width, height);
+        return variance(0, 0, mWidth, mHeight);
+    }
+    
+    private float variance (int left, int top, int width, int height) {
+        checkViewRoi(left, top, width, height);
+        return sKernels.variance(mData, mStride, bufferHeight(), 
+                originCol() + left, originRow() + top, width, height);
+    }
+    
+    /**
+     * Focus measure: variance of the Laplacian within the region.
+     * See {@link ImageKernels#laplacianVariance}.
+     */
+    final public float laplacianVariance (int left, int top, int right, int bottom) {
+        return laplacianVarianceRoi(left, top, right - left, bottom - top);
+    }
+    
+    final public float laplacianVariance (Rect roi) {
+        return laplacianVarianceRoi(roi.left, roi.top, roi.right - roi.left, roi.bottom - roi.top);
+    }
+    
+    final public float laplacianVariance () {
+        return laplacianVarianceRoi(0, 0, mWidth, mHeight);
+    }
+    
+    private float laplacianVarianceRoi (int left, int top, int width, int height) {
+        checkViewRoi(left, top, width, height);
+        return sKernels.laplacianVariance(mData, mStride, bufferHeight(), 
+                originCol() + left, originRow() + top, width, height);
     }
 
     final public int[] histogram (Rect roi, int[] hist) {
-        int left = roi.left, top = roi.top;
-        GrayImage.nativeHistogram(mData, mWidth, mHeight, hist, left, top, roi.right - left, roi.bottom - top);
+        return histogram(roi.left, roi.top, roi.right - roi.left, roi.bottom - roi.top, hist);
+    }
+    
+    private int[] histogram (int left, int top, int width, int height, int[] hist) {
+        checkViewRoi(left, top, width, height);
+        sKernels.histogram(mData, mStride, bufferHeight(), hist, 
+                originCol() + left, originRow() + top, width, height);
         return hist;
     }
+
     
     final public int[] histogram (Rect roi) {
         return histogram(roi, new int[256]);
     }
 
     final public int[] histogram (int[] hist) {
-        int width = mWidth, height = mHeight;
-        GrayImage.nativeHistogram(mData, width, height, hist, 0, 0, width, height);
-        return hist;
+        return histogram(0, 0, mWidth, mHeight, hist);
     }
     
     final public int[] histogram () {
         return histogram(new int[256]);
     }
     
-    final public GrayImage erode (StructuringElement strel, GrayImage dest) {
+    private GrayImage morphology (StructuringElement strel, GrayImage dest, boolean dilate) {
         if (dest.mWidth != mWidth || dest.mHeight != mHeight) {
             throw new IllegalArgumentException("Destination image size must match");
         }
-        GrayImage.nativeErode(mData, dest.mData, mWidth, mHeight, 
-                strel.getNumNeighbors(), 
-                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), 
-                strel.getLinearOffsets(mWidth, mHeight), 
-                strel.getMinX(), strel.getMaxX(), 
-                strel.getMinY(), strel.getMaxY());
+        MorphologyPlan.of(strel).apply(sKernels, mData, mOffset, mStride, 
+                dest.mData, dest.mOffset, dest.mStride, mWidth, mHeight, dilate);
         return dest;
     }
     
+    /**
+     * Destination for the convenience overloads that return a new image; 
+     * it comes from the default {@link ImageBufferPool}, so callers may 
+     * release it there when done.
+     */
+    private GrayImage leaseImage () {
+        return ImageBufferPool.getDefault().leaseImage(mWidth, mHeight);
+    }
+    
+    final public GrayImage erode (StructuringElement strel, GrayImage dest) {
+        return morphology(strel, dest, false);
+    }
+    
     final public GrayImage erode (StructuringElement strel) {
-        return erode(strel, new GrayImage(mWidth, mHeight));
+        return erode(strel, leaseImage());
     }
     
     final public GrayImage dilate (StructuringElement strel, GrayImage dest) {
-        GrayImage.nativeDilate(mData, dest.mData, mWidth, mHeight, 
-                strel.getNumNeighbors(), 
-                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), 
-                strel.getLinearOffsets(mWidth, mHeight), 
-                strel.getMinX(), strel.getMaxX(), 
-                strel.getMinY(), strel.getMaxY());
-        return dest;
+        return morphology(strel, dest, true);
     }
     
     final public GrayImage dilate (StructuringElement strel) {
-        return dilate(strel, new GrayImage(mWidth, mHeight));
+        return dilate(strel, leaseImage());
     }
 
     final public GrayImage meanFilter (int radius, GrayImage dest) {
         if (dest.mWidth != mWidth || dest.mHeight != mHeight) {
             throw new IllegalArgumentException("Destination image size must match");
         }
-        GrayImage.nativeMeanFilter(mData, dest.mData, mWidth, mHeight, radius);
+        sKernels.meanFilter(mData, mOffset, mStride, dest.mData, dest.mOffset, dest.mStride, 
+                mWidth, mHeight, radius);
         return dest;
     }
     
     final public GrayImage meanFilter (int radius) {
-        return meanFilter(radius, new GrayImage(mWidth, mHeight));
+        return meanFilter(radius, leaseImage());
     }
     
     final public GrayImage adaptiveThreshold (byte hi, byte lo, int offset, GrayImage thresh, GrayImage dest) {
@@ -165,12 +292,13 @@ public class GrayImage extends GrayMatrix {
         if (dest.mWidth != width || dest.mHeight != height) {
             throw new IllegalArgumentException("Destination image size must match");            
         }
-        GrayImage.nativeAdaptiveThreshold(mData, thresh.mData, dest.mData, width, height, hi, lo, offset);
+        sKernels.adaptiveThreshold(mData, mOffset, mStride, thresh.mData, thresh.mOffset, thresh.mStride, 
+                dest.mData, dest.mOffset, dest.mStride, width, height, hi, lo, offset);
         return dest;
     }
     
     final public GrayImage adaptiveThreshold (byte hi, byte lo, int offset, GrayImage thresh) {
-        return adaptiveThreshold(hi, lo, offset, thresh, new GrayImage(mWidth, mHeight));
+        return adaptiveThreshold(hi, lo, offset, thresh, leaseImage());
     }
     
     final public GrayImage contrastStretch (byte min, byte max, GrayImage dest) {
@@ -179,27 +307,75 @@ public class GrayImage extends GrayMatrix {
         if (dest.mWidth != width || dest.mHeight != height) {
             throw new IllegalArgumentException("Destination image size must match");            
         }
-        GrayImage.nativeContrastStretch(mData, dest.mData, width, height, min, max);
+        sKernels.contrastStretch(mData, mOffset, mStride, dest.mData, dest.mOffset, dest.mStride, 
+                width, height, min, max);
         return dest;
     }
     
     final public GrayImage contrastStretch (byte min, byte max) {
-        return contrastStretch(min, max, new GrayImage(mWidth, mHeight));
+        return contrastStretch(min, max, leaseImage());
+    }
+    
+    /**
+     * Map every pixel through a lookup table (see {@link LookupTables}).
+     * @param lut  Table with 256 entries
+     * @param dest  Destination image; may be this image
+     */
+    final public GrayImage applyLut (byte[] lut, GrayImage dest) {
+        int width = mWidth;
+        int height = mHeight;
+        if (dest.mWidth != width || dest.mHeight != height) {
+            throw new IllegalArgumentException("Destination image size must match");            
+        }
+        sKernels.applyLut(mData, mOffset, mStride, dest.mData, dest.mOffset, dest.mStride, 
+                width, height, lut);
+        return dest;
+    }
+    
+    final public GrayImage applyLut (byte[] lut) {
+        return applyLut(lut, leaseImage());
+    }
+    
+    /**
+     * Halve resolution, averaging each 2x2 block; a last odd row or 
+     * column is dropped.  See {@link ImagePyramid}.
+     * @param dest  Destination image, of size (width/2) x (height/2); must 
+     *   not share pixels with this image
+     */
+    final public GrayImage downsample (GrayImage dest) {
+        int width = mWidth / 2;
+        int height = mHeight / 2;
+        if (dest.mWidth != width || dest.mHeight != height) {
+            throw new IllegalArgumentException("Destination image must be half the size");
+        }
+        sKernels.downsample(mData, mOffset, mStride, dest.mData, dest.mOffset, dest.mStride, width, height);
+        return dest;
+    }
+    
+    final public GrayImage downsample () {
+        return downsample(ImageBufferPool.getDefault().leaseImage(mWidth / 2, mHeight / 2));
     }
     
     final public Bitmap asBitmap (int left, int top, int width, int height, int[] buf) {
         if (buf == null) {
             throw new NullPointerException("Buffer is null");
         }
-        int imgWidth = mWidth;
-        int imgHeight = mHeight;
-        nativeGrayToARGB(mData, imgWidth, imgHeight, buf, left, top, width, height);
+        checkViewRoi(left, top, width, height);
+        sKernels.grayToARGB(mData, mStride, bufferHeight(), buf, 
+                originCol() + left, originRow() + top, width, height);
         Bitmap b = Bitmap.createBitmap(buf, width, height, Config.ARGB_8888);
         return b;        
     }
     
     final public Bitmap asBitmap (int left, int top, int width, int height) {
-        return asBitmap(left, top, width, height, new int[width*height]);
+        // Bitmap keeps its own copy of the pixels, so buffer can go right back
+        ImageBufferPool pool = ImageBufferPool.getDefault();
+        int[] buf = pool.leaseIntArray(width*height);
+        try {
+            return asBitmap(left, top, width, height, buf);
+        } finally {
+            pool.release(buf);
+        }
     }
     
     final public Bitmap asBitmap (Rect roi, int[] buf) {
@@ -217,7 +393,10 @@ public class GrayImage extends GrayMatrix {
     final public Bitmap asBitmap () {
         return asBitmap(0, 0, mWidth, mHeight);
     }
-     
+
+    // Native kernels; package-private so that NativeImageKernels can reach them.
+    // They must stay declared in this class, since JNI symbol names depend on it.
+
     /**
      * Adaptive mean filter for grayscale image, using a square filter of given radius.
      * 
@@ -233,24 +412,45 @@ public class GrayImage extends GrayMatrix {
      * @param radius Radius of mean filter; diameter is 2*radius + 1
      * @return Overall image intensity mean
      */    
-    native private static void nativeMeanFilter (byte[] in, byte[] out, int width, int height, int radius);
-    
-    native private static void nativeAdaptiveThreshold (byte[] in, byte[] thresh, byte[] out, int width, int heigth, byte hi, byte lo, int offset);
-    native private static void nativeContrastStretch (byte[] in, byte[] out, int width, int height, byte min, byte max);
-    
-    native private static void nativeGrayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height);
-    
-    native private static int nativeMin (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
-    native private static int nativeMax (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
-    native private static float nativeMean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
-    native private static float nativeVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    native static void nativeMeanFilter (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int radius);
+    
+    native static void nativeAdaptiveThreshold (byte[] in, int inOfs, int inStride, byte[] thresh, int threshOfs, int threshStride, 
+            byte[] out, int outOfs, int outStride, int width, int heigth, byte hi, byte lo, int offset);
+    native static void nativeContrastStretch (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte min, byte max);
+    native static void nativeApplyLut (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte[] lut);
+    
+    native static void nativeDownsample (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height);
+    
+    native static void nativeGrayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height);
+    
+    native static int nativeMin (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    native static int nativeMax (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    native static float nativeMean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    native static float nativeVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    native static float nativeLaplacianVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
 
-    native private static void nativeHistogram (byte[] in, int imgWidth, int imgHeight, int[] hist, int left, int top, int width, int height);
+    native static void nativeHistogram (byte[] in, int imgWidth, int imgHeight, int[] hist, int left, int top, int width, int height);
+    native static void nativeStatistics (byte[] in, int imgWidth, int imgHeight, long[] out, int[] hist, 
+            int left, int top, int width, int height);
     
-    native private static void nativeErode (byte[] in, byte[] out, int width, int height, 
+    native static void nativeErode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, 
             int numNeighbors, int[] hOffsets, int vOffsets[], int linearOffsets[],
             int minX, int maxX, int minY, int maxY);
-    native private static void nativeDilate (byte[] in, byte[] out, int width, int height, 
+    native static void nativeDilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, 
             int numNeighbors, int[] hOffsets, int vOffsets[], int linearOffsets[],
             int minX, int maxX, int minY, int maxY);
+    
+    native static void nativeLineErode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical);
+    native static void nativeLineDilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical);
+    native static void nativeFusedBinarize (byte[] in, int inOfs, int inStride, byte[] thr, int thrOfs, int thrStride,
+            byte[] out, int outOfs, int outStride, int width, int height, byte[] lut, 
+            int meanRadius, byte hi, byte lo, int offset, int hRadius, int vRadius);
 }
\ No newline at end of file
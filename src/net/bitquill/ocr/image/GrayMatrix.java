@@ -24,6 +24,8 @@ public class GrayMatrix {
     private static final String TAG = "GrayMatrix";
 
     protected byte[] mData;
+    protected int mOffset;
+    protected int mStride;
     protected int mWidth;
     protected int mHeight;
 
@@ -31,6 +33,7 @@ public class GrayMatrix {
     protected GrayMatrix (int width, int height) {
         mWidth = width;
         mHeight = height;
+        mStride = width;
         mData = new byte[width * height];
     }
 
@@ -39,12 +42,35 @@ public class GrayMatrix {
             throw new IllegalArgumentException("Image data array is too short");
         }
         mData = data;
+        mStride = width;
         mWidth = width;
         mHeight = height;
     }
 
     /**
-     * Copy constructor.
+     * Wrap a rectangular window of a larger pixel buffer, without copying.
+     * Pixel (i,j) is stored at <code>data[offset + i*stride + j]</code>.
+     * The window must lie within whole rows of the buffer, i.e., 
+     * <code>(offset/stride + height)*stride &lt;= data.length</code>, so that
+     * native kernels can treat it as a region of a stride-wide image.
+     * @param data    Backing pixel buffer; shared, not copied
+     * @param offset  Array index of the top-left pixel
+     * @param stride  Array distance between vertically adjacent pixels
+     * @param width   Window width
+     * @param height  Window height
+     */
+    public GrayMatrix (byte[] data, int offset, int stride, int width, int height) {
+        checkLayout(data, offset, stride, width, height);
+        mData = data;
+        mOffset = offset;
+        mStride = stride;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Copy constructor.  The copy is always contiguous, even if the 
+     * source is a view into a larger buffer.
      * @param other  GrayMatrix to copy from.
      */
     public GrayMatrix (GrayMatrix other) {
@@ -52,8 +78,9 @@ public class GrayMatrix {
         int height = other.mHeight;
         mWidth = width;
         mHeight = height;
+        mStride = width;
         mData = new byte[width*height];
-        System.arraycopy(other.mData, 0, mData, 0, width * height);
+        copyRows(other.mData, other.mOffset, other.mStride, mData, 0, width, width, height);
     }
 
     public final int getWidth () {
@@ -64,23 +91,122 @@ public class GrayMatrix {
         return mHeight;
     }
 
+    /**
+     * @return Index of the top-left pixel in the backing array
+     */
+    public final int getOffset () {
+        return mOffset;
+    }
+
+    /**
+     * @return Distance in the backing array between vertically adjacent pixels
+     */
+    public final int getStride () {
+        return mStride;
+    }
+
+    /**
+     * @return True if the pixels occupy the first width*height entries 
+     *   of the backing array, row after row
+     */
+    public final boolean isContiguous () {
+        return mOffset == 0 && mStride == mWidth;
+    }
+
     public final int get (int i, int j) {
-        return GrayMatrix.getPixel(mData, mWidth, i, j);
+        return mData[mOffset + i*mStride + j] & 0xFF;
     }
 
     public final void set (int i, int j, byte value) {
-        GrayMatrix.setPixel(mData, mWidth, i, j, value);
+        mData[mOffset + i*mStride + j] = value;
     }
 
     public final void getRow (int i, byte[] values) {
-        int width = mWidth;
-        System.arraycopy(mData, i*width, values, 0, width);
+        System.arraycopy(mData, mOffset + i*mStride, values, 0, mWidth);
+    }
+
+    /**
+     * Compute integral image (and squared integral image) of this matrix.
+     * @param dest  Integral image to store results; re-allocated if size differs
+     * @return Destination integral image
+     */
+    public final IntegralImage integral (IntegralImage dest) {
+        return dest.compute(this);
+    }
+    
+    public final IntegralImage integral () {
+        return new IntegralImage(this);
     }
 
     // FIXME - remove this method??
+    /**
+     * @return Backing pixel array; for views, see {@link #getOffset()} 
+     *   and {@link #getStride()}
+     */
     public final byte[] getData () {
         return mData;
     }
+
+    /**
+     * Copy pixels into a contiguous array, which is the backing array 
+     * itself if this matrix is already contiguous and spans all of it.
+     * @return Array with width*height pixels, row after row
+     */
+    public final byte[] getCompactData () {
+        if (isContiguous() && mData.length == mWidth * mHeight) {
+            return mData;
+        }
+        byte[] data = new byte[mWidth * mHeight];
+        copyRows(mData, mOffset, mStride, data, 0, mWidth, mWidth, mHeight);
+        return data;
+    }
+
+    // ROI kernels address a whole buffer of imgWidth x imgHeight pixels, 
+    // so a view is passed as the stride-wide image that contains it, 
+    // with the ROI shifted by the view origin.
+    
+    final int originRow () {
+        return mStride == 0 ? 0 : mOffset / mStride;
+    }
+    
+    final int originCol () {
+        return mStride == 0 ? 0 : mOffset % mStride;
+    }
+    
+    final int bufferHeight () {
+        return originRow() + mHeight;
+    }
+    
+    final void checkViewRoi (int left, int top, int width, int height) {
+        if (!isContiguous() && (left < 0 || top < 0 || width < 0 || height < 0 
+                || left + width > mWidth || top + height > mHeight)) {
+            throw new IllegalArgumentException("ROI exceeds image boundaries");
+        }
+    }
+
+    protected static final void checkLayout (byte[] data, int offset, int stride, int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid image dimensions");
+        }
+        if (offset < 0 || stride < width || (stride == 0 && offset > 0) 
+                || (stride > 0 && offset % stride + width > stride)) {
+            throw new IllegalArgumentException("Invalid array offset or stride");
+        }
+        if (stride > 0 && (long)(offset/stride + height) * stride > data.length) {
+            throw new IllegalArgumentException("Image data array is too short");
+        }
+    }
+
+    protected static final void copyRows (byte[] in, int inOfs, int inStride, 
+            byte[] out, int outOfs, int outStride, int width, int height) {
+        if (inStride == width && outStride == width) {
+            System.arraycopy(in, inOfs, out, outOfs, width * height);
+            return;
+        }
+        for (int i = 0;  i < height;  i++) {
+            System.arraycopy(in, inOfs + i*inStride, out, outOfs + i*outStride, width);
+        }
+    }
     
     protected static final byte getByte (byte[] data, int width, int i, int j) {
         return data[i*width + j];
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Pool of frame-sized buffers ({@link GrayImage}s and <code>int[]</code> 
+ * ARGB buffers), keyed by their dimensions, so that steady-state frame 
+ * processing does not allocate.
+ * 
+ * Buffers are leased with {@link #leaseImage(int, int)} or 
+ * {@link #leaseIntArray(int)} and handed back with one of the 
+ * <code>release</code> methods once the caller is done with them; their 
+ * contents on lease are undefined.  A buffer must not be used after it 
+ * has been released, nor released twice.  Buffers that are never 
+ * released are simply garbage collected.
+ * 
+ * Idle buffers are bounded in total size; when the bound is exceeded, 
+ * those of the least recently used size go first.  Sizes that have not 
+ * been leased in a while (e.g., after a preview size change) are evicted 
+ * entirely.  All methods are thread-safe.
+ */
+public class ImageBufferPool {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "ImageBufferPool";
+    
+    /** Default bound on total size of idle buffers, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+    /** Default number of leases after which an unused size is evicted */
+    public static final int DEFAULT_STALE_LEASES = 64;
+    
+    private static ImageBufferPool sDefault = null;
+    
+    /**
+     * Idle buffers of one size.
+     */
+    private static final class Bucket {
+        final ArrayList<Object> mFree = new ArrayList<Object>();
+        final int mBytesEach;
+        long mLastLease;
+        
+        Bucket (int bytesEach, long lastLease) {
+            mBytesEach = bytesEach;
+            mLastLease = lastLease;
+        }
+    }
+    
+    private final long mMaxBytes;
+    private final int mStaleLeases;
+    
+    // Access-ordered, so that iteration starts from least recently used size
+    private final LinkedHashMap<Long, Bucket> mBuckets = new LinkedHashMap<Long, Bucket>(16, 0.75f, true);
+    private long mPooledBytes = 0;
+    private long mLeaseCount = 0;
+    private long mAllocCount = 0;
+    
+    /**
+     * @param maxBytes  Bound on total size of idle buffers
+     * @param staleLeases  Number of leases (of any size) after which a size 
+     *   that has not been leased is evicted
+     */
+    public ImageBufferPool (long maxBytes, int staleLeases) {
+        if (maxBytes < 0 || staleLeases <= 0) {
+            throw new IllegalArgumentException("Invalid pool limits");
+        }
+        mMaxBytes = maxBytes;
+        mStaleLeases = staleLeases;
+    }
+    
+    public ImageBufferPool () {
+        this(DEFAULT_MAX_BYTES, DEFAULT_STALE_LEASES);
+    }
+    
+    /**
+     * @return Process-wide pool, used by the {@link GrayImage} convenience methods
+     */
+    public static synchronized ImageBufferPool getDefault () {
+        if (sDefault == null) {
+            sDefault = new ImageBufferPool();
+        }
+        return sDefault;
+    }
+    
+    private static Long imageKey (int width, int height) {
+        return Long.valueOf(((long)width << 32) | height);
+    }
+    
+    private static Long intArrayKey (int length) {
+        // Negative, so it never collides with image keys
+        return Long.valueOf(-1L - length);
+    }
+    
+    /**
+     * Take an idle buffer of given size, if there is one.
+     */
+    private Object take (Long key, int bytesEach) {
+        long leaseCount = ++mLeaseCount;
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(bytesEach, leaseCount);
+            mBuckets.put(key, bucket);
+        }
+        bucket.mLastLease = leaseCount;
+        evictStale();
+        int n = bucket.mFree.size();
+        if (n == 0) {
+            ++mAllocCount;
+            return null;
+        }
+        mPooledBytes -= bytesEach;
+        return bucket.mFree.remove(n - 1);
+    }
+    
+    /**
+     * Return a buffer to its bucket, then trim pool to size bound.
+     */
+    private void put (Long key, int bytesEach, Object buf) {
+        if (bytesEach > mMaxBytes) {
+            return;
+        }
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(bytesEach, mLeaseCount);
+            mBuckets.put(key, bucket);
+        }
+        bucket.mFree.add(buf);
+        mPooledBytes += bytesEach;
+        Iterator<Bucket> it = mBuckets.values().iterator();
+        while (mPooledBytes > mMaxBytes && it.hasNext()) {
+            Bucket lru = it.next();
+            ArrayList<Object> free = lru.mFree;
+            while (mPooledBytes > mMaxBytes && !free.isEmpty()) {
+                free.remove(free.size() - 1);
+                mPooledBytes -= lru.mBytesEach;
+            }
+        }
+    }
+    
+    private void evictStale () {
+        long oldest = mLeaseCount - mStaleLeases;
+        Iterator<Bucket> it = mBuckets.values().iterator();
+        while (it.hasNext()) {
+            Bucket bucket = it.next();
+            if (bucket.mLastLease < oldest) {
+                mPooledBytes -= (long)bucket.mBytesEach * bucket.mFree.size();
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Lease an image; contents are undefined.
+     */
+    public final synchronized GrayImage leaseImage (int width, int height) {
+        GrayImage img = (GrayImage)take(imageKey(width, height), width * height);
+        return (img != null) ? img : new GrayImage(width, height);
+    }
+    
+    /**
+     * Return an image to the pool.  Images that do not own exactly a 
+     * width x height array (views, or wrappers of larger buffers) are 
+     * ignored, since leasing them again would hand out pixels that are 
+     * still shared, or an image whose layout differs from a fresh one.
+     */
+    public final synchronized void release (GrayImage img) {
+        if (img.mOffset != 0 || img.mStride != img.mWidth 
+                || img.mData.length != img.mWidth * img.mHeight) {
+            return;
+        }
+        put(imageKey(img.mWidth, img.mHeight), img.mWidth * img.mHeight, img);
+    }
+    
+    /**
+     * Lease an array of at least the given length; contents are undefined.
+     * Lengths are rounded up to a power of two, so that e.g. ARGB buffers 
+     * for regions that vary slightly in size from frame to frame can be shared.
+     */
+    public final synchronized int[] leaseIntArray (int minLength) {
+        int length = (minLength <= 1) ? 1 : Integer.highestOneBit(minLength - 1) << 1;
+        int[] buf = (int[])take(intArrayKey(length), 4 * length);
+        return (buf != null) ? buf : new int[length];
+    }
+    
+    public final synchronized void release (int[] buf) {
+        put(intArrayKey(buf.length), 4 * buf.length, buf);
+    }
+    
+    /**
+     * Drop all idle images of given size, e.g., when it is known that 
+     * they will no longer be needed.
+     */
+    public final synchronized void evictImages (int width, int height) {
+        Bucket bucket = mBuckets.remove(imageKey(width, height));
+        if (bucket != null) {
+            mPooledBytes -= (long)bucket.mBytesEach * bucket.mFree.size();
+        }
+    }
+    
+    /**
+     * Drop all idle buffers.
+     */
+    public final synchronized void clear () {
+        mBuckets.clear();
+        mPooledBytes = 0;
+    }
+    
+    /**
+     * @return Total size of idle buffers, in bytes
+     */
+    public final synchronized long getPooledBytes () {
+        return mPooledBytes;
+    }
+    
+    /**
+     * @return Number of leases that could not be served from the pool
+     */
+    public final synchronized long getAllocationCount () {
+        return mAllocCount;
+    }
+}
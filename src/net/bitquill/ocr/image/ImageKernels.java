@@ -0,0 +1,129 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+/**
+ * Backend for the pixel-level kernels behind {@link GrayImage}.
+ * 
+ * Signatures mirror the native methods of {@link GrayImage} one-to-one,
+ * so that every implementation has exactly the same semantics (including
+ * parameter validation) and can be swapped transparently.  Implementations
+ * must produce bit-identical output and must not keep any per-image state.
+ * 
+ * Images need not be contiguous.  Kernels that map a whole image take, 
+ * for every array, the index of its first pixel (<code>ofs</code>) and 
+ * the distance between the starts of consecutive rows 
+ * (<code>stride</code>), which must be at least the width.  Pixels outside
+ * the width x height region are neither read nor written, and neighbors 
+ * outside it are ignored, as if the region were an image of its own.  
+ * Reductions and conversions take a region of interest, and 
+ * <code>imgWidth</code> is the stride.
+ */
+interface ImageKernels {
+
+    public void meanFilter (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int radius);
+    
+    /**
+     * Note that <code>offset</code> is the threshold offset, unrelated to 
+     * the array offsets.
+     */
+    public void adaptiveThreshold (byte[] in, int inOfs, int inStride, byte[] thresh, int threshOfs, int threshStride, 
+            byte[] out, int outOfs, int outStride, int width, int height, byte hi, byte lo, int offset);
+    public void contrastStretch (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte min, byte max);
+    
+    /**
+     * Map every pixel through a 256-entry lookup table.  Input and output 
+     * may be the same image.
+     */
+    public void applyLut (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte[] lut);
+    
+    /**
+     * Halve resolution by averaging each 2x2 block (area downsampling), 
+     * rounded to nearest.  Output is width x height; input is read as a
+     * 2*width x 2*height image.  Input and output must not overlap.
+     */
+    public void downsample (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height);
+    
+    public void grayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height);
+    
+    public int min (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    public int max (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    public float mean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    public float variance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+    
+    /**
+     * Variance of the 4-neighbor Laplacian, a focus measure: higher values
+     * mean sharper edges.  Evaluated at the pixels of the region of interest
+     * whose neighbors also lie in it, i.e., all but its one-pixel border;
+     * zero if there are none.
+     */
+    public float laplacianVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height);
+
+    public void histogram (byte[] in, int imgWidth, int imgHeight, int[] hist, int left, int top, int width, int height);
+    
+    /**
+     * Min, max, sum and sum of squares of a region, in a single pass; stored 
+     * in out[0..3].  An empty region gives min 255 and max 0, as in 
+     * {@link #min} and {@link #max}.  If hist is not null, the 256-bin 
+     * histogram of the region is computed in the same pass.
+     */
+    public void statistics (byte[] in, int imgWidth, int imgHeight, long[] out, int[] hist, 
+            int left, int top, int width, int height);
+    
+    /**
+     * Grayscale erosion by a flat structuring element.  Linear offsets 
+     * are relative to the input stride.
+     */
+    public void erode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, 
+            int numNeighbors, int[] hOffsets, int vOffsets[], int linearOffsets[],
+            int minX, int maxX, int minY, int maxY);
+    public void dilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, 
+            int numNeighbors, int[] hOffsets, int vOffsets[], int linearOffsets[],
+            int minX, int maxX, int minY, int maxY);
+    
+    /**
+     * Erosion by a line of consecutive pixels, at offsets minOffset..maxOffset 
+     * (inclusive) along one axis, using the van Herk/Gil-Werman algorithm.
+     * Cost per pixel is constant, independent of line length.  Neighbors 
+     * outside the image are ignored, as in {@link #erode}.  Input and output 
+     * may be the same image.
+     */
+    public void lineErode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical);
+    public void lineDilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical);
+    
+    /**
+     * Contrast stretch through a 256-entry lookup table, local mean filter,
+     * adaptive threshold, and erosion by a horizontal and then a vertical
+     * line of the given radii, in a single streaming pass (see 
+     * {@link FusedBinarizer}).  The thresholded image goes to 
+     * <code>thr</code> and the eroded image to <code>out</code>; neither 
+     * may overlap the input.
+     */
+    public void fusedBinarize (byte[] in, int inOfs, int inStride, byte[] thr, int thrOfs, int thrStride,
+            byte[] out, int outOfs, int outStride, int width, int height, byte[] lut, 
+            int meanRadius, byte hi, byte lo, int offset, int hRadius, int vRadius);
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+/**
+ * Image pyramid by repeated 2x area downsampling; level 0 is the source
+ * image itself, and each further level is half the width and height of 
+ * the previous one (rounded down).
+ * 
+ * Levels are leased from the default {@link ImageBufferPool} and kept 
+ * across builds, so rebuilding for same-size frames allocates nothing.
+ * Images obtained from {@link #getLevel(int)} are overwritten by the next 
+ * build, and invalid after {@link #release()}.
+ */
+public final class ImagePyramid {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "ImagePyramid";
+    
+    private final GrayImage[] mLevels;
+    private int mNumLevels = 0;
+    
+    /**
+     * @param maxLevels  Maximum number of levels above the source image
+     */
+    public ImagePyramid (int maxLevels) {
+        if (maxLevels < 0) {
+            throw new IllegalArgumentException("Number of levels must be non-negative");
+        }
+        mLevels = new GrayImage[maxLevels + 1];
+    }
+    
+    /**
+     * @return Number of levels that can be built from an image of given 
+     *   size, without any level becoming narrower or shorter than the minimum
+     */
+    public static int numLevels (int width, int height, int minWidth, int minHeight) {
+        int n = 0;
+        while ((width >> (n + 1)) >= Math.max(1, minWidth) && (height >> (n + 1)) >= Math.max(1, minHeight)) {
+            ++n;
+        }
+        return n;
+    }
+    
+    /**
+     * Build levels 1 to numLevels from the given image.
+     * @param img  Source image; becomes level 0, and is not copied
+     * @param numLevels  Number of levels above the source
+     * @return This object
+     */
+    public final ImagePyramid build (GrayImage img, int numLevels) {
+        GrayImage[] levels = mLevels;
+        if (numLevels < 0 || numLevels >= levels.length) {
+            throw new IllegalArgumentException("Invalid number of levels");
+        }
+        if ((img.getWidth() >> numLevels) == 0 || (img.getHeight() >> numLevels) == 0) {
+            throw new IllegalArgumentException("Image too small for number of levels");
+        }
+        ImageBufferPool pool = ImageBufferPool.getDefault();
+        levels[0] = img;
+        for (int l = 1;  l <= numLevels;  l++) {
+            GrayImage src = levels[l - 1];
+            int width = src.getWidth() / 2, height = src.getHeight() / 2;
+            GrayImage level = levels[l];
+            if (level != null && (level.getWidth() != width || level.getHeight() != height)) {
+                pool.release(level);
+                level = null;
+            }
+            if (level == null) {
+                level = levels[l] = pool.leaseImage(width, height);
+            }
+            src.downsample(level);
+        }
+        mNumLevels = numLevels;
+        return this;
+    }
+    
+    /**
+     * @return Number of levels above the source, as of the last build
+     */
+    public final int getNumLevels () {
+        return mNumLevels;
+    }
+    
+    /**
+     * @param level  Level number, from 0 (source) to {@link #getNumLevels()}
+     */
+    public final GrayImage getLevel (int level) {
+        if (level < 0 || level > mNumLevels) {
+            throw new IndexOutOfBoundsException("No pyramid level " + level);
+        }
+        return mLevels[level];
+    }
+    
+    /**
+     * Return all levels to the default pool, and forget the source image.
+     */
+    public final void release () {
+        GrayImage[] levels = mLevels;
+        ImageBufferPool pool = ImageBufferPool.getDefault();
+        levels[0] = null;
+        for (int l = 1;  l < levels.length;  l++) {
+            if (levels[l] != null) {
+                pool.release(levels[l]);
+                levels[l] = null;
+            }
+        }
+        mNumLevels = 0;
+    }
+}
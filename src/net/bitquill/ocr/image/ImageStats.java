@@ -0,0 +1,257 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Arrays;
+
+import android.graphics.Rect;
+
+/**
+ * Intensity statistics of an image or region: min, max, sum and sum of
+ * squares, and optionally the 256-bin histogram, all gathered in a single
+ * pass over the pixels.  Results agree exactly with the separate
+ * {@link GrayImage#min()}, {@link GrayImage#max()}, {@link GrayImage#mean()},
+ * {@link GrayImage#variance()} and {@link GrayImage#histogram()} reductions.
+ * 
+ * When the histogram is available, the statistics of the contrast-stretched
+ * image can be derived without stretching any pixels, via 
+ * {@link #stretched(ImageStats)}.
+ * 
+ * Instances are reusable, and are not thread-safe.
+ */
+public class ImageStats {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "ImageStats";
+    
+    private final long[] mMoments = new long[4];  // min, max, sum, sum of squares
+    private final int[] mHist = new int[256];
+    private final byte[] mLut = new byte[256];
+    private final int[] mTmpHist = new int[256];
+    private boolean mHasHistogram = false;
+    private int mCount = 0;
+    
+    public ImageStats () {
+    }
+    
+    /**
+     * Compute statistics of given region.  Right and bottom are exclusive.
+     * @param withHistogram  Whether the histogram should also be computed
+     * @return This object
+     */
+    public final ImageStats compute (GrayMatrix img, int left, int top, int right, int bottom, 
+            boolean withHistogram) {
+        int width = right - left, height = bottom - top;
+        img.checkViewRoi(left, top, width, height);
+        GrayImage.getKernels().statistics(img.mData, img.mStride, img.bufferHeight(), mMoments, 
+                withHistogram ? mHist : null, img.originCol() + left, img.originRow() + top, width, height);
+        mHasHistogram = withHistogram;
+        mCount = width * height;
+        return this;
+    }
+    
+    public final ImageStats compute (GrayMatrix img, Rect roi, boolean withHistogram) {
+        return compute(img, roi.left, roi.top, roi.right, roi.bottom, withHistogram);
+    }
+    
+    public final ImageStats compute (GrayMatrix img, boolean withHistogram) {
+        return compute(img, 0, 0, img.mWidth, img.mHeight, withHistogram);
+    }
+    
+    /**
+     * Compute the statistics that the contrast-stretched image (see 
+     * {@link #contrastStretch(GrayImage, GrayImage)}) would have, from the 
+     * histogram alone.  Requires a histogram.
+     * @param dest  Receives stretched statistics, including histogram; may be this object
+     * @return dest
+     */
+    public final ImageStats stretched (ImageStats dest) {
+        checkHistogram();
+        return mapped(LookupTables.stretch(getMin(), getMax(), mLut), dest);
+    }
+    
+    /**
+     * Compute the statistics that the image would have after 
+     * {@link GrayImage#applyLut(byte[], GrayImage)}, from the histogram
+     * alone.  Requires a histogram.
+     * @param lut  Lookup table with 256 entries
+     * @param dest  Receives mapped statistics, including histogram; may be this object
+     * @return dest
+     */
+    public final ImageStats mapped (byte[] lut, ImageStats dest) {
+        checkHistogram();
+        int[] hist = mHist, mappedHist = mTmpHist;
+        Arrays.fill(mappedHist, 0);
+        for (int val = 0;  val < 256;  val++) {
+            mappedHist[lut[val] & 0xFF] += hist[val];
+        }
+        int mn = 255, mx = 0;
+        long sum = 0, sumSquares = 0;
+        for (int val = 0;  val < 256;  val++) {
+            int count = mappedHist[val];
+            if (count != 0) {
+                mn = Math.min(mn, val);
+                mx = val;
+                sum += (long)count * val;
+                sumSquares += (long)count * (val*val);
+            }
+        }
+        System.arraycopy(mappedHist, 0, dest.mHist, 0, 256);
+        long[] moments = dest.mMoments;
+        moments[0] = mn;
+        moments[1] = mx;
+        moments[2] = sum;
+        moments[3] = sumSquares;
+        dest.mCount = mCount;
+        dest.mHasHistogram = true;
+        return dest;
+    }
+    
+    /**
+     * Contrast stretch using the range found by the last {@link #compute}.
+     */
+    public final GrayImage contrastStretch (GrayImage img, GrayImage dest) {
+        return img.contrastStretch((byte)getMin(), (byte)getMax(), dest);
+    }
+    
+    /**
+     * Smallest intensity such that more than the given fraction of pixels 
+     * are at or below it.  Requires a histogram.
+     * @param fraction  In [0, 1); zero gives the minimum
+     * @return Percentile, or 255 for an empty region (as {@link #getMin()})
+     */
+    public final int getLowerPercentile (float fraction) {
+        checkHistogram();
+        int[] hist = mHist;
+        long threshold = (long)Math.floor(fraction * mCount);
+        long cum = 0;
+        for (int val = 0;  val < 256;  val++) {
+            cum += hist[val];
+            if (cum > threshold) {
+                return val;
+            }
+        }
+        return 255;
+    }
+    
+    /**
+     * Largest intensity such that more than the given fraction of pixels 
+     * are at or above it.  Requires a histogram.
+     * @param fraction  In [0, 1); zero gives the maximum
+     * @return Percentile, or 0 for an empty region (as {@link #getMax()})
+     */
+    public final int getUpperPercentile (float fraction) {
+        checkHistogram();
+        int[] hist = mHist;
+        long threshold = (long)Math.floor(fraction * mCount);
+        long cum = 0;
+        for (int val = 255;  val >= 0;  val--) {
+            cum += hist[val];
+            if (cum > threshold) {
+                return val;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Contrast stretch table that clips the given fraction of pixels at 
+     * each end of the histogram, so that a few very dark or very bright 
+     * pixels (e.g., specular highlights) do not compress the range of the 
+     * rest.  With a zero fraction, same as stretching between min and max.
+     * Requires a histogram.
+     * @return lut
+     */
+    public final byte[] percentileStretchLut (float clipFraction, byte[] lut) {
+        return percentileStretchLut(clipFraction, 1.0f, lut);
+    }
+    
+    /**
+     * Same as {@link #percentileStretchLut(float, byte[])}, followed by a 
+     * gamma curve.
+     * @return lut
+     */
+    public final byte[] percentileStretchLut (float clipFraction, float gamma, byte[] lut) {
+        int lo = getLowerPercentile(clipFraction), hi = getUpperPercentile(clipFraction);
+        return LookupTables.stretchGamma(lo, hi, gamma, lut);
+    }
+    
+    private void checkHistogram () {
+        if (!mHasHistogram) {
+            throw new IllegalStateException("Histogram was not computed");
+        }
+    }
+    
+    public final int getMin () {
+        return (int)mMoments[0];
+    }
+    
+    public final int getMax () {
+        return (int)mMoments[1];
+    }
+    
+    /**
+     * @return Max minus min, or a negative value for an empty region
+     */
+    public final int getRange () {
+        return getMax() - getMin();
+    }
+    
+    public final long getSum () {
+        return mMoments[2];
+    }
+    
+    public final long getSumSquares () {
+        return mMoments[3];
+    }
+    
+    /**
+     * @return Number of pixels in region
+     */
+    public final int getCount () {
+        return mCount;
+    }
+    
+    /**
+     * @return Mean, computed exactly as {@link GrayImage#mean()}
+     */
+    public final float getMean () {
+        return (float)mMoments[2] / mCount;
+    }
+    
+    /**
+     * @return Variance, computed exactly as {@link GrayImage#variance()}
+     */
+    public final float getVariance () {
+        float mean = getMean();
+        return (float)mMoments[3] / mCount - mean*mean;
+    }
+    
+    public final boolean hasHistogram () {
+        return mHasHistogram;
+    }
+    
+    /**
+     * @return Histogram of last computation, or null if not computed; 
+     *   owned by this object
+     */
+    public final int[] getHistogram () {
+        return mHasHistogram ? mHist : null;
+    }
+}
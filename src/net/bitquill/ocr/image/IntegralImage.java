@@ -0,0 +1,332 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import android.graphics.Rect;
+
+/**
+ * Summed-area table (integral image) of a grayscale matrix, together with
+ * the table of squared values.  Once computed (a single pass over the 
+ * image), the sum, mean and variance of any rectangular region can be 
+ * obtained in constant time.
+ * 
+ * Tables have one extra leading row and column of zeros, so that entry
+ * (i, j) holds the sum of all pixels above and to the left of (i, j),
+ * exclusive.  Region coordinates follow {@link GrayImage#min(int, int, int, int)},
+ * i.e., right and bottom are exclusive.
+ * 
+ * Sums are kept as 32-bit integers, which is enough for images of up 
+ * to 8 million pixels.
+ */
+public class IntegralImage {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "IntegralImage";
+    
+    private int mWidth;
+    private int mHeight;
+    private int[] mSum;
+    private long[] mSumSquares;
+    
+    public IntegralImage (int width, int height) {
+        allocate(width, height);
+    }
+    
+    public IntegralImage (GrayMatrix img) {
+        this(img.mWidth, img.mHeight);
+        compute(img);
+    }
+    
+    private void allocate (int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        mWidth = width;
+        mHeight = height;
+        int size = (width + 1) * (height + 1);
+        mSum = new int[size];
+        mSumSquares = new long[size];
+    }
+    
+    public final int getWidth () {
+        return mWidth;
+    }
+    
+    public final int getHeight () {
+        return mHeight;
+    }
+    
+    /**
+     * Compute the tables from the given image, in a single pass.
+     * Tables are re-allocated only if the image size changed.
+     * @param img  Source image
+     * @return This object
+     */
+    public final IntegralImage compute (GrayMatrix img) {
+        int width = img.mWidth, height = img.mHeight;
+        if (width != mWidth || height != mHeight) {
+            allocate(width, height);
+        }
+        byte[] data = img.mData;
+        int dataOfs = img.mOffset, dataStride = img.mStride;
+        int[] sum = mSum;
+        long[] sumSquares = mSumSquares;
+        int stride = width + 1;
+        // Row 0 and column 0 are zero, and are never written after allocation
+        for (int i = 0;  i < height;  i++) {
+            int rowSum = 0;
+            long rowSumSquares = 0;
+            int inOfs = dataOfs + i*dataStride;
+            int prevOfs = i*stride + 1;
+            int outOfs = prevOfs + stride;
+            for (int j = 0;  j < width;  j++) {
+                int val = data[inOfs + j] & 0xFF;
+                rowSum += val;
+                rowSumSquares += val*val;
+                sum[outOfs + j] = sum[prevOfs + j] + rowSum;
+                sumSquares[outOfs + j] = sumSquares[prevOfs + j] + rowSumSquares;
+            }
+        }
+        return this;
+    }
+    
+    private void checkRegion (int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0 || right > mWidth || bottom > mHeight || left > right || top > bottom) {
+            throw new IllegalArgumentException("ROI exceeds image boundaries");
+        }
+    }
+    
+    private static int boxSum (int[] sum, int stride, int left, int top, int right, int bottom) {
+        return sum[bottom*stride + right] - sum[top*stride + right] 
+            - sum[bottom*stride + left] + sum[top*stride + left];
+    }
+    
+    private static long boxSum (long[] sum, int stride, int left, int top, int right, int bottom) {
+        return sum[bottom*stride + right] - sum[top*stride + right] 
+            - sum[bottom*stride + left] + sum[top*stride + left];
+    }
+    
+    public final int sum (int left, int top, int right, int bottom) {
+        checkRegion(left, top, right, bottom);
+        return boxSum(mSum, mWidth + 1, left, top, right, bottom);
+    }
+    
+    public final int sum (Rect roi) {
+        return sum(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    public final int sum () {
+        return mSum[mSum.length - 1];
+    }
+    
+    public final long sumSquares (int left, int top, int right, int bottom) {
+        checkRegion(left, top, right, bottom);
+        return boxSum(mSumSquares, mWidth + 1, left, top, right, bottom);
+    }
+    
+    public final long sumSquares (Rect roi) {
+        return sumSquares(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    public final long sumSquares () {
+        return mSumSquares[mSumSquares.length - 1];
+    }
+    
+    /**
+     * Region mean; same result as {@link GrayImage#mean(Rect)}.
+     */
+    public final float mean (int left, int top, int right, int bottom) {
+        return (float)sum(left, top, right, bottom) / ((right - left) * (bottom - top));
+    }
+    
+    public final float mean (Rect roi) {
+        return mean(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    public final float mean () {
+        return (float)sum() / (mWidth * mHeight);
+    }
+    
+    /**
+     * Region variance; same result as {@link GrayImage#variance(Rect)}.
+     */
+    public final float variance (int left, int top, int right, int bottom) {
+        int area = (right - left) * (bottom - top);
+        float mean = (float)sum(left, top, right, bottom) / area;
+        return (float)sumSquares(left, top, right, bottom) / area - mean*mean;
+    }
+    
+    public final float variance (Rect roi) {
+        return variance(roi.left, roi.top, roi.right, roi.bottom);
+    }
+    
+    public final float variance () {
+        int area = mWidth * mHeight;
+        float mean = (float)sum() / area;
+        return (float)sumSquares() / area - mean*mean;
+    }
+    
+    /**
+     * Square mean filter, with constant cost per pixel regardless of radius.
+     * Windows are clipped at the image borders, so the output is identical
+     * to {@link GrayImage#meanFilter(int, GrayImage)}; unlike that, any 
+     * non-negative radius is allowed.
+     * 
+     * @param radius  Radius of mean filter; diameter is 2*radius + 1
+     * @param dest    Destination image; must be same size as source image
+     * @return Destination image
+     */
+    public final GrayImage meanFilter (int radius, GrayImage dest) {
+        int width = mWidth, height = mHeight;
+        if (dest.mWidth != width || dest.mHeight != height) {
+            throw new IllegalArgumentException("Destination image size must match");
+        }
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must be non-negative");
+        }
+        int[] sum = mSum;
+        byte[] out = dest.mData;
+        int destOfs = dest.mOffset, destStride = dest.mStride;
+        int stride = width + 1;
+        for (int i = 0;  i < height;  i++) {
+            int top = Math.max(0, i - radius);
+            int bottom = Math.min(height, i + radius + 1);
+            int h = bottom - top;
+            int topOfs = top*stride, bottomOfs = bottom*stride;
+            int outOfs = destOfs + i*destStride;
+            for (int j = 0;  j < width;  j++) {
+                int left = Math.max(0, j - radius);
+                int right = Math.min(width, j + radius + 1);
+                int s = sum[bottomOfs + right] - sum[topOfs + right] 
+                    - sum[bottomOfs + left] + sum[topOfs + left];
+                out[outOfs + j] = (byte)(s / ((right - left) * h));
+            }
+        }
+        return dest;
+    }
+    
+    public final GrayImage meanFilter (int radius) {
+        return meanFilter(radius, ImageBufferPool.getDefault().leaseImage(mWidth, mHeight));
+    }
+    
+    /**
+     * Niblack local threshold.  A pixel is foreground if it does not exceed
+     * <code>m + k*s</code>, where m and s are the mean and standard deviation
+     * over a square window, clipped at the borders as in 
+     * {@link #meanFilter(int, GrayImage)}.  Foreground pixels are set to 0 and 
+     * background to 255.  If <code>invert</code> is true, foreground is light, 
+     * i.e., the image is thresholded as if it were negated.
+     * 
+     * With <code>k = 0</code> the result is identical to 
+     * {@link GrayImage#adaptiveThreshold(byte, byte, int, GrayImage, GrayImage)}
+     * with zero offset against {@link #meanFilter(int, GrayImage)}.
+     * 
+     * @param img     Image these tables were computed from
+     * @param radius  Window radius; diameter is 2*radius + 1
+     * @param k       Weight of standard deviation; typically -0.2
+     * @param invert  Whether foreground is light on dark background
+     * @param dest    Destination image; may be the same as img
+     * @return Destination image
+     */
+    public final GrayImage niblackThreshold (GrayMatrix img, int radius, float k, boolean invert, GrayImage dest) {
+        return localThreshold(img, radius, k, 0.0f, false, invert, dest);
+    }
+    
+    /**
+     * Sauvola local threshold.  Same as 
+     * {@link #niblackThreshold(GrayMatrix, int, float, boolean, GrayImage)}, 
+     * but the threshold is <code>m * (1 + k*(s/r - 1))</code>, which adapts 
+     * better to low-contrast regions and uneven lighting.
+     * 
+     * @param k  Sensitivity; typically between 0.2 and 0.5
+     * @param r  Dynamic range of standard deviation; typically 128
+     */
+    public final GrayImage sauvolaThreshold (GrayMatrix img, int radius, float k, float r, boolean invert, GrayImage dest) {
+        if (!(r > 0)) {
+            throw new IllegalArgumentException("Standard deviation range must be positive");
+        }
+        return localThreshold(img, radius, k, r, true, invert, dest);
+    }
+    
+    private GrayImage localThreshold (GrayMatrix img, int radius, float k, float r, 
+            boolean sauvola, boolean invert, GrayImage dest) {
+        int width = mWidth, height = mHeight;
+        if (img.mWidth != width || img.mHeight != height) {
+            throw new IllegalArgumentException("Source image size must match");
+        }
+        if (dest.mWidth != width || dest.mHeight != height) {
+            throw new IllegalArgumentException("Destination image size must match");
+        }
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must be non-negative");
+        }
+        int[] sum = mSum;
+        long[] sumSquares = mSumSquares;
+        byte[] in = img.mData, out = dest.mData;
+        int inOfs = img.mOffset, inStride = img.mStride;
+        int outOfs = dest.mOffset, outStride = dest.mStride;
+        int stride = width + 1;
+        // Everything is scaled by window area n, and the comparison with the
+        // standard deviation is squared, to avoid a division and square root
+        // per pixel.  With S, Q the window sums, and V = n*Q - S*S (that is, 
+        // n^2 times the variance), a pixel is background iff A > c*sqrt(V), 
+        // where for Niblack A = n*val - S and c = k, whereas for Sauvola 
+        // A = n*val - (1 - k)*S and c = k*S/(n*r).
+        double oneMinusK = 1.0 - k, kOverR = sauvola ? k / r : 0.0;
+        for (int i = 0;  i < height;  i++) {
+            int top = Math.max(0, i - radius);
+            int bottom = Math.min(height, i + radius + 1);
+            int h = bottom - top;
+            int topOfs = top*stride, bottomOfs = bottom*stride;
+            int inRow = inOfs + i*inStride, outRow = outOfs + i*outStride;
+            for (int j = 0;  j < width;  j++) {
+                int left = Math.max(0, j - radius);
+                int right = Math.min(width, j + radius + 1);
+                int area = (right - left) * h;
+                int s = sum[bottomOfs + right] - sum[topOfs + right] 
+                    - sum[bottomOfs + left] + sum[topOfs + left];
+                long sq = sumSquares[bottomOfs + right] - sumSquares[topOfs + right] 
+                    - sumSquares[bottomOfs + left] + sumSquares[topOfs + left];
+                double v = (double)area * sq - (double)s * s;
+                int val = in[inRow + j] & 0xFF;
+                if (invert) {
+                    // Variance of negated window is the same
+                    s = 255*area - s;
+                    val = 255 - val;
+                }
+                double a, c;
+                if (sauvola) {
+                    a = (double)area * val - oneMinusK * s;
+                    c = kOverR * s / area;
+                } else {
+                    a = (long)area * val - s;
+                    c = k;
+                }
+                boolean background;
+                if (c >= 0) {
+                    background = a > 0 && a*a > c*c*v;
+                } else {
+                    background = a >= 0 || a*a < c*c*v;
+                }
+                out[outRow + j] = background ? (byte)255 : 0;
+            }
+        }
+        return dest;
+    }
+}
@@ -0,0 +1,799 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Arrays;
+
+/**
+ * Pure-Java implementation of the image kernels, used when libimageproc 
+ * cannot be loaded (e.g., on a plain JVM).  Output is bit-identical to the
+ * native kernels, and so are parameter checks and exception messages.
+ * 
+ * None of the methods allocate memory in steady state; the few scratch 
+ * buffers needed are kept per-thread and grown on demand.
+ */
+final class JavaImageKernels implements ImageKernels {
+    
+    private static final ThreadLocal<int[]> sIntScratch = new ThreadLocal<int[]>();
+    private static final ThreadLocal<byte[]> sLutScratch = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<byte[]> sByteScratch = new ThreadLocal<byte[]>();
+    
+    /**
+     * Get a per-thread scratch buffer of at least the given length.
+     * Contents are undefined; callers must initialize what they use.
+     */
+    static final int[] intScratch (int length) {
+        int[] buf = sIntScratch.get();
+        if (buf == null || buf.length < length) {
+            buf = new int[length];
+            sIntScratch.set(buf);
+        }
+        return buf;
+    }
+    
+    /**
+     * Same as {@link #intScratch(int)}, for bytes.
+     */
+    static final byte[] byteScratch (int length) {
+        byte[] buf = sByteScratch.get();
+        if (buf == null || buf.length < length) {
+            buf = new byte[length];
+            sByteScratch.set(buf);
+        }
+        return buf;
+    }
+    
+    static final byte[] lutScratch () {
+        byte[] lut = sLutScratch.get();
+        if (lut == null) {
+            lut = new byte[256];
+            sLutScratch.set(lut);
+        }
+        return lut;
+    }
+
+    @Override
+    public void meanFilter (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int radius) {
+        // Check parameters
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        if (2*radius + 1 > width || 2*radius + 1 > height) {
+            throw new IllegalArgumentException("Radius is too large");
+        }
+        validateArray(in, inOfs, inStride, width, height, "Input array too short");
+        validateArray(out, outOfs, outStride, width, height, "Output array too short");
+        
+        // Running column sums over rows [i-radius, i+radius], clipped
+        int[] colSum = intScratch(width);
+        Arrays.fill(colSum, 0, width, 0);
+        for (int si = 0;  si <= radius;  si++) {
+            addRow(colSum, in, inOfs + si*inStride, width, 1);
+        }
+        
+        for (int i = 0;  i < height;  i++) {
+            if (i > 0) {
+                int rowInc = i + radius, rowDec = i - radius - 1;
+                if (rowInc < height) {
+                    addRow(colSum, in, inOfs + rowInc*inStride, width, 1);
+                }
+                if (rowDec >= 0) {
+                    addRow(colSum, in, inOfs + rowDec*inStride, width, -1);
+                }
+            }
+            // Clipped window height
+            int h = Math.min(height - 1, i + radius) - Math.max(0, i - radius) + 1;
+            
+            // Slide horizontally over column sums; same three-way split as native code
+            int rowOfs = outOfs + i*outStride;
+            int sum = 0;
+            for (int sj = 0;  sj <= radius;  sj++) {
+                sum += colSum[sj];
+            }
+            out[rowOfs] = (byte)(sum / ((radius + 1)*h));
+            for (int j = 1;  j < radius + 1;  j++) {
+                // Left edge
+                sum += colSum[j + radius];
+                out[rowOfs + j] = (byte)(sum / ((j + radius + 1)*h));
+            }
+            int area = (2*radius + 1)*h;
+            for (int j = radius + 1;  j < width - radius;  j++) {
+                // Internal
+                sum += colSum[j + radius] - colSum[j - radius - 1];
+                out[rowOfs + j] = (byte)(sum / area);
+            }
+            for (int j = Math.max(radius + 1, width - radius);  j < width;  j++) {
+                // Right edge
+                sum -= colSum[j - radius - 1];
+                out[rowOfs + j] = (byte)(sum / ((width - j + radius)*h));
+            }
+        }
+    }
+    
+    private static void addRow (int[] colSum, byte[] data, int rowOfs, int width, int sign) {
+        if (sign > 0) {
+            for (int j = 0;  j < width;  j++) {
+                colSum[j] += data[rowOfs + j] & 0xFF;
+            }
+        } else {
+            for (int j = 0;  j < width;  j++) {
+                colSum[j] -= data[rowOfs + j] & 0xFF;
+            }
+        }
+    }
+    
+    /**
+     * Check that a width x height image, starting at ofs with rows stride 
+     * apart, fits in the array.  Width and height must already be checked.
+     */
+    private static void validateArray (byte[] data, int ofs, int stride, int width, int height, String tooShort) {
+        if (ofs < 0 || stride < width) {
+            throw new IllegalArgumentException("Invalid array offset or stride");
+        }
+        if (width > 0 && height > 0 && (long)(height - 1) * stride + width > data.length - ofs) {
+            throw new IllegalArgumentException(tooShort);
+        }
+    }
+    
+    private static void validateMapParameters (byte[] in, int inOfs, int inStride, 
+            byte[] out, int outOfs, int outStride, int imgWidth, int imgHeight) {
+        if (imgWidth < 0 || imgHeight < 0) {
+            throw new IllegalArgumentException("Image width and height must be non-negative");
+        }
+        validateArray(in, inOfs, inStride, imgWidth, imgHeight, "Input array too short");
+        validateArray(out, outOfs, outStride, imgWidth, imgHeight, "Output array too short");
+    }
+
+    @Override
+    public void adaptiveThreshold (byte[] in, int inOfs, int inStride, byte[] thresh, int threshOfs, int threshStride, 
+            byte[] out, int outOfs, int outStride, int width, int height, byte hi, byte lo, int offset) {
+        // Check general parameters
+        validateMapParameters(in, inOfs, inStride, out, outOfs, outStride, width, height);
+        // Check thresholding-specific parameters
+        validateArray(thresh, threshOfs, threshStride, width, height, "Threshold array too short");
+        
+        for (int i = 0;  i < height;  i++) {
+            int inRow = inOfs + i*inStride, thrRow = threshOfs + i*threshStride, outRow = outOfs + i*outStride;
+            for (int j = 0;  j < width;  j++) {
+                // Use signed ints; bytes may overflow
+                int val = in[inRow + j] & 0xFF;
+                int thr = thresh[thrRow + j] & 0xFF;
+                out[outRow + j] = (thr - val < offset) ? hi : lo;
+            }
+        }
+    }
+
+    @Override
+    public void contrastStretch (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte min, byte max) {
+        // Check general parameters
+        validateMapParameters(in, inOfs, inStride, out, outOfs, outStride, width, height);
+        
+        // Per-pixel cost is a single table lookup
+        byte[] lut = LookupTables.stretch(min & 0xFF, max & 0xFF, lutScratch());
+        lutMap(in, inOfs, inStride, out, outOfs, outStride, width, height, lut);
+    }
+
+    @Override
+    public void applyLut (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte[] lut) {
+        // Check general parameters
+        validateMapParameters(in, inOfs, inStride, out, outOfs, outStride, width, height);
+        if (lut.length < 256) {
+            throw new IllegalArgumentException("Lookup table too short");
+        }
+        lutMap(in, inOfs, inStride, out, outOfs, outStride, width, height, lut);
+    }
+    
+    @Override
+    public void downsample (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height) {
+        // Check parameters
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        validateArray(in, inOfs, inStride, 2*width, 2*height, "Input array too short");
+        validateArray(out, outOfs, outStride, width, height, "Output array too short");
+        
+        for (int i = 0;  i < height;  i++) {
+            int top = inOfs + 2*i*inStride, bottom = top + inStride;
+            int outRow = outOfs + i*outStride;
+            for (int j = 0;  j < width;  j++) {
+                int sum = (in[top + 2*j] & 0xFF) + (in[top + 2*j + 1] & 0xFF) 
+                    + (in[bottom + 2*j] & 0xFF) + (in[bottom + 2*j + 1] & 0xFF);
+                out[outRow + j] = (byte)((sum + 2) >> 2);
+            }
+        }
+    }
+    
+    private static void lutMap (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte[] lut) {
+        if (inStride == width && outStride == width) {
+            // Contiguous; single loop over all pixels
+            int size = width * height;
+            for (int k = 0;  k < size;  k++) {
+                out[outOfs + k] = lut[in[inOfs + k] & 0xFF];
+            }
+            return;
+        }
+        for (int i = 0;  i < height;  i++) {
+            int inRow = inOfs + i*inStride, outRow = outOfs + i*outStride;
+            for (int j = 0;  j < width;  j++) {
+                out[outRow + j] = lut[in[inRow + j] & 0xFF];
+            }
+        }
+    }
+
+    @Override
+    public void grayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height) {
+        // Check parameters
+        if (width < 0 || height < 0 || imgWidth < 0 || imgHeight < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        if (out.length < width * height) {
+            throw new IllegalArgumentException("Output array too short");
+        }
+        if (in.length < imgWidth * imgHeight) {
+            throw new IllegalArgumentException("Input array too short");
+        }
+        if (left < 0 || left + width > imgWidth || top < 0 || top + height > imgHeight) {
+            throw new IllegalArgumentException("ROI exceeds image");
+        }
+        
+        for (int i = 0;  i < height;  i++) {
+            int inOfs = (top + i)*imgWidth + left;
+            int outOfs = i*width;
+            for (int j = 0;  j < width;  j++) {
+                int gray = in[inOfs + j] & 0xFF;
+                out[outOfs + j] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+    }
+    
+    private static void validateReduceParameters (byte[] in, int imgWidth, int imgHeight, 
+            int left, int top, int width, int height) {
+        if (imgWidth < 0 || imgHeight < 0) {
+            throw new IllegalArgumentException("Image width and height must be non-negative");
+        }
+        if (in.length < imgWidth * imgHeight) {
+            throw new IllegalArgumentException("Input array too short");
+        }
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("ROI width and height must be non-negative");
+        }
+        if (left < 0 || left + width > imgWidth || top < 0 || top + height > imgHeight) {
+            throw new IllegalArgumentException("ROI exceeds image boundaries");
+        }
+    }
+
+    @Override
+    public int min (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        int mn = 255;
+        for (int i = top;  i < top + height;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                int val = in[k] & 0xFF;
+                if (val < mn) {
+                    mn = val;
+                }
+            }
+        }
+        return mn;
+    }
+
+    @Override
+    public int max (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        int mx = 0;
+        for (int i = top;  i < top + height;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                int val = in[k] & 0xFF;
+                if (val > mx) {
+                    mx = val;
+                }
+            }
+        }
+        return mx;
+    }
+
+    @Override
+    public float mean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        long sum = 0;
+        for (int i = top;  i < top + height;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                sum += in[k] & 0xFF;
+            }
+        }
+        return (float)sum / (width * height);
+    }
+
+    @Override
+    public float variance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        long sum = 0;
+        long sumSquares = 0;
+        for (int i = top;  i < top + height;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                int val = in[k] & 0xFF;
+                sum += val;
+                sumSquares += val*val;
+            }
+        }
+        float mean = (float)sum / (width * height);
+        return (float)sumSquares / (width * height) - mean*mean;
+    }
+
+    @Override
+    public float laplacianVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        if (width < 3 || height < 3) {
+            return 0.0f;
+        }
+        long sum = 0;
+        long sumSquares = 0;
+        for (int i = top + 1;  i < top + height - 1;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left + 1;  k < rowOfs + left + width - 1;  k++) {
+                int lap = 4*(in[k] & 0xFF) - (in[k - 1] & 0xFF) - (in[k + 1] & 0xFF) 
+                    - (in[k - imgWidth] & 0xFF) - (in[k + imgWidth] & 0xFF);
+                sum += lap;
+                sumSquares += lap*lap;
+            }
+        }
+        int n = (width - 2) * (height - 2);
+        float mean = (float)sum / n;
+        return (float)sumSquares / n - mean*mean;
+    }
+
+    @Override
+    public void histogram (byte[] in, int imgWidth, int imgHeight, int[] hist, int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        Arrays.fill(hist, 0, 256, 0);
+        for (int i = top;  i < top + height;  i++) {
+            int rowOfs = i*imgWidth;
+            for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                ++hist[in[k] & 0xFF];
+            }
+        }
+    }
+
+    @Override
+    public void statistics (byte[] in, int imgWidth, int imgHeight, long[] out, int[] hist, 
+            int left, int top, int width, int height) {
+        validateReduceParameters(in, imgWidth, imgHeight, left, top, width, height);
+        if (out.length < 4) {
+            throw new IllegalArgumentException("Output array too short");
+        }
+        if (hist != null && hist.length < 256) {
+            throw new IllegalArgumentException("Histogram array too short");
+        }
+        int mn = 255, mx = 0;
+        long sum = 0, sumSquares = 0;
+        if (hist != null) {
+            // Per-pixel work is just the increment; everything else follows from histogram
+            Arrays.fill(hist, 0, 256, 0);
+            for (int i = top;  i < top + height;  i++) {
+                int rowOfs = i*imgWidth;
+                for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                    ++hist[in[k] & 0xFF];
+                }
+            }
+            for (int val = 0;  val < 256;  val++) {
+                int count = hist[val];
+                if (count != 0) {
+                    mn = Math.min(mn, val);
+                    mx = val;
+                    sum += (long)count * val;
+                    sumSquares += (long)count * (val*val);
+                }
+            }
+        } else {
+            for (int i = top;  i < top + height;  i++) {
+                int rowOfs = i*imgWidth;
+                int rowSum = 0;
+                long rowSumSquares = 0;
+                for (int k = rowOfs + left;  k < rowOfs + left + width;  k++) {
+                    int val = in[k] & 0xFF;
+                    if (val < mn) {
+                        mn = val;
+                    }
+                    if (val > mx) {
+                        mx = val;
+                    }
+                    rowSum += val;
+                    rowSumSquares += val*val;
+                }
+                sum += rowSum;
+                sumSquares += rowSumSquares;
+            }
+        }
+        out[0] = mn;
+        out[1] = mx;
+        out[2] = sum;
+        out[3] = sumSquares;
+    }
+
+    @Override
+    public void erode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height,
+            int numNeighbors, int[] hOffsets, int[] vOffsets, int[] linearOffsets,
+            int minX, int maxX, int minY, int maxY) {
+        structuralTransform(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY, false);
+    }
+
+    @Override
+    public void dilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height,
+            int numNeighbors, int[] hOffsets, int[] vOffsets, int[] linearOffsets,
+            int minX, int maxX, int minY, int maxY) {
+        structuralTransform(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY, true);
+    }
+    
+    /**
+     * Grayscale erosion (min) or dilation (max) by a flat structuring element.
+     * Neighbors that fall outside the image are ignored.
+     */
+    private static void structuralTransform (byte[] in, int inOfs, int inStride, 
+            byte[] out, int outOfs, int outStride, int width, int height,
+            int numNeighbors, int[] hOffsets, int[] vOffsets, int[] linearOffsets,
+            int minX, int maxX, int minY, int maxY, boolean dilate) {
+        // Check parameters
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        validateArray(in, inOfs, inStride, width, height, "Input array too short");
+        validateArray(out, outOfs, outStride, width, height, "Output array too short");
+        
+        // Interior columns: all neighbors guaranteed within image
+        int jStart = Math.max(0, -minX);
+        int jEnd = Math.max(jStart, Math.min(width, width - maxX));
+        for (int i0 = 0;  i0 < height;  i0++) {
+            int inRow = inOfs + i0*inStride, outRow = outOfs + i0*outStride;
+            if (i0 + minY < 0 || i0 + maxY >= height) {
+                // Top or bottom edge
+                for (int j0 = 0;  j0 < width;  j0++) {
+                    out[outRow + j0] = borderStructuralTransform(in, inOfs, inStride, width, height, i0, j0, 
+                            numNeighbors, hOffsets, vOffsets, dilate);
+                }
+                continue;
+            }
+            // Left and right edge
+            for (int j0 = 0;  j0 < jStart;  j0++) {
+                out[outRow + j0] = borderStructuralTransform(in, inOfs, inStride, width, height, i0, j0, 
+                        numNeighbors, hOffsets, vOffsets, dilate);
+            }
+            for (int j0 = jEnd;  j0 < width;  j0++) {
+                out[outRow + j0] = borderStructuralTransform(in, inOfs, inStride, width, height, i0, j0, 
+                        numNeighbors, hOffsets, vOffsets, dilate);
+            }
+            // Interior pixels; separate loops to keep the comparison out of the inner loop
+            if (dilate) {
+                for (int j0 = jStart;  j0 < jEnd;  j0++) {
+                    int lin0 = inRow + j0;
+                    int val = 0;
+                    for (int n = 0;  n < numNeighbors;  n++) {
+                        int v = in[lin0 + linearOffsets[n]] & 0xFF;
+                        if (v > val) {
+                            val = v;
+                        }
+                    }
+                    out[outRow + j0] = (byte)val;
+                }
+            } else {
+                for (int j0 = jStart;  j0 < jEnd;  j0++) {
+                    int lin0 = inRow + j0;
+                    int val = 255;
+                    for (int n = 0;  n < numNeighbors;  n++) {
+                        int v = in[lin0 + linearOffsets[n]] & 0xFF;
+                        if (v < val) {
+                            val = v;
+                        }
+                    }
+                    out[outRow + j0] = (byte)val;
+                }
+            }
+        }
+    }
+    
+    private static byte borderStructuralTransform (byte[] in, int inOfs, int inStride, int width, int height,
+            int i0, int j0, int numNeighbors, int[] hOffsets, int[] vOffsets, boolean dilate) {
+        int val = dilate ? 0 : 255;
+        for (int n = 0;  n < numNeighbors;  n++) {
+            int i = i0 + vOffsets[n];
+            int j = j0 + hOffsets[n];
+            if (i >= 0 && i < height && j >= 0 && j < width) {
+                int v = in[inOfs + i*inStride + j] & 0xFF;
+                if (dilate ? (v > val) : (v < val)) {
+                    val = v;
+                }
+            }
+        }
+        return (byte)val;
+    }
+
+    @Override
+    public void fusedBinarize (byte[] in, int inOfs, int inStride, byte[] thr, int thrOfs, int thrStride,
+            byte[] out, int outOfs, int outStride, int width, int height, byte[] lut, 
+            int meanRadius, byte hi, byte lo, int offset, int hRadius, int vRadius) {
+        // Check parameters
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        if (2*meanRadius + 1 > width || 2*meanRadius + 1 > height) {
+            throw new IllegalArgumentException("Radius is too large");
+        }
+        if (hRadius < 0 || vRadius < 0) {
+            throw new IllegalArgumentException("Erosion radius must be non-negative");
+        }
+        validateArray(in, inOfs, inStride, width, height, "Input array too short");
+        validateArray(thr, thrOfs, thrStride, width, height, "Threshold array too short");
+        validateArray(out, outOfs, outStride, width, height, "Output array too short");
+        if (lut.length < 256) {
+            throw new IllegalArgumentException("Lookup table too short");
+        }
+        
+        // Ring buffers of stretched rows (mean filter halo) and of
+        // horizontally eroded rows (vertical erosion halo)
+        int stretchRows = 2*meanRadius + 2;
+        int erodeRows = 2*vRadius + 1;
+        byte[] rings = byteScratch((stretchRows + erodeRows) * width);
+        byte[] stretchRing = rings, erodeRing = rings;
+        int erodeRingOfs = stretchRows * width;
+        // Line erosion scratch first, then column sums
+        int lineBufSize = 3 * linePaddedLength(width, 2*hRadius + 1);
+        int[] lineBuf = intScratch(lineBufSize + width);
+        int[] colSum = lineBuf;
+        int colSumOfs = lineBufSize;
+        
+        // Prime column sums with rows [0, meanRadius]
+        Arrays.fill(colSum, colSumOfs, colSumOfs + width, 0);
+        for (int si = 0;  si <= meanRadius;  si++) {
+            stretchRow(in, inOfs + si*inStride, lut, stretchRing, (si % stretchRows)*width, 
+                    colSum, colSumOfs, width);
+        }
+        
+        for (int i = 0;  i < height;  i++) {
+            // Slide mean filter window down
+            if (i > 0) {
+                int rowDec = i - meanRadius - 1, rowInc = i + meanRadius;
+                if (rowDec >= 0) {
+                    int decOfs = (rowDec % stretchRows)*width;
+                    for (int j = 0;  j < width;  j++) {
+                        colSum[colSumOfs + j] -= stretchRing[decOfs + j] & 0xFF;
+                    }
+                }
+                if (rowInc < height) {
+                    stretchRow(in, inOfs + rowInc*inStride, lut, stretchRing, (rowInc % stretchRows)*width, 
+                            colSum, colSumOfs, width);
+                }
+            }
+            
+            // Local mean and threshold of row i; result to output and to erosion ring
+            int h = Math.min(height - 1, i + meanRadius) - Math.max(0, i - meanRadius) + 1;
+            int thrRow = thrOfs + i*thrStride;
+            thresholdRow(colSum, colSumOfs, stretchRing, (i % stretchRows)*width, thr, thrRow,
+                    width, meanRadius, h, hi, lo, offset);
+            int erodeOfs = erodeRingOfs + (i % erodeRows)*width;
+            if (hRadius > 0) {
+                lineTransform1D(thr, thrRow, 1, erodeRing, erodeOfs, 1, width, 
+                        -hRadius, hRadius, false, lineBuf);
+            } else {
+                System.arraycopy(thr, thrRow, erodeRing, erodeOfs, width);
+            }
+            
+            // Vertical erosion of row that now has its full halo
+            int j = i - vRadius;
+            if (j >= 0) {
+                verticalErodeRow(erodeRing, erodeRingOfs, erodeRows, out, outOfs + j*outStride, 
+                        j, height, vRadius, width);
+            }
+        }
+        // Flush last rows, whose halo is clipped by the bottom edge
+        for (int j = Math.max(0, height - vRadius);  j < height;  j++) {
+            verticalErodeRow(erodeRing, erodeRingOfs, erodeRows, out, outOfs + j*outStride, 
+                    j, height, vRadius, width);
+        }
+    }
+    
+    private static void stretchRow (byte[] in, int inOfs, byte[] lut, 
+            byte[] ring, int ringOfs, int[] colSum, int colSumOfs, int width) {
+        for (int j = 0;  j < width;  j++) {
+            byte s = lut[in[inOfs + j] & 0xFF];
+            ring[ringOfs + j] = s;
+            colSum[colSumOfs + j] += s & 0xFF;
+        }
+    }
+    
+    /**
+     * Horizontal sliding sum over column sums, same clipping as 
+     * {@link #meanFilter}, followed by thresholding.  With integer 
+     * division, sum/area - val &lt; offset exactly when 
+     * sum &lt; (val + offset)*area, so the mean itself is never computed.
+     */
+    private static void thresholdRow (int[] colSum, int colSumOfs, byte[] ring, int ringOfs, 
+            byte[] out, int outOfs, int width, int radius, int h, 
+            byte hi, byte lo, int offset) {
+        int sum = 0;
+        for (int sj = 0;  sj < radius;  sj++) {
+            sum += colSum[colSumOfs + sj];
+        }
+        for (int j = 0;  j <= radius;  j++) {
+            // Left edge
+            sum += colSum[colSumOfs + j + radius];
+            int area = (j + radius + 1) * h;
+            out[outOfs + j] = (sum < ((ring[ringOfs + j] & 0xFF) + offset) * area) ? hi : lo;
+        }
+        int area = (2*radius + 1) * h;
+        for (int j = radius + 1;  j < width - radius;  j++) {
+            // Internal
+            sum += colSum[colSumOfs + j + radius] - colSum[colSumOfs + j - radius - 1];
+            out[outOfs + j] = (sum < ((ring[ringOfs + j] & 0xFF) + offset) * area) ? hi : lo;
+        }
+        for (int j = Math.max(radius + 1, width - radius);  j < width;  j++) {
+            // Right edge
+            sum -= colSum[colSumOfs + j - radius - 1];
+            area = (width - j + radius) * h;
+            out[outOfs + j] = (sum < ((ring[ringOfs + j] & 0xFF) + offset) * area) ? hi : lo;
+        }
+    }
+    
+    private static void verticalErodeRow (byte[] ring, int ringOfs, int ringRows, byte[] out, int outOfs, 
+            int row, int height, int radius, int width) {
+        int top = Math.max(0, row - radius);
+        int bottom = Math.min(height - 1, row + radius);
+        System.arraycopy(ring, ringOfs + (top % ringRows)*width, out, outOfs, width);
+        for (int i = top + 1;  i <= bottom;  i++) {
+            int rowOfs = ringOfs + (i % ringRows)*width;
+            for (int j = 0;  j < width;  j++) {
+                byte v = ring[rowOfs + j];
+                if ((v & 0xFF) < (out[outOfs + j] & 0xFF)) {
+                    out[outOfs + j] = v;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void lineErode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical) {
+        lineTransform(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                minOffset, maxOffset, vertical, false);
+    }
+
+    @Override
+    public void lineDilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical) {
+        lineTransform(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                minOffset, maxOffset, vertical, true);
+    }
+    
+    /**
+     * van Herk/Gil-Werman min/max filter along rows or columns.
+     * 
+     * Each line is copied into a scratch buffer padded with the identity
+     * value and split into blocks of the line element length k.  Prefix and
+     * suffix extrema within each block then give every output with a single
+     * comparison: out[x] = op(suffix[x], prefix[x+k-1]).
+     */
+    private static void lineTransform (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical, boolean dilate) {
+        // Check parameters
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        validateArray(in, inOfs, inStride, width, height, "Input array too short");
+        validateArray(out, outOfs, outStride, width, height, "Output array too short");
+        if (minOffset > maxOffset) {
+            throw new IllegalArgumentException("Line element is empty");
+        }
+        
+        int n = vertical ? height : width;            // Line length
+        int numLines = vertical ? width : height;
+        int inStep = vertical ? inStride : 1;         // Pixel step along line
+        int outStep = vertical ? outStride : 1;
+        int inLineStep = vertical ? 1 : inStride;     // Step between lines
+        int outLineStep = vertical ? 1 : outStride;
+        int k = maxOffset - minOffset + 1;            // Element length
+        int[] buf = intScratch(3 * linePaddedLength(n, k));
+        for (int line = 0;  line < numLines;  line++) {
+            lineTransform1D(in, inOfs + line*inLineStep, inStep, out, outOfs + line*outLineStep, outStep, 
+                    n, minOffset, maxOffset, dilate, buf);
+        }
+    }
+    
+    /**
+     * @return Length of line scratch buffers (per buffer; three are needed)
+     */
+    private static int linePaddedLength (int n, int k) {
+        return ((n + 2*k - 2) / k) * k;
+    }
+    
+    /**
+     * van Herk/Gil-Werman min/max filter over a single line of n pixels,
+     * starting at the given offsets and spaced inStep (outStep) apart.  
+     * Input and output may alias.
+     * @param buf  Scratch buffer, at least 3*linePaddedLength(n, k) long
+     */
+    private static void lineTransform1D (byte[] in, int inOfs, int inStep, byte[] out, int outOfs, int outStep, 
+            int n, int minOffset, int maxOffset, boolean dilate, int[] buf) {
+        int k = maxOffset - minOffset + 1;            // Element length
+        int m = linePaddedLength(n, k);               // Padded length, multiple of k
+        int identity = dilate ? 0 : 255;
+        int g = m, h = 2*m;  // Prefix and suffix extrema offsets into buf
+        
+        // Range of padded indices that map inside the line
+        int tStart = Math.min(m, Math.max(0, -minOffset));
+        int tEnd = Math.max(tStart, Math.min(m, n - minOffset));
+        
+        // Gather
+        for (int t = 0;  t < tStart;  t++) {
+            buf[t] = identity;
+        }
+        for (int t = tStart, p = inOfs + (tStart + minOffset)*inStep;  t < tEnd;  t++, p += inStep) {
+            buf[t] = in[p] & 0xFF;
+        }
+        for (int t = tEnd;  t < m;  t++) {
+            buf[t] = identity;
+        }
+        // Block prefix and suffix extrema, then scatter
+        if (dilate) {
+            for (int b = 0;  b < m;  b += k) {
+                int acc = buf[g + b] = buf[b];
+                for (int t = b + 1;  t < b + k;  t++) {
+                    int v = buf[t];
+                    buf[g + t] = acc = (v > acc) ? v : acc;
+                }
+                acc = buf[h + b + k - 1] = buf[b + k - 1];
+                for (int t = b + k - 2;  t >= b;  t--) {
+                    int v = buf[t];
+                    buf[h + t] = acc = (v > acc) ? v : acc;
+                }
+            }
+            for (int x = 0, p = outOfs;  x < n;  x++, p += outStep) {
+                int a = buf[h + x], c = buf[g + x + k - 1];
+                out[p] = (byte)((a > c) ? a : c);
+            }
+        } else {
+            for (int b = 0;  b < m;  b += k) {
+                int acc = buf[g + b] = buf[b];
+                for (int t = b + 1;  t < b + k;  t++) {
+                    int v = buf[t];
+                    buf[g + t] = acc = (v < acc) ? v : acc;
+                }
+                acc = buf[h + b + k - 1] = buf[b + k - 1];
+                for (int t = b + k - 2;  t >= b;  t--) {
+                    int v = buf[t];
+                    buf[h + t] = acc = (v < acc) ? v : acc;
+                }
+            }
+            for (int x = 0, p = outOfs;  x < n;  x++, p += outStep) {
+                int a = buf[h + x], c = buf[g + x + k - 1];
+                out[p] = (byte)((a < c) ? a : c);
+            }
+        }
+    }
+}
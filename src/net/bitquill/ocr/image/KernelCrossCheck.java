@@ -0,0 +1,727 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Cross-checks the native and pure-Java kernels for bit-exact output.
+ * Also checks that {@link IntegralImage} queries, the separable line
+ * kernels, bit-packed {@link BinaryImage} operations, stripe-parallel
+ * execution, strided views, {@link ImagePyramid} levels and the fused
+ * binarization pass of every backend agree with the direct kernels.
+ * 
+ * Meant to be run on a host where libimageproc has been built, e.g.:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.image.KernelCrossCheck
+ * </pre>
+ * Exits with non-zero status on the first mismatch.
+ */
+public final class KernelCrossCheck {
+    
+    private static final int[][] SIZES = { {21, 21}, {64, 33}, {320, 240}, {480, 320} };
+    private static final int ITERATIONS = 5;
+    
+    private final ImageKernels mNative;
+    private final ImageKernels mJava = new JavaImageKernels();
+    private final ImageKernels[] mParallel;
+    private final Random mRandom = new Random(20091019L);
+    private int mChecks = 0;
+    
+    private KernelCrossCheck (ImageKernels nativeKernels) {
+        mNative = nativeKernels;
+        // Odd number of stripes and no size threshold, to exercise uneven splits
+        mParallel = new ImageKernels[] { 
+                new ParallelImageKernels(nativeKernels, 3, 0),
+                new ParallelImageKernels(mJava, 3, 0) };
+    }
+    
+    private void fail (String what, int width, int height) {
+        throw new AssertionError(what + " differs for " + width + "x" + height + " image");
+    }
+    
+    private void check (String what, byte[] a, byte[] b, int width, int height) {
+        ++mChecks;
+        if (!Arrays.equals(a, b)) {
+            fail(what, width, height);
+        }
+    }
+    
+    private void check (String what, int[] a, int[] b, int width, int height) {
+        ++mChecks;
+        if (!Arrays.equals(a, b)) {
+            fail(what, width, height);
+        }
+    }
+    
+    private void check (String what, long[] a, long[] b, int width, int height) {
+        ++mChecks;
+        if (!Arrays.equals(a, b)) {
+            fail(what, width, height);
+        }
+    }
+    
+    private void check (String what, float a, float b, int width, int height) {
+        ++mChecks;
+        if (Float.floatToIntBits(a) != Float.floatToIntBits(b)) {
+            fail(what, width, height);
+        }
+    }
+    
+    /**
+     * Random image with some structure, so that thresholding and 
+     * morphology exercise both outcomes.
+     */
+    private byte[] makeImage (int width, int height) {
+        byte[] data = new byte[width * height];
+        Random random = mRandom;
+        int base = random.nextInt(128);
+        int range = 1 + random.nextInt(128);
+        for (int i = 0;  i < height;  i++) {
+            for (int j = 0;  j < width;  j++) {
+                int val = base + random.nextInt(range);
+                if (((i / 7) + (j / 5)) % 3 == 0) {
+                    val /= 3;
+                }
+                data[i*width + j] = (byte)val;
+            }
+        }
+        return data;
+    }
+    
+    private void checkMorphology (StructuringElement strel, byte[] in, byte[] bin, int width, int height) {
+        byte[] outN = new byte[in.length], outJ = new byte[in.length];
+        int[] ofs = strel.getLinearOffsets(width, height);
+        mNative.erode(in, 0, width, outN, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+        mJava.erode(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+        check("erode", outN, outJ, width, height);
+        mNative.dilate(in, 0, width, outN, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+        mJava.dilate(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+        check("dilate", outN, outJ, width, height);
+        
+        // Separable fast path, for solid rectangles, must match the generic transform
+        int minX = strel.getMinX(), maxX = strel.getMaxX();
+        int minY = strel.getMinY(), maxY = strel.getMaxY();
+        if (strel.getNumNeighbors() == (maxX - minX + 1) * (maxY - minY + 1)) {
+            byte[] generic = outJ.clone();  // Dilation result
+            mNative.lineDilate(in, 0, width, outN, 0, width, width, height, minX, maxX, false);
+            mNative.lineDilate(outN, 0, width, outN, 0, width, width, height, minY, maxY, true);
+            mJava.lineDilate(in, 0, width, outJ, 0, width, width, height, minX, maxX, false);
+            mJava.lineDilate(outJ, 0, width, outJ, 0, width, width, height, minY, maxY, true);
+            check("lineDilate", outN, outJ, width, height);
+            check("lineDilate vs dilate", generic, outJ, width, height);
+            mJava.erode(in, 0, width, generic, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                    minX, maxX, minY, maxY);
+            mNative.lineErode(in, 0, width, outN, 0, width, width, height, minX, maxX, false);
+            mNative.lineErode(outN, 0, width, outN, 0, width, width, height, minY, maxY, true);
+            mJava.lineErode(in, 0, width, outJ, 0, width, width, height, minX, maxX, false);
+            mJava.lineErode(outJ, 0, width, outJ, 0, width, width, height, minY, maxY, true);
+            check("lineErode", outN, outJ, width, height);
+            check("lineErode vs erode", generic, outJ, width, height);
+        }
+        
+        // Planned execution, whatever the decomposition, must match the generic transform
+        MorphologyPlan plan = new MorphologyPlan(strel);
+        for (int d = 0;  d < 2;  d++) {
+            boolean dilate = (d == 1);
+            if (dilate) {
+                mJava.dilate(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                        strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                        minX, maxX, minY, maxY);
+            } else {
+                mJava.erode(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                        strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                        minX, maxX, minY, maxY);
+            }
+            plan.apply(mNative, in, 0, width, outN, 0, width, width, height, dilate);
+            check(dilate ? "planned dilate" : "planned erode", outJ, outN, width, height);
+            plan.apply(mJava, in, 0, width, outN, 0, width, width, height, dilate);
+            check(dilate ? "planned dilate" : "planned erode", outJ, outN, width, height);
+        }
+        
+        // Bit-packed morphology must match grayscale morphology of thresholded image
+        BinaryImage bits = new BinaryImage(new GrayMatrix(bin, width, height));
+        mJava.erode(bin, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                minX, maxX, minY, maxY);
+        check("binary erode", outJ, bits.erode(strel).toGray().getData(), width, height);
+        mJava.dilate(bin, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                minX, maxX, minY, maxY);
+        check("binary dilate", outJ, bits.dilate(strel).toGray().getData(), width, height);
+    }
+    
+    /**
+     * Checks stripe-parallel execution against the serial Java kernels, 
+     * including in-place operations.
+     */
+    private void checkParallel (ImageKernels kp, byte[] in, byte[] thresh, int width, int height) {
+        ImageKernels kj = mJava;
+        byte[] outP = new byte[in.length], outJ = new byte[in.length];
+        
+        int maxRadius = (Math.min(width, height) - 1) / 2;
+        for (int radius = 0;  radius <= Math.min(maxRadius, 12);  radius += 3) {
+            kp.meanFilter(in, 0, width, outP, 0, width, width, height, radius);
+            kj.meanFilter(in, 0, width, outJ, 0, width, width, height, radius);
+            check("parallel meanFilter", outJ, outP, width, height);
+        }
+        kj.adaptiveThreshold(in, 0, width, thresh, 0, width, outJ, 0, width, width, height, (byte)255, (byte)0, 3);
+        byte[] inPlace = in.clone();
+        kp.adaptiveThreshold(inPlace, 0, width, thresh, 0, width, inPlace, 0, width, width, height, (byte)255, (byte)0, 3);
+        check("parallel adaptiveThreshold", outJ, inPlace, width, height);
+        kj.contrastStretch(in, 0, width, outJ, 0, width, width, height, (byte)40, (byte)200);
+        kp.contrastStretch(in, 0, width, outP, 0, width, width, height, (byte)40, (byte)200);
+        check("parallel contrastStretch", outJ, outP, width, height);
+        byte[] lut = LookupTables.gamma(0.5f, new byte[256]);
+        kj.applyLut(in, 0, width, outJ, 0, width, width, height, lut);
+        kp.applyLut(in, 0, width, outP, 0, width, width, height, lut);
+        check("parallel applyLut", outJ, outP, width, height);
+        
+        int left = mRandom.nextInt(width / 2), top = mRandom.nextInt(height / 2);
+        int w = 1 + mRandom.nextInt(width - left), h = 1 + mRandom.nextInt(height - top);
+        check("parallel min", kj.min(in, width, height, left, top, w, h), kp.min(in, width, height, left, top, w, h), width, height);
+        check("parallel max", kj.max(in, width, height, left, top, w, h), kp.max(in, width, height, left, top, w, h), width, height);
+        check("parallel mean", kj.mean(in, width, height, left, top, w, h), kp.mean(in, width, height, left, top, w, h), width, height);
+        check("parallel variance", kj.variance(in, width, height, left, top, w, h), kp.variance(in, width, height, left, top, w, h), width, height);
+        int[] histP = new int[256], histJ = new int[256];
+        kj.histogram(in, width, height, histJ, left, top, w, h);
+        kp.histogram(in, width, height, histP, left, top, w, h);
+        check("parallel histogram", histJ, histP, width, height);
+        long[] statsP = new long[4], statsJ = new long[4];
+        kj.statistics(in, width, height, statsJ, histJ, left, top, w, h);
+        kp.statistics(in, width, height, statsP, histP, left, top, w, h);
+        check("parallel statistics", statsJ, statsP, width, height);
+        check("parallel statistics histogram", histJ, histP, width, height);
+        kj.statistics(in, width, height, statsJ, null, left, top, w, h);
+        kp.statistics(in, width, height, statsP, null, left, top, w, h);
+        check("parallel statistics", statsJ, statsP, width, height);
+        
+        byte[] box = new byte[15];
+        Arrays.fill(box, (byte)1);
+        StructuringElement[] strels = {
+                SimpleStructuringElement.makeVertical(3),
+                new SimpleStructuringElement(box, 3, 5, 2, 4) };
+        for (StructuringElement strel : strels) {
+            int[] ofs = strel.getLinearOffsets(width, height);
+            kj.erode(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            kp.erode(in, 0, width, outP, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            check("parallel erode", outJ, outP, width, height);
+            kj.dilate(in, 0, width, outJ, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            kp.dilate(in, 0, width, outP, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), ofs,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            check("parallel dilate", outJ, outP, width, height);
+        }
+        kj.lineErode(in, 0, width, outJ, 0, width, width, height, -3, 2, true);
+        inPlace = in.clone();
+        kp.lineErode(inPlace, 0, width, inPlace, 0, width, width, height, -3, 2, true);
+        check("parallel lineErode", outJ, inPlace, width, height);
+        kj.lineDilate(in, 0, width, outJ, 0, width, width, height, -1, 4, false);
+        kp.lineDilate(in, 0, width, outP, 0, width, width, height, -1, 4, false);
+        check("parallel lineDilate", outJ, outP, width, height);
+        inPlace = in.clone();
+        kp.lineDilate(inPlace, 0, width, inPlace, 0, width, width, height, -1, 4, false);
+        check("parallel in-place lineDilate", outJ, inPlace, width, height);
+    }
+    
+    /**
+     * Checks bit-packed ROI queries, shifts and labeling against the 
+     * equivalent grayscale image.
+     */
+    private void checkBinary (byte[] bin, int width, int height) {
+        GrayImage gray = new GrayImage(bin, width, height);
+        BinaryImage bits = new BinaryImage(gray);
+        check("binary roundtrip", bin, bits.toGray().getData(), width, height);
+        for (int n = 0;  n < 20;  n++) {
+            int left = mRandom.nextInt(width), top = mRandom.nextInt(height);
+            int right = left + 1 + mRandom.nextInt(width - left);
+            int bottom = top + 1 + mRandom.nextInt(height - top);
+            int count = 0;
+            for (int i = top;  i < bottom;  i++) {
+                for (int j = left;  j < right;  j++) {
+                    if (bin[i*width + j] != 0) {
+                        ++count;
+                    }
+                }
+            }
+            int area = (right - left) * (bottom - top);
+            check("binary countSet", count, bits.countSet(left, top, right, bottom), width, height);
+            check("binary contains set", (count > 0) ? 1 : 0, 
+                    bits.contains(true, left, top, right, bottom) ? 1 : 0, width, height);
+            check("binary contains clear", (gray.min(left, top, right, bottom) == 0) ? 1 : 0, 
+                    bits.contains(false, left, top, right, bottom) ? 1 : 0, width, height);
+            check("binary contains clear count", (count < area) ? 1 : 0, 
+                    bits.contains(false, left, top, right, bottom) ? 1 : 0, width, height);
+        }
+        
+        int dx = mRandom.nextInt(141) - 70, dy = mRandom.nextInt(21) - 10;
+        boolean fill = mRandom.nextBoolean();
+        byte[] shifted = new byte[bin.length];
+        for (int i = 0;  i < height;  i++) {
+            for (int j = 0;  j < width;  j++) {
+                int si = i - dy, sj = j - dx;
+                boolean inside = (si >= 0 && si < height && sj >= 0 && sj < width);
+                shifted[i*width + j] = inside ? bin[si*width + sj] : (byte)(fill ? 255 : 0);
+            }
+        }
+        check("binary shift", shifted, 
+                bits.shift(dx, dy, fill, new BinaryImage(width, height)).toGray().getData(), width, height);
+        
+        ComponentLabeler grayLabeler = new ComponentLabeler(width * height);
+        ComponentLabeler bitsLabeler = new ComponentLabeler(width * height);
+        grayLabeler.label(gray);
+        bitsLabeler.label(bits);
+        int numComponents = grayLabeler.getNumComponents();
+        check("binary label count", numComponents, bitsLabeler.getNumComponents(), width, height);
+        for (int c = 0;  c < numComponents;  c++) {
+            check("binary label", 
+                    new int[] { grayLabeler.getComponentLeft(c), grayLabeler.getComponentTop(c),
+                            grayLabeler.getComponentRight(c), grayLabeler.getComponentBottom(c),
+                            grayLabeler.getComponentPixelCount(c) },
+                    new int[] { bitsLabeler.getComponentLeft(c), bitsLabeler.getComponentTop(c),
+                            bitsLabeler.getComponentRight(c), bitsLabeler.getComponentBottom(c),
+                            bitsLabeler.getComponentPixelCount(c) }, 
+                    width, height);
+        }
+    }
+    
+    /**
+     * Checks the fused binarization pass of every backend, on views with
+     * random radii, against the unfused sequence of Java kernels: lookup 
+     * table, mean filter, adaptive threshold, and horizontal then vertical 
+     * line erosion.
+     */
+    private void checkFused (byte[] in, int width, int height) {
+        ImageKernels kj = mJava;
+        Random random = mRandom;
+        byte[] lut = LookupTables.stretch(random.nextInt(64), 192 + random.nextInt(64), new byte[256]);
+        int maxRadius = (Math.min(width, height) - 1) / 2;
+        int meanRadius = random.nextInt(Math.min(maxRadius, 12) + 1);
+        int hRadius = random.nextInt(5), vRadius = random.nextInt(5);
+        int offset = random.nextInt(17) - 8;
+        
+        byte[] stretched = new byte[in.length], mean = new byte[in.length];
+        byte[] expectedThr = new byte[in.length], expected = new byte[in.length];
+        kj.applyLut(in, 0, width, stretched, 0, width, width, height, lut);
+        kj.meanFilter(stretched, 0, width, mean, 0, width, width, height, meanRadius);
+        kj.adaptiveThreshold(stretched, 0, width, mean, 0, width, expectedThr, 0, width, 
+                width, height, (byte)255, (byte)0, offset);
+        kj.lineErode(expectedThr, 0, width, expected, 0, width, width, height, -hRadius, hRadius, false);
+        kj.lineErode(expected, 0, width, expected, 0, width, width, height, -vRadius, vRadius, true);
+        
+        int inStride = width + random.nextInt(9), outStride = width + random.nextInt(9);
+        int inOfs = random.nextInt(4)*inStride + random.nextInt(inStride - width + 1);
+        int outOfs = random.nextInt(4)*outStride + random.nextInt(outStride - width + 1);
+        int outLength = outOfs + height*outStride;
+        byte[] vIn = embed(in, inOfs, inStride, width, height, inOfs + height*inStride, (byte)0x5A);
+        ImageKernels[] backends = { mNative, mJava, mParallel[0], mParallel[1] };
+        for (ImageKernels k : backends) {
+            byte[] vThr = new byte[outLength], vOut = new byte[outLength];
+            Arrays.fill(vThr, (byte)0x33);
+            Arrays.fill(vOut, (byte)0x33);
+            k.fusedBinarize(vIn, inOfs, inStride, vThr, outOfs, outStride, vOut, outOfs, outStride, 
+                    width, height, lut, meanRadius, (byte)255, (byte)0, offset, hRadius, vRadius);
+            check("fusedBinarize threshold", embed(expectedThr, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vThr, width, height);
+            check("fusedBinarize", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+        }
+    }
+    
+    /**
+     * Copy of a compact image into the given window of a larger buffer,
+     * with every other entry set to the fill value.
+     */
+    private static byte[] embed (byte[] data, int ofs, int stride, int width, int height, int length, byte fill) {
+        byte[] buf = new byte[length];
+        Arrays.fill(buf, fill);
+        for (int i = 0;  i < height;  i++) {
+            System.arraycopy(data, i*width, buf, ofs + i*stride, width);
+        }
+        return buf;
+    }
+    
+    /**
+     * Checks every map kernel of every backend on views into padded 
+     * buffers, against the Java kernels on compact images.  Padding must 
+     * be left untouched.  Also checks the GrayMatrix consumers of views.
+     */
+    private void checkViews (byte[] in, byte[] thresh, int width, int height) {
+        ImageKernels kj = mJava;
+        Random random = mRandom;
+        int inStride = width + random.nextInt(9), outStride = width + random.nextInt(9);
+        int inLeft = random.nextInt(inStride - width + 1), outLeft = random.nextInt(outStride - width + 1);
+        int inTop = random.nextInt(4), outTop = random.nextInt(4);
+        int inOfs = inTop*inStride + inLeft, outOfs = outTop*outStride + outLeft;
+        int inLength = (inTop + height + random.nextInt(4)) * inStride;
+        int outLength = (outTop + height + random.nextInt(4)) * outStride;
+        byte[] vIn = embed(in, inOfs, inStride, width, height, inLength, (byte)0x5A);
+        byte[] vThresh = embed(thresh, inOfs, inStride, width, height, inLength, (byte)0xA5);
+        byte[] vOut = new byte[outLength];
+        byte[] expected = new byte[in.length];
+        
+        int radius = Math.min((Math.min(width, height) - 1) / 2, 4);
+        byte[] lut = LookupTables.gamma(0.5f, new byte[256]);
+        byte[] box = new byte[15];
+        Arrays.fill(box, (byte)1);
+        SimpleStructuringElement strel = new SimpleStructuringElement(box, 3, 5, 2, 4);
+        int[] compactOffsets = strel.getPlan().getLinearOffsets(width);
+        int[] viewOffsets = strel.getPlan().getLinearOffsets(inStride);
+        
+        ImageKernels[] backends = { mNative, mJava, mParallel[0], mParallel[1] };
+        int halfWidth = width / 2, halfHeight = height / 2;
+        for (ImageKernels k : backends) {
+            kj.downsample(in, 0, width, expected, 0, halfWidth, halfWidth, halfHeight);
+            Arrays.fill(vOut, (byte)0x33);
+            k.downsample(vIn, inOfs, inStride, vOut, outOfs, outStride, halfWidth, halfHeight);
+            check("view downsample", embed(expected, outOfs, outStride, halfWidth, halfHeight, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.meanFilter(in, 0, width, expected, 0, width, width, height, radius);
+            Arrays.fill(vOut, (byte)0x33);
+            k.meanFilter(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, radius);
+            check("view meanFilter", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.adaptiveThreshold(in, 0, width, thresh, 0, width, expected, 0, width, 
+                    width, height, (byte)255, (byte)0, 2);
+            Arrays.fill(vOut, (byte)0x33);
+            k.adaptiveThreshold(vIn, inOfs, inStride, vThresh, inOfs, inStride, vOut, outOfs, outStride, 
+                    width, height, (byte)255, (byte)0, 2);
+            check("view adaptiveThreshold", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.contrastStretch(in, 0, width, expected, 0, width, width, height, (byte)30, (byte)210);
+            Arrays.fill(vOut, (byte)0x33);
+            k.contrastStretch(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, (byte)30, (byte)210);
+            check("view contrastStretch", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.applyLut(in, 0, width, expected, 0, width, width, height, lut);
+            Arrays.fill(vOut, (byte)0x33);
+            k.applyLut(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, lut);
+            check("view applyLut", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.erode(in, 0, width, expected, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), compactOffsets,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            Arrays.fill(vOut, (byte)0x33);
+            k.erode(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), viewOffsets,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            check("view erode", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.dilate(in, 0, width, expected, 0, width, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), compactOffsets,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            Arrays.fill(vOut, (byte)0x33);
+            k.dilate(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), viewOffsets,
+                    strel.getMinX(), strel.getMaxX(), strel.getMinY(), strel.getMaxY());
+            check("view dilate", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.lineErode(in, 0, width, expected, 0, width, width, height, -3, 2, true);
+            Arrays.fill(vOut, (byte)0x33);
+            k.lineErode(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, -3, 2, true);
+            check("view lineErode", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+            
+            kj.lineDilate(in, 0, width, expected, 0, width, width, height, -1, 4, false);
+            Arrays.fill(vOut, (byte)0x33);
+            k.lineDilate(vIn, inOfs, inStride, vOut, outOfs, outStride, width, height, -1, 4, false);
+            check("view lineDilate", embed(expected, outOfs, outStride, width, height, outLength, (byte)0x33), 
+                    vOut, width, height);
+        }
+        
+        // Views through GrayImage; ROI kernels see the enclosing buffer
+        GrayImage compact = new GrayImage(in, width, height);
+        GrayImage view = new GrayImage(vIn, inStride, inLength / inStride)
+            .view(inLeft, inTop, inLeft + width, inTop + height);
+        check("view copy", in, new GrayMatrix(view).getData(), width, height);
+        check("view compact data", in, view.getCompactData(), width, height);
+        int left = random.nextInt(width / 2), top = random.nextInt(height / 2);
+        int right = left + 1 + random.nextInt(width - left), bottom = top + 1 + random.nextInt(height - top);
+        check("view min", compact.min(left, top, right, bottom), view.min(left, top, right, bottom), width, height);
+        check("view max", compact.max(left, top, right, bottom), view.max(left, top, right, bottom), width, height);
+        check("view mean", compact.mean(), view.mean(), width, height);
+        check("view variance", compact.variance(), view.variance(), width, height);
+        check("view laplacianVariance", compact.laplacianVariance(left, top, right, bottom), 
+                view.laplacianVariance(left, top, right, bottom), width, height);
+        check("view histogram", compact.histogram(), view.histogram(), width, height);
+        ImageStats compactStats = new ImageStats().compute(compact, left, top, right, bottom, true);
+        ImageStats viewStats = new ImageStats().compute(view, left, top, right, bottom, true);
+        check("view statistics", compactStats.getVariance(), viewStats.getVariance(), width, height);
+        check("view statistics min", compactStats.getMin(), viewStats.getMin(), width, height);
+        GrayImage subview = view.view(left, top, right, bottom);
+        check("view of view", kj.mean(in, width, height, left, top, right - left, bottom - top), 
+                subview.mean(), width, height);
+        
+        GrayImage outView = new GrayImage(vOut, outOfs, outStride, width, height);
+        Arrays.fill(vOut, (byte)0x33);
+        view.erode(strel, outView);
+        check("view GrayImage erode", embed(compact.erode(strel).getData(), outOfs, outStride, 
+                width, height, outLength, (byte)0x33), vOut, width, height);
+        SimpleStructuringElement line = SimpleStructuringElement.makeHorizontal(2);
+        Arrays.fill(vOut, (byte)0x33);
+        view.dilate(line, outView);
+        check("view GrayImage dilate", embed(compact.dilate(line).getData(), outOfs, outStride, 
+                width, height, outLength, (byte)0x33), vOut, width, height);
+        
+        IntegralImage compactIntegral = new IntegralImage(compact);
+        IntegralImage viewIntegral = new IntegralImage(view);
+        check("view integral", compactIntegral.variance(left, top, right, bottom), 
+                viewIntegral.variance(left, top, right, bottom), width, height);
+        Arrays.fill(vOut, (byte)0x33);
+        viewIntegral.sauvolaThreshold(view, radius, 0.34f, 128.0f, false, outView);
+        check("view sauvolaThreshold", embed(compactIntegral.sauvolaThreshold(compact, radius, 0.34f, 128.0f, 
+                false, new GrayImage(width, height)).getData(), outOfs, outStride, width, height, outLength, (byte)0x33), 
+                vOut, width, height);
+        
+        BinaryImage compactBits = new BinaryImage(width, height).fromGray(outView);
+        check("view fromGray", compactBits.toGray().getData(), 
+                new GrayMatrix(compactBits.toGray(new GrayImage(vIn, inOfs, inStride, width, height))).getData(), 
+                width, height);
+    }
+    
+    private void checkImage (int width, int height) {
+        ImageKernels kn = mNative, kj = mJava;
+        byte[] in = makeImage(width, height);
+        byte[] outN = new byte[in.length], outJ = new byte[in.length];
+        
+        int left = mRandom.nextInt(width / 2), top = mRandom.nextInt(height / 2);
+        int w = 1 + mRandom.nextInt(width - left), h = 1 + mRandom.nextInt(height - top);
+        check("min", kn.min(in, width, height, left, top, w, h), kj.min(in, width, height, left, top, w, h), width, height);
+        check("max", kn.max(in, width, height, left, top, w, h), kj.max(in, width, height, left, top, w, h), width, height);
+        check("mean", kn.mean(in, width, height, left, top, w, h), kj.mean(in, width, height, left, top, w, h), width, height);
+        check("variance", kn.variance(in, width, height, left, top, w, h), kj.variance(in, width, height, left, top, w, h), width, height);
+        check("laplacianVariance", kn.laplacianVariance(in, width, height, left, top, w, h), 
+                kj.laplacianVariance(in, width, height, left, top, w, h), width, height);
+        check("laplacianVariance full", kn.laplacianVariance(in, width, height, 0, 0, width, height), 
+                kj.laplacianVariance(in, width, height, 0, 0, width, height), width, height);
+        int[] histN = new int[256], histJ = new int[256];
+        Arrays.fill(histN, -1);  // Must be cleared by kernel
+        kn.histogram(in, width, height, histN, left, top, w, h);
+        kj.histogram(in, width, height, histJ, left, top, w, h);
+        check("histogram", histN, histJ, width, height);
+        long[] statsN = new long[4], statsJ = new long[4];
+        kn.statistics(in, width, height, statsN, null, left, top, w, h);
+        kj.statistics(in, width, height, statsJ, null, left, top, w, h);
+        check("statistics", statsN, statsJ, width, height);
+        check("statistics vs min", kj.min(in, width, height, left, top, w, h), statsJ[0], width, height);
+        check("statistics vs max", kj.max(in, width, height, left, top, w, h), statsJ[1], width, height);
+        Arrays.fill(histN, -1);
+        kn.statistics(in, width, height, statsN, histN, left, top, w, h);
+        kj.statistics(in, width, height, statsJ, histJ, left, top, w, h);
+        check("statistics with histogram", statsN, statsJ, width, height);
+        check("statistics histogram", histN, histJ, width, height);
+        ImageStats imageStats = new ImageStats().compute(new GrayMatrix(in, width, height), 
+                left, top, left + w, top + h, true);
+        check("statistics mean", kj.mean(in, width, height, left, top, w, h), imageStats.getMean(), width, height);
+        check("statistics variance", kj.variance(in, width, height, left, top, w, h), imageStats.getVariance(), width, height);
+        
+        int[] argbN = new int[w * h], argbJ = new int[w * h];
+        kn.grayToARGB(in, width, height, argbN, left, top, w, h);
+        kj.grayToARGB(in, width, height, argbJ, left, top, w, h);
+        check("grayToARGB", argbN, argbJ, width, height);
+        
+        byte mn = (byte)kj.min(in, width, height, 0, 0, width, height);
+        byte mx = (byte)kj.max(in, width, height, 0, 0, width, height);
+        kn.contrastStretch(in, 0, width, outN, 0, width, width, height, mn, mx);
+        kj.contrastStretch(in, 0, width, outJ, 0, width, width, height, mn, mx);
+        check("contrastStretch", outN, outJ, width, height);
+        byte[] lut = LookupTables.stretch(mn & 0xFF, mx & 0xFF, new byte[256]);
+        kj.applyLut(in, 0, width, outN, 0, width, width, height, lut);
+        check("applyLut vs contrastStretch", outN, outJ, width, height);
+        
+        LookupTables.stretchGamma(30, 220, 2.2f, lut);
+        kn.applyLut(in, 0, width, outN, 0, width, width, height, lut);
+        kj.applyLut(in, 0, width, outJ, 0, width, width, height, lut);
+        check("applyLut", outN, outJ, width, height);
+        byte[] inPlace = in.clone();
+        kn.applyLut(inPlace, 0, width, inPlace, 0, width, width, height, lut);
+        check("applyLut in place", inPlace, outJ, width, height);
+        
+        int halfWidth = width / 2, halfHeight = height / 2;
+        byte[] halfN = new byte[halfWidth * halfHeight], halfJ = new byte[halfWidth * halfHeight];
+        kn.downsample(in, 0, width, halfN, 0, halfWidth, halfWidth, halfHeight);
+        kj.downsample(in, 0, width, halfJ, 0, halfWidth, halfWidth, halfHeight);
+        check("downsample", halfN, halfJ, width, height);
+        for (int i = 0;  i < halfHeight;  i++) {
+            for (int j = 0;  j < halfWidth;  j++) {
+                int k = 2*i*width + 2*j;
+                int sum = (in[k] & 0xFF) + (in[k + 1] & 0xFF) + (in[k + width] & 0xFF) + (in[k + width + 1] & 0xFF);
+                halfN[i*halfWidth + j] = (byte)((sum + 2) / 4);
+            }
+        }
+        check("downsample vs average", halfN, halfJ, width, height);
+        ImagePyramid pyramid = new ImagePyramid(2).build(new GrayImage(in, width, height), 2);
+        check("pyramid level 1", halfJ, pyramid.getLevel(1).getCompactData(), width, height);
+        byte[] quarterJ = new byte[(halfWidth / 2) * (halfHeight / 2)];
+        kj.downsample(halfJ, 0, halfWidth, quarterJ, 0, halfWidth / 2, halfWidth / 2, halfHeight / 2);
+        check("pyramid level 2", quarterJ, pyramid.getLevel(2).getCompactData(), width, height);
+        pyramid.release();
+        
+        int maxRadius = (Math.min(width, height) - 1) / 2;
+        for (int radius = 0;  radius <= Math.min(maxRadius, 12);  radius++) {
+            kn.meanFilter(in, 0, width, outN, 0, width, width, height, radius);
+            kj.meanFilter(in, 0, width, outJ, 0, width, width, height, radius);
+            check("meanFilter", outN, outJ, width, height);
+        }
+        
+        // Integral image must agree with the direct kernels as well
+        IntegralImage integral = new IntegralImage(new GrayMatrix(in, width, height));
+        check("integral mean", kn.mean(in, width, height, left, top, w, h), 
+                integral.mean(left, top, left + w, top + h), width, height);
+        check("integral variance", kn.variance(in, width, height, left, top, w, h), 
+                integral.variance(left, top, left + w, top + h), width, height);
+        GrayImage integralOut = new GrayImage(outJ, width, height);
+        for (int radius = 0;  radius <= Math.min(maxRadius, 12);  radius++) {
+            kn.meanFilter(in, 0, width, outN, 0, width, width, height, radius);
+            integral.meanFilter(radius, integralOut);
+            check("integral meanFilter", outN, outJ, width, height);
+        }
+        
+        // Local thresholds; Niblack with k = 0 is a plain mean threshold, 
+        // and inverted thresholds must match those of the negated image
+        int thrRadius = Math.min(maxRadius, 10);
+        GrayMatrix inMatrix = new GrayMatrix(in, width, height);
+        kj.meanFilter(in, 0, width, outN, 0, width, width, height, thrRadius);
+        kj.adaptiveThreshold(in, 0, width, outN, 0, width, outN, 0, width, width, height, (byte)255, (byte)0, 0);
+        integral.niblackThreshold(inMatrix, thrRadius, 0.0f, false, integralOut);
+        check("niblackThreshold vs adaptiveThreshold", outN, outJ, width, height);
+        byte[] negated = new byte[in.length];
+        for (int k = 0;  k < in.length;  k++) {
+            negated[k] = (byte)(255 - (in[k] & 0xFF));
+        }
+        GrayMatrix negMatrix = new GrayMatrix(negated, width, height);
+        IntegralImage negIntegral = new IntegralImage(negMatrix);
+        negIntegral.niblackThreshold(negMatrix, thrRadius, -0.2f, false, new GrayImage(outN, width, height));
+        integral.niblackThreshold(inMatrix, thrRadius, -0.2f, true, integralOut);
+        check("niblackThreshold inverted", outN, outJ, width, height);
+        negIntegral.sauvolaThreshold(negMatrix, thrRadius, 0.34f, 128.0f, false, new GrayImage(outN, width, height));
+        integral.sauvolaThreshold(inMatrix, thrRadius, 0.34f, 128.0f, true, integralOut);
+        check("sauvolaThreshold inverted", outN, outJ, width, height);
+
+        byte[] thresh = new byte[in.length];
+        kj.meanFilter(in, 0, width, thresh, 0, width, width, height, Math.min(maxRadius, 10));
+        for (int offset = -8;  offset <= 8;  offset += 4) {
+            kn.adaptiveThreshold(in, 0, width, thresh, 0, width, outN, 0, width, width, height, (byte)255, (byte)0, offset);
+            kj.adaptiveThreshold(in, 0, width, thresh, 0, width, outJ, 0, width, width, height, (byte)255, (byte)0, offset);
+            check("adaptiveThreshold", outN, outJ, width, height);
+            GrayMatrix threshMatrix = new GrayMatrix(thresh, width, height);
+            BinaryImage bits = new BinaryImage(width, height);
+            bits.adaptiveThreshold(inMatrix, threshMatrix, offset, false);
+            check("binary adaptiveThreshold", outJ, bits.toGray().getData(), width, height);
+            kj.adaptiveThreshold(in, 0, width, thresh, 0, width, outN, 0, width, width, height, (byte)0, (byte)255, offset);
+            bits.adaptiveThreshold(inMatrix, threshMatrix, offset, true);
+            check("binary adaptiveThreshold inverted", outN, bits.toGray().getData(), width, height);
+        }
+        byte[] bin = outJ.clone();
+        checkBinary(bin, width, height);
+        for (ImageKernels kp : mParallel) {
+            checkParallel(kp, in, thresh, width, height);
+        }
+        checkViews(in, thresh, width, height);
+        for (int n = 0;  n < 3;  n++) {
+            checkFused(in, width, height);
+        }
+        
+        for (int radius = 1;  radius <= 3;  radius++) {
+            checkMorphology(SimpleStructuringElement.makeHorizontal(radius), in, bin, width, height);
+            checkMorphology(SimpleStructuringElement.makeVertical(radius), in, bin, width, height);
+        }
+        // Native generic transform requires the element to fit in the image
+        for (int radius = 5;  2*radius + 1 <= Math.min(width, height);  radius += 10) {
+            checkMorphology(SimpleStructuringElement.makeHorizontal(radius), in, bin, width, height);
+            checkMorphology(SimpleStructuringElement.makeVertical(radius), in, bin, width, height);
+        }
+        byte[] box = new byte[15];
+        Arrays.fill(box, (byte)1);
+        checkMorphology(new SimpleStructuringElement(box, 5, 3), in, bin, width, height);
+        checkMorphology(new SimpleStructuringElement(box, 5, 3, 0, 2), in, bin, width, height);
+        checkMorphology(new SimpleStructuringElement(box, 3, 5, 2, 4), in, bin, width, height);
+        byte[] grid = { 1, 0, 1, 0, 1,  0, 0, 0, 0, 0,  1, 0, 1, 0, 1 };
+        checkMorphology(new SimpleStructuringElement(grid, 5, 3), in, bin, width, height);
+        checkMorphology(new SimpleStructuringElement(grid, 5, 3, 4, 0), in, bin, width, height);
+        byte[] dotted = { 1, 1, 0, 1 };
+        checkMorphology(new SimpleStructuringElement(dotted, 4, 1), in, bin, width, height);
+        checkMorphology(new SimpleStructuringElement(dotted, 1, 4), in, bin, width, height);
+        byte[] stripes = { 1, 1, 1,  0, 0, 0,  1, 1, 1 };
+        checkMorphology(new SimpleStructuringElement(stripes, 3, 3), in, bin, width, height);
+        byte[] cross = { 0, 1, 0, 1, 1, 1, 0, 1, 0 };
+        checkMorphology(new SimpleStructuringElement(cross, 3, 3), in, bin, width, height);
+    }
+    
+    /**
+     * Checks that mean and variance do not overflow on images whose pixel 
+     * sum exceeds the range of an int.
+     */
+    private void checkLargeSums () {
+        int width = 4096, height = 2100;
+        byte[] in = new byte[width * height];
+        Arrays.fill(in, (byte)255);
+        ImageKernels[] backends = { mNative, mJava, mParallel[0], mParallel[1] };
+        for (ImageKernels k : backends) {
+            check("large mean", 255.0f, k.mean(in, width, height, 0, 0, width, height), width, height);
+            float variance = k.variance(in, width, height, 0, 0, width, height);
+            check("large variance", 1, (Math.abs(variance) < 1.0f) ? 1 : 0, width, height);
+            check("large variance", mJava.variance(in, width, height, 0, 0, width, height), variance, width, height);
+        }
+    }
+    
+    private void run () {
+        for (int[] size : SIZES) {
+            for (int n = 0;  n < ITERATIONS;  n++) {
+                checkImage(size[0], size[1]);
+            }
+        }
+        checkLargeSums();
+    }
+    
+    public static void main (String[] args) {
+        System.loadLibrary("imageproc");
+        KernelCrossCheck checker = new KernelCrossCheck(new NativeImageKernels());
+        try {
+            checker.run();
+        } catch (AssertionError ae) {
+            System.err.println("FAILED: " + ae.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK: " + checker.mChecks + " checks, native and Java kernels agree");
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+/**
+ * Builders for 256-entry intensity lookup tables, to be applied with 
+ * {@link GrayImage#applyLut(byte[], GrayImage)}.  Every builder fills the
+ * given table and returns it.
+ */
+public final class LookupTables {
+    
+    private LookupTables () {
+    }
+    
+    public static final byte[] identity (byte[] lut) {
+        checkLength(lut);
+        for (int val = 0;  val < 256;  val++) {
+            lut[val] = (byte)val;
+        }
+        return lut;
+    }
+    
+    /**
+     * Linear contrast stretch, mapping lo to 0 and hi to 255 and clamping
+     * outside [lo, hi].  Same mapping as 
+     * {@link GrayImage#contrastStretch(byte, byte, GrayImage)}.
+     */
+    public static final byte[] stretch (int lo, int hi, byte[] lut) {
+        checkLength(lut);
+        int range = hi - lo;
+        for (int val = 0;  val < 256;  val++) {
+            if (val <= lo) {
+                lut[val] = 0;
+            } else if (val >= hi) {
+                lut[val] = (byte)255;
+            } else {
+                lut[val] = (byte)((val - lo) * 255 / range);
+            }
+        }
+        return lut;
+    }
+    
+    /**
+     * Gamma curve, <code>255 * (val/255)^gamma</code>, rounded.
+     */
+    public static final byte[] gamma (float gamma, byte[] lut) {
+        return stretchGamma(0, 255, gamma, lut);
+    }
+    
+    /**
+     * Linear contrast stretch of [lo, hi] followed by a gamma curve, in a 
+     * single table.
+     */
+    public static final byte[] stretchGamma (int lo, int hi, float gamma, byte[] lut) {
+        if (!(gamma > 0)) {
+            throw new IllegalArgumentException("Gamma must be positive");
+        }
+        stretch(lo, hi, lut);
+        if (gamma != 1.0f) {
+            for (int val = 0;  val < 256;  val++) {
+                double x = (lut[val] & 0xFF) / 255.0;
+                lut[val] = (byte)Math.round(255.0 * Math.pow(x, gamma));
+            }
+        }
+        return lut;
+    }
+    
+    private static void checkLength (byte[] lut) {
+        if (lut.length < 256) {
+            throw new IllegalArgumentException("Lookup table must have 256 entries");
+        }
+    }
+}
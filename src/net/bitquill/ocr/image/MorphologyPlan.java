@@ -0,0 +1,259 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * How to apply a structuring element, decided once per element.
+ * 
+ * Elements whose mask is the product of a set of horizontal and a set of
+ * vertical offsets (solid rectangles, lines, but also e.g. dotted grids) 
+ * are separable: erosion or dilation is a horizontal pass followed by a 
+ * vertical pass.  Since the image is a rectangle, clipping neighbors at 
+ * its borders commutes with the decomposition, so results are identical
+ * to the direct transform.  Each pass uses the van Herk/Gil-Werman line 
+ * kernels if its offsets are contiguous, and the generic kernel on the 
+ * one-dimensional factor otherwise.  All other elements use the generic 
+ * kernel directly.
+ * 
+ * Plans also keep the linear offsets for the last row stride used, so 
+ * repeated calls on same-size frames allocate nothing.  Elements must 
+ * not change after their first use.
+ */
+final class MorphologyPlan {
+    
+    // Plans for elements other than SimpleStructuringElement, which keeps its own
+    private static final Map<StructuringElement, MorphologyPlan> sPlans = 
+        new WeakHashMap<StructuringElement, MorphologyPlan>();
+    
+    private final StructuringElement mElement;
+    private final boolean mSeparable;
+    // Distinct horizontal and vertical offsets, in ascending order; only if separable
+    private final int[] mXOffsets, mYOffsets;
+    // One-dimensional factors; null where the offsets are contiguous
+    private final SimpleStructuringElement mHFactor, mVFactor;
+    
+    private static final class LinearOffsets {
+        final int mWidth;
+        final int[] mOffsets;
+        
+        LinearOffsets (int width, int[] offsets) {
+            mWidth = width;
+            mOffsets = offsets;
+        }
+    }
+    
+    private volatile LinearOffsets mLinearOffsets = null;
+    
+    MorphologyPlan (StructuringElement strel) {
+        mElement = strel;
+        int numNeighbors = strel.getNumNeighbors();
+        int[] hOffsets = strel.getHorizontalOffsets();
+        int[] vOffsets = strel.getVerticalOffsets();
+        int[] xs = distinct(hOffsets, numNeighbors);
+        int[] ys = distinct(vOffsets, numNeighbors);
+        mSeparable = numNeighbors > 0 
+            && isProduct(hOffsets, vOffsets, numNeighbors, xs, ys);
+        if (mSeparable) {
+            mXOffsets = xs;
+            mYOffsets = ys;
+            mHFactor = isContiguous(xs) ? null : makeLine(xs, false);
+            mVFactor = isContiguous(ys) ? null : makeLine(ys, true);
+        } else {
+            mXOffsets = mYOffsets = null;
+            mHFactor = mVFactor = null;
+        }
+    }
+    
+    /**
+     * @return Plan for the given element, computed on first use
+     */
+    static MorphologyPlan of (StructuringElement strel) {
+        if (strel instanceof SimpleStructuringElement) {
+            return ((SimpleStructuringElement)strel).getPlan();
+        }
+        synchronized (sPlans) {
+            MorphologyPlan plan = sPlans.get(strel);
+            if (plan == null) {
+                plan = new MorphologyPlan(strel);
+                sPlans.put(strel, plan);
+            }
+            return plan;
+        }
+    }
+    
+    private static int[] distinct (int[] offsets, int numNeighbors) {
+        int[] sorted = Arrays.copyOf(offsets, numNeighbors);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int k = 0;  k < numNeighbors;  k++) {
+            if (n == 0 || sorted[k] != sorted[n - 1]) {
+                sorted[n++] = sorted[k];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+    
+    /**
+     * Check whether every (x, y) in xs times ys is a neighbor, and vice versa.
+     */
+    private static boolean isProduct (int[] hOffsets, int[] vOffsets, int numNeighbors, int[] xs, int[] ys) {
+        int numX = xs.length;
+        if ((long)numX * ys.length != numNeighbors) {
+            return false;
+        }
+        // Neighbors are distinct, so it suffices that each is in the product
+        // and that the product has no more elements
+        boolean[] seen = new boolean[numNeighbors];
+        for (int n = 0;  n < numNeighbors;  n++) {
+            int k = Arrays.binarySearch(ys, vOffsets[n]) * numX + Arrays.binarySearch(xs, hOffsets[n]);
+            if (seen[k]) {
+                return false;
+            }
+            seen[k] = true;
+        }
+        return true;
+    }
+    
+    private static boolean isContiguous (int[] offsets) {
+        return offsets[offsets.length - 1] - offsets[0] + 1 == offsets.length;
+    }
+    
+    private static SimpleStructuringElement makeLine (int[] offsets, boolean vertical) {
+        int min = offsets[0], length = offsets[offsets.length - 1] - min + 1;
+        byte[] mask = new byte[length];
+        for (int offset : offsets) {
+            mask[offset - min] = 1;
+        }
+        return vertical ? new SimpleStructuringElement(mask, 1, length, 0, -min)
+            : new SimpleStructuringElement(mask, length, 1, -min, 0);
+    }
+    
+    final boolean isSeparable () {
+        return mSeparable;
+    }
+    
+    /**
+     * Linear offsets of the element's neighbors for the given row stride
+     * (the image width, unless the image is a view); memoized for the last 
+     * stride.  Returned array must not be modified.
+     */
+    final int[] getLinearOffsets (int imgWidth) {
+        LinearOffsets cached = mLinearOffsets;
+        if (cached != null && cached.mWidth == imgWidth) {
+            return cached.mOffsets;
+        }
+        StructuringElement strel = mElement;
+        int numNeighbors = strel.getNumNeighbors();
+        int[] deltaX = strel.getHorizontalOffsets();
+        int[] deltaY = strel.getVerticalOffsets();
+        int[] ofs = new int[numNeighbors];
+        for (int n = 0;  n < numNeighbors;  n++) {
+            ofs[n] = deltaY[n] * imgWidth + deltaX[n];
+        }
+        mLinearOffsets = new LinearOffsets(imgWidth, ofs);
+        return ofs;
+    }
+    
+    /**
+     * Erode (or dilate) source into destination, which must be the same 
+     * size.  Destination may be the source only for solid rectangles, since 
+     * the generic kernel cannot run in place.  Arrays are laid out as 
+     * described in {@link ImageKernels}.
+     */
+    final void apply (ImageKernels kernels, byte[] in, int inOfs, int inStride, 
+            byte[] out, int outOfs, int outStride, int width, int height, boolean dilate) {
+        if (!mSeparable) {
+            applyGeneric(kernels, mElement, getLinearOffsets(inStride), 
+                    in, inOfs, inStride, out, outOfs, outStride, width, height, dilate);
+            return;
+        }
+        int[] xs = mXOffsets, ys = mYOffsets;
+        boolean hPass = (xs.length > 1 || xs[0] != 0), vPass = (ys.length > 1 || ys[0] != 0);
+        if (!hPass && !vPass) {
+            // Single pixel at the anchor; line kernel with zero length copies
+            kernels.lineErode(in, inOfs, inStride, out, outOfs, outStride, width, height, 0, 0, false);
+            return;
+        }
+        if (hPass && vPass) {
+            byte[] tmp = out;
+            int tmpOfs = outOfs, tmpStride = outStride;
+            GrayImage tmpImg = null;
+            if (mVFactor != null || (mHFactor != null && in == out)) {
+                // Generic kernel cannot run in place
+                tmpImg = ImageBufferPool.getDefault().leaseImage(width, height);
+                tmp = tmpImg.mData;
+                tmpOfs = 0;
+                tmpStride = width;
+            }
+            applyPass(kernels, mHFactor, xs, in, inOfs, inStride, tmp, tmpOfs, tmpStride, 
+                    width, height, false, dilate);
+            applyPass(kernels, mVFactor, ys, tmp, tmpOfs, tmpStride, out, outOfs, outStride, 
+                    width, height, true, dilate);
+            if (tmpImg != null) {
+                ImageBufferPool.getDefault().release(tmpImg);
+            }
+        } else if (hPass) {
+            applyPass(kernels, mHFactor, xs, in, inOfs, inStride, out, outOfs, outStride, 
+                    width, height, false, dilate);
+        } else {
+            applyPass(kernels, mVFactor, ys, in, inOfs, inStride, out, outOfs, outStride, 
+                    width, height, true, dilate);
+        }
+    }
+    
+    private static void applyPass (ImageKernels kernels, SimpleStructuringElement factor, int[] offsets,
+            byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, boolean vertical, boolean dilate) {
+        if (factor == null) {
+            int min = offsets[0], max = offsets[offsets.length - 1];
+            if (dilate) {
+                kernels.lineDilate(in, inOfs, inStride, out, outOfs, outStride, width, height, min, max, vertical);
+            } else {
+                kernels.lineErode(in, inOfs, inStride, out, outOfs, outStride, width, height, min, max, vertical);
+            }
+        } else {
+            applyGeneric(kernels, factor, factor.getPlan().getLinearOffsets(inStride), 
+                    in, inOfs, inStride, out, outOfs, outStride, width, height, dilate);
+        }
+    }
+    
+    private static void applyGeneric (ImageKernels kernels, StructuringElement strel, int[] linearOffsets,
+            byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, boolean dilate) {
+        if (dilate) {
+            kernels.dilate(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                    strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), 
+                    linearOffsets, 
+                    strel.getMinX(), strel.getMaxX(), 
+                    strel.getMinY(), strel.getMaxY());
+        } else {
+            kernels.erode(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                    strel.getNumNeighbors(), 
+                    strel.getHorizontalOffsets(), strel.getVerticalOffsets(), 
+                    linearOffsets, 
+                    strel.getMinX(), strel.getMaxX(), 
+                    strel.getMinY(), strel.getMaxY());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+/**
+ * Kernels implemented in libimageproc.
+ */
+final class NativeImageKernels implements ImageKernels {
+
+    @Override
+    public void meanFilter (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int radius) {
+        GrayImage.nativeMeanFilter(in, inOfs, inStride, out, outOfs, outStride, width, height, radius);
+    }
+
+    @Override
+    public void adaptiveThreshold (byte[] in, int inOfs, int inStride, byte[] thresh, int threshOfs, int threshStride, 
+            byte[] out, int outOfs, int outStride, int width, int height, byte hi, byte lo, int offset) {
+        GrayImage.nativeAdaptiveThreshold(in, inOfs, inStride, thresh, threshOfs, threshStride, 
+                out, outOfs, outStride, width, height, hi, lo, offset);
+    }
+
+    @Override
+    public void contrastStretch (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte min, byte max) {
+        GrayImage.nativeContrastStretch(in, inOfs, inStride, out, outOfs, outStride, width, height, min, max);
+    }
+
+    @Override
+    public void applyLut (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, byte[] lut) {
+        GrayImage.nativeApplyLut(in, inOfs, inStride, out, outOfs, outStride, width, height, lut);
+    }
+
+    @Override
+    public void downsample (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height) {
+        GrayImage.nativeDownsample(in, inOfs, inStride, out, outOfs, outStride, width, height);
+    }
+
+    @Override
+    public void grayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height) {
+        GrayImage.nativeGrayToARGB(in, imgWidth, imgHeight, out, left, top, width, height);
+    }
+
+    @Override
+    public int min (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        return GrayImage.nativeMin(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public int max (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        return GrayImage.nativeMax(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public float mean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        return GrayImage.nativeMean(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public float variance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        return GrayImage.nativeVariance(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public float laplacianVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        return GrayImage.nativeLaplacianVariance(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public void histogram (byte[] in, int imgWidth, int imgHeight, int[] hist, int left, int top, int width, int height) {
+        GrayImage.nativeHistogram(in, imgWidth, imgHeight, hist, left, top, width, height);
+    }
+
+    @Override
+    public void statistics (byte[] in, int imgWidth, int imgHeight, long[] out, int[] hist, 
+            int left, int top, int width, int height) {
+        GrayImage.nativeStatistics(in, imgWidth, imgHeight, out, hist, left, top, width, height);
+    }
+
+    @Override
+    public void erode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height,
+            int numNeighbors, int[] hOffsets, int[] vOffsets, int[] linearOffsets,
+            int minX, int maxX, int minY, int maxY) {
+        GrayImage.nativeErode(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+    }
+
+    @Override
+    public void dilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height,
+            int numNeighbors, int[] hOffsets, int[] vOffsets, int[] linearOffsets,
+            int minX, int maxX, int minY, int maxY) {
+        GrayImage.nativeDilate(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+    }
+
+    @Override
+    public void lineErode (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical) {
+        GrayImage.nativeLineErode(in, inOfs, inStride, out, outOfs, outStride, 
+                width, height, minOffset, maxOffset, vertical);
+    }
+
+    @Override
+    public void lineDilate (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height, int minOffset, int maxOffset, boolean vertical) {
+        GrayImage.nativeLineDilate(in, inOfs, inStride, out, outOfs, outStride, 
+                width, height, minOffset, maxOffset, vertical);
+    }
+
+    @Override
+    public void fusedBinarize (byte[] in, int inOfs, int inStride, byte[] thr, int thrOfs, int thrStride,
+            byte[] out, int outOfs, int outStride, int width, int height, byte[] lut, 
+            int meanRadius, byte hi, byte lo, int offset, int hRadius, int vRadius) {
+        GrayImage.nativeFusedBinarize(in, inOfs, inStride, thr, thrOfs, thrStride, out, outOfs, outStride, 
+                width, height, lut, meanRadius, hi, lo, offset, hRadius, vRadius);
+    }
+}
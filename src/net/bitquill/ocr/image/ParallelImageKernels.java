@@ -0,0 +1,694 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Kernels that split each operation into horizontal stripes and run them 
+ * concurrently on a fixed worker pool shared by the whole process, 
+ * delegating each stripe to a serial backend.  Output is bit-identical 
+ * to the serial backend.
+ * 
+ * Pointwise operations run each stripe directly on its own rows of the 
+ * shared arrays, so stripes write disjoint row ranges, also in place.  
+ * Neighborhood operations run each stripe on its rows of the shared 
+ * input plus as many rows above and below (the halo) as the neighborhood 
+ * needs, into a private output buffer, and then copy the stripe's own 
+ * rows to the shared output.  When the output is the input array, all 
+ * stripes finish reading before any copies back, so that halo rows are 
+ * never overwritten while a neighbor still needs them.  Reductions run 
+ * on one sub-region per stripe and merge the partial results; mean and 
+ * variance are merged via histograms, so that they are exact.  The 
+ * native backend's stripes of one array share it via critical access, 
+ * which pins rather than copies the array on all supported VMs.
+ * 
+ * Images smaller than a threshold, operations with invalid parameters, 
+ * and operations without a useful split (e.g., {@link #grayToARGB}) go 
+ * straight to the serial backend.  Calls are serialized on the 
+ * instance, since stripe buffers and tasks are reused.
+ */
+final class ParallelImageKernels implements ImageKernels {
+    
+    /** Default image size (in pixels) below which operations stay serial */
+    static final int DEFAULT_MIN_PIXELS = 128 * 1024;
+    
+    private static final int MIN_STRIPE_ROWS = 16;
+    
+    private static ThreadPoolExecutor sPool = null;
+    
+    private final ImageKernels mSerial;
+    private final int mNumThreads;
+    private final int mMinPixels;
+    private final ExecutorService mPool;
+    
+    // Per-stripe tasks and buffers, reused between calls
+    private final StripeTask[] mTasks;
+    private final Future<?>[] mFutures;
+    private final byte[][] mStripeOut, mStripeOut2;
+    private final int[][] mStripeHist;
+    private final int[] mStripeExtreme;
+    private final long[][] mStripeStats;
+    
+    // Operation currently run by the stripe tasks
+    private StripeOp mOp;
+    private int mOpStripes, mOpHeight;
+    
+    /**
+     * Operation applied to one stripe, i.e., to rows r0 (inclusive) 
+     * to r1 (exclusive) of the image or region.
+     */
+    private static interface StripeOp {
+        public void apply (int stripe, int r0, int r1);
+    }
+    
+    /**
+     * Neighborhood operation applied to input rows h0 (inclusive) to 
+     * h1 (exclusive), writing compact rows (stride equal to the width) 
+     * to the given private buffers.
+     */
+    private static interface HaloOp {
+        public void apply (int h0, int h1, byte[] out, byte[] out2);
+    }
+    
+    private final class StripeTask implements Runnable {
+        private final int mStripe;
+        
+        StripeTask (int stripe) {
+            mStripe = stripe;
+        }
+        
+        public void run () {
+            mOp.apply(mStripe, mStripe * mOpHeight / mOpStripes, (mStripe + 1) * mOpHeight / mOpStripes);
+        }
+    }
+    
+    /**
+     * Shared pool with at least the given number of worker threads.  The 
+     * pool is grown in place, never replaced or shut down, since earlier 
+     * instances keep using it; its threads are daemons.
+     */
+    private static synchronized ExecutorService getPool (int numThreads) {
+        if (sPool == null) {
+            sPool = (ThreadPoolExecutor)Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private int mCount = 0;
+                public Thread newThread (Runnable r) {
+                    Thread t = new Thread(r, "ImageKernels-" + (mCount++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else if (sPool.getCorePoolSize() < numThreads) {
+            // Raise maximum first, so it never drops below core size
+            sPool.setMaximumPoolSize(numThreads);
+            sPool.setCorePoolSize(numThreads);
+        }
+        return sPool;
+    }
+    
+    ParallelImageKernels (ImageKernels serial, int numThreads, int minPixels) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        mSerial = serial;
+        mNumThreads = numThreads;
+        mMinPixels = minPixels;
+        // Calling thread runs one stripe itself
+        mPool = (numThreads > 1) ? getPool(numThreads - 1) : null;
+        mTasks = new StripeTask[numThreads];
+        for (int s = 0;  s < numThreads;  s++) {
+            mTasks[s] = new StripeTask(s);
+        }
+        mFutures = new Future<?>[numThreads];
+        mStripeOut = new byte[numThreads][];
+        mStripeOut2 = new byte[numThreads][];
+        mStripeHist = new int[numThreads][256];
+        mStripeExtreme = new int[numThreads];
+        mStripeStats = new long[numThreads][4];
+    }
+    
+    ParallelImageKernels (ImageKernels serial, int numThreads) {
+        this(serial, numThreads, DEFAULT_MIN_PIXELS);
+    }
+    
+    final ImageKernels getSerialKernels () {
+        return mSerial;
+    }
+    
+    final int getNumThreads () {
+        return mNumThreads;
+    }
+    
+    /**
+     * @return Number of stripes to split region into, or 1 if it should stay serial
+     */
+    private int numStripes (int width, int height, int minRows) {
+        if (mPool == null || width <= 0 || height <= 0 || width * height < mMinPixels) {
+            return 1;
+        }
+        return Math.max(1, Math.min(mNumThreads, height / Math.max(MIN_STRIPE_ROWS, minRows)));
+    }
+    
+    private static byte[] ensureLength (byte[] buf, int length) {
+        return (buf == null || buf.length < length) ? new byte[length] : buf;
+    }
+    
+    /**
+     * Run operation on n stripes of the given number of rows, all but the 
+     * last on the pool and the last on the calling thread, and wait for 
+     * all of them to finish.  The first failure is rethrown.
+     */
+    private synchronized void runStripes (int n, int height, StripeOp op) {
+        mOp = op;
+        mOpStripes = n;
+        mOpHeight = height;
+        for (int s = 0;  s < n - 1;  s++) {
+            mFutures[s] = mPool.submit(mTasks[s]);
+        }
+        Throwable failure = null;
+        try {
+            mTasks[n - 1].run();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        // Always wait for all stripes, since they write into shared buffers
+        boolean interrupted = false;
+        for (int s = 0;  s < n - 1;  s++) {
+            while (true) {
+                try {
+                    mFutures[s].get();
+                    break;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    if (failure == null) {
+                        failure = ee.getCause();
+                    }
+                    break;
+                }
+            }
+            mFutures[s] = null;
+        }
+        mOp = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure instanceof Error) {
+            throw (Error)failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+    
+    private static boolean isValidLayout (byte[] data, int ofs, int stride, int width, int height) {
+        return width >= 0 && height >= 0 && ofs >= 0 && stride >= width 
+            && (width == 0 || height == 0 || (long)(height - 1) * stride + width <= data.length - ofs);
+    }
+    
+    /**
+     * @return true if a pointwise operation may write row i of the output 
+     *   while reading row i of the input, i.e., if the two do not share 
+     *   an array or lie exactly on top of each other
+     */
+    private static boolean isRowAligned (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride) {
+        return in != out || (inOfs == outOfs && inStride == outStride);
+    }
+    
+    /**
+     * Copy rows between arrays with possibly different strides.
+     */
+    private static void copyRows (byte[] in, int inOfs, int inStride, 
+            byte[] out, int outOfs, int outStride, int width, int height) {
+        if (inStride == width && outStride == width) {
+            System.arraycopy(in, inOfs, out, outOfs, width * height);
+            return;
+        }
+        for (int i = 0;  i < height;  i++) {
+            System.arraycopy(in, inOfs + i*inStride, out, outOfs + i*outStride, width);
+        }
+    }
+    
+    /**
+     * Apply pointwise operation stripe by stripe, directly on the shared 
+     * arrays; each stripe reads and writes only its own rows.
+     * @param aux  Second input (e.g., threshold), or null
+     * @return false if the operation should run serially instead
+     */
+    private boolean applyRows (byte[] in, int inOfs, int inStride, 
+            byte[] aux, int auxOfs, int auxStride, 
+            byte[] out, int outOfs, int outStride, int width, int height, StripeOp op) {
+        if (!isValidLayout(in, inOfs, inStride, width, height) 
+                || !isValidLayout(out, outOfs, outStride, width, height)
+                || (aux != null && !isValidLayout(aux, auxOfs, auxStride, width, height))) {
+            return false;  // Let serial backend report it
+        }
+        if (!isRowAligned(in, inOfs, inStride, out, outOfs, outStride) 
+                || (aux != null && !isRowAligned(aux, auxOfs, auxStride, out, outOfs, outStride))) {
+            return false;  // Rows would cross stripes
+        }
+        int n = numStripes(width, height, 1);
+        if (n < 2) {
+            return false;
+        }
+        runStripes(n, height, op);
+        return true;
+    }
+    
+    /**
+     * Apply neighborhood operation stripe by stripe.  Each stripe reads 
+     * its rows of the shared input plus the halo, writes private compact 
+     * buffers, and copies its own rows to the shared output(s); in place, 
+     * the copies wait until all stripes are done reading.
+     * @param out2  Second output (e.g., of fused binarization), or null
+     * @param halo  Number of extra rows needed above and below each stripe
+     * @param minRows  Minimum height of stripe sub-images
+     * @return false if the operation should run serially instead
+     */
+    private synchronized boolean applyWithHalo (byte[] in, int inOfs, int inStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final byte[] out2, final int out2Ofs, final int out2Stride, 
+            final int width, final int height, final int halo, int minRows, final HaloOp op) {
+        if (!isValidLayout(in, inOfs, inStride, width, height) 
+                || !isValidLayout(out, outOfs, outStride, width, height)
+                || (out2 != null && (out2 == out || !isValidLayout(out2, out2Ofs, out2Stride, width, height)))) {
+            return false;  // Let serial backend report it
+        }
+        int n = numStripes(width, height, minRows);
+        if (n < 2) {
+            return false;
+        }
+        final boolean inPlace = (out == in || out2 == in);
+        runStripes(n, height, new StripeOp() {
+            public void apply (int stripe, int r0, int r1) {
+                int h0 = Math.max(0, r0 - halo), h1 = Math.min(height, r1 + halo);
+                int len = (h1 - h0) * width;
+                byte[] sOut = mStripeOut[stripe] = ensureLength(mStripeOut[stripe], len);
+                byte[] sOut2 = (out2 != null) ? (mStripeOut2[stripe] = ensureLength(mStripeOut2[stripe], len)) : null;
+                op.apply(h0, h1, sOut, sOut2);
+                if (!inPlace) {
+                    copyStripe(stripe, r0, r1, out, outOfs, outStride, out2, out2Ofs, out2Stride, width, halo);
+                }
+            }
+        });
+        if (inPlace) {
+            runStripes(n, height, new StripeOp() {
+                public void apply (int stripe, int r0, int r1) {
+                    copyStripe(stripe, r0, r1, out, outOfs, outStride, out2, out2Ofs, out2Stride, width, halo);
+                }
+            });
+        }
+        return true;
+    }
+    
+    /**
+     * Copy a stripe's own rows from its private buffers to the shared output(s).
+     */
+    private void copyStripe (int stripe, int r0, int r1, 
+            byte[] out, int outOfs, int outStride, byte[] out2, int out2Ofs, int out2Stride, 
+            int width, int halo) {
+        int sOfs = (r0 - Math.max(0, r0 - halo)) * width;
+        copyRows(mStripeOut[stripe], sOfs, width, out, outOfs + r0 * outStride, outStride, width, r1 - r0);
+        if (out2 != null) {
+            copyRows(mStripeOut2[stripe], sOfs, width, out2, out2Ofs + r0 * out2Stride, out2Stride, width, r1 - r0);
+        }
+    }
+
+    @Override
+    public void meanFilter (final byte[] in, final int inOfs, final int inStride, byte[] out, int outOfs, int outStride, 
+            final int width, int height, final int radius) {
+        if (2*radius + 1 > width || 
+                !applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, null, 0, 0, 
+                        width, height, radius, 2*radius + 1, new HaloOp() {
+                    public void apply (int h0, int h1, byte[] sOut, byte[] sOut2) {
+                        mSerial.meanFilter(in, inOfs + h0 * inStride, inStride, sOut, 0, width, 
+                                width, h1 - h0, radius);
+                    }
+                })) {
+            mSerial.meanFilter(in, inOfs, inStride, out, outOfs, outStride, width, height, radius);
+        }
+    }
+
+    @Override
+    public void adaptiveThreshold (final byte[] in, final int inOfs, final int inStride, 
+            final byte[] thresh, final int threshOfs, final int threshStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final int width, int height, final byte hi, final byte lo, final int offset) {
+        if (!applyRows(in, inOfs, inStride, thresh, threshOfs, threshStride, out, outOfs, outStride, 
+                        width, height, new StripeOp() {
+                    public void apply (int stripe, int r0, int r1) {
+                        mSerial.adaptiveThreshold(in, inOfs + r0 * inStride, inStride, 
+                                thresh, threshOfs + r0 * threshStride, threshStride, 
+                                out, outOfs + r0 * outStride, outStride, width, r1 - r0, hi, lo, offset);
+                    }
+                })) {
+            mSerial.adaptiveThreshold(in, inOfs, inStride, thresh, threshOfs, threshStride, 
+                    out, outOfs, outStride, width, height, hi, lo, offset);
+        }
+    }
+
+    @Override
+    public void contrastStretch (final byte[] in, final int inOfs, final int inStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final int width, int height, final byte min, final byte max) {
+        if (!applyRows(in, inOfs, inStride, null, 0, 0, out, outOfs, outStride, 
+                        width, height, new StripeOp() {
+                    public void apply (int stripe, int r0, int r1) {
+                        mSerial.contrastStretch(in, inOfs + r0 * inStride, inStride, 
+                                out, outOfs + r0 * outStride, outStride, width, r1 - r0, min, max);
+                    }
+                })) {
+            mSerial.contrastStretch(in, inOfs, inStride, out, outOfs, outStride, width, height, min, max);
+        }
+    }
+
+    @Override
+    public void applyLut (final byte[] in, final int inOfs, final int inStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final int width, int height, final byte[] lut) {
+        if (lut.length < 256 || !applyRows(in, inOfs, inStride, null, 0, 0, out, outOfs, outStride, 
+                        width, height, new StripeOp() {
+                    public void apply (int stripe, int r0, int r1) {
+                        mSerial.applyLut(in, inOfs + r0 * inStride, inStride, 
+                                out, outOfs + r0 * outStride, outStride, width, r1 - r0, lut);
+                    }
+                })) {
+            mSerial.applyLut(in, inOfs, inStride, out, outOfs, outStride, width, height, lut);
+        }
+    }
+
+    @Override
+    public void downsample (byte[] in, int inOfs, int inStride, byte[] out, int outOfs, int outStride, 
+            int width, int height) {
+        // Input and output sizes differ, so stripes do not apply; cheap anyway
+        mSerial.downsample(in, inOfs, inStride, out, outOfs, outStride, width, height);
+    }
+
+    @Override
+    public void grayToARGB (byte[] in, int imgWidth, int imgHeight, int[] out, int left, int top, int width, int height) {
+        mSerial.grayToARGB(in, imgWidth, imgHeight, out, left, top, width, height);
+    }
+    
+    /**
+     * @return Number of stripes for a reduction over a region of interest, 
+     *   or 1 if it should stay serial
+     */
+    private int numReduceStripes (byte[] in, int imgWidth, int imgHeight, 
+            int left, int top, int width, int height) {
+        if (imgWidth < 0 || imgHeight < 0 || in.length < imgWidth * imgHeight
+                || left < 0 || top < 0 || width < 0 || height < 0
+                || left + width > imgWidth || top + height > imgHeight) {
+            return 1;  // Let serial backend report it
+        }
+        return numStripes(width, height, 1);
+    }
+    
+    /**
+     * Histograms of stripes of a region of interest, in mStripeHist[0..n-1].
+     */
+    private void stripeHistograms (final byte[] in, final int imgWidth, final int imgHeight, 
+            final int left, final int top, final int width, int height, int n) {
+        runStripes(n, height, new StripeOp() {
+            public void apply (int stripe, int r0, int r1) {
+                mSerial.histogram(in, imgWidth, imgHeight, mStripeHist[stripe], left, top + r0, width, r1 - r0);
+            }
+        });
+    }
+
+    @Override
+    public synchronized int min (final byte[] in, final int imgWidth, final int imgHeight, 
+            final int left, final int top, final int width, final int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2) {
+            return mSerial.min(in, imgWidth, imgHeight, left, top, width, height);
+        }
+        runStripes(n, height, new StripeOp() {
+            public void apply (int stripe, int r0, int r1) {
+                mStripeExtreme[stripe] = mSerial.min(in, imgWidth, imgHeight, left, top + r0, width, r1 - r0);
+            }
+        });
+        int min = mStripeExtreme[0];
+        for (int s = 1;  s < n;  s++) {
+            min = Math.min(min, mStripeExtreme[s]);
+        }
+        return min;
+    }
+
+    @Override
+    public synchronized int max (final byte[] in, final int imgWidth, final int imgHeight, 
+            final int left, final int top, final int width, final int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2) {
+            return mSerial.max(in, imgWidth, imgHeight, left, top, width, height);
+        }
+        runStripes(n, height, new StripeOp() {
+            public void apply (int stripe, int r0, int r1) {
+                mStripeExtreme[stripe] = mSerial.max(in, imgWidth, imgHeight, left, top + r0, width, r1 - r0);
+            }
+        });
+        int max = mStripeExtreme[0];
+        for (int s = 1;  s < n;  s++) {
+            max = Math.max(max, mStripeExtreme[s]);
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized float mean (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2) {
+            return mSerial.mean(in, imgWidth, imgHeight, left, top, width, height);
+        }
+        stripeHistograms(in, imgWidth, imgHeight, left, top, width, height, n);
+        long sum = 0;
+        for (int s = 0;  s < n;  s++) {
+            int[] hist = mStripeHist[s];
+            for (int val = 0;  val < 256;  val++) {
+                sum += (long)val * hist[val];
+            }
+        }
+        return (float)sum / (width * height);
+    }
+
+    @Override
+    public synchronized float variance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2) {
+            return mSerial.variance(in, imgWidth, imgHeight, left, top, width, height);
+        }
+        stripeHistograms(in, imgWidth, imgHeight, left, top, width, height, n);
+        long sum = 0;
+        long sumSquares = 0;
+        for (int s = 0;  s < n;  s++) {
+            int[] hist = mStripeHist[s];
+            for (int val = 0;  val < 256;  val++) {
+                sum += (long)val * hist[val];
+                sumSquares += (long)(val * val) * hist[val];
+            }
+        }
+        float mean = (float)sum / (width * height);
+        return (float)sumSquares / (width * height) - mean*mean;
+    }
+
+    @Override
+    public float laplacianVariance (byte[] in, int imgWidth, int imgHeight, int left, int top, int width, int height) {
+        // Applied to small regions (e.g., around a word), so not split
+        return mSerial.laplacianVariance(in, imgWidth, imgHeight, left, top, width, height);
+    }
+
+    @Override
+    public synchronized void histogram (byte[] in, int imgWidth, int imgHeight, int[] hist, 
+            int left, int top, int width, int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2 || hist.length < 256) {
+            mSerial.histogram(in, imgWidth, imgHeight, hist, left, top, width, height);
+            return;
+        }
+        stripeHistograms(in, imgWidth, imgHeight, left, top, width, height, n);
+        for (int val = 0;  val < 256;  val++) {
+            int count = 0;
+            for (int s = 0;  s < n;  s++) {
+                count += mStripeHist[s][val];
+            }
+            hist[val] = count;
+        }
+    }
+
+    @Override
+    public synchronized void statistics (final byte[] in, final int imgWidth, final int imgHeight, 
+            long[] out, int[] hist, final int left, final int top, final int width, final int height) {
+        int n = numReduceStripes(in, imgWidth, imgHeight, left, top, width, height);
+        if (n < 2 || out.length < 4 || (hist != null && hist.length < 256)) {
+            mSerial.statistics(in, imgWidth, imgHeight, out, hist, left, top, width, height);
+            return;
+        }
+        final boolean withHist = (hist != null);
+        runStripes(n, height, new StripeOp() {
+            public void apply (int stripe, int r0, int r1) {
+                mSerial.statistics(in, imgWidth, imgHeight, mStripeStats[stripe], 
+                        withHist ? mStripeHist[stripe] : null, left, top + r0, width, r1 - r0);
+            }
+        });
+        long mn = 255, mx = 0, sum = 0, sumSquares = 0;
+        for (int s = 0;  s < n;  s++) {
+            long[] stats = mStripeStats[s];
+            mn = Math.min(mn, stats[0]);
+            mx = Math.max(mx, stats[1]);
+            sum += stats[2];
+            sumSquares += stats[3];
+        }
+        out[0] = mn;
+        out[1] = mx;
+        out[2] = sum;
+        out[3] = sumSquares;
+        if (withHist) {
+            for (int val = 0;  val < 256;  val++) {
+                int count = 0;
+                for (int s = 0;  s < n;  s++) {
+                    count += mStripeHist[s][val];
+                }
+                hist[val] = count;
+            }
+        }
+    }
+
+    @Override
+    public void erode (final byte[] in, final int inOfs, final int inStride, byte[] out, int outOfs, int outStride, 
+            final int width, int height, 
+            final int numNeighbors, final int[] hOffsets, final int[] vOffsets, final int[] linearOffsets, 
+            final int minX, final int maxX, final int minY, final int maxY) {
+        // Stripes keep the input stride, so linear offsets stay valid
+        int halo = Math.max(0, Math.max(-minY, maxY));
+        if (!applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, null, 0, 0, 
+                        width, height, halo, maxY - minY + 1, new HaloOp() {
+                    public void apply (int h0, int h1, byte[] sOut, byte[] sOut2) {
+                        mSerial.erode(in, inOfs + h0 * inStride, inStride, sOut, 0, width, width, h1 - h0, 
+                                numNeighbors, hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+                    }
+                })) {
+            mSerial.erode(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                    hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+        }
+    }
+
+    @Override
+    public void dilate (final byte[] in, final int inOfs, final int inStride, byte[] out, int outOfs, int outStride, 
+            final int width, int height, 
+            final int numNeighbors, final int[] hOffsets, final int[] vOffsets, final int[] linearOffsets, 
+            final int minX, final int maxX, final int minY, final int maxY) {
+        int halo = Math.max(0, Math.max(-minY, maxY));
+        if (!applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, null, 0, 0, 
+                        width, height, halo, maxY - minY + 1, new HaloOp() {
+                    public void apply (int h0, int h1, byte[] sOut, byte[] sOut2) {
+                        mSerial.dilate(in, inOfs + h0 * inStride, inStride, sOut, 0, width, width, h1 - h0, 
+                                numNeighbors, hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+                    }
+                })) {
+            mSerial.dilate(in, inOfs, inStride, out, outOfs, outStride, width, height, numNeighbors, 
+                    hOffsets, vOffsets, linearOffsets, minX, maxX, minY, maxY);
+        }
+    }
+
+    @Override
+    public void lineErode (final byte[] in, final int inOfs, final int inStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final int width, int height, final int minOffset, final int maxOffset, final boolean vertical) {
+        boolean striped;
+        if (vertical) {
+            int halo = Math.max(0, Math.max(-minOffset, maxOffset));
+            striped = applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, null, 0, 0, 
+                    width, height, halo, 1, new HaloOp() {
+                public void apply (int h0, int h1, byte[] sOut, byte[] sOut2) {
+                    mSerial.lineErode(in, inOfs + h0 * inStride, inStride, sOut, 0, width, width, h1 - h0, 
+                            minOffset, maxOffset, true);
+                }
+            });
+        } else {
+            // Rows are independent
+            striped = applyRows(in, inOfs, inStride, null, 0, 0, out, outOfs, outStride, 
+                    width, height, new StripeOp() {
+                public void apply (int stripe, int r0, int r1) {
+                    mSerial.lineErode(in, inOfs + r0 * inStride, inStride, out, outOfs + r0 * outStride, outStride, 
+                            width, r1 - r0, minOffset, maxOffset, false);
+                }
+            });
+        }
+        if (!striped) {
+            mSerial.lineErode(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                    minOffset, maxOffset, vertical);
+        }
+    }
+
+    @Override
+    public void lineDilate (final byte[] in, final int inOfs, final int inStride, 
+            final byte[] out, final int outOfs, final int outStride, 
+            final int width, int height, final int minOffset, final int maxOffset, final boolean vertical) {
+        boolean striped;
+        if (vertical) {
+            int halo = Math.max(0, Math.max(-minOffset, maxOffset));
+            striped = applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, null, 0, 0, 
+                    width, height, halo, 1, new HaloOp() {
+                public void apply (int h0, int h1, byte[] sOut, byte[] sOut2) {
+                    mSerial.lineDilate(in, inOfs + h0 * inStride, inStride, sOut, 0, width, width, h1 - h0, 
+                            minOffset, maxOffset, true);
+                }
+            });
+        } else {
+            striped = applyRows(in, inOfs, inStride, null, 0, 0, out, outOfs, outStride, 
+                    width, height, new StripeOp() {
+                public void apply (int stripe, int r0, int r1) {
+                    mSerial.lineDilate(in, inOfs + r0 * inStride, inStride, out, outOfs + r0 * outStride, outStride, 
+                            width, r1 - r0, minOffset, maxOffset, false);
+                }
+            });
+        }
+        if (!striped) {
+            mSerial.lineDilate(in, inOfs, inStride, out, outOfs, outStride, width, height, 
+                    minOffset, maxOffset, vertical);
+        }
+    }
+
+    @Override
+    public void fusedBinarize (final byte[] in, final int inOfs, final int inStride, 
+            byte[] thr, int thrOfs, int thrStride, byte[] out, int outOfs, int outStride, 
+            final int width, int height, final byte[] lut, 
+            final int meanRadius, final byte hi, final byte lo, final int offset, 
+            final int hRadius, final int vRadius) {
+        // Eroded rows need thresholded rows vRadius away, which in turn need 
+        // input rows meanRadius away
+        if (2*meanRadius + 1 > width || lut.length < 256 || hRadius < 0 || vRadius < 0 
+                || !applyWithHalo(in, inOfs, inStride, out, outOfs, outStride, thr, thrOfs, thrStride, 
+                        width, height, meanRadius + vRadius, 2*meanRadius + 1, new HaloOp() {
+                    public void apply (int h0, int h1, byte[] sOut, byte[] sThr) {
+                        mSerial.fusedBinarize(in, inOfs + h0 * inStride, inStride, sThr, 0, width, 
+                                sOut, 0, width, width, h1 - h0, lut, meanRadius, hi, lo, offset, 
+                                hRadius, vRadius);
+                    }
+                })) {
+            mSerial.fusedBinarize(in, inOfs, inStride, thr, thrOfs, thrStride, out, outOfs, outStride, 
+                    width, height, lut, meanRadius, hi, lo, offset, hRadius, vRadius);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Arrays;
+
+/**
+ * Run-length statistics of a region, after thresholding it globally 
+ * (iterative intermeans, starting from the mean): lengths of the 
+ * background gaps between text runs along rows, and lengths of the text
+ * runs along columns.  On a line of text, the former are dominated by 
+ * inter-letter gaps and the latter by vertical strokes, whose length is 
+ * close to the character (x-)height.
+ * 
+ * Runs that touch the region border are truncated, so they are not 
+ * counted.  Since the threshold adapts to the region, the source may be 
+ * either a grayscale frame or an already binarized image.
+ * 
+ * Instances are reusable, and are not thread-safe.
+ */
+public class RunLengthStats {
+    
+    @SuppressWarnings("unused")
+    private static final String TAG = "RunLengthStats";
+    
+    /** Runs at least this long are counted together, in the last bin */
+    public static final int MAX_RUN_LENGTH = 64;
+    
+    private final int[] mGapHist = new int[MAX_RUN_LENGTH + 1];
+    private final int[] mRunHist = new int[MAX_RUN_LENGTH + 1];  // Weighted by length
+    private int mNumGaps = 0;
+    private int mNumRuns = 0;
+    private int mNumRunPixels = 0;
+    private final int[] mHist = new int[256];
+    private int[] mColumnRuns = new int[0];  // Current text run length per column; -1 if it touches the top
+    
+    public RunLengthStats () {
+    }
+    
+    // Intermeans threshold iterations; usually converges in two or three
+    private static final int MAX_THRESHOLD_ITERATIONS = 8;
+    
+    /**
+     * Compute statistics of given region.  Right and bottom are exclusive.
+     * @param darkOnLight  Whether text pixels are those below the threshold, 
+     *   rather than above it
+     * @return This object
+     */
+    public final RunLengthStats compute (GrayMatrix img, int left, int top, int right, int bottom, 
+            boolean darkOnLight) {
+        int width = right - left, height = bottom - top;
+        img.checkViewRoi(left, top, width, height);
+        Arrays.fill(mGapHist, 0);
+        Arrays.fill(mRunHist, 0);
+        mNumGaps = 0;
+        mNumRuns = 0;
+        mNumRunPixels = 0;
+        if (width == 0 || height == 0) {
+            return this;
+        }
+        
+        byte[] data = img.mData;
+        int stride = img.mStride;
+        int origin = img.mOffset + top*stride + left;
+        int[] hist = mHist;
+        Arrays.fill(hist, 0);
+        for (int i = 0, rowOfs = origin;  i < height;  i++, rowOfs += stride) {
+            for (int j = 0;  j < width;  j++) {
+                ++hist[data[rowOfs + j] & 0xFF];
+            }
+        }
+        int thresh = intermeansThreshold(hist);
+        
+        if (mColumnRuns.length < width) {
+            mColumnRuns = new int[width];
+        }
+        int[] columnRuns = mColumnRuns;
+        int[] gapHist = mGapHist, runHist = mRunHist;
+        for (int i = 0, rowOfs = origin;  i < height;  i++, rowOfs += stride) {
+            int lastTextEnd = -1;  // Column after the last text pixel of this row so far
+            for (int j = 0;  j < width;  j++) {
+                int val = data[rowOfs + j] & 0xFF;
+                boolean text = darkOnLight ? (val <= thresh) : (val > thresh);
+                if (text) {
+                    if (lastTextEnd >= 0 && lastTextEnd < j) {
+                        ++gapHist[Math.min(MAX_RUN_LENGTH, j - lastTextEnd)];
+                        ++mNumGaps;
+                    }
+                    lastTextEnd = j + 1;
+                    if (i == 0) {
+                        columnRuns[j] = -1;
+                    } else if (columnRuns[j] >= 0) {
+                        ++columnRuns[j];
+                    }
+                } else {
+                    if (i > 0 && columnRuns[j] > 0) {
+                        int len = columnRuns[j];
+                        runHist[Math.min(MAX_RUN_LENGTH, len)] += len;
+                        ++mNumRuns;
+                        mNumRunPixels += len;
+                    }
+                    columnRuns[j] = 0;
+                }
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Threshold halfway between the means of the two classes it separates, 
+     * found by fixed-point iteration from the overall mean.  Values up to 
+     * and including the threshold form the lower class.
+     * @param hist  Histogram of 256 gray levels, not all zero
+     */
+    public static int intermeansThreshold (int[] hist) {
+        long count = 0, sum = 0;
+        for (int val = 0;  val < 256;  val++) {
+            count += hist[val];
+            sum += (long)hist[val] * val;
+        }
+        int thresh = (int)(sum / count);
+        for (int iter = 0;  iter < MAX_THRESHOLD_ITERATIONS;  iter++) {
+            long lowCount = 0, lowSum = 0;
+            for (int val = 0;  val <= thresh;  val++) {
+                lowCount += hist[val];
+                lowSum += (long)hist[val] * val;
+            }
+            long highCount = count - lowCount, highSum = sum - lowSum;
+            if (lowCount == 0 || highCount == 0) {
+                break;
+            }
+            int newThresh = (int)((lowSum / lowCount + highSum / highCount) / 2);
+            if (newThresh == thresh) {
+                break;
+            }
+            thresh = newThresh;
+        }
+        return thresh;
+    }
+    
+    public final RunLengthStats compute (GrayMatrix img, boolean darkOnLight) {
+        return compute(img, 0, 0, img.mWidth, img.mHeight, darkOnLight);
+    }
+    
+    /** Number of background gaps between text runs, along rows */
+    public final int getNumGaps () {
+        return mNumGaps;
+    }
+    
+    /** Number of text runs, along columns */
+    public final int getNumRuns () {
+        return mNumRuns;
+    }
+    
+    /**
+     * Smallest gap length such that at least the given fraction of gaps 
+     * are no longer; zero if there are no gaps.
+     */
+    public final int gapPercentile (float fraction) {
+        return percentile(mGapHist, mNumGaps, fraction);
+    }
+    
+    /**
+     * Smallest text run length such that at least the given fraction of 
+     * the pixels in runs belong to runs that are no longer; zero if there 
+     * are no runs.  Weighting by length lets long vertical strokes count 
+     * for more than the many short crossings of horizontal strokes.
+     */
+    public final int runPercentile (float fraction) {
+        return percentile(mRunHist, mNumRunPixels, fraction);
+    }
+    
+    private static int percentile (int[] hist, int count, float fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(fraction * count));
+        long cumulative = 0;
+        for (int len = 1;  len <= MAX_RUN_LENGTH;  len++) {
+            cumulative += hist[len];
+            if (cumulative >= target) {
+                return len;
+            }
+        }
+        return MAX_RUN_LENGTH;
+    }
+}
@@ -30,6 +30,7 @@ public class SimpleStructuringElement extends GrayMatrix implements StructuringE
     private int[] mDeltaX;
     private int[] mDeltaY;
     private int mNumNeighbors;
+    private volatile MorphologyPlan mPlan = null;
     
     private void initOffsets (int anchorX, int anchorY) {
         int width = mWidth;
@@ -60,8 +61,9 @@ public class SimpleStructuringElement extends GrayMatrix implements StructuringE
             for (int j = 0;  j < width;  j++) {
                 byte val = GrayMatrix.getByte(data, width, i, j);
                 if (val != 0) {
-                    int dx = i - anchorX;
-                    int dy = j - anchorY;
+                    // X is horizontal (column), Y is vertical (row)
+                    int dx = j - anchorX;
+                    int dy = i - anchorY;
                     minX = Math.min(minX, dx);  maxX = Math.max(maxX, dx);
                     minY = Math.min(minY, dy);  maxY = Math.max(maxY, dy);
                     deltaX[n] = dx;
@@ -83,7 +85,7 @@ public class SimpleStructuringElement extends GrayMatrix implements StructuringE
     }
     
     public SimpleStructuringElement (byte[] mask, int width, int height) {
-        this(mask, width, height, height/2, width/2);
+        this(mask, width, height, width/2, height/2);
     }
 
     @Override
@@ -113,26 +115,28 @@ public class SimpleStructuringElement extends GrayMatrix implements StructuringE
     
     @Override
     public int[] getHorizontalOffsets () {
-        return mDeltaY;
+        return mDeltaX;
     }
     
     @Override
     public int[] getVerticalOffsets () {
-        return mDeltaX;
+        return mDeltaY;
     }
 
     @Override
     public int[] getLinearOffsets(int imgWidth, int imgHeight) {
-        // Copy to locals for efficiency
-        int numNeighbors = mNumNeighbors;
-        int[] deltaX = mDeltaX;
-        int[] deltaY = mDeltaY;
-        
-        int ofs[] = new int[numNeighbors];
-        for (int n = 0;  n < numNeighbors;  n++) {
-            ofs[n] = deltaX[n] * imgWidth + deltaY[n];
+        // Memoized by the plan, for the last image width
+        return getPlan().getLinearOffsets(imgWidth);
+    }
+    
+    final MorphologyPlan getPlan () {
+        MorphologyPlan plan = mPlan;
+        if (plan == null) {
+            // Benign race; plans of the same element are equivalent
+            plan = new MorphologyPlan(this);
+            mPlan = plan;
         }
-        return ofs;
+        return plan;
     }
     
     public static final SimpleStructuringElement makeHorizontal (int radius) {
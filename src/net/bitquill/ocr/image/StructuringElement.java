@@ -32,5 +32,10 @@ public interface StructuringElement {
     public int[] getHorizontalOffsets ();
     public int[] getVerticalOffsets ();
     
+    /**
+     * Offsets of neighbors in a row-major image of the given size.  
+     * Implementations may return a cached array, which callers must not 
+     * modify.
+     */
     public int[] getLinearOffsets (int imgWidth, int imgHeight);
 }
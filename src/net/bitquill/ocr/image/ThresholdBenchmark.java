@@ -0,0 +1,139 @@
+/**
+ * Copyright 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ * 
+ * This file is part of WordSnap OCR.
+ * 
+ * WordSnap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * WordSnap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with WordSnap.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bitquill.ocr.image;
+
+import java.util.Random;
+
+/**
+ * Throughput of the local thresholding methods, in megapixels per second.
+ * Compares the current mean filter plus adaptive threshold path (with
+ * both the kernel and the integral image mean filter) against Niblack
+ * and Sauvola thresholds from the integral image.  Integral image
+ * computation is included in the timings of the methods that need it.
+ *
+ * Runs with whichever kernel backend {@link GrayImage} picks, e.g.:
+ * <pre>
+ *   java -Djava.library.path=libs/host -cp bin net.bitquill.ocr.image.ThresholdBenchmark [width height]
+ * </pre>
+ */
+public final class ThresholdBenchmark {
+
+    private static final int RADIUS = 10;
+    private static final int WARMUP_MILLIS = 1000;
+    private static final int MEASURE_MILLIS = 2000;
+
+    private final GrayImage mImg;
+    private final GrayImage mThresh;
+    private final GrayImage mOut;
+    private final IntegralImage mIntegral;
+
+    private ThresholdBenchmark (int width, int height) {
+        // Text-like blobs over a lighting gradient
+        Random random = new Random(20091019L);
+        byte[] data = new byte[width * height];
+        for (int i = 0;  i < height;  i++) {
+            for (int j = 0;  j < width;  j++) {
+                int val = 80 + 120 * j / width + random.nextInt(16);
+                if (((i / 12) % 3 == 1) && ((j / 7) % 2 == 0)) {
+                    val -= 60;
+                }
+                data[i*width + j] = (byte)val;
+            }
+        }
+        mImg = new GrayImage(data, width, height);
+        mThresh = new GrayImage(width, height);
+        mOut = new GrayImage(width, height);
+        mIntegral = new IntegralImage(width, height);
+    }
+
+    private abstract class Method {
+        final String mName;
+
+        Method (String name) {
+            mName = name;
+        }
+
+        abstract void run ();
+
+        private int runFor (long millis) {
+            long end = System.currentTimeMillis() + millis;
+            int n = 0;
+            do {
+                run();
+                n++;
+            } while (System.currentTimeMillis() < end);
+            return n;
+        }
+
+        final void measure () {
+            runFor(WARMUP_MILLIS);
+            long start = System.nanoTime();
+            int n = runFor(MEASURE_MILLIS);
+            double seconds = (System.nanoTime() - start) * 1e-9;
+            double megapixels = (double)n * mImg.getWidth() * mImg.getHeight() * 1e-6;
+            System.out.println(String.format("%-24s %8.1f Mpx/s %8.2f ms/frame",
+                    mName, megapixels / seconds, 1000.0 * seconds / n));
+        }
+    }
+
+    private void run () {
+        Method[] methods = {
+            new Method("mean (kernel)") {
+                @Override
+                void run () {
+                    mImg.meanFilter(RADIUS, mThresh);
+                    mImg.adaptiveThreshold((byte)255, (byte)0, 10, mThresh, mOut);
+                }
+            },
+            new Method("mean (integral)") {
+                @Override
+                void run () {
+                    mIntegral.compute(mImg).meanFilter(RADIUS, mThresh);
+                    mImg.adaptiveThreshold((byte)255, (byte)0, 10, mThresh, mOut);
+                }
+            },
+            new Method("niblack (integral)") {
+                @Override
+                void run () {
+                    mIntegral.compute(mImg).niblackThreshold(mImg, RADIUS, -0.2f, false, mOut);
+                }
+            },
+            new Method("sauvola (integral)") {
+                @Override
+                void run () {
+                    mIntegral.compute(mImg).sauvolaThreshold(mImg, RADIUS, 0.34f, 128.0f, false, mOut);
+                }
+            }
+        };
+        System.out.println(mImg.getWidth() + "x" + mImg.getHeight() + " frames, radius " + RADIUS
+                + ", " + (GrayImage.isNativeBackend() ? "native" : "Java") + " kernels");
+        for (Method method : methods) {
+            method.measure();
+        }
+    }
+
+    public static void main (String[] args) {
+        int width = 480, height = 320;
+        if (args.length >= 2) {
+            width = Integer.parseInt(args[0]);
+            height = Integer.parseInt(args[1]);
+        }
+        new ThresholdBenchmark(width, height).run();
+    }
+}
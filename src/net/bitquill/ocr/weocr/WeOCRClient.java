@@ -25,13 +25,20 @@ import java.io.InputStreamReader;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 
+import net.bitquill.ocr.PipelineMetrics;
 import android.graphics.Bitmap;
 import android.util.Log;
 
@@ -39,6 +46,7 @@ public final class WeOCRClient {
     private static final String TAG = WeOCRClient.class.getSimpleName();
 
     private static final int HTTP_TIMEOUT = 6000; // in msec
+    private static final int MAX_CONNECTIONS = 4;
 
     private static final String USER_AGENT_STRING = "net.bitquill.ocr/0.1" +
     " (Linux; U; Android " + android.os.Build.VERSION.RELEASE + ")" +
@@ -48,6 +56,9 @@ public final class WeOCRClient {
     private String mEndpoint;
     private DefaultHttpClient mHttpClient;
     
+    /**
+     * Requests may be issued concurrently from several threads.
+     */
     public WeOCRClient (String endpoint) {
         mEndpoint = endpoint;
         HttpParams params = new BasicHttpParams();
@@ -55,19 +66,37 @@ public final class WeOCRClient {
         HttpProtocolParams.setUseExpectContinue(params, true);
         HttpProtocolParams.setUserAgent(params, USER_AGENT_STRING);
         HttpConnectionParams.setConnectionTimeout(params, HTTP_TIMEOUT);
-        mHttpClient = new DefaultHttpClient(params);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
     }
     
     public String doOCR (Bitmap img) throws IOException {
+        return doOCR(img, null);
+    }
+    
+    /**
+     * @param metrics  Registry for latencies of request stages, or null
+     */
+    public String doOCR (Bitmap img, PipelineMetrics metrics) throws IOException {
         Log.i(TAG, "Sending OCR request to " + mEndpoint);
+        long time = System.nanoTime();
         HttpPost post = new HttpPost(mEndpoint);
         post.setEntity(new WeOCRFormEntity(img));
+        if (metrics != null) {
+            time = metrics.recordSince(PipelineMetrics.STAGE_JPEG_ENCODE, time);
+        }
 
         // Send request and obtain response
         BufferedReader r = null;
         try {
             HttpResponse resp = mHttpClient.execute(post);
             r = new BufferedReader(new InputStreamReader(resp.getEntity().getContent(), "utf-8"));
+            if (metrics != null) {
+                time = metrics.recordSince(PipelineMetrics.STAGE_HTTP, time);
+            }
         } catch (NullPointerException npe) {
             Log.e(TAG, "Null entity?", npe);
             throw new IOException("HTTP request failed");  // TODO
@@ -76,21 +105,28 @@ public final class WeOCRClient {
             throw new IOException("HTTP request failed");  // TODO
         }
         
-        // Parse response
-        String status = r.readLine();
-        if (status.length() != 0) {
-            // XXX temporary begin
+        // Parse response; closing the reader releases the connection
+        try {
+            String status = r.readLine();
+            if (status.length() != 0) {
+                // XXX temporary begin
+                for (String line = r.readLine();  line != null;  line = r.readLine()) {
+                    status += line;
+                }
+                // XXX temporary end
+                throw new IOException("WeOCR failed with status: " + status);
+            }
+            StringBuilder sb = new StringBuilder();  // XXX just use string?
             for (String line = r.readLine();  line != null;  line = r.readLine()) {
-                status += line;
+                sb.append(line);
+                sb.append('\n');
             }
-            // XXX temporary end
-            throw new IOException("WeOCR failed with status: " + status);
-        }
-        StringBuilder sb = new StringBuilder();  // XXX just use string?
-        for (String line = r.readLine();  line != null;  line = r.readLine()) {
-            sb.append(line);
-            sb.append('\n');
+            if (metrics != null) {
+                metrics.recordSince(PipelineMetrics.STAGE_RESPONSE_PARSE, time);
+            }
+            return sb.toString().trim();
+        } finally {
+            r.close();
         }
-        return sb.toString().trim();
     }
 }